@@ -1,5 +1,6 @@
 package jasmine.jragon;
 
+import jasmine.jragon.command.ProtocolCommand;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,6 +17,15 @@ public final class Client {
     private static final Logger LOG = LoggerFactory.getLogger(Client.class);
 
     public static void main(String[] args) {
+        run(args, false);
+    }
+
+    //Has the server run every keyed command against the whole cluster, so one connection is all this client needs
+    public static void coordinated(String[] args) {
+        run(args, true);
+    }
+
+    private static void run(String[] args, boolean coordinated) {
         var userIn = new Scanner(System.in);
 
         try (var serverSocket = SocketChannel.open()) {
@@ -25,26 +35,33 @@ public final class Client {
             serverSocket.connect(new InetSocketAddress(ipAddress, port));
             serverSocket.configureBlocking(true);
 
+            if (coordinated) {
+                System.out.println("Server said: " + exchange(serverSocket, buffer, ProtocolCommand.COORDINATE.getCommandName()));
+            }
+
             while (true) {
                 var command = userIn.nextLine();
 
                 if (command.equalsIgnoreCase("exit")) break;
 
-                buffer.clear().put(command.getBytes(StandardCharsets.UTF_8)).flip();
-                while (buffer.hasRemaining()) {
-                    serverSocket.write(buffer);
-                }
-
-                buffer.clear();
-
-                int n = serverSocket.read(buffer);
-                buffer.flip();
-
-                String response = new String(buffer.array(), buffer.position(), n);
-                System.out.println("Server said: " + response);
+                System.out.println("Server said: " + exchange(serverSocket, buffer, command));
             }
         } catch (IOException e) {
             LOG.error("Premature Client Shutdown: ", e);
         }
     }
+
+    private static String exchange(SocketChannel serverSocket, ByteBuffer buffer, String command) throws IOException {
+        buffer.clear().put(command.getBytes(StandardCharsets.UTF_8)).flip();
+        while (buffer.hasRemaining()) {
+            serverSocket.write(buffer);
+        }
+
+        buffer.clear();
+
+        int n = serverSocket.read(buffer);
+        buffer.flip();
+
+        return new String(buffer.array(), buffer.position(), n);
+    }
 }
@@ -1,5 +1,7 @@
 package jasmine.jragon;
 
+import jasmine.jragon.cluster.ConnectionSettings;
+import jasmine.jragon.consensus.ConsensusSettings;
 import jasmine.jragon.generate.PairCreation;
 import jasmine.jragon.network.ServerDevice;
 import org.slf4j.Logger;
@@ -13,6 +15,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static java.util.concurrent.CompletableFuture.runAsync;
 
@@ -20,6 +24,8 @@ public final class Driver {
     private static final Logger LOG = LoggerFactory.getLogger(Driver.class);
     private static final String CONFIG_FILE = "config.yml";
     private static final String DEFAULT_CONFIG = "self";
+    private static final String CONSENSUS_SECTION = "consensus";
+    private static final String CONNECTIONS_SECTION = "connections";
     private static final ServerDevice CURRENT_DEVICE = ServerDevice.LAPTOP;
 
     public static void main(String[] args) {
@@ -27,10 +33,21 @@ public final class Driver {
             switch (args[0].toLowerCase()) {
                 case "-ms", "--multi-server" -> {
                     var configName = args.length > 1 ? args[1] : DEFAULT_CONFIG;
+                    var settings = parseSettingsFromYml(CONSENSUS_SECTION, ConsensusSettings::fromYml, ConsensusSettings.DEFAULTS);
+                    var connectionSettings =
+                            parseSettingsFromYml(CONNECTIONS_SECTION, ConnectionSettings::fromYml, ConnectionSettings.DEFAULTS);
+                    //Every server can coordinate for thin clients, so each is told the whole cluster, not just this device's
+                    var cluster = parseServersFromYml(configName, true)
+                            .stream()
+                            .map(connectionArray -> connectionArray[0] + ":" + connectionArray[1])
+                            .collect(Collectors.joining(","));
                     var loadedServers = parseServersFromYml(configName, false)
                             .stream()
                             .map(connectionArray -> connectionArray[1])
-                            .map(port -> runAsync(() -> Server.main(new String[]{port})))
+                            .map(port -> settings.raft() ?
+                                    new String[]{port, Server.RAFT_FLAG, Server.COORDINATE_FLAG, cluster} :
+                                    new String[]{port, Server.COORDINATE_FLAG, cluster})
+                            .map(serverArgs -> runAsync(() -> Server.start(serverArgs, settings, connectionSettings)))
                             .toArray(CompletableFuture[]::new);
 
                     if (loadedServers.length != 0) {
@@ -46,9 +63,14 @@ public final class Driver {
                             .flatMap(Arrays::stream)
                             .toArray(String[]::new);
 
-                    MultiClient.main(clientArgs);
+                    MultiClient.start(
+                            clientArgs,
+                            parseSettingsFromYml(CONSENSUS_SECTION, ConsensusSettings::fromYml, ConsensusSettings.DEFAULTS),
+                            parseSettingsFromYml(CONNECTIONS_SECTION, ConnectionSettings::fromYml, ConnectionSettings.DEFAULTS)
+                    );
                 }
                 case "-c", "--client" -> Client.main(args);
+                case "-cc", "--coordinated-client" -> Client.coordinated(args);
                 case "-pc" -> PairCreation.main(args);
                 default -> Server.main(args);
             }
@@ -80,4 +102,19 @@ public final class Driver {
 
         return Collections.emptyList();
     }
+
+    private static <T> T parseSettingsFromYml(String sectionName, Function<Map<?, ?>, T> parser, T defaults) {
+        try (var inputStream = new FileInputStream(CONFIG_FILE)) {
+            var yaml = new Yaml();
+
+            Map<String, Object> configData = yaml.load(inputStream);
+
+            if (configData != null && configData.get(sectionName) instanceof Map<?, ?> section) {
+                return parser.apply(section);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            LOG.warn("Failed to load {} settings from {}, using defaults: ", sectionName, CONFIG_FILE, e);
+        }
+        return defaults;
+    }
 }
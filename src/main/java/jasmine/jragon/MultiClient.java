@@ -1,40 +1,55 @@
 package jasmine.jragon;
 
+import jasmine.jragon.cluster.ClusterClient;
+import jasmine.jragon.cluster.ConnectionSettings;
 import jasmine.jragon.command.ProtocolCommand;
 import jasmine.jragon.consensus.ConsensusOperation;
-import lombok.AccessLevel;
-import lombok.AllArgsConstructor;
-import lombok.EqualsAndHashCode;
-import lombok.Getter;
+import jasmine.jragon.consensus.ConsensusSettings;
+import jasmine.jragon.consensus.QuorumOverride;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.util.Collection;
-import java.util.List;
-import java.util.Optional;
+import java.util.Arrays;
 import java.util.Scanner;
 import java.util.stream.IntStream;
 
 import static jasmine.jragon.response.ServerResponse.INSUFFICIENT_ARGUMENTS;
+import static jasmine.jragon.response.ServerResponse.INVALID_QUORUM;
 
 public final class MultiClient {
     private static final Logger LOG = LoggerFactory.getLogger(MultiClient.class);
 
-    private static ConsensusOperation currentOperation = null;
-
     public static void main(String[] args) {
-        var userIn = new Scanner(System.in);
+        start(args, ConsensusSettings.DEFAULTS, ConnectionSettings.DEFAULTS);
+    }
 
+    public static void start(String[] args, ConsensusSettings settings, ConnectionSettings connectionSettings) {
         var servers = IntStream.iterate(0, i -> i + 2)
                 .limit(args.length >> 1)
-                .mapToObj(i -> ServerConnection.from(args[i], Integer.parseInt(args[i + 1])))
-                .flatMap(Optional::stream)
+                .mapToObj(i -> new InetSocketAddress(args[i], Integer.parseInt(args[i + 1])))
                 .toList();
 
+        try (var client = ClusterClient.connect(servers, settings, connectionSettings)) {
+            LOG.info("Key placement imbalance across {} servers: {}", client.serverCount(),
+                    String.format("%.3f", client.placementImbalance()));
+            runConsole(client);
+            LOG.info("Hedged read rate: {}", String.format("%.4f", client.getMetrics().hedgeRate()));
+            LOG.info("Hints stored: {}, handed off: {}", client.getMetrics().hintCount(), client.deliveredHintCount());
+            LOG.info("Replicas repaired by reads: {}", client.getMetrics().readRepairCount());
+            LOG.info("Keys repaired by anti-entropy: {}", client.repairedKeyCount());
+        } catch (IOException e) {
+            LOG.error("Cluster client failed to start: ", e);
+        }
+    }
+
+    private static void runConsole(ClusterClient client) {
+        var userIn = new Scanner(System.in);
+        ConsensusOperation currentOperation = null;
+        //One connection per server for the whole session, so snapshots and transactions see their own state
+        var session = client.pin();
+
         while (true) {
             System.out.println("Enter command:");
             var command = userIn.nextLine().trim();
@@ -42,12 +57,47 @@ public final class MultiClient {
             if (command.equalsIgnoreCase("exit")) break;
 
             var components = command.split("\\s+");
+            int overrideCount = QuorumOverride.countLeadingTokens(components);
+            if (overrideCount == components.length) {
+                System.out.println("Server response: " + INSUFFICIENT_ARGUMENTS);
+                continue;
+            }
+
+            QuorumOverride override;
+            try {
+                override = QuorumOverride.parse(Arrays.copyOf(components, overrideCount));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Server response: " + INVALID_QUORUM);
+                continue;
+            }
+            if (overrideCount > 0) {
+                components = Arrays.copyOfRange(components, overrideCount, components.length);
+                command = String.join(" ", components);
+            }
+
             var protocol = ProtocolCommand.lookup(components[0]);
 
-            if (protocol.containsSufficientArguments(components.length-1)) {
-                var response = conductOperation(components, protocol, command, servers);
+            if (protocol.containsSufficientArguments(components.length-1) &&
+                    (protocol == ProtocolCommand.JOIN || protocol == ProtocolCommand.LEAVE || protocol == ProtocolCommand.MEMBERS)) {
+                //Membership changes belong to the client as a whole, not to a session's operation
+                System.out.println("Server response: " + client.execute(command).join());
+            } else if (protocol.containsSufficientArguments(components.length-1)) {
+                var keys = ClusterClient.keysOf(protocol, components);
+
+                //Transactions keep their operation, and its server placement, until they commit or abort
+                if (currentOperation == null || currentOperation.isDone()) {
+                    try {
+                        currentOperation = client.newOperation(protocol, keys, override, session);
+                    } catch (IllegalArgumentException e) {
+                        LOG.warn("Rejected quorum for [{}]: {}", command, e.getMessage());
+                        System.out.println("Server response: " + INVALID_QUORUM);
+                        continue;
+                    }
+                }
 
-                if (currentOperation != null && currentOperation.isDone()) {
+                var response = currentOperation.sendCommandToServers(protocol, command, keys).join();
+
+                if (currentOperation.isDone()) {
                     currentOperation = null;
                 }
 
@@ -58,88 +108,5 @@ public final class MultiClient {
                 System.out.println("Server response: " + INSUFFICIENT_ARGUMENTS);
             }
         }
-
-        closeConnections(servers);
-    }
-
-    private static String conductOperation(String[] components,
-                                           ProtocolCommand protocol,
-                                           String command,
-                                           List<ServerConnection> servers) {
-        String[] keys;
-
-        switch (protocol) {
-            case READ, WRITE, CHECK -> keys = new String[]{components[1]};
-            case BEGIN_TRANSACTION -> {
-                keys = new String[components.length-1];
-                System.arraycopy(components, 1, keys, 0, keys.length);
-            }
-            default -> keys = new String[0];
-        }
-
-        if (currentOperation == null || currentOperation.isDone()) {
-            currentOperation = new ConsensusOperation(protocol, keys, servers);
-        }
-
-        return currentOperation.sendCommandToServers(protocol, command, keys);
-    }
-
-    private static void closeConnections(Collection<ServerConnection> channels) {
-        for (var channel : channels) {
-            try {
-                channel.close();
-            } catch (IOException e) {
-                LOG.warn("Socket Closure Failure: ", e);
-            }
-        }
-    }
-
-    @Getter
-    @EqualsAndHashCode(of = {"ipAddress", "port"}, doNotUseGetters = true)
-    @AllArgsConstructor(access = AccessLevel.PRIVATE)
-    public static final class ServerConnection implements AutoCloseable {
-        private final String ipAddress;
-        private final int port;
-        private final SocketChannel serverConnection;
-        private final ByteBuffer buffer;
-
-        private boolean closed;
-
-        static Optional<ServerConnection> from(String ipAddress, int port) {
-            var connection = createSocketChannel(ipAddress, port);
-
-            return connection.map(socket -> new ServerConnection(
-                    ipAddress,
-                    port,
-                    socket,
-                    ByteBuffer.allocate(Server.BUFFER_SIZE),
-                    false
-            ));
-        }
-
-        @Override
-        public void close() throws IOException {
-            serverConnection.close();
-            closed = true;
-        }
-
-        @Override
-        public String toString() {
-            return String.format("Connection[%s:%d]", ipAddress, port);
-        }
-    }
-
-    private static Optional<SocketChannel> createSocketChannel(String ipAddress, int port) {
-        try {
-            var s = SocketChannel.open();
-
-            s.connect(new InetSocketAddress(ipAddress, port));
-            s.configureBlocking(true);
-
-            return Optional.of(s);
-        } catch (IOException e) {
-            LOG.warn("Socket Creation Failed: ", e);
-            return Optional.empty();
-        }
     }
 }
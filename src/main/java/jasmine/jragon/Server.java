@@ -1,6 +1,17 @@
 package jasmine.jragon;
 
 import jasmine.jragon.client.TreeClient;
+import jasmine.jragon.client.handoff.HintStore;
+import jasmine.jragon.client.membership.MembershipStore;
+import jasmine.jragon.client.transaction.TransactionLog;
+import jasmine.jragon.cluster.ConnectionSettings;
+import jasmine.jragon.cluster.Coordinator;
+import jasmine.jragon.cluster.Membership;
+import jasmine.jragon.cluster.PeerReplicator;
+import jasmine.jragon.consensus.ConsensusSettings;
+import jasmine.jragon.network.Frame;
+import jasmine.jragon.network.FrameDecoder;
+import jasmine.jragon.raft.RaftServer;
 import jasmine.jragon.response.ServerResponse;
 import jasmine.jragon.tree.BTree;
 import org.slf4j.Logger;
@@ -15,16 +26,25 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 public final class Server {
     public static final int PORT = 8080;
     public static final int BUFFER_SIZE = 1024;
+    //Passed after the port, it has the server keep its data in Raft groups instead of answering writes itself
+    public static final String RAFT_FLAG = "--raft";
+    //Passed after the port with every server's host:port joined by commas, it lets thin clients coordinate through it
+    public static final String COORDINATE_FLAG = "--coordinate";
 
     private static final AtomicLong CLIENT_COUNTER = new AtomicLong(-1);
     private static final AtomicLong SERVER_COUNT = new AtomicLong(-1);
@@ -32,13 +52,25 @@ public final class Server {
     private static final Logger LOG = LoggerFactory.getLogger(Server.class);
 
     private static final String RECONSTRUCTION_FILE = "tree-log.txt";
+    private static final String HINT_FILE = "hints.txt";
+    private static final String RAFT_FILE = "raft-log.txt";
+    private static final String MEMBERSHIP_FILE = "members.txt";
+    private static final String TRANSACTION_FILE = "transactions.txt";
+    private static final long EXPIRATION_TICK_MILLIS = 100;
+    private static final int EXPIRATION_SLICE = 64;
+    private static final long REPLICATION_TIMEOUT_MILLIS = 5_000;
 
     public static void main(String[] args) {
+        start(args, ConsensusSettings.DEFAULTS, ConnectionSettings.DEFAULTS);
+    }
+
+    //The settings are those of the cluster, used when this server talks to its peers or coordinates for clients
+    public static void start(String[] args, ConsensusSettings settings, ConnectionSettings connectionSettings) {
         BTree serverTree = null;
         Map<SelectableChannel, TreeClient> connectionMap = new HashMap<>();
         long serverId = SERVER_COUNT.incrementAndGet();
         try {
-            serverTree = startServer(args, serverId, connectionMap);
+            serverTree = startServer(args, settings, connectionSettings, serverId, connectionMap);
         } catch (IOException e) {
             LOG.error("Server {} Internal Error Occurred: ", serverId, e);
         } finally {
@@ -48,7 +80,8 @@ public final class Server {
         }
     }
 
-    private static BTree startServer(String[] args, long serverId, Map<SelectableChannel, TreeClient> connectionMap) throws IOException {
+    private static BTree startServer(String[] args, ConsensusSettings settings, ConnectionSettings connectionSettings,
+                                     long serverId, Map<SelectableChannel, TreeClient> connectionMap) throws IOException {
         BTree serverTree;
         LOG.debug("Starting Server {}", serverId);
         var isServerShutdown = new AtomicBoolean(false);
@@ -57,125 +90,231 @@ public final class Server {
              var server = ServerSocketChannel.open()) {
 
             int port = PORT;
-            File reconstructionFile;
-            if (args.length == 1) {
+            if (args.length > 0) {
                 try {
                     port = Integer.parseInt(args[0]);
                 } catch (NumberFormatException e) {
                     LOG.error("Invalid port number: {}. Using {} as the default", args[0], PORT);
                 }
-                server.bind(new InetSocketAddress(port));
-                reconstructionFile =  new File(port + "-" + RECONSTRUCTION_FILE);
-            } else {
-                reconstructionFile = new File(PORT + "-" + RECONSTRUCTION_FILE);
-                server.bind(new InetSocketAddress(port));
-            }
-            if (!reconstructionFile.exists()) {
-                //noinspection ResultOfMethodCallIgnored
-                reconstructionFile.createNewFile();
             }
 
-            serverTree = new BTree(5, reconstructionFile);
+            boolean raftMode = false;
+            Coordinator coordinator = null;
+            for (int i = 1; i < args.length; i++) {
+                if (RAFT_FLAG.equals(args[i])) {
+                    raftMode = true;
+                } else if (COORDINATE_FLAG.equals(args[i]) && i + 1 < args.length) {
+                    try {
+                        coordinator = new Coordinator(parseAddresses(args[++i]), settings, connectionSettings);
+                    } catch (IllegalArgumentException e) {
+                        LOG.error("Invalid cluster {}, not coordinating: {}", args[i], e.getMessage());
+                    }
+                } else {
+                    LOG.warn("Ignoring server argument {}", args[i]);
+                }
+            }
 
+            server.bind(new InetSocketAddress(port));
+            var reconstructionFile = new File(port + "-" + RECONSTRUCTION_FILE);
+            var hintFile = new File(port + "-" + HINT_FILE);
+            var replicator = PeerReplicator.start(connectionSettings, REPLICATION_TIMEOUT_MILLIS);
+            RaftServer raft = null;
+            if (raftMode) {
+                //The Raft log is the write-ahead log here, so the tree is rebuilt from it and logs nothing itself
+                serverTree = new BTree(5);
+                raft = RaftServer.open(new File(port + "-" + RAFT_FILE), serverTree, replicator::send, selector::wakeup);
+            } else {
+                if (!reconstructionFile.exists()) {
+                    //noinspection ResultOfMethodCallIgnored
+                    reconstructionFile.createNewFile();
+                }
+                serverTree = new BTree(5, reconstructionFile);
+            }
+            var hints = HintStore.open(hintFile);
+            var membership = MembershipStore.open(new File(port + "-" + MEMBERSHIP_FILE));
+            Set<String> globalKeyLock = new HashSet<>();
+            var transactions = TransactionLog.open(new File(port + "-" + TRANSACTION_FILE), serverTree, globalKeyLock);
 
             LOG.debug("Listening on port {}", port);
 
             server.configureBlocking(false);
             server.register(selector, SelectionKey.OP_ACCEPT);
 
-            Set<String> globalKeyLock = new HashSet<>();
-
+            Map<SelectableChannel, ArrayDeque<PendingReply>> pendingReplies = new HashMap<>();
 
+            long tickMillis = raft == null ? EXPIRATION_TICK_MILLIS : RaftServer.TICK_MILLIS;
             while (isRunning(isServerShutdown, connectionMap)) {
-                if (selector.select() != 0) {
+                if (selector.select(tickMillis) != 0) {
                     for (var selectionKey : selector.selectedKeys()) {
                         if (selectionKey.isAcceptable()) {
-                            acceptIncoming(selectionKey.channel(), selector, serverTree, globalKeyLock, connectionMap);
+                            acceptIncoming(selectionKey.channel(), selector, serverTree, hints, membership, transactions,
+                                    replicator, raft, coordinator, globalKeyLock, connectionMap);
                         } else if (selectionKey.isReadable()) {
                             var client = selectionKey.channel();
                             try {
-                                readIncomingCommand(client, isServerShutdown, connectionMap);
+                                readIncomingCommand(selectionKey, isServerShutdown, connectionMap, pendingReplies);
                             } catch (IOException e) {
                                 LOG.error("Unexpected Drop of connection: {}", e.getMessage());
-                                removeClient(client, connectionMap);
+                                removeClient(client, connectionMap, pendingReplies);
                             }
                         }
                     }
 
                     selector.selectedKeys().clear();
                 }
+
+                if (raft != null) {
+                    raft.tick();
+                }
+                writeFinishedReplies(connectionMap, pendingReplies);
+                serverTree.expireSlice(EXPIRATION_SLICE);
+                transactions.tick(replicator::send);
             }
+
+            //Hints and transactions are flushed as they arrive, so only a clean shutdown needs to close the files
+            hints.close();
+            transactions.close();
+            if (raft != null) {
+                raft.close();
+            }
+            if (coordinator != null) {
+                coordinator.close();
+            }
+            replicator.close();
         }
 
         return serverTree;
     }
 
     private static void acceptIncoming(SelectableChannel acceptedChannel, Selector selector,
-                                       BTree serverTree, Set<String> globalKeyLock,
+                                       BTree serverTree, HintStore hints, MembershipStore membership,
+                                       TransactionLog transactions, PeerReplicator replicator, RaftServer raft, Coordinator coordinator,
+                                       Set<String> globalKeyLock,
                                        Map<SelectableChannel, TreeClient> connectionMap)
             throws IOException {
         if (acceptedChannel instanceof ServerSocketChannel channel) {
             var client = channel.accept();
             client.configureBlocking(false);
-            client.register(selector, SelectionKey.OP_READ);
+            client.register(selector, SelectionKey.OP_READ, FrameDecoder.forRequests());
 
             var treeClient = TreeClient.from(
                     CLIENT_COUNTER.incrementAndGet(),
                     globalKeyLock,
                     serverTree,
-                    client
+                    client,
+                    hints,
+                    membership,
+                    replicator,
+                    raft,
+                    coordinator,
+                    transactions
             );
             connectionMap.put(client, treeClient);
             System.out.println("Accepted connection from " + treeClient);
         }
     }
 
-    private static void readIncomingCommand(SelectableChannel incomingChannel,
+    private static void readIncomingCommand(SelectionKey selectionKey,
                                             AtomicBoolean isServerShutdown,
-                                            Map<SelectableChannel, TreeClient> connectionMap)
+                                            Map<SelectableChannel, TreeClient> connectionMap,
+                                            Map<SelectableChannel, ArrayDeque<PendingReply>> pendingReplies)
             throws IOException {
-        if (incomingChannel instanceof SocketChannel client) {
+        if (selectionKey.channel() instanceof SocketChannel client &&
+                selectionKey.attachment() instanceof FrameDecoder decoder) {
             var buffer = ByteBuffer.allocate(BUFFER_SIZE);
             int n = client.read(buffer);
 
-            var response = "";
             if (n == -1) {
-                removeClient(client, connectionMap);
+                removeClient(client, connectionMap, pendingReplies);
                 LOG.trace("Client closed");
                 return;
-            } else if (!connectionMap.containsKey(client)) {
-                LOG.warn("Client not found");
-                response = ServerResponse.UNKNOWN_CLIENT.toString();
-            } else {
-                buffer.flip();
-                var request = new String(buffer.array(), buffer.position(), n)
-                        .trim();
-
-                response = connectionMap.get(client)
-                        .acceptCommand(request, isServerShutdown);
             }
 
-            buffer.clear();
-            buffer.put(response.getBytes());
             buffer.flip();
+            var replies = pendingReplies.computeIfAbsent(client, ignored -> new ArrayDeque<>());
+            for (var frame : decoder.decode(buffer)) {
+                CompletableFuture<String> response;
+                if (!connectionMap.containsKey(client)) {
+                    LOG.warn("Client not found");
+                    response = CompletableFuture.completedFuture(ServerResponse.UNKNOWN_CLIENT.toString());
+                } else {
+                    response = connectionMap.get(client)
+                            .acceptAsync(frame.payload(), isServerShutdown);
+                }
+
+                //Finishing off the loop thread only wakes it; the reply itself is written from here
+                if (!response.isDone()) {
+                    var selector = selectionKey.selector();
+                    response.whenComplete((reply, e) -> selector.wakeup());
+                }
+                replies.add(new PendingReply(frame, response));
+            }
+            writeReplies(client, replies);
+        }
+    }
 
-            while (buffer.hasRemaining()) {
-                client.write(buffer);
+    private static void writeFinishedReplies(Map<SelectableChannel, TreeClient> connectionMap,
+                                             Map<SelectableChannel, ArrayDeque<PendingReply>> pendingReplies) {
+        for (var entry : Map.copyOf(pendingReplies).entrySet()) {
+            if (entry.getKey() instanceof SocketChannel client) {
+                try {
+                    writeReplies(client, entry.getValue());
+                } catch (IOException e) {
+                    LOG.error("Unexpected Drop of connection: {}", e.getMessage());
+                    try {
+                        removeClient(client, connectionMap, pendingReplies);
+                    } catch (IOException closeFailure) {
+                        LOG.warn("Closing dropped connection failed: {}", closeFailure.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    //Replies leave in request order, so a command answered at once still waits behind a replicated write before it
+    private static void writeReplies(SocketChannel client, ArrayDeque<PendingReply> replies) throws IOException {
+        while (!replies.isEmpty() && replies.peek().response().isDone()) {
+            var pending = replies.poll();
+            var response = pending.response()
+                    .exceptionally(e -> ServerResponse.SERVER_IO_ERROR.toString())
+                    .join();
+
+            var encoded = pending.frame().isTagged() ?
+                    Frame.encodeResponse(pending.frame().id(), response) :
+                    response.getBytes(StandardCharsets.UTF_8);
+            var output = ByteBuffer.wrap(encoded);
+            while (output.hasRemaining()) {
+                client.write(output);
             }
         }
     }
 
     private static void removeClient(SelectableChannel client,
-                                     Map<SelectableChannel, TreeClient> connectionMap)
+                                     Map<SelectableChannel, TreeClient> connectionMap,
+                                     Map<SelectableChannel, ArrayDeque<PendingReply>> pendingReplies)
             throws IOException {
+        pendingReplies.remove(client);
         var internalClient = connectionMap.remove(client);
         client.close();
 
-        if (internalClient != null && !internalClient.isDone()) {
-            internalClient.eraseTransaction();
+        if (internalClient != null) {
+            internalClient.releaseSnapshot();
+
+            if (!internalClient.isDone()) {
+                internalClient.abandonTransaction();
+            }
         }
     }
 
+    //host:port,host:port,...
+    private static List<InetSocketAddress> parseAddresses(String addresses) {
+        return Arrays.stream(addresses.split(","))
+                .map(Membership::socketAddress)
+                .toList();
+    }
+
+    private record PendingReply(Frame frame, CompletableFuture<String> response) {}
+
     private static boolean isRunning(AtomicBoolean isServerShutdown,
                                      Map<SelectableChannel, TreeClient> connectionMap) {
         return !(isServerShutdown.get() &&
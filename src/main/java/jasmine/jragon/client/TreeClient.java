@@ -1,7 +1,16 @@
 package jasmine.jragon.client;
 
+import jasmine.jragon.client.handoff.HintStore;
+import jasmine.jragon.client.membership.MembershipStore;
 import jasmine.jragon.client.transaction.Transaction;
+import jasmine.jragon.client.transaction.TransactionLog;
+import jasmine.jragon.cluster.Coordinator;
+import jasmine.jragon.cluster.Membership;
+import jasmine.jragon.cluster.PeerReplicator;
 import jasmine.jragon.command.ProtocolCommand;
+import jasmine.jragon.command.WriteOptions;
+import jasmine.jragon.raft.RaftServer;
+import jasmine.jragon.response.ServerResponse;
 import jasmine.jragon.tree.BTree;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
@@ -13,19 +22,38 @@ import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import static jasmine.jragon.response.ServerResponse.ACKNOWLEDGED;
 import static jasmine.jragon.response.ServerResponse.DUPLICATE_KEYS;
 import static jasmine.jragon.response.ServerResponse.EMPTY_TRANSACTION;
 import static jasmine.jragon.response.ServerResponse.INSUFFICIENT_ARGUMENTS;
+import static jasmine.jragon.response.ServerResponse.INVALID_DECISION;
+import static jasmine.jragon.response.ServerResponse.INVALID_HINT;
+import static jasmine.jragon.response.ServerResponse.INVALID_MEMBERSHIP;
+import static jasmine.jragon.response.ServerResponse.INVALID_NUMBER;
+import static jasmine.jragon.response.ServerResponse.INVALID_REPLICATION;
+import static jasmine.jragon.response.ServerResponse.INVALID_TRANSACTION_COMMAND;
 import static jasmine.jragon.response.ServerResponse.KEY_LOCKED_ISSUE;
+import static jasmine.jragon.response.ServerResponse.NO_COORDINATOR;
 import static jasmine.jragon.response.ServerResponse.NO_WRITES_ISSUE;
+import static jasmine.jragon.response.ServerResponse.PONG;
+import static jasmine.jragon.response.ServerResponse.RAFT_REQUIRED;
+import static jasmine.jragon.response.ServerResponse.REPLICATION_INCOMPLETE;
+import static jasmine.jragon.response.ServerResponse.SERVER_IO_ERROR;
 import static jasmine.jragon.response.ServerResponse.SHUTDOWN_IN_PROGRESS;
+import static jasmine.jragon.response.ServerResponse.SNAPSHOT_DNE;
+import static jasmine.jragon.response.ServerResponse.SNAPSHOT_IN_PROGRESS;
+import static jasmine.jragon.response.ServerResponse.STALE_MEMBERSHIP;
 import static jasmine.jragon.response.ServerResponse.SUCCESS;
+import static jasmine.jragon.response.ServerResponse.TRANSACTION_ABORTED;
 import static jasmine.jragon.response.ServerResponse.TRANSACTION_DNE;
 import static jasmine.jragon.response.ServerResponse.TRANSACTION_EXPIRED_ISSUE;
 import static jasmine.jragon.response.ServerResponse.TRANSACTION_IN_PROGRESS;
+import static jasmine.jragon.response.ServerResponse.TRANSACTION_NOT_PREPARED;
+import static jasmine.jragon.response.ServerResponse.TRANSACTION_PREPARED;
 import static jasmine.jragon.response.ServerResponse.UNSUPPORTED_COMMAND;
 
 @RequiredArgsConstructor(staticName = "from")
@@ -36,8 +64,16 @@ public final class TreeClient {
     private final Set<String> globalKeyLock;
     private final BTree btree;
     private final SocketChannel servicedClient;
+    private final HintStore hints;
+    private final MembershipStore membership;
+    private final PeerReplicator replicator;
+    private final RaftServer raft;
+    private final Coordinator coordinator;
+    private final TransactionLog transactions;
 
     private Transaction currentTransaction;
+    private Long currentSnapshot;
+    private boolean coordinating;
 
     public String acceptCommand(@NonNull String command, @NonNull AtomicBoolean serverClose) {
         var singleSplit = command.split(" +", 2);
@@ -61,6 +97,36 @@ public final class TreeClient {
         return conductNormalResponse(protocol, arguments, serverClose);
     }
 
+    //Replicated writes answer once enough peers have stored them, Raft requests once their group has committed
+    //or read them, and a coordinating connection's keyed commands once their quorum has answered; everything else
+    //is answered on the spot. With Raft on, the tree only changes through the groups
+    public CompletableFuture<String> acceptAsync(@NonNull String command, @NonNull AtomicBoolean serverClose) {
+        var singleSplit = command.split(" +", 2);
+        var protocol = ProtocolCommand.lookup(singleSplit[0]);
+        if (serverClose.get() || currentTransaction != null) {
+            return CompletableFuture.completedFuture(acceptCommand(command, serverClose));
+        } else if (protocol == ProtocolCommand.COORDINATE) {
+            return CompletableFuture.completedFuture(coordinate().toString());
+        } else if (coordinating && Coordinator.coordinates(command)) {
+            return coordinator.execute(command);
+        }
+
+        var arguments = singleSplit.length == 1 ? new String[0] : singleSplit[1].split(" +");
+        if (protocol.isRaftMessage()) {
+            if (raft == null) {
+                return CompletableFuture.completedFuture(UNSUPPORTED_COMMAND.toString());
+            } else if (!protocol.containsSufficientArguments(arguments.length)) {
+                return CompletableFuture.completedFuture(INSUFFICIENT_ARGUMENTS.toString());
+            }
+            return raft.handle(protocol, singleSplit[1]);
+        } else if (raft != null && (protocol.isWriteAhead() || protocol == ProtocolCommand.REPLICATE)) {
+            return CompletableFuture.completedFuture(RAFT_REQUIRED.toString());
+        } else if (protocol == ProtocolCommand.REPLICATE) {
+            return replicate(arguments);
+        }
+        return CompletableFuture.completedFuture(acceptCommand(command, serverClose));
+    }
+
     private String conductNormalResponse(ProtocolCommand protocol,
                                          String[] arguments,
                                          AtomicBoolean serverClose) {
@@ -68,7 +134,11 @@ public final class TreeClient {
         switch (protocol) {
             case READ, WRITE, CHECK -> {
                 if (currentTransaction == null) {
-                    return protocol.handleRequest(arguments, globalKeyLock, btree);
+                    return currentSnapshot != null && !protocol.isWriteAhead() ?
+                            protocol.handleSnapshotRequest(arguments, currentSnapshot, btree) :
+                            protocol.handleRequest(arguments, globalKeyLock, btree);
+                } else if (currentTransaction.isPrepared()) {
+                    response = INVALID_TRANSACTION_COMMAND;
                 } else if (currentTransaction.isNotExpired()) {
                     response = currentTransaction.addTransactionCommand(protocol, arguments, userID);
                 } else {
@@ -76,6 +146,34 @@ public final class TreeClient {
                     response = TRANSACTION_EXPIRED_ISSUE;
                 }
             }
+            case MULTI_READ, MULTI_WRITE, VERSIONED_READ, VERSIONED_MULTI_WRITE, COMPARE_AND_SET, INCREMENT_BY, APPEND,
+                 PUT_IF_ABSENT -> {
+                if (currentTransaction != null) {
+                    response = INVALID_TRANSACTION_COMMAND;
+                } else {
+                    return currentSnapshot != null && !protocol.isWriteAhead() ?
+                            protocol.handleSnapshotRequest(arguments, currentSnapshot, btree) :
+                            protocol.handleRequest(arguments, globalKeyLock, btree);
+                }
+            }
+            case COUNT_RANGE, RANK, SELECT, STATISTICS, MERKLE_DIGEST, MERKLE_BUCKET, SCAN -> {
+                return protocol.handleRequest(arguments, globalKeyLock, btree);
+            }
+            case BEGIN_SNAPSHOT -> {
+                if (currentSnapshot != null) {
+                    response = SNAPSHOT_IN_PROGRESS;
+                } else {
+                    currentSnapshot = btree.openSnapshot();
+                    return "Snapshot opened at version " + currentSnapshot;
+                }
+            }
+            case RELEASE_SNAPSHOT -> {
+                if (currentSnapshot == null) {
+                    response = SNAPSHOT_DNE;
+                } else {
+                    releaseSnapshot();
+                }
+            }
             case BEGIN_TRANSACTION -> {
                 if (!protocol.containsSufficientArguments(arguments.length)) {
                     response = INSUFFICIENT_ARGUMENTS;
@@ -106,6 +204,9 @@ public final class TreeClient {
             case COMMIT_TRANSACTION, ABORT_TRANSACTION -> {
                 if (currentTransaction == null) {
                     response = TRANSACTION_DNE;
+                } else if (currentTransaction.isPrepared()) {
+                    //Only its coordinator's decision may end a prepared transaction
+                    response = INVALID_TRANSACTION_COMMAND;
                 } else if (currentTransaction.isExpired()) {
                     eraseTransaction();
                     response = TRANSACTION_EXPIRED_ISSUE;
@@ -128,13 +229,284 @@ public final class TreeClient {
                     }
                 }
             }
+            case EXECUTE -> {
+                return currentTransaction == null ? execute(arguments) : INVALID_TRANSACTION_COMMAND.toString();
+            }
+            case PREPARE_TRANSACTION -> {
+                return prepare(arguments);
+            }
+            case DECIDE_TRANSACTION -> {
+                return decide(arguments);
+            }
+            case TRANSACTION_OUTCOME -> {
+                return protocol.containsSufficientArguments(arguments.length) ?
+                        transactions.outcome(arguments[0]).toString() :
+                        INSUFFICIENT_ARGUMENTS.toString();
+            }
+            case STORE_HINT, LIST_HINTS, ACKNOWLEDGE_HINTS -> {
+                return handleHint(protocol, arguments);
+            }
+            case MEMBERS -> {
+                return handleMembers(arguments);
+            }
+            //Only a ClusterClient can move keys between servers
+            case JOIN, LEAVE -> response = UNSUPPORTED_COMMAND;
+            //acceptAsync handles these outside of transactions, so only a transaction's end up here
+            case REPLICATE, RAFT, APPEND_ENTRIES, REQUEST_VOTE, COORDINATE -> response = INVALID_TRANSACTION_COMMAND;
             case SHUTDOWN_SERVER -> serverClose.set(true);
+            case PING -> response = PONG;
             case UNSUPPORTED -> response = UNSUPPORTED_COMMAND;
         }
 
         return response.toString();
     }
 
+    //EXEC <key...> | <command> | <command>...: checked, run and answered like TRANSACT, the commands and COMMIT,
+    //but in one step, so no lock is ever held between messages. Ending with | PREPARE <id> <participant,...> prepares
+    //it instead, as one part of a transaction spread over several servers; the decision may then come on any connection
+    private String execute(String[] arguments) {
+        if (!ProtocolCommand.EXECUTE.containsSufficientArguments(arguments.length)) {
+            return INSUFFICIENT_ARGUMENTS.toString();
+        }
+
+        var segments = ProtocolCommand.segments(arguments);
+        var keys = segments.get(0).stream().distinct().toList();
+        var last = segments.get(segments.size() - 1);
+        boolean prepares = !last.isEmpty() && ProtocolCommand.lookup(last.get(0)) == ProtocolCommand.PREPARE_TRANSACTION;
+        var commands = segments.subList(1, prepares ? segments.size() - 1 : segments.size());
+        if (keys.isEmpty() || commands.isEmpty() || commands.stream().anyMatch(List::isEmpty)) {
+            return INSUFFICIENT_ARGUMENTS.toString();
+        } else if (prepares && !ProtocolCommand.PREPARE_TRANSACTION.containsSufficientArguments(last.size() - 1)) {
+            return INSUFFICIENT_ARGUMENTS.toString();
+        } else if (keys.stream().anyMatch(globalKeyLock::contains)) {
+            return KEY_LOCKED_ISSUE.toString();
+        }
+
+        var transaction = new Transaction(btree, keys);
+        for (var command : commands) {
+            var protocol = ProtocolCommand.lookup(command.get(0));
+            var response = transaction.addTransactionCommand(protocol,
+                    command.subList(1, command.size()).toArray(String[]::new), userID);
+            if (response != ACKNOWLEDGED) {
+                return response.toString();
+            }
+        }
+
+        if (!prepares) {
+            return SUCCESS + System.lineSeparator() + transaction.transact();
+        }
+
+        var response = transactions.prepare(last.get(1), List.of(last.get(2).split(",")), transaction);
+        if (response == TRANSACTION_PREPARED) {
+            setLocks(keys);
+            transactions.detach(transaction);
+            LOG.info("Client {} prepared transaction {} on {}", userID, last.get(1), keys);
+        }
+        return response.toString();
+    }
+
+    //PREPARE <id> <participant,...>: the transaction's writes are logged durably and it stops taking commands.
+    //Answering PREPARED is a promise to commit if told to, so from here on it outlives this connection too
+    private String prepare(String[] arguments) {
+        if (!ProtocolCommand.PREPARE_TRANSACTION.containsSufficientArguments(arguments.length)) {
+            return INSUFFICIENT_ARGUMENTS.toString();
+        } else if (currentTransaction == null) {
+            return TRANSACTION_DNE.toString();
+        } else if (currentTransaction.isPrepared()) {
+            return arguments[0].equals(currentTransaction.getPreparedAs()) ?
+                    TRANSACTION_PREPARED.toString() :
+                    TRANSACTION_IN_PROGRESS.toString();
+        } else if (currentTransaction.isExpired()) {
+            eraseTransaction();
+            return TRANSACTION_EXPIRED_ISSUE.toString();
+        }
+
+        var response = transactions.prepare(arguments[0], List.of(arguments[1].split(",")), currentTransaction);
+        if (response == TRANSACTION_PREPARED) {
+            LOG.info("Client {} prepared transaction {}", userID, arguments[0]);
+        } else if (response != SERVER_IO_ERROR) {
+            eraseTransaction();
+        }
+        return response.toString();
+    }
+
+    //DECIDE <id> COMMIT|ABORT. A decision for a transaction this connection does not hold may be for one whose
+    //connection closed while prepared, e.g. when the coordinator had to reconnect
+    private String decide(String[] arguments) {
+        if (!ProtocolCommand.DECIDE_TRANSACTION.containsSufficientArguments(arguments.length)) {
+            return INSUFFICIENT_ARGUMENTS.toString();
+        }
+
+        boolean commit;
+        if (ProtocolCommand.COMMIT_TRANSACTION.getCommandName().equals(arguments[1])) {
+            commit = true;
+        } else if (ProtocolCommand.ABORT_TRANSACTION.getCommandName().equals(arguments[1])) {
+            commit = false;
+        } else {
+            return INVALID_DECISION.toString();
+        }
+
+        var id = arguments[0];
+        if (currentTransaction == null || !id.equals(currentTransaction.getPreparedAs())) {
+            var orphan = transactions.decideOrphan(id, commit);
+            if (orphan.isPresent()) {
+                return orphan.get();
+            } else if (currentTransaction == null || currentTransaction.isPrepared()) {
+                return TRANSACTION_DNE.toString();
+            } else if (commit) {
+                return TRANSACTION_NOT_PREPARED.toString();
+            }
+
+            //Another participant failed to prepare, so this one is dropped before it ever was
+            eraseTransaction();
+            transactions.outcome(id);
+            return TRANSACTION_ABORTED.toString();
+        }
+
+        if (!commit) {
+            transactions.abort(id);
+            eraseTransaction();
+            LOG.info("Client {} aborted transaction {}", userID, id);
+            return TRANSACTION_ABORTED.toString();
+        }
+
+        //Applied before the decision is logged, so a crash in between leaves an orphan that commits again. The tree
+        //log is synced first, since C lets the transaction log forget the writes. Failing that, the transaction stays
+        //prepared for the coordinator to decide again
+        var transactionResponse = currentTransaction.transact();
+        if (!currentTransaction.syncWrites()) {
+            LOG.error("Client {} could not sync the writes of transaction {} before committing it", userID, id);
+            return SERVER_IO_ERROR.toString();
+        }
+        transactions.commit(id);
+        LOG.info("Client {} committed transaction {}. ({} keys released)", userID, id, currentTransaction.getHeldKeys());
+        eraseTransaction();
+        return SUCCESS + System.lineSeparator() + transactionResponse;
+    }
+
+    //Hints belong to the server rather than this connection, so transactions and snapshots do not affect them
+    private String handleHint(ProtocolCommand protocol, String[] arguments) {
+        if (!protocol.containsSufficientArguments(arguments.length)) {
+            return INSUFFICIENT_ARGUMENTS.toString();
+        }
+
+        if (protocol == ProtocolCommand.STORE_HINT) {
+            var hinted = ProtocolCommand.lookup(arguments[1]);
+            var command = String.join(" ", Arrays.copyOfRange(arguments, 1, arguments.length));
+            if (!hinted.isHintable() ||
+                    !hinted.containsSufficientArguments(arguments.length - 2) ||
+                    command.contains(ProtocolCommand.MULTI_VALUE_DELIMITER)) {
+                return INVALID_HINT.toString();
+            }
+
+            hints.add(arguments[0], command);
+            return ACKNOWLEDGED.toString();
+        } else if (arguments.length == 0) {
+            return hints.queueSizes()
+                    .entrySet()
+                    .stream()
+                    .map(e -> e.getKey() + " " + e.getValue())
+                    .collect(Collectors.joining(ProtocolCommand.MULTI_VALUE_DELIMITER));
+        }
+
+        int count;
+        try {
+            count = Integer.parseInt(arguments[1]);
+        } catch (NumberFormatException e) {
+            return INVALID_NUMBER.toString();
+        }
+        if (count <= 0) {
+            return INVALID_NUMBER.toString();
+        }
+
+        if (protocol == ProtocolCommand.LIST_HINTS) {
+            return String.join(ProtocolCommand.MULTI_VALUE_DELIMITER, hints.peek(arguments[0], count));
+        }
+
+        LOG.info("Client {} handed off {} hints for {}", userID, hints.acknowledge(arguments[0], count), arguments[0]);
+        return ACKNOWLEDGED.toString();
+    }
+
+    //Like hints, the membership is the server's: whoever asks is told the newest view any client announced here
+    private String handleMembers(String[] arguments) {
+        if (arguments.length == 0) {
+            return membership.current().encode();
+        }
+
+        var view = Membership.parse(arguments);
+        if (view.isEmpty()) {
+            return INVALID_MEMBERSHIP.toString();
+        }
+        return membership.offer(view.get()) ? ACKNOWLEDGED.toString() : STALE_MEMBERSHIP.toString();
+    }
+
+    //From here on this connection's keyed commands run against the whole cluster. There is no way back, since a thin
+    //client that asked once wants every later answer to be a quorum's
+    private ServerResponse coordinate() {
+        if (coordinator == null) {
+            return NO_COORDINATOR;
+        }
+
+        coordinating = true;
+        LOG.debug("Client {} is coordinated through this server", userID);
+        return ACKNOWLEDGED;
+    }
+
+    //The write is stored here before any peer is asked, and the reply waits until acks replicas in all hold it.
+    //Locked keys and malformed writes are refused here and never reach the peers
+    private CompletableFuture<String> replicate(String[] arguments) {
+        if (!ProtocolCommand.REPLICATE.containsSufficientArguments(arguments.length)) {
+            return CompletableFuture.completedFuture(INSUFFICIENT_ARGUMENTS.toString());
+        }
+
+        int acks;
+        try {
+            acks = Integer.parseInt(arguments[0]);
+        } catch (NumberFormatException e) {
+            return CompletableFuture.completedFuture(INVALID_NUMBER.toString());
+        }
+        if (acks <= 0) {
+            return CompletableFuture.completedFuture(INVALID_NUMBER.toString());
+        }
+
+        var write = ProtocolCommand.lookup(arguments[2]);
+        var writeArguments = Arrays.copyOfRange(arguments, 3, arguments.length);
+        if (!isVersionedWrite(write, writeArguments)) {
+            return CompletableFuture.completedFuture(INVALID_REPLICATION.toString());
+        }
+
+        var stored = write.handleRequest(writeArguments, globalKeyLock, btree);
+        if (PeerReplicator.isRejection(stored)) {
+            return CompletableFuture.completedFuture(stored);
+        }
+
+        //This server decided an atomic write alone, so peers get the value it left behind as a versioned PUT
+        var command = write.isAtomicWrite() ?
+                btree.getVersioned(writeArguments[0])
+                        .filter(value -> value.version() > 0)
+                        .map(value -> String.join(" ", ProtocolCommand.WRITE.getCommandName(), writeArguments[0],
+                                value.value(), new WriteOptions(value.ttlSeconds(), value.version()).format()))
+                        .orElse(null) :
+                String.join(" ", Arrays.copyOfRange(arguments, 2, arguments.length));
+        if (command == null) {
+            return CompletableFuture.completedFuture(stored);
+        }
+
+        var peers = List.of(arguments[1].split(","));
+        return replicator.forward(peers, command, acks - 1)
+                .thenApply(count -> count >= acks - 1 ? stored : REPLICATION_INCOMPLETE.toString());
+    }
+
+    //Peers apply forwarded writes in whatever order they arrive, which only versions make safe
+    private static boolean isVersionedWrite(ProtocolCommand write, String[] arguments) {
+        return switch (write) {
+            case WRITE -> write.containsSufficientArguments(arguments.length) &&
+                    WriteOptions.parse(arguments, 2).map(WriteOptions::isVersioned).orElse(false);
+            case VERSIONED_MULTI_WRITE, COMPARE_AND_SET, INCREMENT_BY, APPEND, PUT_IF_ABSENT -> true;
+            default -> false;
+        };
+    }
+
     public boolean isDone() {
         return currentTransaction == null;
     }
@@ -156,6 +528,24 @@ public final class TreeClient {
         }
     }
 
+    //The connection closed: a prepared transaction stays behind for its decision, anything else is rolled back
+    public void abandonTransaction() {
+        if (currentTransaction != null && currentTransaction.isPrepared()) {
+            transactions.orphan(currentTransaction);
+            currentTransaction = null;
+        } else {
+            eraseTransaction();
+        }
+    }
+
+    public void releaseSnapshot() {
+        if (currentSnapshot != null) {
+            btree.releaseSnapshot(currentSnapshot);
+
+            currentSnapshot = null;
+        }
+    }
+
     private void releaseLocks(List<String> heldKeys) {
         heldKeys.forEach(globalKeyLock::remove);
     }
@@ -0,0 +1,179 @@
+package jasmine.jragon.client.handoff;
+
+import lombok.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//Writes held for servers that were down when they were sent, queued per intended owner in arrival order.
+//The file is an append-only log of additions and acknowledgements, rewritten whenever every queue drains
+public final class HintStore {
+    private static final Logger LOG = LoggerFactory.getLogger(HintStore.class);
+
+    private static final char ADDED = '+';
+    private static final char DELIVERED = '-';
+
+    private final File file;
+    private final Map<String, ArrayDeque<String>> queues;
+
+    private Writer out;
+    private int pending;
+
+    private HintStore(File file) {
+        this.file = file;
+        this.queues = new LinkedHashMap<>();
+    }
+
+    public static HintStore inMemory() {
+        return new HintStore(null);
+    }
+
+    public static HintStore open(@NonNull File file) throws IOException {
+        var store = new HintStore(file);
+        if (file.exists()) {
+            store.replay();
+        }
+        store.rewrite();
+        return store;
+    }
+
+    public void add(@NonNull String owner, @NonNull String command) {
+        queues.computeIfAbsent(owner, ignored -> new ArrayDeque<>()).add(command);
+        pending++;
+        append(ADDED + owner + " " + command);
+    }
+
+    public List<String> peek(@NonNull String owner, int limit) {
+        var queue = queues.get(owner);
+        if (queue == null) {
+            return List.of();
+        }
+
+        List<String> batch = new ArrayList<>(Math.min(limit, queue.size()));
+        var iterator = queue.iterator();
+        while (batch.size() < limit && iterator.hasNext()) {
+            batch.add(iterator.next());
+        }
+        return batch;
+    }
+
+    //Drops the oldest count hints for owner once they have reached it
+    public int acknowledge(@NonNull String owner, int count) {
+        int removed = drop(owner, count);
+        if (removed == 0) {
+            return 0;
+        }
+
+        if (pending == 0) {
+            rewrite();
+        } else {
+            append(DELIVERED + owner + " " + removed);
+        }
+        return removed;
+    }
+
+    public Map<String, Integer> queueSizes() {
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        queues.forEach((owner, queue) -> sizes.put(owner, queue.size()));
+        return sizes;
+    }
+
+    public void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOG.warn("Hint file closure failure: ", e);
+            }
+            out = null;
+        }
+    }
+
+    private int drop(String owner, int count) {
+        var queue = queues.get(owner);
+        if (queue == null) {
+            return 0;
+        }
+
+        int removed = 0;
+        while (removed < count && !queue.isEmpty()) {
+            queue.poll();
+            removed++;
+        }
+        if (queue.isEmpty()) {
+            queues.remove(owner);
+        }
+        pending -= removed;
+        return removed;
+    }
+
+    private void replay() throws IOException {
+        try (var in = new BufferedReader(new FileReader(file))) {
+            for (var line = in.readLine(); line != null; line = in.readLine()) {
+                int separator = line.indexOf(' ');
+                if (line.isEmpty() || separator < 0) {
+                    continue;
+                }
+
+                var owner = line.substring(1, separator);
+                var rest = line.substring(separator + 1);
+                if (line.charAt(0) == ADDED) {
+                    queues.computeIfAbsent(owner, ignored -> new ArrayDeque<>()).add(rest);
+                    pending++;
+                } else if (line.charAt(0) == DELIVERED) {
+                    try {
+                        drop(owner, Integer.parseInt(rest));
+                    } catch (NumberFormatException e) {
+                        LOG.warn("Skipping malformed hint acknowledgement: {}", line);
+                    }
+                }
+            }
+        }
+    }
+
+    //Compacts the log down to the hints still pending
+    private void rewrite() {
+        if (file == null) {
+            return;
+        }
+
+        close();
+        try {
+            out = new BufferedWriter(new FileWriter(file, false));
+            for (var entry : queues.entrySet()) {
+                for (var command : entry.getValue()) {
+                    out.write(ADDED + entry.getKey() + " " + command + '\n');
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            LOG.error("Rewriting hint file {} failed", file, e);
+        }
+    }
+
+    //Flushed per record: a hint only helps if it outlives a crash of the server holding it
+    private void append(String record) {
+        if (out == null) {
+            return;
+        }
+
+        try {
+            out.write(record + '\n');
+            out.flush();
+        } catch (IOException e) {
+            LOG.error("Writing hint [{}] failed", record, e);
+        }
+    }
+}
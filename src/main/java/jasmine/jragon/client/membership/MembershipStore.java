@@ -0,0 +1,68 @@
+package jasmine.jragon.client.membership;
+
+import jasmine.jragon.cluster.Membership;
+import lombok.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+//The newest membership this server has been told of, so every client that asks learns the same cluster.
+//The file holds that one view and is rewritten whenever a newer one arrives
+public final class MembershipStore {
+    private static final Logger LOG = LoggerFactory.getLogger(MembershipStore.class);
+
+    private final File file;
+
+    private Membership current;
+
+    private MembershipStore(File file, Membership current) {
+        this.file = file;
+        this.current = current;
+    }
+
+    public static MembershipStore inMemory() {
+        return new MembershipStore(null, Membership.NONE);
+    }
+
+    public static MembershipStore open(@NonNull File file) throws IOException {
+        if (!file.exists()) {
+            return new MembershipStore(file, Membership.NONE);
+        }
+
+        var stored = Files.readString(file.toPath(), StandardCharsets.UTF_8);
+        var current = Membership.parse(stored);
+        if (current.isEmpty() && !stored.isBlank()) {
+            LOG.warn("Ignoring malformed membership file {}: {}", file, stored.trim());
+        }
+        return new MembershipStore(file, current.orElse(Membership.NONE));
+    }
+
+    public Membership current() {
+        return current;
+    }
+
+    //A view older than the one held is refused, so a client that fell behind cannot roll the cluster back.
+    //Offering the held view again is accepted, since a client retrying its announcement should not fail
+    public boolean offer(@NonNull Membership view) {
+        if (view.equals(current)) {
+            return true;
+        } else if (!view.isNewerThan(current)) {
+            return false;
+        }
+
+        current = view;
+        LOG.info("Cluster membership is now {}", view);
+        if (file != null) {
+            try {
+                Files.writeString(file.toPath(), view.encode() + '\n', StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                LOG.error("Writing membership file {} failed", file, e);
+            }
+        }
+        return true;
+    }
+}
@@ -12,6 +12,7 @@ import org.slf4j.LoggerFactory;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -29,6 +30,10 @@ public final class Transaction {
     private final List<String> heldKeys;
     private final List<IntermediateCommand> transactionCommands;
 
+    //Set once a coordinator asked this transaction to prepare, after which only its decision can end it
+    @Getter
+    private String preparedAs;
+
     public Transaction(BTree btree, List<String> heldKeys) {
         this(
                 btree,
@@ -38,6 +43,37 @@ public final class Transaction {
         );
     }
 
+    //A transaction prepared before a crash, rebuilt from the writes its log kept
+    public static Transaction recover(BTree btree, String id, List<String> heldKeys, List<String> writes) {
+        var transaction = new Transaction(btree, heldKeys);
+        for (var write : writes) {
+            var components = write.split(" +");
+            transaction.transactionCommands.add(new IntermediateCommand(
+                    ProtocolCommand.lookup(components[0]),
+                    Arrays.copyOfRange(components, 1, components.length),
+                    LocalDateTime.now()
+            ));
+        }
+        transaction.prepare(id);
+        return transaction;
+    }
+
+    public void prepare(String id) {
+        preparedAs = id;
+    }
+
+    public boolean isPrepared() {
+        return preparedAs != null;
+    }
+
+    //Reads need not survive a crash: a recovered transaction only has to apply what it wrote
+    public List<String> writeCommands() {
+        return transactionCommands.stream()
+                .filter(command -> command.protocol.isWriteAhead())
+                .map(command -> command.protocol.getCommandName() + " " + String.join(" ", command.arguments))
+                .toList();
+    }
+
     public boolean containsOnlyReads() {
         return transactionCommands.stream()
                 .map(IntermediateCommand::protocol)
@@ -72,33 +108,42 @@ public final class Transaction {
     }
 
     public String transact() {
-        var stringBuilder = new StringBuilder();
+        //Every write shares one commit stamp so snapshots see all or none of the transaction
+        return btree.atomically(() -> {
+            var stringBuilder = new StringBuilder();
 
-        for (var command : transactionCommands) {
-            //Empty set used because exclusivity is guaranteed here
-            var response = command.protocol.handleRequest(command.arguments, Collections.emptySet(), btree);
+            for (var command : transactionCommands) {
+                //Empty set used because exclusivity is guaranteed here
+                var response = command.protocol.handleRequest(command.arguments, Collections.emptySet(), btree);
 
-            stringBuilder.append(response)
-                    .append("\n");
-        }
+                stringBuilder.append(response)
+                        .append("\n");
+            }
+
+            return stringBuilder.toString();
+        });
+    }
 
-        return stringBuilder.toString();
+    //A participant's commit record lets its transaction log forget the writes, so they must be on disk first
+    public boolean syncWrites() {
+        return btree.forceLog();
     }
 
     public boolean isKeyHeld(String argument) {
         return heldKeys.contains(argument);
     }
 
+    //A prepared transaction has promised its coordinator to commit if asked, so it can no longer run out
     public boolean isNotExpired() {
-        return LocalDateTime.now().isBefore(expiration);
+        return isPrepared() || LocalDateTime.now().isBefore(expiration);
     }
 
     public boolean isExpired() {
-        return LocalDateTime.now().isAfter(expiration);
+        return !isPrepared() && LocalDateTime.now().isAfter(expiration);
     }
 
     public String formatExpiration() {
-        return "Transaction started & expires at " + STANDARD_FORMAT.format(expiration);
+        return ServerResponse.TRANSACTION_STARTED + STANDARD_FORMAT.format(expiration);
     }
 
     @Override
@@ -0,0 +1,344 @@
+package jasmine.jragon.client.transaction;
+
+import jasmine.jragon.command.ProtocolCommand;
+import jasmine.jragon.response.ServerResponse;
+import jasmine.jragon.tree.BTree;
+import lombok.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+import static jasmine.jragon.response.ServerResponse.SERVER_IO_ERROR;
+import static jasmine.jragon.response.ServerResponse.SUCCESS;
+import static jasmine.jragon.response.ServerResponse.TRANSACTION_ABORTED;
+import static jasmine.jragon.response.ServerResponse.TRANSACTION_COMMITTED;
+import static jasmine.jragon.response.ServerResponse.TRANSACTION_PREPARED;
+
+//A participant's side of two-phase commit. W <id> <command> records a prepared write and P <id> <participants> <keys...>
+//closes the prepared set, each prepare reaching the disk before it is answered. C <id> and A <id> record decisions.
+//A prepared transaction whose coordinator went away is an orphan: it keeps its locks and asks the other participants
+//how it ended, committing once any of them committed and aborting once any of them never prepared (presumed abort)
+public final class TransactionLog {
+    private static final Logger LOG = LoggerFactory.getLogger(TransactionLog.class);
+
+    private static final String WRITE = "W";
+    private static final String PREPARED = "P";
+    private static final String COMMITTED = "C";
+    private static final String ABORTED = "A";
+    private static final String SEPARATOR = ",";
+
+    //Decisions kept to answer participants that ask late; past these, an id is presumed aborted
+    private static final int REMEMBERED_DECISIONS = 10_000;
+    private static final int COMPACTION_RECORDS = 4_096;
+    private static final long OUTCOME_QUERY_MILLIS = 1_000;
+    //Long enough for a coordinator to hear back from every participant of an EXEC and send its decision
+    private static final long DETACHED_GRACE_MILLIS = 10_000;
+
+    private final File file;
+    private final Set<String> lockSet;
+    private final Map<String, Prepared> prepared;
+    private final Map<String, Transaction> orphans;
+    private final Map<String, Long> askAfter;
+    private final Map<String, Boolean> decided;
+    private final Map<String, Boolean> learned;
+    private final Set<String> asking;
+
+    private FileChannel channel;
+    private int records;
+    private long nextQuery;
+
+    private TransactionLog(File file, Set<String> lockSet) {
+        this.file = file;
+        this.lockSet = lockSet;
+        this.prepared = new LinkedHashMap<>();
+        this.orphans = new LinkedHashMap<>();
+        this.askAfter = new HashMap<>();
+        this.decided = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > REMEMBERED_DECISIONS;
+            }
+        };
+        this.learned = new ConcurrentHashMap<>();
+        this.asking = ConcurrentHashMap.newKeySet();
+    }
+
+    public static TransactionLog inMemory(@NonNull Set<String> lockSet) {
+        return new TransactionLog(null, lockSet);
+    }
+
+    //Transactions prepared before a crash come back as orphans, their keys locked again before any client connects
+    public static TransactionLog open(@NonNull File file, @NonNull BTree btree, @NonNull Set<String> lockSet) throws IOException {
+        var log = new TransactionLog(file, lockSet);
+        if (file.exists()) {
+            log.replay(btree);
+        }
+        log.rewrite();
+        return log;
+    }
+
+    //Refused for an id some participant was already told had aborted, since the coordinator can no longer commit it
+    public ServerResponse prepare(@NonNull String id, @NonNull List<String> participants, @NonNull Transaction transaction) {
+        if (decided.containsKey(id)) {
+            return decided.get(id) ? TRANSACTION_COMMITTED : TRANSACTION_ABORTED;
+        }
+
+        var entry = new Prepared(List.copyOf(participants), transaction.getHeldKeys(), transaction.writeCommands());
+        if (!append(entry.records(id))) {
+            return SERVER_IO_ERROR;
+        }
+        prepared.put(id, entry);
+        transaction.prepare(id);
+        return TRANSACTION_PREPARED;
+    }
+
+    public void commit(@NonNull String id) {
+        decide(id, true);
+    }
+
+    public void abort(@NonNull String id) {
+        decide(id, false);
+    }
+
+    public ServerResponse outcome(@NonNull String id) {
+        var decision = decided.get(id);
+        if (decision != null) {
+            return decision ? TRANSACTION_COMMITTED : TRANSACTION_ABORTED;
+        } else if (prepared.containsKey(id)) {
+            return TRANSACTION_PREPARED;
+        }
+
+        //Nothing prepared, so nothing can have committed: a PREPARE arriving after this answer is refused
+        decided.put(id, false);
+        return TRANSACTION_ABORTED;
+    }
+
+    //The connection holding a prepared transaction closed before its decision arrived
+    public void orphan(@NonNull Transaction transaction) {
+        LOG.warn("Transaction {} lost its coordinator while prepared, holding {}", transaction.getPreparedAs(),
+                transaction.getHeldKeys());
+        orphans.put(transaction.getPreparedAs(), transaction);
+    }
+
+    //Prepared by an EXEC, so no connection ever held it. Its coordinator is not presumed gone until the grace ends
+    public void detach(@NonNull Transaction transaction) {
+        orphans.put(transaction.getPreparedAs(), transaction);
+        askAfter.put(transaction.getPreparedAs(), System.currentTimeMillis() + DETACHED_GRACE_MILLIS);
+    }
+
+    //A decision for an orphan, from a coordinator that reconnected or from the orphan's own queries. A commit whose
+    //writes cannot be synced stays an orphan, so it is applied again on the next decision or after a restart
+    public Optional<String> decideOrphan(@NonNull String id, boolean commit) {
+        var orphan = orphans.remove(id);
+        askAfter.remove(id);
+        if (orphan == null) {
+            return Optional.empty();
+        }
+
+        if (!commit) {
+            decide(id, false);
+            orphan.getHeldKeys().forEach(lockSet::remove);
+            LOG.info("Orphaned transaction {} aborted", id);
+            return Optional.of(TRANSACTION_ABORTED.toString());
+        }
+
+        var output = orphan.transact();
+        if (!orphan.syncWrites()) {
+            orphans.put(id, orphan);
+            return Optional.of(SERVER_IO_ERROR.toString());
+        }
+
+        decide(id, true);
+        orphan.getHeldKeys().forEach(lockSet::remove);
+        LOG.info("Orphaned transaction {} committed", id);
+        return Optional.of(SUCCESS + System.lineSeparator() + output);
+    }
+
+    public int orphanCount() {
+        return orphans.size();
+    }
+
+    //Runs on the server thread: outcomes learned since the last tick are applied, then orphans still undecided ask
+    //every participant again. Being told PREPARED by all of them decides nothing, so such an orphan keeps waiting
+    public void tick(@NonNull BiFunction<String, String, CompletableFuture<String>> send) {
+        for (var id : List.copyOf(learned.keySet())) {
+            decideOrphan(id, learned.remove(id));
+        }
+
+        long now = System.currentTimeMillis();
+        if (orphans.isEmpty() || now < nextQuery) {
+            return;
+        }
+        nextQuery = now + OUTCOME_QUERY_MILLIS;
+
+        for (var id : orphans.keySet()) {
+            if (now < askAfter.getOrDefault(id, 0L) || !asking.add(id)) {
+                continue;
+            }
+
+            var query = ProtocolCommand.TRANSACTION_OUTCOME.getCommandName() + " " + id;
+            var replies = prepared.get(id)
+                    .participants()
+                    .stream()
+                    .map(address -> send.apply(address, query)
+                            .thenAccept(reply -> {
+                                if (TRANSACTION_COMMITTED.toString().equals(reply)) {
+                                    learned.putIfAbsent(id, true);
+                                } else if (TRANSACTION_ABORTED.toString().equals(reply)) {
+                                    learned.putIfAbsent(id, false);
+                                }
+                            })
+                            .exceptionally(e -> null))
+                    .toArray(CompletableFuture[]::new);
+            CompletableFuture.allOf(replies).whenComplete((ignored, e) -> asking.remove(id));
+        }
+    }
+
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Closing transaction log {} failed: {}", file, e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    private void decide(String id, boolean commit) {
+        prepared.remove(id);
+        decided.put(id, commit);
+        append((commit ? COMMITTED : ABORTED) + " " + id + '\n');
+        if (records > COMPACTION_RECORDS) {
+            rewrite();
+        }
+    }
+
+    private void replay(BTree btree) throws IOException {
+        Map<String, List<String>> writes = new HashMap<>();
+        try (var lines = Files.lines(file.toPath(), StandardCharsets.UTF_8)) {
+            for (var line : (Iterable<String>) lines::iterator) {
+                var fields = line.split(" ", 3);
+                if (fields.length < 2) {
+                    continue;
+                }
+
+                var id = fields[1];
+                switch (fields[0]) {
+                    case WRITE -> {
+                        if (fields.length == 3) {
+                            writes.computeIfAbsent(id, ignored -> new ArrayList<>()).add(fields[2]);
+                        }
+                    }
+                    case PREPARED -> {
+                        var rest = fields.length == 3 ? fields[2].split(" ") : new String[0];
+                        if (rest.length < 1) {
+                            LOG.warn("Skipping malformed prepare record: {}", line);
+                            continue;
+                        }
+                        prepared.put(id, new Prepared(
+                                List.of(rest[0].split(SEPARATOR)),
+                                List.of(Arrays.copyOfRange(rest, 1, rest.length)),
+                                List.copyOf(writes.getOrDefault(id, List.of()))
+                        ));
+                        writes.remove(id);
+                    }
+                    case COMMITTED, ABORTED -> {
+                        prepared.remove(id);
+                        decided.put(id, COMMITTED.equals(fields[0]));
+                    }
+                    default -> LOG.warn("Skipping malformed transaction record: {}", line);
+                }
+            }
+        }
+
+        //Writes without their P record were never acknowledged, so the coordinator cannot have counted them
+        for (var entry : prepared.entrySet()) {
+            var orphan = Transaction.recover(btree, entry.getKey(), entry.getValue().keys(), entry.getValue().writes());
+            lockSet.addAll(orphan.getHeldKeys());
+            orphan(orphan);
+        }
+    }
+
+    //Compacts the log down to undecided prepares and the decisions still remembered. The new file replaces the old
+    //one in a single move, so a crash part way through leaves one of the two whole
+    private void rewrite() {
+        if (file == null) {
+            return;
+        }
+
+        var compacted = new StringBuilder();
+        decided.forEach((id, commit) -> compacted.append(commit ? COMMITTED : ABORTED).append(' ').append(id).append('\n'));
+        prepared.forEach((id, entry) -> compacted.append(entry.records(id)));
+
+        close();
+        var temporary = new File(file.getPath() + ".tmp");
+        try {
+            try (var out = FileChannel.open(temporary.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                write(out, compacted.toString());
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            records = 0;
+        } catch (IOException e) {
+            LOG.error("Rewriting transaction log {} failed", file, e);
+        }
+    }
+
+    //Synced before returning: a participant that answers PREPARED must still be able to commit after a crash
+    private boolean append(String lines) {
+        if (file == null) {
+            return true;
+        } else if (channel == null) {
+            return false;
+        }
+
+        try {
+            write(channel, lines);
+            records += (int) lines.chars().filter(c -> c == '\n').count();
+            return true;
+        } catch (IOException e) {
+            LOG.error("Writing transaction log {} failed", file, e);
+            return false;
+        }
+    }
+
+    private static void write(FileChannel out, String lines) throws IOException {
+        var buffer = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        out.force(false);
+    }
+
+    private record Prepared(List<String> participants, List<String> keys, List<String> writes) {
+        String records(String id) {
+            var lines = new StringBuilder();
+            writes.forEach(write -> lines.append(WRITE).append(' ').append(id).append(' ').append(write).append('\n'));
+            lines.append(PREPARED).append(' ').append(id).append(' ').append(String.join(SEPARATOR, participants));
+            keys.forEach(key -> lines.append(' ').append(key));
+            return lines.append('\n').toString();
+        }
+    }
+}
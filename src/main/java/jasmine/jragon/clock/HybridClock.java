@@ -0,0 +1,39 @@
+package jasmine.jragon.clock;
+
+import lombok.NonNull;
+
+import java.util.function.LongSupplier;
+
+//Hybrid logical clock (Kulkarni et al.): wall-clock milliseconds in the high bits and a counter in the low ones,
+//so versions follow real time across machines yet never repeat or run backwards on any one of them
+public final class HybridClock {
+    private static final int LOGICAL_BITS = 16;
+
+    private final LongSupplier wallClock;
+
+    private long last;
+
+    public HybridClock() {
+        this(System::currentTimeMillis);
+    }
+
+    public HybridClock(@NonNull LongSupplier wallClock) {
+        this.wallClock = wallClock;
+    }
+
+    //A version newer than every one issued or observed so far
+    public synchronized long next() {
+        last = Math.max(last + 1, wallClock.getAsLong() << LOGICAL_BITS);
+        return last;
+    }
+
+    //Moves past a version issued elsewhere, so the next local one orders after it
+    public synchronized void observe(long version) {
+        last = Math.max(last, version);
+    }
+
+    //The wall-clock milliseconds a version was issued at
+    public static long wallMillisOf(long version) {
+        return version >>> LOGICAL_BITS;
+    }
+}
@@ -0,0 +1,334 @@
+package jasmine.jragon.cluster;
+
+import jasmine.jragon.command.ProtocolCommand;
+import jasmine.jragon.consensus.ConsensusSettings;
+import jasmine.jragon.consensus.HashRing;
+import jasmine.jragon.consensus.VersionedReply;
+import jasmine.jragon.tree.BTree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static jasmine.jragon.command.ProtocolCommand.MERKLE_BUCKET;
+import static jasmine.jragon.command.ProtocolCommand.MERKLE_DIGEST;
+import static jasmine.jragon.command.ProtocolCommand.VERSIONED_READ;
+
+//Background repair between replicas. Each pair of servers compares Merkle digests over the hash ranges both of
+//them replicate, descending only into subtrees that differ, then swaps entry hashes for the buckets still
+//differing at the bottom. A key the pair disagrees on is set to the newest version any of its replicas holds
+final class AntiEntropy {
+    private static final Logger LOG = LoggerFactory.getLogger(AntiEntropy.class);
+
+    //Every exchange skips this many levels, so a differing node is answered with its 16 descendants at once
+    private static final int LEVEL_STEP = 4;
+    private static final int NODES_PER_REQUEST = 1_024;
+    private static final int BUCKETS_PER_REQUEST = 256;
+
+    private final ConsensusSettings settings;
+    private final LongAdder digestsCompared;
+    private final LongAdder entriesCompared;
+    private final LongAdder keysRepaired;
+
+    //Set at the start of each round, as membership changes can replace the ring between them
+    private volatile HashRing<NodePool> ring;
+
+    AntiEntropy(ConsensusSettings settings) {
+        this.settings = settings;
+        this.digestsCompared = new LongAdder();
+        this.entriesCompared = new LongAdder();
+        this.keysRepaired = new LongAdder();
+    }
+
+    //Compares every pair of servers in turn and resolves to the number of keys repaired
+    CompletableFuture<Integer> round(HashRing<NodePool> ring) {
+        this.ring = ring;
+        var members = ring.getMembers();
+        CompletableFuture<Integer> repaired = CompletableFuture.completedFuture(0);
+        for (int i = 0; i < members.size(); i++) {
+            for (int j = i + 1; j < members.size(); j++) {
+                var first = members.get(i);
+                var second = members.get(j);
+                repaired = repaired.thenCompose(total -> compare(first, second)
+                        .exceptionally(e -> {
+                            LOG.warn("Anti-entropy between {} and {} failed: {}", first.getAddress(), second.getAddress(), e.getMessage());
+                            return 0;
+                        })
+                        .thenApply(count -> total + count));
+            }
+        }
+        return repaired;
+    }
+
+    long digestsCompared() {
+        return digestsCompared.sum();
+    }
+
+    long entriesCompared() {
+        return entriesCompared.sum();
+    }
+
+    long keysRepaired() {
+        return keysRepaired.sum();
+    }
+
+    CompletableFuture<Integer> compare(NodePool first, NodePool second) {
+        if (!first.isAvailable() || !second.isAvailable()) {
+            return CompletableFuture.completedFuture(0);
+        }
+
+        var shared = sharedRanges(first, second);
+        if (shared.isEmpty()) {
+            return CompletableFuture.completedFuture(0);
+        }
+
+        return descend(first, second, shared, 0, List.of(0), new ArrayList<>())
+                .thenCompose(buckets -> differingKeys(first, second, buckets))
+                .thenCompose(keys -> {
+                    if (!keys.isEmpty()) {
+                        LOG.debug("{} and {} disagree on {}", first.getAddress(), second.getAddress(), keys);
+                    }
+                    return repair(keys);
+                });
+    }
+
+    //Merged ranges of ring positions both servers hold replicas for, first position to last
+    private TreeMap<Long, Long> sharedRanges(NodePool first, NodePool second) {
+        TreeMap<Long, Long> shared = new TreeMap<>();
+        for (var segment : ring.segments(widestReplication())) {
+            if (!segment.replicas().contains(first) || !segment.replicas().contains(second)) {
+                continue;
+            }
+
+            var previous = shared.lastEntry();
+            if (previous != null && previous.getValue() + 1 == segment.first()) {
+                shared.put(previous.getKey(), segment.last());
+            } else {
+                shared.put(segment.first(), segment.last());
+            }
+        }
+        return shared;
+    }
+
+    //Namespaces can replicate wider than the default, so ranges are shared under the widest policy and
+    //individual keys are checked against their own
+    private int widestReplication() {
+        int serverCount = ring.getMembers().size();
+        int widest = settings.policyFor("", serverCount).replicationFactor();
+        for (var policy : settings.namespaces().values()) {
+            widest = Math.max(widest, policy.replicationFactor());
+        }
+        return Math.min(widest, serverCount);
+    }
+
+    //Nodes wholly inside shared ranges are compared; nodes straddling a range edge are opened regardless,
+    //since keys only one of the pair replicates make their digests differ anyway
+    private CompletableFuture<List<Integer>> descend(NodePool first,
+                                                     NodePool second,
+                                                     TreeMap<Long, Long> shared,
+                                                     int level,
+                                                     List<Integer> candidates,
+                                                     List<Integer> buckets) {
+        List<Integer> compared = new ArrayList<>();
+        List<Integer> opened = new ArrayList<>();
+        for (int node : candidates) {
+            switch (coverage(shared, level, node)) {
+                case FULL -> compared.add(node);
+                case PARTIAL -> (level == BTree.MERKLE_DEPTH ? buckets : opened).add(node);
+                case NONE -> {}
+            }
+        }
+
+        return differingNodes(first, second, level, compared).thenCompose(differing -> {
+            if (level == BTree.MERKLE_DEPTH) {
+                buckets.addAll(differing);
+                return CompletableFuture.completedFuture(buckets);
+            }
+
+            opened.addAll(differing);
+            if (opened.isEmpty()) {
+                return CompletableFuture.completedFuture(buckets);
+            }
+
+            int nextLevel = Math.min(level + LEVEL_STEP, BTree.MERKLE_DEPTH);
+            int fanOut = 1 << (nextLevel - level);
+            List<Integer> children = new ArrayList<>(opened.size() * fanOut);
+            for (int node : opened) {
+                for (int child = 0; child < fanOut; child++) {
+                    children.add(node * fanOut + child);
+                }
+            }
+            return descend(first, second, shared, nextLevel, children, buckets);
+        });
+    }
+
+    static Coverage coverage(TreeMap<Long, Long> shared, int level, int node) {
+        int width = Integer.SIZE - level;
+        long first = (long) node << width;
+        long last = first + (1L << width) - 1;
+
+        var containing = shared.floorEntry(first);
+        if (containing != null && containing.getValue() >= last) {
+            return Coverage.FULL;
+        }
+
+        var overlapping = shared.floorEntry(last);
+        return overlapping != null && overlapping.getValue() >= first ? Coverage.PARTIAL : Coverage.NONE;
+    }
+
+    private CompletableFuture<List<Integer>> differingNodes(NodePool first, NodePool second, int level, List<Integer> nodes) {
+        List<CompletableFuture<List<Integer>>> chunks = new ArrayList<>();
+        for (int start = 0; start < nodes.size(); start += NODES_PER_REQUEST) {
+            var chunk = nodes.subList(start, Math.min(nodes.size(), start + NODES_PER_REQUEST));
+            var command = MERKLE_DIGEST.getCommandName() + " " + level + " " +
+                    chunk.stream().map(String::valueOf).collect(Collectors.joining(" "));
+
+            chunks.add(first.send(command).thenCombine(second.send(command), (left, right) -> {
+                var leftDigests = left.split(ProtocolCommand.MULTI_VALUE_DELIMITER);
+                var rightDigests = right.split(ProtocolCommand.MULTI_VALUE_DELIMITER);
+                if (leftDigests.length != chunk.size() || rightDigests.length != chunk.size()) {
+                    throw new IllegalStateException("Unexpected digest reply " + (leftDigests.length != chunk.size() ? left : right));
+                }
+
+                digestsCompared.add(chunk.size());
+                List<Integer> differing = new ArrayList<>();
+                for (int i = 0; i < chunk.size(); i++) {
+                    if (!leftDigests[i].equals(rightDigests[i])) {
+                        differing.add(chunk.get(i));
+                    }
+                }
+                return differing;
+            }));
+        }
+
+        return CompletableFuture.allOf(chunks.toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> chunks.stream()
+                        .flatMap(chunk -> chunk.join().stream())
+                        .toList());
+    }
+
+    private CompletableFuture<Set<String>> differingKeys(NodePool first, NodePool second, List<Integer> buckets) {
+        List<CompletableFuture<Set<String>>> chunks = new ArrayList<>();
+        for (int start = 0; start < buckets.size(); start += BUCKETS_PER_REQUEST) {
+            var command = MERKLE_BUCKET.getCommandName() + " " + buckets.subList(start, Math.min(buckets.size(), start + BUCKETS_PER_REQUEST))
+                    .stream()
+                    .map(String::valueOf)
+                    .collect(Collectors.joining(" "));
+
+            chunks.add(first.send(command).thenCombine(second.send(command), (left, right) -> {
+                var leftEntries = parseEntries(left);
+                var rightEntries = parseEntries(right);
+                entriesCompared.add(leftEntries.size() + rightEntries.size());
+
+                Set<String> differing = new HashSet<>();
+                for (var key : union(leftEntries.keySet(), rightEntries.keySet())) {
+                    if (!Objects.equals(leftEntries.get(key), rightEntries.get(key)) && replicatedByBoth(key, first, second)) {
+                        differing.add(key);
+                    }
+                }
+                return differing;
+            }));
+        }
+
+        return CompletableFuture.allOf(chunks.toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> chunks.stream()
+                        .flatMap(chunk -> chunk.join().stream())
+                        .collect(Collectors.toSet()));
+    }
+
+    private static Map<String, String> parseEntries(String reply) {
+        Map<String, String> entries = new HashMap<>();
+        for (var line : reply.split(ProtocolCommand.MULTI_VALUE_DELIMITER)) {
+            var entry = line.split(" ");
+            if (entry.length == 2) {
+                entries.put(entry[0], entry[1]);
+            }
+        }
+        return entries;
+    }
+
+    private static Set<String> union(Set<String> left, Set<String> right) {
+        Set<String> union = new HashSet<>(left);
+        union.addAll(right);
+        return union;
+    }
+
+    private boolean replicatedByBoth(String key, NodePool first, NodePool second) {
+        var replicas = replicasFor(key);
+        return replicas.contains(first) && replicas.contains(second);
+    }
+
+    private List<NodePool> replicasFor(String key) {
+        return ring.replicasFor(key, settings.policyFor(key, ring.getMembers().size()).replicationFactor());
+    }
+
+    private CompletableFuture<Integer> repair(Set<String> keys) {
+        var repairs = keys.stream()
+                .map(this::repair)
+                .toList();
+
+        return CompletableFuture.allOf(repairs.toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> (int) repairs.stream()
+                        .filter(CompletableFuture::join)
+                        .count());
+    }
+
+    //The freshest version any live replica holds wins, and is written to every replica holding an older one.
+    //Unversioned values cannot be ordered, so keys whose newest value predates versioning are left alone
+    private CompletableFuture<Boolean> repair(String key) {
+        var replicas = replicasFor(key).stream()
+                .filter(NodePool::isAvailable)
+                .toList();
+
+        var replies = replicas.stream()
+                .map(replica -> replica.send(VERSIONED_READ.getCommandName() + " " + key)
+                        .thenApply(VersionedReply::parse)
+                        .exceptionally(e -> Optional.empty()))
+                .toList();
+
+        return CompletableFuture.allOf(replies.toArray(CompletableFuture[]::new)).thenCompose(ignored -> {
+            var freshest = replies.stream()
+                    .map(CompletableFuture::join)
+                    .flatMap(Optional::stream)
+                    .reduce((left, right) -> right.isNewerThan(left) ? right : left)
+                    .filter(VersionedReply::isRepairable);
+            if (freshest.isEmpty()) {
+                return CompletableFuture.completedFuture(false);
+            }
+
+            List<CompletableFuture<String>> writes = new ArrayList<>();
+            for (int i = 0; i < replicas.size(); i++) {
+                var reply = replies.get(i).join();
+                if (reply.isPresent() && freshest.get().isNewerThan(reply.get())) {
+                    writes.add(replicas.get(i).send(freshest.get().repairCommand(key)));
+                }
+            }
+
+            if (writes.isEmpty()) {
+                return CompletableFuture.completedFuture(false);
+            }
+
+            LOG.debug("Repairing {} on {} replicas to version {}", key, writes.size(), freshest.get().version());
+            keysRepaired.increment();
+            return CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new))
+                    .handle((done, e) -> true);
+        });
+    }
+
+    enum Coverage {
+        FULL,
+        PARTIAL,
+        NONE
+    }
+}
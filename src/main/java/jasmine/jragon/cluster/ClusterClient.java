@@ -0,0 +1,704 @@
+package jasmine.jragon.cluster;
+
+import jasmine.jragon.clock.HybridClock;
+import jasmine.jragon.command.ProtocolCommand;
+import jasmine.jragon.consensus.ConsensusContext;
+import jasmine.jragon.consensus.ConsensusOperation;
+import jasmine.jragon.consensus.ConsensusSettings;
+import jasmine.jragon.consensus.HashRing;
+import jasmine.jragon.consensus.QuorumOverride;
+import jasmine.jragon.consensus.RepairLog;
+import jasmine.jragon.consensus.Replica;
+import jasmine.jragon.consensus.ReplicaMetrics;
+import lombok.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static jasmine.jragon.command.ProtocolCommand.ACKNOWLEDGE_HINTS;
+import static jasmine.jragon.command.ProtocolCommand.APPEND;
+import static jasmine.jragon.command.ProtocolCommand.BEGIN_TRANSACTION;
+import static jasmine.jragon.command.ProtocolCommand.CHECK;
+import static jasmine.jragon.command.ProtocolCommand.COMPARE_AND_SET;
+import static jasmine.jragon.command.ProtocolCommand.INCREMENT_BY;
+import static jasmine.jragon.command.ProtocolCommand.JOIN;
+import static jasmine.jragon.command.ProtocolCommand.LEAVE;
+import static jasmine.jragon.command.ProtocolCommand.LIST_HINTS;
+import static jasmine.jragon.command.ProtocolCommand.MEMBERS;
+import static jasmine.jragon.command.ProtocolCommand.MULTI_READ;
+import static jasmine.jragon.command.ProtocolCommand.MULTI_WRITE;
+import static jasmine.jragon.command.ProtocolCommand.PUT_IF_ABSENT;
+import static jasmine.jragon.command.ProtocolCommand.READ;
+import static jasmine.jragon.command.ProtocolCommand.WRITE;
+import static jasmine.jragon.response.ServerResponse.ACKNOWLEDGED;
+import static jasmine.jragon.response.ServerResponse.INSUFFICIENT_ARGUMENTS;
+import static jasmine.jragon.response.ServerResponse.INVALID_QUORUM;
+import static jasmine.jragon.response.ServerResponse.INVALID_TRANSACTION_COMMAND;
+import static jasmine.jragon.response.ServerResponse.KEY_LOCKED_ISSUE;
+import static jasmine.jragon.response.ServerResponse.MEMBERSHIP_REFUSED;
+import static jasmine.jragon.response.ServerResponse.REBALANCED;
+import static jasmine.jragon.response.ServerResponse.SERVER_IO_ERROR;
+import static jasmine.jragon.response.ServerResponse.SHUTDOWN_IN_PROGRESS;
+import static jasmine.jragon.response.ServerResponse.STALE_MEMBERSHIP;
+import static jasmine.jragon.response.ServerResponse.UNSUPPORTED_COMMAND;
+
+//Thread-safe entry point to the cluster. Every call returns immediately; a single selector thread does the I/O
+public final class ClusterClient implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ClusterClient.class);
+
+    private static final long CONNECT_TIMEOUT_MILLIS = 5_000;
+    private static final long HINT_SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int HINT_BATCH_SIZE = 64;
+    //Other clients adopt a membership within this long, so keys only start moving once two intervals have passed
+    private static final long MEMBERSHIP_REFRESH_MILLIS = 1_000;
+
+    private final EventLoop loop;
+    private final ConsensusSettings settings;
+    private final ConnectionSettings connectionSettings;
+    private final RepairLog repairLog;
+    private final ReplicaMetrics metrics;
+    private final HybridClock clock;
+    //Replaced together whenever a newer membership is adopted
+    private volatile Membership membership;
+    private volatile List<NodePool> pools;
+    private volatile Map<String, NodePool> poolsByAddress;
+    private volatile HashRing<NodePool> ring;
+    private volatile HashRing<NodePool> previousRing;
+    private volatile ConsensusContext context;
+    //Set while this client carries out a membership change, so it never runs two at once
+    private final AtomicBoolean changing;
+    //Holder>owner pairs with a batch in flight, so sweeps never replay the same hints twice at once
+    private final Set<String> handoffs;
+    private final LongAdder deliveredHints;
+    private final AntiEntropy antiEntropy;
+
+    //Owned by the event loop thread
+    private final Set<NodePool> availableAtLastBeat;
+    private long nextHintSweepNanos;
+    private int membershipTurn;
+
+    private volatile boolean closed;
+
+    private ClusterClient(EventLoop loop,
+                          List<NodePool> pools,
+                          ConsensusSettings settings,
+                          ConnectionSettings connectionSettings) {
+        this.loop = loop;
+        this.settings = settings;
+        this.connectionSettings = connectionSettings;
+        this.repairLog = new RepairLog(RepairLog.DEFAULT_CAPACITY);
+        this.metrics = new ReplicaMetrics();
+        this.clock = new HybridClock();
+        this.changing = new AtomicBoolean();
+        this.handoffs = ConcurrentHashMap.newKeySet();
+        this.deliveredHints = new LongAdder();
+        this.antiEntropy = new AntiEntropy(settings);
+        this.availableAtLastBeat = new HashSet<>();
+        use(new Membership(0, pools.stream().map(NodePool::getAddress).toList(), List.of()), pools);
+    }
+
+    public static ClusterClient connect(@NonNull List<InetSocketAddress> servers,
+                                        @NonNull ConsensusSettings settings) throws IOException {
+        return connect(servers, settings, ConnectionSettings.DEFAULTS);
+    }
+
+    //Servers that cannot be reached at startup keep their place on the ring and are retried in the background
+    public static ClusterClient connect(@NonNull List<InetSocketAddress> servers,
+                                        @NonNull ConsensusSettings settings,
+                                        @NonNull ConnectionSettings connectionSettings) throws IOException {
+        var loop = new EventLoop("cluster-io");
+        var pools = servers.stream()
+                .map(address -> NodePool.open(address, loop, connectionSettings))
+                .toList();
+
+        try {
+            CompletableFuture.allOf(pools.stream().map(NodePool::whenSettled).toArray(CompletableFuture[]::new))
+                    .get(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            LOG.warn("Not every server answered within {} ms", CONNECT_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            loop.close();
+            throw new IOException("Interrupted while connecting", e);
+        }
+
+        for (var pool : pools) {
+            if (!pool.isAvailable()) {
+                LOG.warn("Server {} is unreachable, retrying in the background", pool.getAddress());
+            }
+        }
+
+        var client = new ClusterClient(loop, pools, settings, connectionSettings);
+        //The servers may have moved on from the list this client was given
+        try {
+            client.refreshMembership(pools).get(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            LOG.warn("Could not learn the cluster's membership, starting from the configured servers");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            client.close();
+            throw new IOException("Interrupted while connecting", e);
+        }
+        client.scheduleHeartbeat(connectionSettings.heartbeatIntervalMillis());
+        client.scheduleMembershipRefresh();
+        //Raft groups keep their members' trees equal themselves, and servers refuse writes from outside them
+        if (settings.antiEntropyIntervalMillis() > 0 && !settings.raft()) {
+            client.scheduleAntiEntropy(settings.antiEntropyIntervalMillis());
+        }
+        return client;
+    }
+
+    private void scheduleHeartbeat(long intervalMillis) {
+        loop.schedule(intervalMillis, () -> {
+            if (closed) {
+                return;
+            }
+
+            boolean recovered = false;
+            var current = pools;
+            availableAtLastBeat.retainAll(current);
+            for (var pool : current) {
+                pool.heartbeat();
+                if (pool.isAvailable()) {
+                    recovered |= availableAtLastBeat.add(pool);
+                } else {
+                    availableAtLastBeat.remove(pool);
+                }
+            }
+
+            //A server coming back is the moment its hints are wanted; the timed sweep catches everything else
+            long now = System.nanoTime();
+            if (recovered || now >= nextHintSweepNanos) {
+                nextHintSweepNanos = now + HINT_SWEEP_INTERVAL_NANOS;
+                deliverHints();
+            }
+            scheduleHeartbeat(intervalMillis);
+        });
+    }
+
+    //Asks one server per interval, in turn, whether the cluster has changed since this client last looked
+    private void scheduleMembershipRefresh() {
+        loop.schedule(MEMBERSHIP_REFRESH_MILLIS, () -> {
+            if (closed) {
+                return;
+            }
+
+            var current = pools;
+            var asked = current.get(Math.floorMod(membershipTurn++, current.size()));
+            refreshMembership(List.of(asked)).whenComplete((ignored, e) -> scheduleMembershipRefresh());
+        });
+    }
+
+    //Adopts the newest membership any of the available servers holds, if it is newer than this client's
+    private CompletableFuture<Void> refreshMembership(List<NodePool> servers) {
+        var views = servers.stream()
+                .filter(NodePool::isAvailable)
+                .map(server -> server.send(MEMBERS.getCommandName())
+                        .thenApply(Membership::parse)
+                        .exceptionally(e -> Optional.empty()))
+                .toList();
+
+        return CompletableFuture.allOf(views.toArray(CompletableFuture[]::new))
+                .thenAccept(ignored -> views.stream()
+                        .map(CompletableFuture::join)
+                        .flatMap(Optional::stream)
+                        .max(Comparator.comparingLong(Membership::epoch))
+                        .ifPresent(this::adopt));
+    }
+
+    //Servers new to this client get pools, servers no longer in the view have theirs closed, and operations
+    //started from here on are placed by the new rings
+    private synchronized void adopt(Membership view, NodePool... opened) {
+        if (closed || !view.isNewerThan(membership)) {
+            Arrays.stream(opened).filter(pool -> !view.allMembers().contains(pool.getAddress())).forEach(NodePool::close);
+            return;
+        }
+
+        Map<String, NodePool> known = new HashMap<>(poolsByAddress);
+        Arrays.stream(opened).forEach(pool -> known.putIfAbsent(pool.getAddress(), pool));
+        List<NodePool> next = view.allMembers()
+                .stream()
+                .map(address -> known.computeIfAbsent(address,
+                        ignored -> NodePool.open(Membership.socketAddress(address), loop, connectionSettings)))
+                .toList();
+        known.values()
+                .stream()
+                .filter(pool -> !next.contains(pool))
+                .forEach(NodePool::close);
+
+        use(view, next);
+        LOG.info("Adopted cluster membership {}", view);
+    }
+
+    private void use(Membership view, List<NodePool> next) {
+        var byAddress = next.stream()
+                .collect(Collectors.toUnmodifiableMap(NodePool::getAddress, Function.identity()));
+        var members = view.members().stream().map(byAddress::get).toList();
+        var previous = view.previous().stream().map(byAddress::get).toList();
+
+        ring = new HashRing<>(members, NodePool::getAddress, HashRing.DEFAULT_VIRTUAL_NODES);
+        previousRing = view.isRebalancing() ?
+                new HashRing<>(previous, NodePool::getAddress, HashRing.DEFAULT_VIRTUAL_NODES) :
+                null;
+        pools = next;
+        poolsByAddress = byAddress;
+        context = new ConsensusContext(ring, settings, repairLog, metrics, clock, previousRing);
+        membership = view;
+    }
+
+    public Membership getMembership() {
+        return membership;
+    }
+
+    //Adds a server to the cluster and moves the keys it now replicates onto it, resolving to how many were copied
+    public CompletableFuture<Integer> join(@NonNull String address) {
+        return changeMembership(address, true);
+    }
+
+    //Moves the keys a server replicates onto the servers that take them over, then drops it from the cluster
+    public CompletableFuture<Integer> leave(@NonNull String address) {
+        return changeMembership(address, false);
+    }
+
+    //The new members are announced alongside the old ones, so every client writes to both placements while keys
+    //move and keeps reading from the old one. Once the keys have been copied the old members are dropped. A change
+    //that fails part way is rolled back to the old members, under a newer epoch still
+    private CompletableFuture<Integer> changeMembership(String address, boolean joining) {
+        InetSocketAddress socketAddress;
+        try {
+            socketAddress = Membership.socketAddress(address);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(address + " is not a host:port address"));
+        }
+        var server = Membership.addressOf(socketAddress);
+
+        if (settings.raft()) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Raft groups cannot change their members"));
+        } else if (!changing.compareAndSet(false, true)) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Another membership change is in progress"));
+        }
+
+        var current = membership;
+        List<String> members = new ArrayList<>(current.members());
+        String refusal = null;
+        if (current.isRebalancing()) {
+            refusal = "Keys are still moving from an earlier change";
+        } else if (joining && members.contains(server)) {
+            refusal = server + " is already a member";
+        } else if (!joining && !members.contains(server)) {
+            refusal = server + " is not a member";
+        } else if (!joining && members.size() - 1 < widestReplication()) {
+            refusal = "Too few servers would be left to replicate every key";
+        }
+        if (refusal != null) {
+            changing.set(false);
+            return CompletableFuture.failedFuture(new IllegalStateException(refusal));
+        }
+
+        if (joining) {
+            members.add(server);
+        } else {
+            members.remove(server);
+        }
+        var transition = new Membership(current.epoch() + 1, members, current.members());
+        var finished = new Membership(current.epoch() + 2, members, List.of());
+
+        return (joining ? probe(socketAddress) : CompletableFuture.completedFuture(new NodePool[0]))
+                .thenCompose(opened -> announce(transition, opened))
+                .thenCompose(ignored -> CompletableFuture.runAsync(() -> {},
+                        CompletableFuture.delayedExecutor(2 * MEMBERSHIP_REFRESH_MILLIS, TimeUnit.MILLISECONDS)))
+                .thenCompose(ignored -> new Rebalancer(previousRing, ring, settings).run())
+                .thenCompose(moved -> announce(finished).thenApply(ignored -> moved))
+                .whenComplete((moved, e) -> {
+                    if (e != null && membership.equals(transition)) {
+                        LOG.warn("Membership change to {} failed, restoring {}: {}", transition, current, e.getMessage());
+                        announce(new Membership(finished.epoch(), current.members(), List.of()));
+                    } else if (e == null) {
+                        LOG.info("Membership change to {} moved {} keys", finished, moved);
+                    }
+                    changing.set(false);
+                });
+    }
+
+    //A joining server must answer before any key is placed on it
+    private CompletableFuture<NodePool[]> probe(InetSocketAddress socketAddress) {
+        var pool = NodePool.open(socketAddress, loop, connectionSettings);
+        return pool.whenSettled()
+                .orTimeout(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .handle((ignored, e) -> {
+                    if (e == null && pool.isAvailable()) {
+                        return new NodePool[]{pool};
+                    }
+                    pool.close();
+                    throw new CompletionException(new IllegalStateException(pool.getAddress() + " cannot be reached"));
+                });
+    }
+
+    //Every server the view or this client's current one names is told, so other clients learn it from any of them.
+    //A server that already holds a newer view means another change got there first
+    private CompletableFuture<Void> announce(Membership view, NodePool... opened) {
+        Set<NodePool> told = new LinkedHashSet<>(pools);
+        told.addAll(Arrays.asList(opened));
+        var command = MEMBERS.getCommandName() + " " + view.encode();
+        var replies = told.stream()
+                .filter(NodePool::isAvailable)
+                .map(server -> server.send(command).exceptionally(e -> SERVER_IO_ERROR.toString()))
+                .toList();
+
+        return CompletableFuture.allOf(replies.toArray(CompletableFuture[]::new)).thenRun(() -> {
+            if (replies.stream().map(CompletableFuture::join).anyMatch(STALE_MEMBERSHIP.toString()::equals)) {
+                Arrays.stream(opened).forEach(NodePool::close);
+                throw new IllegalStateException("A newer membership than " + view + " exists");
+            }
+            adopt(view, opened);
+        });
+    }
+
+    private int widestReplication() {
+        int serverCount = ring.getMembers().size();
+        int widest = settings.policyFor("", serverCount).replicationFactor();
+        for (var policy : settings.namespaces().values()) {
+            widest = Math.max(widest, policy.replicationFactor());
+        }
+        return widest;
+    }
+
+    //Rounds never overlap: the next one is scheduled once the previous has finished
+    private void scheduleAntiEntropy(long intervalMillis) {
+        loop.schedule(intervalMillis, () -> {
+            if (closed) {
+                return;
+            }
+            runAntiEntropy().whenComplete((repaired, e) -> scheduleAntiEntropy(intervalMillis));
+        });
+    }
+
+    //Compares every pair of replicas once and repairs the keys they disagree on, resolving to how many were repaired
+    public CompletableFuture<Integer> runAntiEntropy() {
+        //Servers gaining keys would look like they had lost them, so rounds wait until the move is over
+        if (previousRing != null) {
+            return CompletableFuture.completedFuture(0);
+        }
+
+        long digests = antiEntropy.digestsCompared();
+        long entries = antiEntropy.entriesCompared();
+        return antiEntropy.round(ring).whenComplete((repaired, e) -> {
+            if (repaired != null) {
+                LOG.debug("Anti-entropy compared {} digests and {} bucket entries, repairing {} keys",
+                        antiEntropy.digestsCompared() - digests, antiEntropy.entriesCompared() - entries, repaired);
+            }
+        });
+    }
+
+    //Asks every healthy server which hints it holds and streams them to owners that are reachable again
+    private void deliverHints() {
+        for (var holder : pools) {
+            if (!holder.isAvailable()) {
+                continue;
+            }
+
+            holder.send(LIST_HINTS.getCommandName()).thenAccept(listing -> {
+                for (var line : listing.split(ProtocolCommand.MULTI_VALUE_DELIMITER)) {
+                    var queue = line.split(" ");
+                    var owner = queue.length == 2 ? poolsByAddress.get(queue[0]) : null;
+                    if (owner != null && owner != holder && owner.isAvailable()) {
+                        deliverHints(holder, owner);
+                    }
+                }
+            });
+        }
+    }
+
+    //One batch at a time over a single connection, so the owner applies hints in the order they were taken.
+    //A batch is only acknowledged once every write in it landed, and the next one follows straight after
+    private void deliverHints(NodePool holder, NodePool owner) {
+        var route = holder.getAddress() + ">" + owner.getAddress();
+        if (closed || !handoffs.add(route)) {
+            return;
+        }
+
+        holder.send(LIST_HINTS.getCommandName() + " " + owner.getAddress() + " " + HINT_BATCH_SIZE)
+                .thenCompose(batch -> replay(owner, batch))
+                .thenCompose(delivered -> delivered == 0 ?
+                        CompletableFuture.completedFuture(0) :
+                        holder.send(ACKNOWLEDGE_HINTS.getCommandName() + " " + owner.getAddress() + " " + delivered)
+                                .thenApply(reply -> ACKNOWLEDGED.toString().equals(reply) ? delivered : 0))
+                .whenComplete((delivered, e) -> {
+                    handoffs.remove(route);
+                    if (e != null) {
+                        LOG.warn("Handing off hints from {} to {} failed: {}", holder.getAddress(), owner.getAddress(), e.getMessage());
+                    } else if (delivered > 0) {
+                        deliveredHints.add(delivered);
+                        LOG.info("Handed off {} hints from {} to {}", delivered, holder.getAddress(), owner.getAddress());
+                        if (delivered == HINT_BATCH_SIZE) {
+                            deliverHints(holder, owner);
+                        }
+                    }
+                });
+    }
+
+    //Resolves to the batch size if the owner took every write, otherwise 0 so the whole batch is retried later
+    private static CompletableFuture<Integer> replay(NodePool owner, String batch) {
+        if (batch.isEmpty()) {
+            return CompletableFuture.completedFuture(0);
+        }
+
+        var connection = owner.lease();
+        var replies = Arrays.stream(batch.split(ProtocolCommand.MULTI_VALUE_DELIMITER))
+                .map(connection::send)
+                .toList();
+
+        return CompletableFuture.allOf(replies.toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> replies.stream()
+                        .map(CompletableFuture::join)
+                        .anyMatch(reply -> reply.contains(KEY_LOCKED_ISSUE.toString()) ||
+                                SHUTDOWN_IN_PROGRESS.toString().equals(reply)) ? 0 : replies.size())
+                .exceptionally(e -> 0);
+    }
+
+    public ConsensusSettings getSettings() {
+        return settings;
+    }
+
+    public RepairLog getRepairLog() {
+        return repairLog;
+    }
+
+    public ReplicaMetrics getMetrics() {
+        return metrics;
+    }
+
+    //Keys anti-entropy has set back to their majority value
+    public long repairedKeyCount() {
+        return antiEntropy.keysRepaired();
+    }
+
+    //Hints replayed to their owners by this client
+    public long deliveredHintCount() {
+        return deliveredHints.sum();
+    }
+
+    //Hints waiting on each server's behalf across the cluster, keyed by the owner's address
+    public CompletableFuture<Map<String, Integer>> hintQueueSizes() {
+        var listings = pools.stream()
+                .filter(NodePool::isAvailable)
+                .map(pool -> pool.send(LIST_HINTS.getCommandName()).exceptionally(e -> ""))
+                .toList();
+
+        return CompletableFuture.allOf(listings.toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> {
+                    Map<String, Integer> sizes = new TreeMap<>();
+                    for (var listing : listings) {
+                        for (var line : listing.join().split(ProtocolCommand.MULTI_VALUE_DELIMITER)) {
+                            var queue = line.split(" ");
+                            if (queue.length == 2 && queue[1].matches("\\d+") && poolsByAddress.containsKey(queue[0])) {
+                                sizes.merge(queue[0], Integer.parseInt(queue[1]), Integer::sum);
+                            }
+                        }
+                    }
+                    return sizes;
+                });
+    }
+
+    public int serverCount() {
+        return ring.getMembers().size();
+    }
+
+    //Servers placement currently routes around: unreachable, or silent for longer than their heartbeats predict
+    public List<String> unavailableServers() {
+        return pools.stream()
+                .filter(pool -> !pool.isAvailable())
+                .map(NodePool::getAddress)
+                .toList();
+    }
+
+    //Phi of each server's failure detector, keyed by address
+    public Map<String, Double> suspicionLevels() {
+        return pools.stream()
+                .collect(Collectors.toUnmodifiableMap(NodePool::getAddress, NodePool::suspicion));
+    }
+
+    //Requests waiting on or in flight to each server, keyed by address
+    public Map<String, Integer> outstandingRequests() {
+        return pools.stream()
+                .collect(Collectors.toUnmodifiableMap(NodePool::getAddress, NodePool::outstanding));
+    }
+
+    //Frames per socket write across every connection; above 1 means requests are being coalesced
+    public double averageBatchSize() {
+        long writes = 0;
+        long frames = 0;
+        for (var pool : pools) {
+            for (var connection : pool.connections()) {
+                writes += connection.writeCount();
+                frames += connection.frameCount();
+            }
+        }
+        return writes == 0 ? 0.0 : (double) frames / writes;
+    }
+
+    public double placementImbalance() {
+        return ring.imbalance();
+    }
+
+    public CompletableFuture<String> get(@NonNull String key) {
+        return execute(READ.getCommandName() + " " + key);
+    }
+
+    public CompletableFuture<String> put(@NonNull String key, @NonNull String value) {
+        return execute(WRITE.getCommandName() + " " + key + " " + value);
+    }
+
+    public CompletableFuture<String> contains(@NonNull String key) {
+        return execute(CHECK.getCommandName() + " " + key);
+    }
+
+    //true if the key held expected, null for an absent key, and now holds value
+    public CompletableFuture<Boolean> compareAndSet(@NonNull String key, @NonNull String expected, @NonNull String value) {
+        return execute(COMPARE_AND_SET.getCommandName() + " " + key + " " + expected + " " + value)
+                .thenApply(Boolean::parseBoolean);
+    }
+
+    public CompletableFuture<String> incrementBy(@NonNull String key, long amount) {
+        return execute(INCREMENT_BY.getCommandName() + " " + key + " " + amount);
+    }
+
+    public CompletableFuture<String> append(@NonNull String key, @NonNull String suffix) {
+        return execute(APPEND.getCommandName() + " " + key + " " + suffix);
+    }
+
+    public CompletableFuture<String> putIfAbsent(@NonNull String key, @NonNull String value) {
+        return execute(PUT_IF_ABSENT.getCommandName() + " " + key + " " + value);
+    }
+
+    //One value per requested key, in order
+    public CompletableFuture<List<String>> mget(@NonNull List<String> keys) {
+        if (keys.isEmpty()) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+
+        return execute(MULTI_READ.getCommandName() + " " + String.join(" ", keys))
+                .thenApply(response -> List.of(response.split(ProtocolCommand.MULTI_VALUE_DELIMITER, -1)));
+    }
+
+    public CompletableFuture<String> mput(@NonNull Map<String, String> entries) {
+        var command = new StringJoiner(" ", MULTI_WRITE.getCommandName() + " ", "");
+        entries.forEach((key, value) -> command.add(key).add(value));
+        return execute(command.toString());
+    }
+
+    //Accepts the same text as the REPL, including leading N=, R= and W= quorum overrides
+    public CompletableFuture<String> execute(@NonNull String command) {
+        var components = command.trim().split("\\s+");
+        int overrideCount = QuorumOverride.countLeadingTokens(components);
+        if (overrideCount == components.length) {
+            return CompletableFuture.completedFuture(INSUFFICIENT_ARGUMENTS.toString());
+        }
+
+        QuorumOverride override;
+        try {
+            override = QuorumOverride.parse(Arrays.copyOf(components, overrideCount));
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(INVALID_QUORUM.toString());
+        }
+        components = Arrays.copyOfRange(components, overrideCount, components.length);
+
+        var protocol = ProtocolCommand.lookup(components[0]);
+        if (protocol == ProtocolCommand.UNSUPPORTED) {
+            return CompletableFuture.completedFuture(UNSUPPORTED_COMMAND.toString());
+        } else if (!protocol.containsSufficientArguments(components.length - 1)) {
+            return CompletableFuture.completedFuture(INSUFFICIENT_ARGUMENTS.toString());
+        } else if (protocol == BEGIN_TRANSACTION) {
+            //A transaction spans several calls, which needs an operation the caller holds on to
+            return CompletableFuture.completedFuture(INVALID_TRANSACTION_COMMAND.toString());
+        } else if (protocol == MEMBERS) {
+            return CompletableFuture.completedFuture(membership.encode());
+        } else if (protocol == JOIN || protocol == LEAVE) {
+            return (protocol == JOIN ? join(components[1]) : leave(components[1])).handle((moved, e) -> e == null ?
+                    REBALANCED + String.valueOf(moved) :
+                    MEMBERSHIP_REFUSED + (e instanceof CompletionException ? e.getCause() : e).getMessage());
+        }
+
+        var keys = keysOf(protocol, components);
+        try {
+            return newOperation(protocol, keys, override, UnaryOperator.identity())
+                    .sendCommandToServers(protocol, String.join(" ", components), keys);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Rejected quorum for [{}]: {}", command, e.getMessage());
+            return CompletableFuture.completedFuture(INVALID_QUORUM.toString());
+        }
+    }
+
+    //Transactions live on one server-side connection each, so they get pinned connections for their lifetime
+    public ConsensusOperation newOperation(@NonNull ProtocolCommand protocol,
+                                           @NonNull String[] keys,
+                                           @NonNull QuorumOverride override) {
+        return newOperation(protocol, keys, override, protocol == BEGIN_TRANSACTION ? pin() : UnaryOperator.identity());
+    }
+
+    public ConsensusOperation newOperation(@NonNull ProtocolCommand protocol,
+                                           @NonNull String[] keys,
+                                           @NonNull QuorumOverride override,
+                                           @NonNull UnaryOperator<Replica> binding) {
+        return new ConsensusOperation(protocol, keys, context, override, binding);
+    }
+
+    //Leases one connection per server on first use and keeps returning it, e.g. for a whole console session.
+    //A leased connection that has since died is replaced, since its server-side state is gone anyway
+    public UnaryOperator<Replica> pin() {
+        Map<NodePool, NodeConnection> leased = new ConcurrentHashMap<>();
+        return replica -> replica instanceof NodePool pool ?
+                leased.compute(pool, (ignored, connection) ->
+                        connection == null || connection.isClosed() ? pool.lease() : connection) :
+                replica;
+    }
+
+    public static String[] keysOf(@NonNull ProtocolCommand protocol, @NonNull String[] components) {
+        return switch (protocol) {
+            case READ, WRITE, CHECK, COMPARE_AND_SET, INCREMENT_BY, APPEND, PUT_IF_ABSENT -> new String[]{components[1]};
+            case BEGIN_TRANSACTION, MULTI_READ -> Arrays.copyOfRange(components, 1, components.length);
+            case EXECUTE -> ProtocolCommand.segments(Arrays.copyOfRange(components, 1, components.length))
+                    .get(0)
+                    .toArray(String[]::new);
+            case MULTI_WRITE -> IntStream.iterate(1, i -> i < components.length, i -> i + 2)
+                    .mapToObj(i -> components[i])
+                    .toArray(String[]::new);
+            default -> new String[0];
+        };
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        pools.forEach(NodePool::close);
+        loop.close();
+    }
+}
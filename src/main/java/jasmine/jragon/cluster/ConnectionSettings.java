@@ -0,0 +1,85 @@
+package jasmine.jragon.cluster;
+
+import lombok.NonNull;
+
+import java.util.Map;
+
+//Without multiplexing each pooled connection carries one request at a time and the rest queue for a free one.
+//Requests queued for the same connection go out in one write of up to batchSize frames; batchWindowMillis
+//optionally holds a batch open, but only while earlier requests are still awaiting responses, and no longer.
+//Every server is pinged each heartbeat interval and suspected once its phi passes suspicionThreshold
+public record ConnectionSettings(int poolSize,
+                                 boolean multiplexing,
+                                 int batchSize,
+                                 long batchWindowMillis,
+                                 long heartbeatIntervalMillis,
+                                 double suspicionThreshold) {
+    public static final ConnectionSettings DEFAULTS = new ConnectionSettings(2, true, 64, 0, 250, 8.0);
+
+    private static final String POOL_SIZE = "pool-size";
+    private static final String MULTIPLEXING = "multiplexing";
+    private static final String BATCH_SIZE = "batch-size";
+    private static final String BATCH_WINDOW = "batch-window-ms";
+    private static final String HEARTBEAT_INTERVAL = "heartbeat-interval-ms";
+    private static final String SUSPICION_THRESHOLD = "phi-threshold";
+
+    public ConnectionSettings {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be positive");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        if (batchWindowMillis < 0) {
+            throw new IllegalArgumentException("Batch window cannot be negative");
+        }
+        if (heartbeatIntervalMillis < 1) {
+            throw new IllegalArgumentException("Heartbeat interval must be positive");
+        }
+        if (suspicionThreshold <= 0) {
+            throw new IllegalArgumentException("Phi threshold must be positive");
+        }
+    }
+
+    public static ConnectionSettings fromYml(@NonNull Map<?, ?> section) {
+        var configuredMultiplexing = section.get(MULTIPLEXING);
+        boolean multiplexing = configuredMultiplexing == null ?
+                DEFAULTS.multiplexing :
+                Boolean.parseBoolean(configuredMultiplexing.toString());
+
+        return new ConnectionSettings(
+                (int) readNumber(section, POOL_SIZE, DEFAULTS.poolSize),
+                multiplexing,
+                (int) readNumber(section, BATCH_SIZE, DEFAULTS.batchSize),
+                readNumber(section, BATCH_WINDOW, DEFAULTS.batchWindowMillis),
+                readNumber(section, HEARTBEAT_INTERVAL, DEFAULTS.heartbeatIntervalMillis),
+                readThreshold(section)
+        );
+    }
+
+    private static double readThreshold(Map<?, ?> section) {
+        var value = section.get(SUSPICION_THRESHOLD);
+        if (value == null) {
+            return DEFAULTS.suspicionThreshold;
+        }
+
+        try {
+            return Double.parseDouble(value.toString());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(SUSPICION_THRESHOLD + " must be a number", e);
+        }
+    }
+
+    private static long readNumber(Map<?, ?> section, String name, long fallback) {
+        var value = section.get(name);
+        if (value == null) {
+            return fallback;
+        }
+
+        try {
+            return Integer.parseInt(value.toString());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a whole number", e);
+        }
+    }
+}
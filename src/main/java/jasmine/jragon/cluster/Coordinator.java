@@ -0,0 +1,92 @@
+package jasmine.jragon.cluster;
+
+import jasmine.jragon.command.ProtocolCommand;
+import jasmine.jragon.consensus.ConsensusSettings;
+import jasmine.jragon.consensus.QuorumOverride;
+import lombok.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static jasmine.jragon.response.ServerResponse.SERVER_IO_ERROR;
+
+//Lets a server answer for the whole cluster. A thin client that sent COORDINATE has its keyed commands run here as
+//the quorum operations a ClusterClient would, over this server's pooled connections to every server. The client then
+//needs one connection instead of one per server and no topology of its own.
+//The cluster connection opens when the first client asks for it, so servers nobody coordinates through pay nothing
+public final class Coordinator implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(Coordinator.class);
+
+    private final List<InetSocketAddress> servers;
+    private final ConsensusSettings settings;
+    private final ConnectionSettings connectionSettings;
+
+    private CompletableFuture<ClusterClient> cluster;
+    private boolean closed;
+
+    public Coordinator(@NonNull List<InetSocketAddress> servers,
+                       @NonNull ConsensusSettings settings,
+                       @NonNull ConnectionSettings connectionSettings) {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("A coordinator needs at least one server");
+        }
+        this.servers = List.copyOf(servers);
+        this.settings = settings;
+        this.connectionSettings = connectionSettings;
+    }
+
+    //Keyed reads and writes, atomic ones included, any with leading quorum overrides, and EXEC, which carries a whole transaction.
+    //Transactions begun with TRANSACT are taken too, only to be refused: one started on this server alone would look
+    //like a cluster-wide one to the client
+    public static boolean coordinates(@NonNull String command) {
+        var components = command.trim().split("\\s+");
+        if (QuorumOverride.countLeadingTokens(components) > 0) {
+            return true;
+        }
+
+        return switch (ProtocolCommand.lookup(components[0])) {
+            case READ, WRITE, CHECK, MULTI_READ, MULTI_WRITE, COMPARE_AND_SET, INCREMENT_BY, APPEND, PUT_IF_ABSENT,
+                 EXECUTE, BEGIN_TRANSACTION -> true;
+            default -> false;
+        };
+    }
+
+    public CompletableFuture<String> execute(@NonNull String command) {
+        return cluster()
+                .thenCompose(client -> client.execute(command))
+                .exceptionally(e -> {
+                    LOG.warn("Coordinating [{}] failed: {}", command, e.getMessage());
+                    return SERVER_IO_ERROR.toString();
+                });
+    }
+
+    //A failed connection attempt is retried by the next command rather than remembered
+    private synchronized CompletableFuture<ClusterClient> cluster() {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Coordinator is closed"));
+        } else if (cluster == null || cluster.isCompletedExceptionally()) {
+            LOG.info("Connecting to {} servers to coordinate for thin clients", servers.size());
+            cluster = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return ClusterClient.connect(servers, settings, connectionSettings);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        return cluster;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (cluster != null) {
+            cluster.thenAccept(ClusterClient::close);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package jasmine.jragon.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+//The one thread that owns every socket of a ClusterClient. Other threads hand it work through execute
+final class EventLoop implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(EventLoop.class);
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    //Owned by the loop thread
+    private final PriorityQueue<Timer> timers;
+    private final Thread thread;
+
+    private long timerSequence;
+
+    private volatile boolean running;
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.timers = new PriorityQueue<>(Comparator.comparingLong(Timer::deadline).thenComparingLong(Timer::sequence));
+        this.running = true;
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    interface ChannelHandler {
+        void handle(SelectionKey key) throws IOException;
+
+        void fail(IOException cause);
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    void schedule(long delayMillis, Runnable task) {
+        execute(() -> timers.add(new Timer(System.nanoTime() + delayMillis * 1_000_000, timerSequence++, task)));
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else if (timers.isEmpty()) {
+                    selector.select();
+                } else {
+                    long waitNanos = timers.peek().deadline() - System.nanoTime();
+                    if (waitNanos <= 0) {
+                        selector.selectNow();
+                    } else {
+                        selector.select(Math.max(1, (waitNanos + 999_999) / 1_000_000));
+                    }
+                }
+            } catch (IOException e) {
+                LOG.error("Selector failed, stopping the event loop", e);
+                running = false;
+                break;
+            }
+
+            for (var key : selector.selectedKeys()) {
+                if (key.attachment() instanceof ChannelHandler handler) {
+                    try {
+                        handler.handle(key);
+                    } catch (IOException e) {
+                        handler.fail(e);
+                    }
+                }
+            }
+            selector.selectedKeys().clear();
+
+            runTasks();
+            runDueTimers();
+        }
+
+        var cause = new IOException("Event loop closed");
+        for (var key : selector.keys()) {
+            if (key.attachment() instanceof ChannelHandler handler) {
+                handler.fail(cause);
+            }
+        }
+        //Anything submitted while closing runs against failed connections and completes exceptionally
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOG.warn("Selector closure failure: ", e);
+        }
+    }
+
+    private void runTasks() {
+        for (var task = tasks.poll(); task != null; task = tasks.poll()) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.error("Event loop task failed", e);
+            }
+        }
+    }
+
+    private void runDueTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().deadline() <= now) {
+            try {
+                timers.poll().task().run();
+            } catch (RuntimeException e) {
+                LOG.error("Event loop timer failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        if (!inLoop()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private record Timer(long deadline, long sequence, Runnable task) {}
+}
@@ -0,0 +1,100 @@
+package jasmine.jragon.cluster;
+
+import lombok.NonNull;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+//The servers the cluster is made of, numbered by epoch so any two views can be ordered. Epoch 0 is the list a client
+//was started with. While keys move, previous holds the members they are moving from: writes reach both placements
+//and reads stay with the previous one until every key has arrived
+public record Membership(long epoch, @NonNull List<String> members, @NonNull List<String> previous) {
+    public static final Membership NONE = new Membership(0, List.of(), List.of());
+
+    private static final String SEPARATOR = ",";
+
+    public Membership {
+        if (epoch < 0) {
+            throw new IllegalArgumentException("Epoch cannot be negative");
+        } else if (epoch > 0 && members.isEmpty()) {
+            throw new IllegalArgumentException("A membership needs at least one member");
+        }
+        members = List.copyOf(members);
+        previous = List.copyOf(previous);
+        if (Set.copyOf(members).size() != members.size() || Set.copyOf(previous).size() != previous.size()) {
+            throw new IllegalArgumentException("Members cannot be listed twice");
+        }
+    }
+
+    public boolean isRebalancing() {
+        return !previous.isEmpty();
+    }
+
+    public boolean isNewerThan(@NonNull Membership other) {
+        return epoch > other.epoch;
+    }
+
+    //Every server this view routes to, current members first
+    public List<String> allMembers() {
+        var all = new LinkedHashSet<>(members);
+        all.addAll(previous);
+        return List.copyOf(all);
+    }
+
+    //<epoch> <member,member...> [<previous,previous...>], or just 0 for a cluster that never changed
+    public String encode() {
+        if (epoch == 0 && members.isEmpty()) {
+            return "0";
+        }
+
+        var encoded = epoch + " " + String.join(SEPARATOR, members);
+        return isRebalancing() ? encoded + " " + String.join(SEPARATOR, previous) : encoded;
+    }
+
+    public static Optional<Membership> parse(@NonNull String @NonNull [] fields) {
+        if (fields.length < 1 || fields.length > 3) {
+            return Optional.empty();
+        }
+
+        try {
+            long epoch = Long.parseLong(fields[0]);
+            if (fields.length == 1) {
+                return epoch == 0 ? Optional.of(NONE) : Optional.empty();
+            }
+            var view = new Membership(
+                    epoch,
+                    List.of(fields[1].split(SEPARATOR)),
+                    fields.length == 3 ? List.of(fields[2].split(SEPARATOR)) : List.of()
+            );
+            view.allMembers().forEach(Membership::socketAddress);
+            return Optional.of(view);
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+    }
+
+    public static Optional<Membership> parse(@NonNull String encoded) {
+        return parse(encoded.trim().split(" +"));
+    }
+
+    //host:port, as every server is named in a membership
+    public static InetSocketAddress socketAddress(@NonNull String address) {
+        int separator = address.lastIndexOf(':');
+        if (separator <= 0) {
+            throw new IllegalArgumentException(address + " has no port");
+        }
+        return new InetSocketAddress(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+    }
+
+    public static String addressOf(@NonNull InetSocketAddress socketAddress) {
+        return socketAddress.getHostString() + ":" + socketAddress.getPort();
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
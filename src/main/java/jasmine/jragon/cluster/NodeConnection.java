@@ -0,0 +1,302 @@
+package jasmine.jragon.cluster;
+
+import jasmine.jragon.consensus.Replica;
+import jasmine.jragon.network.Frame;
+import jasmine.jragon.network.FrameDecoder;
+import lombok.Getter;
+import lombok.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+//One multiplexed socket to a server. Any thread may send; only the event loop touches the channel
+final class NodeConnection implements Replica, EventLoop.ChannelHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(NodeConnection.class);
+
+    private static final int READ_BUFFER_SIZE = 1 << 14;
+
+    @Getter
+    private final InetSocketAddress socketAddress;
+    private final EventLoop loop;
+    private final Map<Long, CompletableFuture<String>> pending;
+    private final AtomicLong nextId;
+    private final CompletableFuture<NodeConnection> connected;
+    private final int batchSize;
+    private final long batchWindowMillis;
+
+    //Owned by the event loop thread
+    private final ArrayDeque<ByteBuffer> outbound;
+    private final ByteBuffer readBuffer;
+    private final FrameDecoder decoder;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean flushScheduled;
+    private long answeredCount;
+
+    private volatile boolean closed;
+    //Written by the event loop, read by anyone
+    private volatile long writeCount;
+    private volatile long frameCount;
+
+    private NodeConnection(InetSocketAddress socketAddress, EventLoop loop, ConnectionSettings settings) {
+        this.socketAddress = socketAddress;
+        this.loop = loop;
+        this.batchSize = settings.batchSize();
+        this.batchWindowMillis = settings.batchWindowMillis();
+        this.pending = new ConcurrentHashMap<>();
+        this.nextId = new AtomicLong();
+        this.connected = new CompletableFuture<>();
+        this.outbound = new ArrayDeque<>();
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.decoder = FrameDecoder.forResponses();
+    }
+
+    static NodeConnection open(@NonNull InetSocketAddress socketAddress,
+                               @NonNull EventLoop loop,
+                               @NonNull ConnectionSettings settings) {
+        var connection = new NodeConnection(socketAddress, loop, settings);
+        loop.execute(connection::startConnect);
+        return connection;
+    }
+
+    CompletableFuture<NodeConnection> whenConnected() {
+        return connected;
+    }
+
+    int outstanding() {
+        return pending.size();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    //Connected and not yet failed; a connection still being established is neither this nor closed
+    boolean isLive() {
+        return !closed && connected.isDone();
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return isLive();
+    }
+
+    long writeCount() {
+        return writeCount;
+    }
+
+    long frameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public String getAddress() {
+        return socketAddress.getHostString() + ":" + socketAddress.getPort();
+    }
+
+    @Override
+    public CompletableFuture<String> send(@NonNull String command) {
+        var response = new CompletableFuture<String>();
+        if (closed) {
+            response.completeExceptionally(new IOException("Connection to " + getAddress() + " is closed"));
+            return response;
+        }
+
+        long id = nextId.incrementAndGet();
+        pending.put(id, response);
+
+        var frame = ByteBuffer.wrap(Frame.encodeRequest(id, command));
+        loop.execute(() -> enqueue(id, frame));
+        return response;
+    }
+
+    private void startConnect() {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            boolean established = channel.connect(socketAddress);
+            key = channel.register(loop.selector(), established ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            if (established) {
+                connected.complete(this);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void enqueue(long id, ByteBuffer frame) {
+        if (closed) {
+            var response = pending.remove(id);
+            if (response != null) {
+                response.completeExceptionally(new IOException("Connection to " + getAddress() + " is closed"));
+            }
+            return;
+        }
+
+        outbound.add(frame);
+        if (!connected.isDone()) {
+            return;
+        }
+
+        if (outbound.size() >= batchSize) {
+            flushNow();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            //An idle connection flushes right after the requests already handed to the loop, so light load waits on nothing
+            if (batchWindowMillis > 0 && awaitingResponses()) {
+                loop.schedule(batchWindowMillis, this::scheduledFlush);
+            } else {
+                loop.execute(this::scheduledFlush);
+            }
+        }
+    }
+
+    //Sent requests still unanswered. Requests handed to the loop but not yet written are not waiting on the server
+    private boolean awaitingResponses() {
+        return frameCount > answeredCount;
+    }
+
+    private void scheduledFlush() {
+        flushScheduled = false;
+        flushNow();
+    }
+
+    private void flushNow() {
+        if (closed) {
+            return;
+        }
+
+        try {
+            flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void handle(SelectionKey selectionKey) throws IOException {
+        if (selectionKey.isConnectable()) {
+            channel.finishConnect();
+            key.interestOps(SelectionKey.OP_READ);
+            connected.complete(this);
+            flush();
+        }
+        if (selectionKey.isValid() && selectionKey.isWritable()) {
+            flush();
+        }
+        if (selectionKey.isValid() && selectionKey.isReadable()) {
+            read();
+        }
+    }
+
+    //Queued frames leave in gathering writes of up to batchSize frames each
+    private void flush() throws IOException {
+        while (!outbound.isEmpty()) {
+            var batch = new ByteBuffer[Math.min(batchSize, outbound.size())];
+            var iterator = outbound.iterator();
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = iterator.next();
+            }
+
+            channel.write(batch);
+            writeCount++;
+
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                outbound.poll();
+                frameCount++;
+            }
+
+            if (batch[batch.length - 1].hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void read() throws IOException {
+        readBuffer.clear();
+        int n = channel.read(readBuffer);
+        if (n == -1) {
+            throw new IOException("Server " + getAddress() + " closed the connection");
+        }
+
+        readBuffer.flip();
+        for (var frame : decoder.decode(readBuffer)) {
+            var response = pending.remove(frame.id());
+            if (response == null) {
+                LOG.warn("Dropping response for unknown request {} from {}", frame.id(), getAddress());
+            } else {
+                answeredCount++;
+                response.complete(frame.payload());
+            }
+        }
+
+        //Once nothing is left unanswered a held batch goes out, so the tail of a burst never waits out the window
+        if (flushScheduled && !outbound.isEmpty() && !awaitingResponses()) {
+            flushScheduled = false;
+            flush();
+        }
+    }
+
+    @Override
+    public void fail(IOException cause) {
+        if (closed) {
+            return;
+        }
+
+        //Reconnect attempts against a server that is still down are expected, so only a lost connection is a warning
+        if (connected.isDone()) {
+            LOG.warn("Connection to {} failed: {}", getAddress(), cause.getMessage());
+        } else {
+            LOG.debug("Connecting to {} failed: {}", getAddress(), cause.getMessage());
+        }
+        terminate(cause);
+    }
+
+    private void terminate(IOException cause) {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        connected.completeExceptionally(cause);
+        outbound.clear();
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Socket Closure Failure: ", e);
+            }
+        }
+
+        for (var id : pending.keySet()) {
+            var response = pending.remove(id);
+            if (response != null) {
+                response.completeExceptionally(cause);
+            }
+        }
+    }
+
+    void close() {
+        loop.execute(() -> terminate(new IOException("Connection to " + getAddress() + " closed by client")));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Connection[%s]", getAddress());
+    }
+}
@@ -0,0 +1,231 @@
+package jasmine.jragon.cluster;
+
+import jasmine.jragon.consensus.Replica;
+import lombok.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static jasmine.jragon.command.ProtocolCommand.PING;
+import static jasmine.jragon.response.ServerResponse.PONG;
+
+//Every connection to one server. Requests go to whichever live connection has the fewest outstanding.
+//Heartbeats feed a failure detector and replace dead connections, backing off while the server stays down
+final class NodePool implements Replica {
+    private static final Logger LOG = LoggerFactory.getLogger(NodePool.class);
+
+    private static final long MAX_RECONNECT_BACKOFF_MILLIS = 2_000;
+
+    private final InetSocketAddress socketAddress;
+    private final String address;
+    private final EventLoop loop;
+    private final ConnectionSettings settings;
+    private final AtomicReferenceArray<NodeConnection> connections;
+    private final PhiAccrualDetector detector;
+    private final ArrayDeque<QueuedRequest> queued;
+    //Rotates where the scan starts so ties do not always land on the first connection
+    private final AtomicInteger cursor;
+
+    //Owned by the event loop thread
+    private long reconnectBackoffMillis;
+    private long nextReconnectNanos;
+    private boolean pingInFlight;
+
+    private NodePool(InetSocketAddress socketAddress, EventLoop loop, ConnectionSettings settings) {
+        this.socketAddress = socketAddress;
+        this.address = socketAddress.getHostString() + ":" + socketAddress.getPort();
+        this.loop = loop;
+        this.settings = settings;
+        this.connections = new AtomicReferenceArray<>(settings.poolSize());
+        this.detector = new PhiAccrualDetector(settings.heartbeatIntervalMillis());
+        this.queued = new ArrayDeque<>();
+        this.cursor = new AtomicInteger();
+    }
+
+    static NodePool open(@NonNull InetSocketAddress socketAddress,
+                         @NonNull EventLoop loop,
+                         @NonNull ConnectionSettings settings) {
+        var pool = new NodePool(socketAddress, loop, settings);
+        for (int i = 0; i < settings.poolSize(); i++) {
+            pool.connections.set(i, pool.openConnection(false));
+        }
+        return pool;
+    }
+
+    //Completes once every first connection attempt has either succeeded or failed
+    CompletableFuture<Void> whenSettled() {
+        return CompletableFuture.allOf(connections()
+                .stream()
+                .map(connection -> connection.whenConnected().handle((ignored, e) -> null))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    @Override
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return hasLiveConnection() && suspicion() < settings.suspicionThreshold();
+    }
+
+    @Override
+    public CompletableFuture<String> send(@NonNull String command) {
+        if (settings.multiplexing()) {
+            return leastOutstanding().send(command);
+        }
+
+        var response = new CompletableFuture<String>();
+        synchronized (queued) {
+            queued.add(new QueuedRequest(command, response));
+            dispatchQueued();
+        }
+        return response;
+    }
+
+    //Pins one connection, e.g. for a transaction whose state lives on that server-side connection
+    NodeConnection lease() {
+        return leastOutstanding();
+    }
+
+    double suspicion() {
+        return detector.phi(System.nanoTime());
+    }
+
+    int outstanding() {
+        int outstanding = 0;
+        for (var connection : connections()) {
+            outstanding += connection.outstanding();
+        }
+        synchronized (queued) {
+            return outstanding + queued.size();
+        }
+    }
+
+    List<NodeConnection> connections() {
+        List<NodeConnection> current = new ArrayList<>(connections.length());
+        for (int i = 0; i < connections.length(); i++) {
+            current.add(connections.get(i));
+        }
+        return current;
+    }
+
+    //Runs on the event loop every heartbeat interval
+    void heartbeat() {
+        reconnectClosed();
+        if (pingInFlight || !hasLiveConnection()) {
+            return;
+        }
+
+        pingInFlight = true;
+        leastOutstanding().send(PING.getCommandName()).whenComplete((reply, e) -> {
+            pingInFlight = false;
+            if (e == null && PONG.toString().equals(reply)) {
+                detector.heartbeat(System.nanoTime());
+            }
+        });
+    }
+
+    void close() {
+        connections().forEach(NodeConnection::close);
+    }
+
+    private void reconnectClosed() {
+        long now = System.nanoTime();
+        if (connections().stream().noneMatch(NodeConnection::isClosed)) {
+            reconnectBackoffMillis = 0;
+            return;
+        } else if (now < nextReconnectNanos) {
+            return;
+        }
+
+        boolean serverDown = !hasLiveConnection();
+        for (int i = 0; i < connections.length(); i++) {
+            if (connections.get(i).isClosed()) {
+                connections.set(i, openConnection(serverDown));
+            }
+        }
+
+        reconnectBackoffMillis = reconnectBackoffMillis == 0 ?
+                settings.heartbeatIntervalMillis() :
+                Math.min(reconnectBackoffMillis << 1, MAX_RECONNECT_BACKOFF_MILLIS);
+        nextReconnectNanos = now + reconnectBackoffMillis * 1_000_000;
+    }
+
+    //After an outage the detector starts over, so the time spent down does not read as one very long interval
+    private NodeConnection openConnection(boolean serverDown) {
+        var connection = NodeConnection.open(socketAddress, loop, settings);
+        connection.whenConnected().thenRun(() -> {
+            if (serverDown) {
+                detector.reset(settings.heartbeatIntervalMillis());
+                LOG.info("Reconnected to {}", address);
+            }
+            detector.heartbeat(System.nanoTime());
+        });
+        return connection;
+    }
+
+    private boolean hasLiveConnection() {
+        for (int i = 0; i < connections.length(); i++) {
+            if (connections.get(i).isLive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private NodeConnection leastOutstanding() {
+        int size = connections.length();
+        int start = Math.floorMod(cursor.getAndIncrement(), size);
+        NodeConnection best = null;
+        for (int i = 0; i < size; i++) {
+            var candidate = connections.get((start + i) % size);
+            if (!candidate.isLive()) {
+                continue;
+            }
+            if (best == null || candidate.outstanding() < best.outstanding()) {
+                best = candidate;
+            }
+        }
+
+        //No connection is up: let the first one fail or hold the request
+        return best == null ? connections.get(0) : best;
+    }
+
+    //A send to a closed connection fails before returning, so the next request is handed on through the event loop
+    //rather than from inside the failed one's callback, which would recurse once per queued request
+    private void dispatchQueued() {
+        while (!queued.isEmpty()) {
+            var connection = leastOutstanding();
+            if (connection.outstanding() > 0 && !connection.isClosed()) {
+                return;
+            }
+
+            var request = queued.poll();
+            connection.send(request.command())
+                    .whenComplete((reply, e) -> {
+                        if (e == null) {
+                            request.response().complete(reply);
+                        } else {
+                            request.response().completeExceptionally(e);
+                        }
+
+                        loop.execute(() -> {
+                            synchronized (queued) {
+                                dispatchQueued();
+                            }
+                        });
+                    });
+        }
+    }
+
+    private record QueuedRequest(String command, CompletableFuture<String> response) {}
+}
@@ -0,0 +1,158 @@
+package jasmine.jragon.cluster;
+
+import lombok.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static jasmine.jragon.response.ServerResponse.INSUFFICIENT_ARGUMENTS;
+import static jasmine.jragon.response.ServerResponse.INVALID_NUMBER;
+import static jasmine.jragon.response.ServerResponse.INVALID_WRITE_OPTION;
+import static jasmine.jragon.response.ServerResponse.KEY_LOCKED_ISSUE;
+import static jasmine.jragon.response.ServerResponse.SHUTDOWN_IN_PROGRESS;
+import static jasmine.jragon.response.ServerResponse.UNSUPPORTED_COMMAND;
+
+//The server side of primary fan-out: writes a client sent to this server once are forwarded to the key's other
+//replicas, and Raft groups reach their members through it too. Each peer gets the same pooled, multiplexed
+//connections the cluster client uses, so requests are pipelined and leave in batched socket writes, and heartbeats
+//route around peers that have gone quiet
+public final class PeerReplicator implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(PeerReplicator.class);
+
+    //Every one of these has spaces in it, so none can be mistaken for a stored value echoed back
+    private static final List<String> REJECTIONS = List.of(
+            KEY_LOCKED_ISSUE.toString(),
+            INSUFFICIENT_ARGUMENTS.toString(),
+            INVALID_WRITE_OPTION.toString(),
+            INVALID_NUMBER.toString(),
+            SHUTDOWN_IN_PROGRESS.toString(),
+            UNSUPPORTED_COMMAND.toString()
+    );
+
+    private final EventLoop loop;
+    private final ConnectionSettings settings;
+    private final long timeoutMillis;
+    private final Map<String, NodePool> peers;
+    private final LongAdder forwarded;
+    private final LongAdder failed;
+
+    private volatile boolean closed;
+
+    private PeerReplicator(EventLoop loop, ConnectionSettings settings, long timeoutMillis) {
+        this.loop = loop;
+        this.settings = settings;
+        this.timeoutMillis = timeoutMillis;
+        this.peers = new ConcurrentHashMap<>();
+        this.forwarded = new LongAdder();
+        this.failed = new LongAdder();
+    }
+
+    public static PeerReplicator start(@NonNull ConnectionSettings settings, long timeoutMillis) throws IOException {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive");
+        }
+
+        var replicator = new PeerReplicator(new EventLoop("peer-io"), settings, timeoutMillis);
+        replicator.scheduleHeartbeat();
+        return replicator;
+    }
+
+    //Resolves to how many peers stored the write: as soon as required have, or once every peer has answered or failed
+    public CompletableFuture<Integer> forward(@NonNull List<String> peerAddresses, @NonNull String command, int required) {
+        var outcome = new CompletableFuture<Integer>();
+        if (peerAddresses.isEmpty() || required <= 0) {
+            outcome.complete(0);
+        }
+
+        var stored = new AtomicInteger();
+        var answered = new AtomicInteger();
+        for (var address : peerAddresses) {
+            send(address, command)
+                    .handle((reply, e) -> {
+                        if (e == null && !isRejection(reply)) {
+                            forwarded.increment();
+                            return true;
+                        }
+
+                        failed.increment();
+                        LOG.debug("Replicating [{}] to {} failed: {}", command, address, e == null ? reply : e.getMessage());
+                        return false;
+                    })
+                    .thenAccept(isStored -> {
+                        int count = isStored ? stored.incrementAndGet() : stored.get();
+                        if (count >= required || answered.incrementAndGet() == peerAddresses.size()) {
+                            outcome.complete(stored.get());
+                        }
+                    });
+        }
+        return outcome;
+    }
+
+    public static boolean isRejection(@NonNull String reply) {
+        return REJECTIONS.stream().anyMatch(reply::contains);
+    }
+
+    public long forwardedCount() {
+        return forwarded.sum();
+    }
+
+    public long failedCount() {
+        return failed.sum();
+    }
+
+    //A peer seen for the first time is connected before its first request, so that request is not failed for being early
+    public CompletableFuture<String> send(@NonNull String address, @NonNull String command) {
+        NodePool pool;
+        try {
+            pool = peers.computeIfAbsent(address, this::open);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return pool.whenSettled()
+                .thenCompose(ignored -> pool.isAvailable() ?
+                        pool.send(command) :
+                        CompletableFuture.<String>failedFuture(new IOException("Peer " + address + " is suspected down")))
+                .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private NodePool open(String address) {
+        int separator = address.lastIndexOf(':');
+        if (separator <= 0) {
+            throw new IllegalArgumentException("Peer address " + address + " has no port");
+        }
+
+        try {
+            int port = Integer.parseInt(address.substring(separator + 1));
+            return NodePool.open(new InetSocketAddress(address.substring(0, separator), port), loop, settings);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Peer address " + address + " has a malformed port", e);
+        }
+    }
+
+    private void scheduleHeartbeat() {
+        loop.schedule(settings.heartbeatIntervalMillis(), () -> {
+            if (closed) {
+                return;
+            }
+            peers.values().forEach(NodePool::heartbeat);
+            scheduleHeartbeat();
+        });
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        peers.values().forEach(NodePool::close);
+        loop.close();
+    }
+}
@@ -0,0 +1,74 @@
+package jasmine.jragon.cluster;
+
+import java.util.ArrayDeque;
+
+//Phi accrual failure detection (Hayashibara et al.): instead of a fixed timeout, how unlikely the current silence
+//is given the heartbeat intervals seen so far. Phi 8 is roughly a one in 10^8 chance the server is merely slow
+final class PhiAccrualDetector {
+    private static final int WINDOW = 100;
+
+    private final double minimumDeviationMillis;
+    //Silence tolerated on top of the usual interval, e.g. one lost heartbeat
+    private final double acceptablePauseMillis;
+    private final ArrayDeque<Double> intervals;
+
+    private double intervalSum;
+    private double squaredIntervalSum;
+    private long lastHeartbeatNanos;
+
+    PhiAccrualDetector(long heartbeatIntervalMillis) {
+        this.minimumDeviationMillis = Math.max(1, heartbeatIntervalMillis >> 1);
+        this.acceptablePauseMillis = heartbeatIntervalMillis;
+        this.intervals = new ArrayDeque<>(WINDOW);
+        reset(heartbeatIntervalMillis);
+    }
+
+    synchronized void heartbeat(long nowNanos) {
+        if (lastHeartbeatNanos != 0) {
+            if (intervals.size() == WINDOW) {
+                double evicted = intervals.poll();
+                intervalSum -= evicted;
+                squaredIntervalSum -= evicted * evicted;
+            }
+
+            double interval = (nowNanos - lastHeartbeatNanos) / 1_000_000.0;
+            intervals.add(interval);
+            intervalSum += interval;
+            squaredIntervalSum += interval * interval;
+        }
+        lastHeartbeatNanos = nowNanos;
+    }
+
+    //Zero until the first heartbeat, since a server never heard from is not yet overdue
+    synchronized double phi(long nowNanos) {
+        if (lastHeartbeatNanos == 0) {
+            return 0.0;
+        }
+
+        double mean = intervalSum / intervals.size();
+        double variance = squaredIntervalSum / intervals.size() - mean * mean;
+        double deviation = Math.max(minimumDeviationMillis, Math.sqrt(Math.max(0, variance)));
+
+        double elapsed = (nowNanos - lastHeartbeatNanos) / 1_000_000.0;
+        double y = (elapsed - mean - acceptablePauseMillis) / deviation;
+        //Logistic approximation of the normal tail, taken in log space so it stays finite long after exp underflows
+        double z = y * (1.5976 + 0.070566 * y * y);
+        return (z + Math.log1p(Math.exp(-z))) / Math.log(10);
+    }
+
+    //Forgets the history, e.g. after a reconnect, so the downtime does not count as one very long interval
+    synchronized void reset(long heartbeatIntervalMillis) {
+        intervals.clear();
+        intervalSum = 0;
+        squaredIntervalSum = 0;
+        lastHeartbeatNanos = 0;
+
+        //Seeded the way Akka's detector is, with the expected interval and a quarter of it as spread
+        double spread = heartbeatIntervalMillis / 4.0;
+        for (double seed : new double[]{heartbeatIntervalMillis - spread, heartbeatIntervalMillis + spread}) {
+            intervals.add(seed);
+            intervalSum += seed;
+            squaredIntervalSum += seed * seed;
+        }
+    }
+}
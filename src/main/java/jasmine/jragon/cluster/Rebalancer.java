@@ -0,0 +1,192 @@
+package jasmine.jragon.cluster;
+
+import jasmine.jragon.command.ProtocolCommand;
+import jasmine.jragon.consensus.ConsensusSettings;
+import jasmine.jragon.consensus.HashRing;
+import jasmine.jragon.consensus.VersionedReply;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static jasmine.jragon.command.ProtocolCommand.SCAN;
+
+//Copies the keys a membership change moves. The old and new rings are cut into pieces with one replica set each,
+//and every server a piece gains is streamed that piece from a server that held it, preferring one on its way out.
+//Keys arrive as versioned writes, so a newer value written to both placements meanwhile is never set back
+final class Rebalancer {
+    private static final Logger LOG = LoggerFactory.getLogger(Rebalancer.class);
+
+    static final int PAGE_SIZE = 256;
+
+    private final HashRing<NodePool> previous;
+    private final HashRing<NodePool> next;
+    private final ConsensusSettings settings;
+    private final LongAdder keysMoved;
+
+    Rebalancer(HashRing<NodePool> previous, HashRing<NodePool> next, ConsensusSettings settings) {
+        this.previous = previous;
+        this.next = next;
+        this.settings = settings;
+        this.keysMoved = new LongAdder();
+    }
+
+    //Transfers run one after another, so the cluster only ever carries one stream on top of its usual load
+    CompletableFuture<Integer> run() {
+        Map<Map.Entry<NodePool, NodePool>, TreeMap<Long, Long>> plan;
+        try {
+            plan = plan();
+        } catch (IllegalStateException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        LOG.info("Rebalancing {} transfers from {} to {} servers", plan.size(), previous.getMembers().size(),
+                next.getMembers().size());
+
+        CompletableFuture<Void> done = CompletableFuture.completedFuture(null);
+        for (var transfer : plan.entrySet()) {
+            var source = transfer.getKey().getKey();
+            var target = transfer.getKey().getValue();
+            done = done.thenCompose(ignored -> transfer(source, target, encode(transfer.getValue()), null));
+        }
+        return done.thenApply(ignored -> keysMoved.intValue());
+    }
+
+    //Ranges of ring positions keyed by the source and target they move between. A range no live server holds fails
+    //the plan, as skipping it would lose its keys
+    Map<Map.Entry<NodePool, NodePool>, TreeMap<Long, Long>> plan() {
+        var before = previous.segments(widestReplication(previous));
+        var after = next.segments(widestReplication(next));
+
+        Map<Map.Entry<NodePool, NodePool>, TreeMap<Long, Long>> plan = new LinkedHashMap<>();
+        int i = 0;
+        int j = 0;
+        while (i < before.size() && j < after.size()) {
+            var held = before.get(i);
+            var placed = after.get(j);
+            long first = Math.max(held.first(), placed.first());
+            long last = Math.min(held.last(), placed.last());
+
+            if (first <= last) {
+                for (var target : placed.replicas()) {
+                    if (!held.replicas().contains(target)) {
+                        var source = sourceFor(held.replicas(), placed.replicas())
+                                .orElseThrow(() -> new IllegalStateException("No server holding positions " + first + "-" +
+                                        last + " is available to copy them to " + target.getAddress()));
+                        merge(plan.computeIfAbsent(Map.entry(source, target), ignored -> new TreeMap<>()), first, last);
+                    }
+                }
+            }
+
+            if (held.last() <= placed.last()) {
+                i++;
+            }
+            if (placed.last() <= held.last()) {
+                j++;
+            }
+        }
+        return plan;
+    }
+
+    //Servers leaving carry no client reads once the change completes, so they are asked first
+    private static Optional<NodePool> sourceFor(List<NodePool> held, List<NodePool> placed) {
+        List<NodePool> candidates = new ArrayList<>();
+        held.stream().filter(server -> !placed.contains(server)).forEach(candidates::add);
+        held.stream().filter(placed::contains).forEach(candidates::add);
+        return candidates.stream()
+                .filter(NodePool::isAvailable)
+                .findFirst();
+    }
+
+    private static void merge(TreeMap<Long, Long> ranges, long first, long last) {
+        var preceding = ranges.lastEntry();
+        if (preceding != null && preceding.getValue() + 1 == first) {
+            ranges.put(preceding.getKey(), last);
+        } else {
+            ranges.put(first, last);
+        }
+    }
+
+    private static String encode(TreeMap<Long, Long> ranges) {
+        return ranges.entrySet()
+                .stream()
+                .map(range -> range.getKey() + "-" + range.getValue())
+                .collect(Collectors.joining(","));
+    }
+
+    //One page at a time in key order. A page's writes share a single connection to the target, and the next page
+    //waits long enough to keep the stream under the configured rate
+    private CompletableFuture<Void> transfer(NodePool source, NodePool target, String ranges, String after) {
+        var command = SCAN.getCommandName() + " " + ranges + " " + PAGE_SIZE + (after == null ? "" : " " + after);
+        return source.send(command).thenCompose(page -> {
+            var lines = page.split(ProtocolCommand.MULTI_VALUE_DELIMITER);
+            var cursor = lines[0].split(" ");
+            if (cursor.length != 2) {
+                if (!"0".equals(lines[0])) {
+                    return CompletableFuture.failedFuture(
+                            new IllegalStateException("Scanning " + source.getAddress() + " failed: " + page));
+                }
+                return CompletableFuture.completedFuture(null);
+            }
+
+            var connection = target.lease();
+            List<CompletableFuture<String>> writes = new ArrayList<>();
+            for (int i = 1; i < lines.length; i++) {
+                var entry = lines[i].split(" ", 2);
+                var reply = entry.length == 2 ? VersionedReply.parse(entry[1]) : Optional.<VersionedReply>empty();
+                if (reply.isEmpty() || !reply.get().isPresent() || !moves(entry[0], target)) {
+                    continue;
+                }
+
+                //Unversioned values go out under the lowest version, so any versioned write outranks them
+                var value = reply.get().version() > 0 ? reply.get() :
+                        new VersionedReply(1, reply.get().ttlSeconds(), reply.get().value());
+                writes.add(connection.send(value.repairCommand(entry[0])));
+            }
+
+            var next = cursor[1];
+            boolean finished = Integer.parseInt(cursor[0]) < PAGE_SIZE;
+            return CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new)).thenCompose(ignored -> {
+                keysMoved.add(writes.size());
+                if (finished) {
+                    LOG.debug("Moved keys from {} to {}", source.getAddress(), target.getAddress());
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                long rate = settings.rebalanceKeysPerSecond();
+                if (rate == 0 || writes.isEmpty()) {
+                    return transfer(source, target, ranges, next);
+                }
+                long pause = TimeUnit.SECONDS.toMillis(writes.size()) / rate;
+                return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(pause, TimeUnit.MILLISECONDS))
+                        .thenCompose(delayed -> transfer(source, target, ranges, next));
+            });
+        });
+    }
+
+    //Ranges are planned under the widest policy, so each key is checked against its own
+    private boolean moves(String key, NodePool target) {
+        return replicasFor(next, key).contains(target) && !replicasFor(previous, key).contains(target);
+    }
+
+    private List<NodePool> replicasFor(HashRing<NodePool> ring, String key) {
+        return ring.replicasFor(key, settings.policyFor(key, ring.getMembers().size()).replicationFactor());
+    }
+
+    private int widestReplication(HashRing<NodePool> ring) {
+        int serverCount = ring.getMembers().size();
+        int widest = settings.policyFor("", serverCount).replicationFactor();
+        for (var policy : settings.namespaces().values()) {
+            widest = Math.max(widest, policy.replicationFactor());
+        }
+        return Math.min(widest, serverCount);
+    }
+}
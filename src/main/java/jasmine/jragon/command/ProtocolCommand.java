@@ -1,22 +1,45 @@
 package jasmine.jragon.command;
 
+import jasmine.jragon.consensus.HashRing;
 import jasmine.jragon.response.ServerResponse;
 import jasmine.jragon.tree.BTree;
+import jasmine.jragon.tree.VersionedValue;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.StringJoiner;
 import java.util.function.Function;
 import java.util.function.IntPredicate;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 
+import static jasmine.jragon.command.ProtocolCommand.ArgumentType.ACKS_PEERS_AND_COMMAND;
+import static jasmine.jragon.command.ProtocolCommand.ArgumentType.APPEND_HEADER_AND_ENTRIES;
 import static jasmine.jragon.command.ProtocolCommand.ArgumentType.AT_LEAST_ONE_LEY;
-import static jasmine.jragon.command.ProtocolCommand.ArgumentType.KEY_VALUE_PAIR;
+import static jasmine.jragon.command.ProtocolCommand.ArgumentType.GROUP_MEMBER_AND_COMMAND;
+import static jasmine.jragon.command.ProtocolCommand.ArgumentType.KEYS_AND_COMMANDS;
+import static jasmine.jragon.command.ProtocolCommand.ArgumentType.KEY_EXPECTED_VALUE_WITH_OPTIONS;
+import static jasmine.jragon.command.ProtocolCommand.ArgumentType.KEY_VALUE_PAIRS;
+import static jasmine.jragon.command.ProtocolCommand.ArgumentType.KEY_VALUE_WITH_OPTIONS;
+import static jasmine.jragon.command.ProtocolCommand.ArgumentType.LEVEL_AND_NODES;
 import static jasmine.jragon.command.ProtocolCommand.ArgumentType.NONE;
+import static jasmine.jragon.command.ProtocolCommand.ArgumentType.OPTIONAL_KEY_RANGE;
+import static jasmine.jragon.command.ProtocolCommand.ArgumentType.OPTIONAL_MEMBERSHIP;
+import static jasmine.jragon.command.ProtocolCommand.ArgumentType.OPTIONAL_OWNER_AND_COUNT;
+import static jasmine.jragon.command.ProtocolCommand.ArgumentType.OWNER_AND_COMMAND;
+import static jasmine.jragon.command.ProtocolCommand.ArgumentType.OWNER_AND_COUNT;
+import static jasmine.jragon.command.ProtocolCommand.ArgumentType.RANGES_LIMIT_AND_CURSOR;
 import static jasmine.jragon.command.ProtocolCommand.ArgumentType.SINGLE_KEY_ONLY;
+import static jasmine.jragon.command.ProtocolCommand.ArgumentType.TRANSACTION_AND_ARGUMENT;
+import static jasmine.jragon.command.ProtocolCommand.ArgumentType.VERSION_AND_PAIRS;
+import static jasmine.jragon.command.ProtocolCommand.ArgumentType.VOTE_REQUEST;
 
 @Getter
 @RequiredArgsConstructor
@@ -24,66 +47,360 @@ public enum ProtocolCommand implements RequestHandler {
     READ("GET", SINGLE_KEY_ONLY) {
         @Override
         public String handleRequest(@NonNull String @NonNull [] arguments, @NonNull Set<String> lockSet, @NonNull BTree tree) {
-            if (containsSufficientArguments(arguments.length) &&
-                    !containsLockedKey(arguments, lockSet)) {
-                return ServerResponse.VALUE_OR_NULL.useOrDefault(
-                        tree.get(arguments[0]).orElse("")
-                );
+            //Transactions only touch the tree on commit, so the stored value is always the latest committed one
+            if (!containsSufficientArguments(arguments.length)) {
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
             }
 
-            var response = ServerResponse.NONE;
+            return ServerResponse.VALUE_OR_NULL.useOrDefault(
+                    tree.get(arguments[0]).orElse("")
+            );
+        }
+
+        @Override
+        public String handleSnapshotRequest(@NonNull String @NonNull [] arguments, long snapshot, @NonNull BTree tree) {
             if (!containsSufficientArguments(arguments.length)) {
-                response = ServerResponse.INSUFFICIENT_ARGUMENTS;
-            } else if (containsLockedKey(arguments, lockSet)) {
-                response = ServerResponse.KEY_LOCKED_ISSUE;
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
             }
 
-            return response.toString();
+            return ServerResponse.VALUE_OR_NULL.useOrDefault(
+                    tree.get(arguments[0], snapshot).orElse("")
+            );
         }
     },
-    WRITE("PUT", KEY_VALUE_PAIR) {
+    WRITE("PUT", KEY_VALUE_WITH_OPTIONS) {
         @Override
         public String handleRequest(@NonNull String @NonNull [] arguments, @NonNull Set<String> lockSet, @NonNull BTree tree) {
-            if (containsSufficientArguments(arguments.length) && !containsLockedKey(arguments, lockSet)) {
-                return ServerResponse.VALUE_OR_NULL.useOrDefault(
-                        String.valueOf(tree.put(arguments[0], arguments[1]))
-                );
+            if (!containsSufficientArguments(arguments.length)) {
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
+            } else if (lockSet.contains(arguments[0])) {
+                return ServerResponse.KEY_LOCKED_ISSUE.toString();
             }
 
-            var response = ServerResponse.NONE;
-            if (!containsSufficientArguments(arguments.length)) {
-                response = ServerResponse.INSUFFICIENT_ARGUMENTS;
-            } else if (containsLockedKey(arguments, lockSet)) {
-                response = ServerResponse.KEY_LOCKED_ISSUE;
+            var options = WriteOptions.parse(arguments, 2);
+            if (options.isEmpty()) {
+                return ServerResponse.INVALID_WRITE_OPTION.toString();
             }
 
-            return response.toString();
+            var writeOptions = options.get();
+            long expiresAt = writeOptions.expires() ? tree.deadlineAfter(writeOptions.ttlSeconds() * 1000) : 0;
+            var old = writeOptions.isVersioned() ?
+                    tree.put(arguments[0], arguments[1], expiresAt, writeOptions.version()) :
+                    tree.put(arguments[0], arguments[1], expiresAt);
+
+            return ServerResponse.VALUE_OR_NULL.useOrDefault(String.valueOf(old));
         }
     },
     CHECK("CONTAINS", SINGLE_KEY_ONLY) {
         @Override
         public String handleRequest(@NonNull String @NonNull [] arguments, @NonNull Set<String> lockSet, @NonNull BTree tree) {
-            if (containsSufficientArguments(arguments.length) &&
-                    !containsLockedKey(arguments, lockSet)) {
+            if (!containsSufficientArguments(arguments.length)) {
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
+            }
+
+            return String.valueOf(tree.contains(arguments[0]));
+        }
+
+        @Override
+        public String handleSnapshotRequest(@NonNull String @NonNull [] arguments, long snapshot, @NonNull BTree tree) {
+            if (!containsSufficientArguments(arguments.length)) {
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
+            }
+
+            return String.valueOf(tree.contains(arguments[0], snapshot));
+        }
+    },
+    MULTI_READ("MGET", AT_LEAST_ONE_LEY) {
+        @Override
+        public String handleRequest(@NonNull String @NonNull [] arguments, @NonNull Set<String> lockSet, @NonNull BTree tree) {
+            if (!containsSufficientArguments(arguments.length)) {
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
+            }
+
+            return Arrays.stream(arguments)
+                    .map(key -> ServerResponse.VALUE_OR_NULL.useOrDefault(tree.get(key).orElse("")))
+                    .collect(Collectors.joining(MULTI_VALUE_DELIMITER));
+        }
+
+        @Override
+        public String handleSnapshotRequest(@NonNull String @NonNull [] arguments, long snapshot, @NonNull BTree tree) {
+            if (!containsSufficientArguments(arguments.length)) {
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
+            }
+
+            return Arrays.stream(arguments)
+                    .map(key -> ServerResponse.VALUE_OR_NULL.useOrDefault(tree.get(key, snapshot).orElse("")))
+                    .collect(Collectors.joining(MULTI_VALUE_DELIMITER));
+        }
+    },
+    MULTI_WRITE("MPUT", KEY_VALUE_PAIRS) {
+        @Override
+        public String handleRequest(@NonNull String @NonNull [] arguments, @NonNull Set<String> lockSet, @NonNull BTree tree) {
+            if (!containsSufficientArguments(arguments.length)) {
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
+            }
+
+            for (int i = 0; i < arguments.length; i += 2) {
+                if (lockSet.contains(arguments[i])) {
+                    return ServerResponse.KEY_LOCKED_ISSUE.toString();
+                }
+            }
+
+            //One commit stamp for the whole batch, so snapshots see all of it or none of it
+            return tree.atomically(() -> {
+                var joiner = new StringJoiner(MULTI_VALUE_DELIMITER);
+                for (int i = 0; i < arguments.length; i += 2) {
+                    var old = tree.put(arguments[i], arguments[i + 1]);
+                    joiner.add(ServerResponse.VALUE_OR_NULL.useOrDefault(String.valueOf(old)));
+                }
+                return joiner.toString();
+            });
+        }
+    },
+    VERSIONED_READ("GETV", AT_LEAST_ONE_LEY) {
+        //One "version ttl value" line per key, "0 0 null" for a key that is absent
+        @Override
+        public String handleRequest(@NonNull String @NonNull [] arguments, @NonNull Set<String> lockSet, @NonNull BTree tree) {
+            if (!containsSufficientArguments(arguments.length)) {
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
+            }
+
+            return Arrays.stream(arguments)
+                    .map(key -> formatVersioned(tree.getVersioned(key)))
+                    .collect(Collectors.joining(MULTI_VALUE_DELIMITER));
+        }
+
+        @Override
+        public String handleSnapshotRequest(@NonNull String @NonNull [] arguments, long snapshot, @NonNull BTree tree) {
+            if (!containsSufficientArguments(arguments.length)) {
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
+            }
+
+            return Arrays.stream(arguments)
+                    .map(key -> formatVersioned(tree.getVersioned(key, snapshot)))
+                    .collect(Collectors.joining(MULTI_VALUE_DELIMITER));
+        }
+    },
+    VERSIONED_MULTI_WRITE("MPUTV", VERSION_AND_PAIRS) {
+        //MPUT with the writer's version up front, since the pairs leave no room for trailing options
+        @Override
+        public String handleRequest(@NonNull String @NonNull [] arguments, @NonNull Set<String> lockSet, @NonNull BTree tree) {
+            if (!containsSufficientArguments(arguments.length)) {
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
+            }
+
+            long version;
+            try {
+                version = Long.parseLong(arguments[0]);
+            } catch (NumberFormatException e) {
+                return ServerResponse.INVALID_NUMBER.toString();
+            }
+            if (version <= 0) {
+                return ServerResponse.INVALID_NUMBER.toString();
+            }
+
+            for (int i = 1; i < arguments.length; i += 2) {
+                if (lockSet.contains(arguments[i])) {
+                    return ServerResponse.KEY_LOCKED_ISSUE.toString();
+                }
+            }
+
+            return tree.atomically(() -> {
+                var joiner = new StringJoiner(MULTI_VALUE_DELIMITER);
+                for (int i = 1; i < arguments.length; i += 2) {
+                    var old = tree.put(arguments[i], arguments[i + 1], 0, version);
+                    joiner.add(ServerResponse.VALUE_OR_NULL.useOrDefault(String.valueOf(old)));
+                }
+                return joiner.toString();
+            });
+        }
+    },
+    //Read-modify-writes that run in one step on the tree, so no transaction is needed around them. Options trail
+    //them as on a PUT and apply to whatever they write
+    COMPARE_AND_SET("CAS", KEY_EXPECTED_VALUE_WITH_OPTIONS) {
+        //true once the stored value, null for an absent key, matched and was replaced
+        @Override
+        Modification modify(String[] arguments, String current) {
+            return arguments[1].equals(ServerResponse.VALUE_OR_NULL.useOrDefault(current)) ?
+                    new Modification(arguments[2], String.valueOf(true)) :
+                    new Modification(null, String.valueOf(false));
+        }
+    },
+    INCREMENT_BY("INCRBY", KEY_VALUE_WITH_OPTIONS) {
+        //An absent key counts from 0. Answers with the new count
+        @Override
+        Modification modify(String[] arguments, String current) {
+            var count = String.valueOf(Math.addExact(current == null ? 0 : Long.parseLong(current), Long.parseLong(arguments[1])));
+            return new Modification(count, count);
+        }
+    },
+    APPEND("APPEND", KEY_VALUE_WITH_OPTIONS) {
+        @Override
+        Modification modify(String[] arguments, String current) {
+            var appended = current == null ? arguments[1] : current + arguments[1];
+            return new Modification(appended, appended);
+        }
+    },
+    PUT_IF_ABSENT("PUTIFABSENT", KEY_VALUE_WITH_OPTIONS) {
+        //Answers like a PUT with the value it found, so null means this write won
+        @Override
+        Modification modify(String[] arguments, String current) {
+            return current == null ?
+                    new Modification(arguments[1], ServerResponse.VALUE_OR_NULL.toString()) :
+                    new Modification(null, current);
+        }
+    },
+    COUNT_RANGE("COUNT", OPTIONAL_KEY_RANGE) {
+        @Override
+        public String handleRequest(@NonNull String @NonNull [] arguments, @NonNull Set<String> lockSet, @NonNull BTree tree) {
+            if (!containsSufficientArguments(arguments.length)) {
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
+            }
+
+            return String.valueOf(arguments.length == 0 ?
+                    tree.keyCount() :
+                    tree.countRange(arguments[0], arguments[1]));
+        }
+    },
+    RANK("RANK", SINGLE_KEY_ONLY) {
+        @Override
+        public String handleRequest(@NonNull String @NonNull [] arguments, @NonNull Set<String> lockSet, @NonNull BTree tree) {
+            if (!containsSufficientArguments(arguments.length)) {
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
+            }
+
+            return String.valueOf(tree.rank(arguments[0]));
+        }
+    },
+    SELECT("SELECT", SINGLE_KEY_ONLY) {
+        @Override
+        public String handleRequest(@NonNull String @NonNull [] arguments, @NonNull Set<String> lockSet, @NonNull BTree tree) {
+            if (!containsSufficientArguments(arguments.length)) {
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
+            }
+
+            try {
                 return ServerResponse.VALUE_OR_NULL.useOrDefault(
-                        String.valueOf(tree.contains(arguments[0]))
+                        tree.select(Long.parseLong(arguments[0])).orElse("")
                 );
+            } catch (NumberFormatException e) {
+                return ServerResponse.INVALID_NUMBER.toString();
+            }
+        }
+    },
+    STATISTICS("STATS", NONE) {
+        @Override
+        public String handleRequest(@NonNull String @NonNull [] arguments, @NonNull Set<String> lockSet, @NonNull BTree tree) {
+            if (!containsSufficientArguments(arguments.length)) {
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
             }
 
-            var response = ServerResponse.NONE;
+            return tree.statistics().toString();
+        }
+    },
+    MERKLE_DIGEST("MERKLE", LEVEL_AND_NODES) {
+        @Override
+        public String handleRequest(@NonNull String @NonNull [] arguments, @NonNull Set<String> lockSet, @NonNull BTree tree) {
             if (!containsSufficientArguments(arguments.length)) {
-                response = ServerResponse.INSUFFICIENT_ARGUMENTS;
-            } else if (containsLockedKey(arguments, lockSet)) {
-                response = ServerResponse.KEY_LOCKED_ISSUE;
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
             }
 
-            return response.toString();
+            try {
+                int level = Integer.parseInt(arguments[0]);
+                var joiner = new StringJoiner(MULTI_VALUE_DELIMITER);
+                for (int i = 1; i < arguments.length; i++) {
+                    joiner.add(Long.toHexString(tree.merkleDigest(level, Integer.parseInt(arguments[i]))));
+                }
+                return joiner.toString();
+            } catch (IllegalArgumentException e) {
+                return ServerResponse.INVALID_NUMBER.toString();
+            }
         }
     },
+    MERKLE_BUCKET("BUCKET", AT_LEAST_ONE_LEY) {
+        //One "key hash" line per entry across every requested bucket
+        @Override
+        public String handleRequest(@NonNull String @NonNull [] arguments, @NonNull Set<String> lockSet, @NonNull BTree tree) {
+            if (!containsSufficientArguments(arguments.length)) {
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
+            }
+
+            try {
+                var joiner = new StringJoiner(MULTI_VALUE_DELIMITER);
+                for (var bucket : arguments) {
+                    tree.merkleBucket(Integer.parseInt(bucket))
+                            .forEach((key, hash) -> joiner.add(key + " " + Long.toHexString(hash)));
+                }
+                return joiner.toString();
+            } catch (IllegalArgumentException e) {
+                return ServerResponse.INVALID_NUMBER.toString();
+            }
+        }
+    },
+    SCAN("SCAN", RANGES_LIMIT_AND_CURSOR) {
+        //SCAN <first-last,first-last...> <limit> [after]: a page of the keys whose ring positions fall in the ranges,
+        //in key order, as "key version ttl value" lines. The first line is how many keys were looked at and the last
+        //of them, which the next page starts after; fewer than limit means the scan is over
+        @Override
+        public String handleRequest(@NonNull String @NonNull [] arguments, @NonNull Set<String> lockSet, @NonNull BTree tree) {
+            if (!containsSufficientArguments(arguments.length)) {
+                return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
+            }
+
+            List<long[]> ranges = new ArrayList<>();
+            int limit;
+            try {
+                for (var range : arguments[0].split(",")) {
+                    var bounds = range.split("-");
+                    ranges.add(new long[]{Long.parseLong(bounds[0]), Long.parseLong(bounds[bounds.length - 1])});
+                }
+                limit = Integer.parseInt(arguments[1]);
+            } catch (NumberFormatException e) {
+                return ServerResponse.INVALID_NUMBER.toString();
+            }
+            if (limit <= 0) {
+                return ServerResponse.INVALID_NUMBER.toString();
+            }
+
+            var keys = tree.keysAfter(arguments.length == 3 ? arguments[2] : null, limit);
+            var joiner = new StringJoiner(MULTI_VALUE_DELIMITER);
+            joiner.add(keys.isEmpty() ? "0" : keys.size() + " " + keys.get(keys.size() - 1));
+            for (var key : keys) {
+                long position = HashRing.position(key);
+                var versioned = tree.getVersioned(key);
+                if (versioned.isPresent() && ranges.stream().anyMatch(range -> range[0] <= position && position <= range[1])) {
+                    joiner.add(key + " " + formatVersioned(versioned));
+                }
+            }
+            return joiner.toString();
+        }
+    },
+    BEGIN_SNAPSHOT("SNAPSHOT", NONE),
+    RELEASE_SNAPSHOT("RELEASE", NONE),
     BEGIN_TRANSACTION("TRANSACT", AT_LEAST_ONE_LEY),
     COMMIT_TRANSACTION("COMMIT", NONE),
     ABORT_TRANSACTION("ABORT", NONE),
+    //Two-phase commit of a transaction spread over several servers: PREPARE <id> <participant,...>,
+    //DECIDE <id> COMMIT|ABORT, and OUTCOME <id> for a prepared participant that lost its coordinator
+    PREPARE_TRANSACTION("PREPARE", TRANSACTION_AND_ARGUMENT),
+    DECIDE_TRANSACTION("DECIDE", TRANSACTION_AND_ARGUMENT),
+    TRANSACTION_OUTCOME("OUTCOME", SINGLE_KEY_ONLY),
+    //A whole transaction in one message: EXEC <key...> | <command> | <command>...
+    EXECUTE("EXEC", KEYS_AND_COMMANDS),
     SHUTDOWN_SERVER("SHUTDOWN", NONE),
+    PING("PING", NONE),
+    STORE_HINT("HINT", OWNER_AND_COMMAND),
+    LIST_HINTS("HINTS", OPTIONAL_OWNER_AND_COUNT),
+    ACKNOWLEDGE_HINTS("HANDOFF", OWNER_AND_COUNT),
+    REPLICATE("REPLICATE", ACKS_PEERS_AND_COMMAND),
+    RAFT("RAFT", GROUP_MEMBER_AND_COMMAND),
+    APPEND_ENTRIES("APPENDENTRIES", APPEND_HEADER_AND_ENTRIES),
+    REQUEST_VOTE("REQUESTVOTE", VOTE_REQUEST),
+    COORDINATE("COORDINATE", NONE),
+    MEMBERS("MEMBERS", OPTIONAL_MEMBERSHIP),
+    //Membership changes a ClusterClient carries out itself, rather than commands for any one server
+    JOIN("JOIN", SINGLE_KEY_ONLY),
+    LEAVE("LEAVE", SINGLE_KEY_ONLY),
     UNSUPPORTED("UNSUPPORTED", NONE) {
         @Override
         public boolean containsSufficientArguments(int argumentCount) {
@@ -96,6 +413,11 @@ public enum ProtocolCommand implements RequestHandler {
         }
     };
 
+    //Multi-key commands answer with one line per key, in request order
+    public static final String MULTI_VALUE_DELIMITER = "\n";
+    //Stands between the keys of an EXEC and each of its commands
+    public static final String COMMAND_SEPARATOR = "|";
+
     private final String commandName;
     private final ArgumentType type;
 
@@ -103,6 +425,68 @@ public enum ProtocolCommand implements RequestHandler {
         return type.test(argumentCount);
     }
 
+    @Override
+    public String handleRequest(@NonNull String @NonNull [] arguments, @NonNull Set<String> lockSet, @NonNull BTree tree) {
+        return isAtomicWrite() ?
+                handleAtomicRequest(arguments, lockSet, tree, options -> tree.deadlineAfter(options.ttlSeconds() * 1000)) :
+                RequestHandler.super.handleRequest(arguments, lockSet, tree);
+    }
+
+    //The stored value decides both the reply and what, if anything, is written. A write takes the version it was
+    //sent with, or else the tree's next. Raft members pass their own deadline so a TTL expires alike on each of them
+    public String handleAtomicRequest(@NonNull String @NonNull [] arguments, @NonNull Set<String> lockSet,
+                                      @NonNull BTree tree, @NonNull ToLongFunction<WriteOptions> deadline) {
+        if (!containsSufficientArguments(arguments.length)) {
+            return ServerResponse.INSUFFICIENT_ARGUMENTS.toString();
+        } else if (lockSet.contains(arguments[0])) {
+            return ServerResponse.KEY_LOCKED_ISSUE.toString();
+        }
+
+        var options = WriteOptions.parse(arguments, type == KEY_EXPECTED_VALUE_WITH_OPTIONS ? 3 : 2);
+        if (options.isEmpty()) {
+            return ServerResponse.INVALID_WRITE_OPTION.toString();
+        }
+
+        Modification modification;
+        try {
+            modification = modify(arguments, tree.get(arguments[0]).orElse(null));
+        } catch (ArithmeticException | NumberFormatException e) {
+            return ServerResponse.INVALID_NUMBER.toString();
+        }
+
+        if (modification.value() != null) {
+            var writeOptions = options.get();
+            long expiresAt = writeOptions.expires() ? deadline.applyAsLong(writeOptions) : 0;
+            if (writeOptions.isVersioned()) {
+                tree.put(arguments[0], modification.value(), expiresAt, writeOptions.version());
+            } else {
+                tree.put(arguments[0], modification.value(), expiresAt);
+            }
+        }
+        return modification.reply();
+    }
+
+    //Only the atomic writes modify what is stored; any other command writes nothing and is refused
+    Modification modify(String[] arguments, String current) {
+        return new Modification(null, ServerResponse.UNSUPPORTED_COMMAND.toString());
+    }
+
+    //The arguments of an EXEC cut at every separator: its keys first, then one list per command
+    public static List<List<String>> segments(@NonNull String @NonNull [] arguments) {
+        List<List<String>> segments = new ArrayList<>();
+        List<String> current = new ArrayList<>();
+        for (var argument : arguments) {
+            if (COMMAND_SEPARATOR.equals(argument)) {
+                segments.add(current);
+                current = new ArrayList<>();
+            } else {
+                current.add(argument);
+            }
+        }
+        segments.add(current);
+        return segments;
+    }
+
     public boolean isTransactionCommand() {
         return switch (this) {
             case READ, WRITE, CHECK -> true;
@@ -112,22 +496,51 @@ public enum ProtocolCommand implements RequestHandler {
 
     public boolean isWriteAhead() {
         return switch (this) {
-            case WRITE, BEGIN_TRANSACTION, COMMIT_TRANSACTION, ABORT_TRANSACTION -> true;
+            case WRITE, MULTI_WRITE, VERSIONED_MULTI_WRITE, BEGIN_TRANSACTION, COMMIT_TRANSACTION, ABORT_TRANSACTION,
+                 PREPARE_TRANSACTION, DECIDE_TRANSACTION, EXECUTE, COMPARE_AND_SET, INCREMENT_BY, APPEND,
+                 PUT_IF_ABSENT -> true;
+            default -> false;
+        };
+    }
+
+    //Writes whose value depends on the stored one, so a replica can only be sent what they wrote, never the command
+    public boolean isAtomicWrite() {
+        return switch (this) {
+            case COMPARE_AND_SET, INCREMENT_BY, APPEND, PUT_IF_ABSENT -> true;
             default -> false;
         };
     }
 
+    //Commands a Raft-mode server hands to its groups rather than its own tree
+    public boolean isRaftMessage() {
+        return switch (this) {
+            case RAFT, APPEND_ENTRIES, REQUEST_VOTE -> true;
+            default -> false;
+        };
+    }
+
+    //Writes a server may hold on behalf of a replica that is down
+    public boolean isHintable() {
+        return switch (this) {
+            case WRITE, MULTI_WRITE, VERSIONED_MULTI_WRITE -> true;
+            default -> false;
+        };
+    }
+
+    //What an atomic write stores, null when it stores nothing, and what it answers
+    record Modification(String value, String reply) {}
+
+    private static String formatVersioned(Optional<VersionedValue> versioned) {
+        return versioned.map(v -> v.version() + " " + v.ttlSeconds() + " " + v.value())
+                .orElse("0 0 " + ServerResponse.VALUE_OR_NULL.useOrDefault(""));
+    }
+
     private static final Map<String, ProtocolCommand> LOOKUP_MAP;
 
     public static ProtocolCommand lookup(@NonNull String commandName) {
         return LOOKUP_MAP.getOrDefault(commandName.toUpperCase(), UNSUPPORTED);
     }
 
-    private static boolean containsLockedKey(String[] keys, Set<String> lockSet) {
-        return Arrays.stream(keys)
-                .anyMatch(lockSet::contains);
-    }
-
     static {
         LOOKUP_MAP = Arrays.stream(values())
                 .collect(Collectors.toUnmodifiableMap(
@@ -156,11 +569,113 @@ public enum ProtocolCommand implements RequestHandler {
                 return value == 2;
             }
         },
+        KEY_VALUE_WITH_OPTIONS {
+            @Override
+            public boolean test(int value) {
+                return value >= 2 && value % 2 == 0;
+            }
+        },
+        KEY_VALUE_PAIRS {
+            @Override
+            public boolean test(int value) {
+                return value >= 2 && value % 2 == 0;
+            }
+        },
         AT_LEAST_ONE_LEY {
             @Override
             public boolean test(int value) {
                 return value >= 1;
             }
+        },
+        OPTIONAL_KEY_RANGE {
+            @Override
+            public boolean test(int value) {
+                return value == 0 || value == 2;
+            }
+        },
+        VERSION_AND_PAIRS {
+            @Override
+            public boolean test(int value) {
+                return value >= 3 && value % 2 == 1;
+            }
+        },
+        LEVEL_AND_NODES {
+            @Override
+            public boolean test(int value) {
+                return value >= 2;
+            }
+        },
+        OWNER_AND_COMMAND {
+            @Override
+            public boolean test(int value) {
+                return value >= 3;
+            }
+        },
+        ACKS_PEERS_AND_COMMAND {
+            @Override
+            public boolean test(int value) {
+                return value >= 4;
+            }
+        },
+        GROUP_MEMBER_AND_COMMAND {
+            @Override
+            public boolean test(int value) {
+                return value >= 3;
+            }
+        },
+        APPEND_HEADER_AND_ENTRIES {
+            @Override
+            public boolean test(int value) {
+                return value >= 7;
+            }
+        },
+        VOTE_REQUEST {
+            @Override
+            public boolean test(int value) {
+                return value == 6;
+            }
+        },
+        OWNER_AND_COUNT {
+            @Override
+            public boolean test(int value) {
+                return value == 2;
+            }
+        },
+        OPTIONAL_OWNER_AND_COUNT {
+            @Override
+            public boolean test(int value) {
+                return value == 0 || value == 2;
+            }
+        },
+        RANGES_LIMIT_AND_CURSOR {
+            @Override
+            public boolean test(int value) {
+                return value == 2 || value == 3;
+            }
+        },
+        OPTIONAL_MEMBERSHIP {
+            @Override
+            public boolean test(int value) {
+                return value >= 0 && value <= 3;
+            }
+        },
+        TRANSACTION_AND_ARGUMENT {
+            @Override
+            public boolean test(int value) {
+                return value == 2;
+            }
+        },
+        KEYS_AND_COMMANDS {
+            @Override
+            public boolean test(int value) {
+                return value >= 4;
+            }
+        },
+        KEY_EXPECTED_VALUE_WITH_OPTIONS {
+            @Override
+            public boolean test(int value) {
+                return value >= 3 && value % 2 == 1;
+            }
         }
     }
 }
\ No newline at end of file
@@ -3,10 +3,15 @@ package jasmine.jragon.command;
 import jasmine.jragon.tree.BTree;
 import lombok.NonNull;
 
+import java.util.Collections;
 import java.util.Set;
 
 public interface RequestHandler {
     default String handleRequest(@NonNull String[] arguments, @NonNull Set<String> lockSet, @NonNull BTree tree) {
         return "";
     }
+
+    default String handleSnapshotRequest(@NonNull String[] arguments, long snapshot, @NonNull BTree tree) {
+        return handleRequest(arguments, Collections.emptySet(), tree);
+    }
 }
@@ -0,0 +1,63 @@
+package jasmine.jragon.command;
+
+import lombok.NonNull;
+
+import java.util.Optional;
+import java.util.StringJoiner;
+
+//version is the writer's hybrid logical clock reading, 0 when the server should stamp the write itself
+public record WriteOptions(long ttlSeconds, long version) {
+    public static final WriteOptions NONE = new WriteOptions(0, 0);
+
+    private static final String EXPIRE_SECONDS = "EX";
+    private static final String VERSION = "VER";
+
+    //Options trail the key and value as NAME VALUE pairs, e.g. PUT key value EX 60 VER 112233
+    public static Optional<WriteOptions> parse(@NonNull String @NonNull [] arguments, int offset) {
+        if (offset > arguments.length || (arguments.length - offset) % 2 != 0) {
+            return Optional.empty();
+        }
+
+        long ttlSeconds = 0;
+        long version = 0;
+        for (int i = offset; i < arguments.length; i += 2) {
+            var name = arguments[i].toUpperCase();
+            long value;
+            try {
+                value = Long.parseLong(arguments[i + 1]);
+            } catch (NumberFormatException e) {
+                return Optional.empty();
+            }
+
+            if (EXPIRE_SECONDS.equals(name) && value > 0) {
+                ttlSeconds = value;
+            } else if (VERSION.equals(name) && value > 0) {
+                version = value;
+            } else {
+                return Optional.empty();
+            }
+        }
+
+        return Optional.of(new WriteOptions(ttlSeconds, version));
+    }
+
+    public boolean expires() {
+        return ttlSeconds > 0;
+    }
+
+    public boolean isVersioned() {
+        return version > 0;
+    }
+
+    //The options as they trail a PUT, empty when there are none
+    public String format() {
+        var options = new StringJoiner(" ");
+        if (expires()) {
+            options.add(EXPIRE_SECONDS).add(String.valueOf(ttlSeconds));
+        }
+        if (isVersioned()) {
+            options.add(VERSION).add(String.valueOf(version));
+        }
+        return options.toString();
+    }
+}
@@ -0,0 +1,26 @@
+package jasmine.jragon.consensus;
+
+import jasmine.jragon.clock.HybridClock;
+import lombok.NonNull;
+
+//Everything operations of one client share: placement, settings, what has been learned about the servers and
+//the clock its writes are versioned with. While keys move between servers, previousRing is the placement they
+//are moving from, and null otherwise
+public record ConsensusContext(@NonNull HashRing<? extends Replica> ring,
+                               @NonNull ConsensusSettings settings,
+                               @NonNull RepairLog repairLog,
+                               @NonNull ReplicaMetrics metrics,
+                               @NonNull HybridClock clock,
+                               HashRing<? extends Replica> previousRing) {
+    public ConsensusContext(@NonNull HashRing<? extends Replica> ring,
+                            @NonNull ConsensusSettings settings,
+                            @NonNull RepairLog repairLog,
+                            @NonNull ReplicaMetrics metrics,
+                            @NonNull HybridClock clock) {
+        this(ring, settings, repairLog, metrics, clock, null);
+    }
+
+    public boolean isRebalancing() {
+        return previousRing != null;
+    }
+}
@@ -1,131 +1,677 @@
 package jasmine.jragon.consensus;
 
-import com.google.common.hash.Hashing;
-import jasmine.jragon.MultiClient;
+import jasmine.jragon.clock.HybridClock;
 import jasmine.jragon.command.ProtocolCommand;
+import jasmine.jragon.command.WriteOptions;
 import lombok.Getter;
 import lombok.NonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
+import static jasmine.jragon.command.ProtocolCommand.ABORT_TRANSACTION;
 import static jasmine.jragon.command.ProtocolCommand.BEGIN_TRANSACTION;
+import static jasmine.jragon.command.ProtocolCommand.COMMIT_TRANSACTION;
+import static jasmine.jragon.command.ProtocolCommand.DECIDE_TRANSACTION;
+import static jasmine.jragon.command.ProtocolCommand.EXECUTE;
+import static jasmine.jragon.command.ProtocolCommand.PREPARE_TRANSACTION;
+import static jasmine.jragon.command.ProtocolCommand.RAFT;
+import static jasmine.jragon.command.ProtocolCommand.REPLICATE;
+import static jasmine.jragon.command.ProtocolCommand.STORE_HINT;
+import static jasmine.jragon.command.ProtocolCommand.VERSIONED_MULTI_WRITE;
+import static jasmine.jragon.command.ProtocolCommand.VERSIONED_READ;
 import static jasmine.jragon.response.ServerResponse.ACKNOWLEDGED;
+import static jasmine.jragon.response.ServerResponse.ATOMIC_WRITE_REBALANCING;
+import static jasmine.jragon.response.ServerResponse.EMPTY_TRANSACTION;
+import static jasmine.jragon.response.ServerResponse.INSUFFICIENT_ARGUMENTS;
+import static jasmine.jragon.response.ServerResponse.INVALID_TRANSACTION_COMMAND;
 import static jasmine.jragon.response.ServerResponse.KEY_DOES_NOT_EXIST_IN_QUORUM;
+import static jasmine.jragon.response.ServerResponse.NOT_LEADER;
+import static jasmine.jragon.response.ServerResponse.NO_WRITES_ISSUE;
+import static jasmine.jragon.response.ServerResponse.REBALANCE_IN_PROGRESS;
 import static jasmine.jragon.response.ServerResponse.SERVER_IO_ERROR;
 import static jasmine.jragon.response.ServerResponse.SUCCESS;
 import static jasmine.jragon.response.ServerResponse.TIMEOUT;
+import static jasmine.jragon.response.ServerResponse.TRANSACTION_ABORTED;
+import static jasmine.jragon.response.ServerResponse.TRANSACTION_DNE;
+import static jasmine.jragon.response.ServerResponse.TRANSACTION_DOES_NOT_HAVE_KEY;
+import static jasmine.jragon.response.ServerResponse.TRANSACTION_PREPARED;
+import static jasmine.jragon.response.ServerResponse.TRANSACTION_STARTED;
 import static jasmine.jragon.response.ServerResponse.UNSUPPORTED_COMMAND;
 
 @SuppressWarnings("unchecked")
 public final class ConsensusOperation {
     private static final Logger LOG = LoggerFactory.getLogger(ConsensusOperation.class);
-
-    private static final int TIMEOUT_NUMBER = 30;
-    private static final TimeUnit TIMEOUT_UNIT = TimeUnit.SECONDS;
-
-    private final List<MultiClient.ServerConnection> servers;
-    private final Map<String, List<MultiClient.ServerConnection>> quorumDistribution;
+    //About one Raft election timeout, after which a group without a leader has usually elected one
+    private static final long ELECTION_RETRY_MILLIS = 300;
+
+    private final HashRing<? extends Replica> ring;
+    private final UnaryOperator<Replica> binding;
+    private final List<? extends Replica> servers;
+    private final ConsensusSettings settings;
+    private final RepairLog repairLog;
+    private final ReplicaMetrics metrics;
+    private final HybridClock clock;
+    private final Map<String, List<? extends Replica>> quorumDistribution;
+    private final Map<String, QuorumPolicy> quorumPolicies;
+    private final boolean rebalancing;
+    //The servers that started this operation's transaction, and the positions of the commands each one queued
+    private final Map<String, Replica> participants;
+    private final Map<String, Set<Integer>> queued;
+
+    private int transactionCommands;
+    private boolean transactionWrites;
 
     @Getter
-    private boolean isDone;
+    private volatile boolean isDone;
 
     public ConsensusOperation(@NonNull ProtocolCommand protocol,
                               @NonNull String[] keys,
-                              @NonNull List<MultiClient.ServerConnection> servers) {
-        int consensusSize = createConsensusSize(servers.size());
-
-        this.servers = servers;
-        quorumDistribution = Arrays.stream(keys)
-                .map(key -> createQuorum(consensusSize, key, servers))
-                .collect(Collectors.toUnmodifiableMap(
-                        Map.Entry::getKey,
-                        Map.Entry::getValue
-                ));
+                              @NonNull ConsensusContext context,
+                              @NonNull QuorumOverride override,
+                              @NonNull UnaryOperator<Replica> binding) {
+        this.ring = context.ring();
+        this.binding = binding;
+        this.rebalancing = context.isRebalancing();
+
+        //The binding lets a caller swap placement members for the exact connections this operation must use
+        this.servers = (rebalancing ? union(ring.getMembers(), context.previousRing().getMembers()) : ring.getMembers())
+                .stream()
+                .map(binding)
+                .toList();
+        this.settings = context.settings();
+        this.repairLog = context.repairLog();
+        this.metrics = context.metrics();
+        this.clock = context.clock();
+
+        Map<String, QuorumPolicy> policies = new HashMap<>();
+        Map<String, List<? extends Replica>> distribution = new HashMap<>();
+        for (var key : new LinkedHashSet<>(Arrays.asList(keys))) {
+            var policy = createPolicy(key, ring.getMembers().size(), override);
+            List<? extends Replica> placement = ring.replicasFor(key, policy.replicationFactor());
+            if (rebalancing && protocol.isWriteAhead()) {
+                //Until every key has moved, writes must land on a quorum of both placements
+                var previousPolicy = createPolicy(key, context.previousRing().getMembers().size(), override);
+                var previousPlacement = context.previousRing().replicasFor(key, previousPolicy.replicationFactor());
+                var both = union(placement, previousPlacement);
+                int required = Math.max(
+                        policy.writeQuorum() + both.size() - placement.size(),
+                        previousPolicy.writeQuorum() + both.size() - previousPlacement.size()
+                );
+                policy = new QuorumPolicy(both.size(), Math.min(policy.readQuorum(), both.size()), required, false);
+                placement = both;
+            } else if (rebalancing) {
+                //Reads stay with the servers that held the key, since the new ones may not have it yet
+                policy = createPolicy(key, context.previousRing().getMembers().size(), override);
+                placement = context.previousRing().replicasFor(key, policy.replicationFactor());
+            }
+            policies.put(key, policy);
+            distribution.put(key, placement.stream().map(binding).toList());
+        }
+        this.quorumPolicies = Map.copyOf(policies);
+        this.quorumDistribution = Map.copyOf(distribution);
+        this.participants = new ConcurrentHashMap<>();
+        this.queued = new ConcurrentHashMap<>();
 
         this.isDone = protocol != BEGIN_TRANSACTION;
     }
 
-    private static int createConsensusSize(int serverCount) {
-        return (serverCount >> 1) + 1;
+    //Placement order of the first list, then members only the second has
+    private static List<? extends Replica> union(List<? extends Replica> first, List<? extends Replica> second) {
+        Map<String, Replica> members = new LinkedHashMap<>();
+        first.forEach(member -> members.put(member.getAddress(), member));
+        second.forEach(member -> members.putIfAbsent(member.getAddress(), member));
+        return List.copyOf(members.values());
     }
 
-    private static Map.Entry<String, List<MultiClient.ServerConnection>> createQuorum(int consensusSize,
-                                                                                      String key,
-                                                                                      List<MultiClient.ServerConnection> servers) {
-        var quorum = servers.stream()
-                .map(server -> createHashServerPair(key, server))
-                .sorted(compareReverseHashOrder())
-                .limit(consensusSize)
-                .map(Map.Entry::getValue)
-                .toList();
-
-        return Map.entry(key, quorum);
+    private QuorumPolicy createPolicy(String key, int serverCount, QuorumOverride override) {
+        var policy = settings.policyFor(key, serverCount).withOverride(override);
+        if (policy.replicationFactor() > serverCount) {
+            throw new IllegalArgumentException("Replication factor exceeds the " + serverCount + " known servers");
+        }
+        return policy;
     }
 
-    private static Map.Entry<Integer, MultiClient.ServerConnection> createHashServerPair(String key,
-                                                                                         MultiClient.ServerConnection server) {
-        int hash = conductKeyHash(key, server.getIpAddress(), server.getPort());
+    public CompletableFuture<String> sendCommandToServers(@NonNull ProtocolCommand protocol,
+                                                          @NonNull String originalCommand,
+                                                          @NonNull String[] keys) {
 
-        return Map.entry(hash, server);
+        //With Raft, a key's group leader orders its reads and writes, so they need neither versions nor a vote
+        if (settings.raft()) {
+            switch (protocol) {
+                case READ, CHECK, WRITE, COMPARE_AND_SET, INCREMENT_BY, APPEND, PUT_IF_ABSENT -> {
+                    return sendThroughGroup(keys[0], originalCommand);
+                }
+                case MULTI_READ, MULTI_WRITE -> {
+                    return sendMultiKeyThroughGroups(protocol, originalCommand);
+                }
+            }
+        }
+
+        //Inside a transaction reads and writes stay plain: the servers version the writes when they commit
+        return switch (protocol) {
+            case READ -> isDone ?
+                    sendKeyedCommandToServer(VERSIONED_READ, VERSIONED_READ.getCommandName() + " " + keys[0], keys[0]) :
+                    sendKeyedCommandToServer(protocol, originalCommand, keys[0]);
+            case CHECK -> sendKeyedCommandToServer(protocol, originalCommand, keys[0]);
+            case WRITE -> !isDone ?
+                    sendKeyedCommandToServer(protocol, originalCommand, keys[0]) :
+                    settings.serverReplication() ?
+                            sendThroughPrimary(keys[0], stampVersion(originalCommand)) :
+                            sendKeyedCommandToServer(protocol, stampVersion(originalCommand), keys[0]);
+            case COMPARE_AND_SET, INCREMENT_BY, APPEND, PUT_IF_ABSENT -> !isDone ?
+                    CompletableFuture.completedFuture(INVALID_TRANSACTION_COMMAND.toString()) :
+                    rebalancing ?
+                            CompletableFuture.completedFuture(ATOMIC_WRITE_REBALANCING.toString()) :
+                            sendThroughPrimary(keys[0], originalCommand);
+            case MULTI_READ -> sendMultiKeyCommand(VERSIONED_READ, originalCommand);
+            case MULTI_WRITE -> settings.serverReplication() ?
+                    sendMultiWriteThroughPrimaries(originalCommand) :
+                    sendMultiKeyCommand(VERSIONED_MULTI_WRITE, originalCommand);
+            case BEGIN_TRANSACTION -> rebalancing ? refuseTransaction() : startTransaction(originalCommand, keys);
+            case EXECUTE -> rebalancing ? refuseTransaction() : execute(originalCommand, keys);
+            case COMMIT_TRANSACTION -> isDone ? sendKeylessCommand(originalCommand) : commitTransaction();
+            case ABORT_TRANSACTION -> isDone ? sendKeylessCommand(originalCommand) : abortTransaction(originalCommand);
+            case SHUTDOWN_SERVER -> sendKeylessCommand(originalCommand);
+            case BEGIN_SNAPSHOT, RELEASE_SNAPSHOT, PING -> broadcastCommand(originalCommand);
+            default -> CompletableFuture.completedFuture(UNSUPPORTED_COMMAND.toString());
+        };
     }
 
-    private static int conductKeyHash(String key, String ipAddress, int port) {
-        return Hashing.murmur3_32_fixed()
-                .hashString(String.format("%s%s:%d", key, ipAddress, port), StandardCharsets.UTF_8)
-                .asInt();
+    //A write the caller did not version yet gets the next reading of this client's clock
+    private String stampVersion(String command) {
+        var arguments = command.trim().split(" +");
+        var options = WriteOptions.parse(Arrays.copyOfRange(arguments, 1, arguments.length), 2);
+        if (options.isPresent() && options.get().isVersioned()) {
+            clock.observe(options.get().version());
+            return command;
+        }
+        return command.trim() + " VER " + clock.next();
     }
 
-    private static Comparator<Map.Entry<Integer, ?>> compareReverseHashOrder() {
-        Comparator<Map.Entry<Integer, ?>> s = Comparator.comparingInt(Map.Entry::getKey);
-        return s.reversed();
+    //Writes go to all N replicas and settle on W matching replies; reads ask the R best-scoring, hedging to the rest.
+    //Versioned reads settle on the newest of the R replies instead, so they overlap every write quorum's latest write
+    private CompletableFuture<String> sendKeyedCommandToServer(ProtocolCommand protocol,
+                                                               String originalCommand,
+                                                               String key) {
+        if (!quorumDistribution.containsKey(key)) {
+            return CompletableFuture.completedFuture(KEY_DOES_NOT_EXIST_IN_QUORUM.toString());
+        }
+
+        boolean isWrite = protocol.isWriteAhead();
+        var policy = quorumPolicies.get(key);
+        var placement = isWrite ? quorumDistribution.get(key) : readOrder(key);
+        int required = isWrite ? policy.writeQuorum() : policy.readQuorum();
+        var replicas = isWrite ? placement : placement.subList(0, required);
+
+        var vote = protocol == VERSIONED_READ ?
+                new FreshestVote(replicas.size(), required) :
+                new MajorityVote(replicas.size(), required);
+        var response = settle(vote, originalCommand);
+        var spares = new AtomicInteger(replicas.size());
+        //A transaction's reads are only queued until it commits, so there is no slow answer to hedge
+        boolean hedging = isDone && !isWrite && settings.hedgeReads() && placement.size() > required;
+        int position = isDone || protocol == BEGIN_TRANSACTION ? -1 : transactionCommands++;
+        transactionWrites |= !isDone && protocol == ProtocolCommand.WRITE;
+        if (hedging) {
+            metrics.recordHedgeableRead();
+        }
+
+        for (var server : replicas) {
+            if (isWrite) {
+                handOff(key, server, originalCommand, policy.replicationFactor());
+            }
+            var reply = sendForVote(protocol, key, server, originalCommand, vote);
+            if (!isDone) {
+                enlist(server, reply, position);
+            }
+            if (hedging) {
+                scheduleHedge(protocol, key, server, reply, originalCommand, vote, placement, spares);
+            }
+        }
+        return protocol == VERSIONED_READ ? response.thenApply(this::toValue) : response;
     }
 
-    public String sendCommandToServers(@NonNull ProtocolCommand protocol,
-                                       @NonNull String originalCommand,
-                                       @NonNull String[] keys) {
+    //Server replication: the write goes once to the first live replica, which stores it, forwards it to the other
+    //live replicas and answers once W hold it. Replicas already suspected down are hinted from here as usual.
+    //With fewer than W replicas live the write is refused up front, as the quorum path would fail it, and a lone
+    //live replica only gets the bare command when W is 1.
+    //Atomic writes always take this path, since only one replica may decide them. That is always the key's ring
+    //primary: a replica standing in for it could decide from a stale value, and the primary's own stale copy could
+    //later win over the result, so with the primary down they fail. They are never hinted either, as replaying one
+    //later would decide it again, so a replica that missed one catches up through repair
+    private CompletableFuture<String> sendThroughPrimary(String key, String command) {
+        if (!quorumDistribution.containsKey(key)) {
+            return CompletableFuture.completedFuture(KEY_DOES_NOT_EXIST_IN_QUORUM.toString());
+        }
 
-        return switch (protocol) {
-            case READ, WRITE, CHECK -> sendKeyedCommandToServer(originalCommand, keys[0]);
-            case BEGIN_TRANSACTION -> startTransaction(originalCommand, keys);
-            case ABORT_TRANSACTION, COMMIT_TRANSACTION, SHUTDOWN_SERVER -> sendKeylessCommand(originalCommand);
-            default -> UNSUPPORTED_COMMAND.toString();
-        };
+        var policy = quorumPolicies.get(key);
+        List<Replica> live = new ArrayList<>();
+        List<Replica> down = new ArrayList<>();
+        for (var server : quorumDistribution.get(key)) {
+            (server.isAvailable() ? live : down).add(server);
+        }
+        boolean atomic = ProtocolCommand.lookup(command.split(" ", 2)[0]).isAtomicWrite();
+        if (live.isEmpty() || live.size() < policy.writeQuorum() ||
+                atomic && live.get(0) != quorumDistribution.get(key).get(0)) {
+            return CompletableFuture.completedFuture(SERVER_IO_ERROR.toString());
+        }
+        if (!atomic) {
+            down.forEach(server -> handOff(key, server, command, policy.replicationFactor()));
+        }
+
+        var request = live.size() == 1 ?
+                command :
+                REPLICATE.getCommandName() + " " + policy.writeQuorum() + " " +
+                        live.subList(1, live.size()).stream().map(Replica::getAddress).collect(Collectors.joining(",")) +
+                        " " + command;
+        return dispatch(live.get(0), request)
+                .copy()
+                .orTimeout(settings.operationTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .handle((response, e) -> e == null ? response : failedVote(e));
+    }
+
+    //Keys sharing replicas and a write quorum go to their primary as one MPUTV, all under a single version
+    private CompletableFuture<String> sendMultiWriteThroughPrimaries(String originalCommand) {
+        var arguments = originalCommand.trim().split(" +");
+        List<String> requestedKeys = new ArrayList<>();
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 1; i + 1 < arguments.length; i += 2) {
+            requestedKeys.add(arguments[i]);
+            entries.put(arguments[i], arguments[i + 1]);
+        }
+
+        long version = clock.next();
+        return sendPerPlacement(requestedKeys, keys -> {
+            var command = new StringJoiner(" ", VERSIONED_MULTI_WRITE.getCommandName() + " " + version + " ", "");
+            keys.forEach(key -> command.add(key).add(entries.get(key)));
+            return sendThroughPrimary(keys.get(0), command.toString());
+        });
     }
 
-    private String sendKeyedCommandToServer(String originalCommand,
-                                            String key) {
+    //Raft: a key's replicas form one group, named by their sorted addresses. Requests go to the leader last seen
+    //for the group, and a member that is not the leader answers with the one it knows of, which is tried next
+    private CompletableFuture<String> sendThroughGroup(String key, String command) {
         if (!quorumDistribution.containsKey(key)) {
-            return KEY_DOES_NOT_EXIST_IN_QUORUM.toString();
+            return CompletableFuture.completedFuture(KEY_DOES_NOT_EXIST_IN_QUORUM.toString());
         }
 
-        CompletableFuture<String>[] responseFutures = quorumDistribution.get(key)
+        var members = quorumDistribution.get(key);
+        var group = members.stream()
+                .map(Replica::getAddress)
+                .sorted()
+                .collect(Collectors.joining(","));
+        var leader = metrics.leaderOf(group)
+                .flatMap(address -> member(members, address))
+                .orElse(members.get(0));
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.operationTimeoutMillis());
+        return sendToGroup(group, members, leader, command, deadline);
+    }
+
+    private CompletableFuture<String> sendToGroup(String group, List<? extends Replica> members, Replica target,
+                                                  String command, long deadline) {
+        return dispatch(target, RAFT.getCommandName() + " " + group + " " + target.getAddress() + " " + command)
+                .copy()
+                .orTimeout(settings.replicaTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .handle((response, e) -> e == null ? response : failedVote(e))
+                .thenCompose(response -> {
+                    boolean redirected = response.startsWith(NOT_LEADER.toString());
+                    boolean failed = response.equals(SERVER_IO_ERROR.toString()) || response.equals(TIMEOUT.toString());
+                    if (!redirected && !failed) {
+                        metrics.recordLeader(group, target.getAddress());
+                        return CompletableFuture.completedFuture(response);
+                    } else if (System.nanoTime() >= deadline) {
+                        return CompletableFuture.completedFuture(response);
+                    }
+
+                    metrics.recordRedirect();
+                    var hint = redirected ? response.substring(NOT_LEADER.toString().length()).trim() : "";
+                    var next = member(members, hint);
+                    if (next.isPresent()) {
+                        return sendToGroup(group, members, next.get(), command, deadline);
+                    }
+
+                    //No leader known, most likely mid-election: the next member is asked once the vote had time to end
+                    var following = members.get((members.indexOf(target) + 1) % members.size());
+                    return CompletableFuture.supplyAsync(() -> following,
+                                    CompletableFuture.delayedExecutor(ELECTION_RETRY_MILLIS, TimeUnit.MILLISECONDS))
+                            .thenCompose(member -> sendToGroup(group, members, member, command, deadline));
+                });
+    }
+
+    private static Optional<Replica> member(List<? extends Replica> members, String address) {
+        return members.stream()
+                .filter(member -> member.getAddress().equals(address))
+                .map(Replica.class::cast)
+                .findFirst();
+    }
+
+    private CompletableFuture<String> sendMultiKeyThroughGroups(ProtocolCommand protocol, String originalCommand) {
+        var arguments = originalCommand.trim().split(" +");
+        boolean isWrite = protocol == ProtocolCommand.MULTI_WRITE;
+        List<String> requestedKeys = new ArrayList<>();
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 1; i < arguments.length; i += isWrite ? 2 : 1) {
+            requestedKeys.add(arguments[i]);
+            if (isWrite) {
+                entries.put(arguments[i], arguments[i + 1]);
+            }
+        }
+
+        return sendPerPlacement(requestedKeys, keys -> {
+            var command = new StringJoiner(" ", protocol.getCommandName() + " ", "");
+            for (var key : keys) {
+                command.add(key);
+                if (isWrite) {
+                    command.add(entries.get(key));
+                }
+            }
+            return sendThroughGroup(keys.get(0), command.toString());
+        });
+    }
+
+    //Keys sharing replicas and a quorum policy travel as one command. send answers a line per key it was given,
+    //and the lines are put back in the order the keys were asked for
+    private CompletableFuture<String> sendPerPlacement(List<String> requestedKeys,
+                                                       Function<List<String>, CompletableFuture<String>> send) {
+        if (!quorumDistribution.keySet().containsAll(requestedKeys)) {
+            return CompletableFuture.completedFuture(KEY_DOES_NOT_EXIST_IN_QUORUM.toString());
+        }
+
+        Map<Map.Entry<List<? extends Replica>, QuorumPolicy>, List<String>> groups = new LinkedHashMap<>();
+        for (var key : new LinkedHashSet<>(requestedKeys)) {
+            groups.computeIfAbsent(Map.entry(quorumDistribution.get(key), quorumPolicies.get(key)), ignored -> new ArrayList<>())
+                    .add(key);
+        }
+
+        Map<String, CompletableFuture<String>> replies = new HashMap<>();
+        for (var keys : groups.values()) {
+            var reply = send.apply(keys);
+            for (int i = 0; i < keys.size(); i++) {
+                int index = i;
+                replies.put(keys.get(i), reply.thenApply(response -> splitPerKey(response, keys.size())[index]));
+            }
+        }
+
+        var outcomes = requestedKeys.stream()
+                .map(replies::get)
+                .toList();
+        return CompletableFuture.allOf(outcomes.toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> outcomes.stream()
+                        .map(CompletableFuture::join)
+                        .collect(Collectors.joining(ProtocolCommand.MULTI_VALUE_DELIMITER)));
+    }
+
+    //Suspected replicas go last, so reads only reach them when nothing better is left
+    private List<? extends Replica> readOrder(String key) {
+        var placement = quorumDistribution.get(key);
+        var ranked = settings.latencyAwareReads() ? metrics.rankForReads(placement) : placement;
+        if (ranked.stream().allMatch(Replica::isAvailable)) {
+            return ranked;
+        }
+
+        List<Replica> order = new ArrayList<>(ranked.size());
+        ranked.stream().filter(Replica::isAvailable).forEach(order::add);
+        ranked.stream().filter(server -> !server.isAvailable()).forEach(order::add);
+        return order;
+    }
+
+    //Once a replica is slower than its usual tail, the next unused replica in placement order is asked as well
+    private void scheduleHedge(ProtocolCommand protocol,
+                               String key,
+                               Replica server,
+                               CompletableFuture<String> reply,
+                               String originalCommand,
+                               Vote vote,
+                               List<? extends Replica> placement,
+                               AtomicInteger spares) {
+        metrics.hedgeDelayMillis(server, settings.hedgePercentile()).ifPresent(delay ->
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+                    if (reply.isDone() || vote.outcome().isDone()) {
+                        return;
+                    }
+
+                    int next = spares.getAndIncrement();
+                    while (next < placement.size() && !placement.get(next).isAvailable()) {
+                        next = spares.getAndIncrement();
+                    }
+                    if (next >= placement.size()) {
+                        return;
+                    }
+
+                    metrics.recordHedge();
+                    vote.expect(1);
+                    var spare = placement.get(next);
+                    LOG.trace("Hedging [{}] from {} to {} after {} ms", originalCommand, server.getAddress(), spare.getAddress(), delay);
+                    var hedged = sendForVote(protocol, key, spare, originalCommand, vote);
+                    scheduleHedge(protocol, key, spare, hedged, originalCommand, vote, placement, spares);
+                }));
+    }
+
+    //A write for a suspected replica is also parked on the first healthy server past the key's replicas, as a
+    //hint for the owner. Hints do not count toward W: they only get the write to the owner once it is back.
+    //Transactional writes are never hinted, since the transaction dies with the owner's connection
+    private void handOff(String key, Replica owner, String command, int replicationFactor) {
+        if (!isDone || owner.isAvailable()) {
+            return;
+        }
+
+        var preference = ring.replicasFor(key, servers.size())
                 .stream()
-                .map(server -> operateOnSingleServer(originalCommand, server.getBuffer(), server.getServerConnection()))
-                .toArray(CompletableFuture[]::new);
+                .map(binding)
+                .toList();
 
-        return waitForResponse(responseFutures, originalCommand);
+        //While keys move, a write's replicas can outnumber the members of either placement
+        int owners = Math.min(replicationFactor, preference.size());
+        List<Replica> candidates = new ArrayList<>(preference.subList(owners, preference.size()));
+        candidates.addAll(preference.subList(0, owners));
+        var holder = candidates.stream()
+                .filter(server -> !server.getAddress().equals(owner.getAddress()) && server.isAvailable())
+                .findFirst();
+        if (holder.isEmpty()) {
+            LOG.warn("No server can hold a hint for {}: [{}] is lost to it", owner.getAddress(), command);
+            return;
+        }
+
+        var hint = STORE_HINT.getCommandName() + " " + owner.getAddress() + " " + command;
+        dispatch(holder.get(), hint).whenComplete((reply, e) -> {
+            if (e == null && ACKNOWLEDGED.toString().equals(reply)) {
+                metrics.recordHint();
+                LOG.trace("Hinted [{}] for {} on {}", command, owner.getAddress(), holder.get().getAddress());
+            } else {
+                LOG.warn("Hinting [{}] for {} on {} failed: {}", command, owner.getAddress(), holder.get().getAddress(),
+                        e == null ? reply : e.getMessage());
+            }
+        });
+    }
+
+    private CompletableFuture<String> sendForVote(ProtocolCommand protocol,
+                                                  String key,
+                                                  Replica server,
+                                                  String command,
+                                                  Vote vote) {
+        var reply = dispatch(server, command);
+        castVote(reply, vote);
+        vote.outcome().thenAcceptBoth(reply, (agreed, replied) -> reconcile(protocol, key, server, command, replied, agreed));
+        return reply;
+    }
+
+    //Replies that disagree with the outcome, including ones landing after it was returned, are kept for repair.
+    //A versioned read also sends the outcome back to any replica that answered with an older version
+    private void reconcile(ProtocolCommand protocol, String key, Replica server, String command, String replied, String agreed) {
+        if (TIMEOUT.toString().equals(agreed) || agreed.equals(replied)) {
+            return;
+        }
+
+        repairLog.record(new RepairLog.Divergence(key, server.getAddress(), command, replied, agreed));
+        if (protocol != VERSIONED_READ) {
+            return;
+        }
+
+        var freshest = VersionedReply.parse(agreed);
+        var stale = VersionedReply.parse(replied);
+        if (freshest.isEmpty() || stale.isEmpty() ||
+                !freshest.get().isRepairable() || !freshest.get().isNewerThan(stale.get())) {
+            return;
+        }
+
+        var repair = freshest.get().repairCommand(key);
+        metrics.recordReadRepair();
+        LOG.trace("Read repairing {} on {} with [{}]", key, server.getAddress(), repair);
+        dispatch(server, repair).whenComplete((reply, e) -> {
+            if (e != null) {
+                LOG.debug("Read repair of {} on {} failed: {}", key, server.getAddress(), e.getMessage());
+            }
+        });
     }
 
-    private String startTransaction(String originalCommand, String[] keys) {
+    //Observing the version keeps this client's later writes ordered after everything it has read
+    private String toValue(String outcome) {
+        return VersionedReply.parse(outcome)
+                .map(reply -> {
+                    clock.observe(reply.version());
+                    return reply.value();
+                })
+                .orElse(outcome);
+    }
+
+    //Keys are grouped into one sub-request per server, the way transactions are, then voted on key by key.
+    //MGET and MPUT go out as their versioned forms, every pair of one MPUT sharing a single version
+    private CompletableFuture<String> sendMultiKeyCommand(ProtocolCommand protocol, String originalCommand) {
+        boolean isWrite = protocol == VERSIONED_MULTI_WRITE;
+        var prefix = isWrite ?
+                protocol.getCommandName() + " " + clock.next() + " " :
+                protocol.getCommandName() + " ";
+        var arguments = originalCommand.trim().split(" +");
+        int stride = isWrite ? 2 : 1;
+
+        List<String> requestedKeys = new ArrayList<>();
+        //Repeated MPUT keys keep their last value, as applying them in order would
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 1; i + stride - 1 < arguments.length; i += stride) {
+            requestedKeys.add(arguments[i]);
+            entries.put(arguments[i], isWrite ? arguments[i + 1] : null);
+        }
+
+        if (!quorumDistribution.keySet().containsAll(entries.keySet())) {
+            return CompletableFuture.completedFuture(KEY_DOES_NOT_EXIST_IN_QUORUM.toString());
+        }
+
+        Map<String, Vote> votes = new HashMap<>();
+        Map<Replica, List<String>> serverKeys = new LinkedHashMap<>();
+        for (var key : entries.keySet()) {
+            var policy = quorumPolicies.get(key);
+            var replicas = isWrite ?
+                    quorumDistribution.get(key) :
+                    readOrder(key).subList(0, policy.readQuorum());
+
+            votes.put(key, isWrite ?
+                    new MajorityVote(replicas.size(), policy.writeQuorum()) :
+                    new FreshestVote(replicas.size(), policy.readQuorum()));
+            for (var server : replicas) {
+                serverKeys.computeIfAbsent(server, ignored -> new ArrayList<>()).add(key);
+            }
+        }
+
+        for (var assignment : serverKeys.entrySet()) {
+            var server = assignment.getKey();
+            var keys = assignment.getValue();
+
+            var command = new StringJoiner(" ", prefix, "");
+            for (var key : keys) {
+                command.add(key);
+                if (isWrite) {
+                    command.add(entries.get(key));
+                }
+            }
+
+            if (isWrite) {
+                handOff(keys.get(0), server, command.toString(), quorumPolicies.get(keys.get(0)).replicationFactor());
+            }
+            var reply = dispatch(server, command.toString());
+            reply.copy()
+                    .orTimeout(settings.replicaTimeoutMillis(), TimeUnit.MILLISECONDS)
+                    .handle((response, e) -> e == null ? response : failedVote(e))
+                    .thenAccept(response -> {
+                        var perKey = splitPerKey(response, keys.size());
+                        for (int i = 0; i < keys.size(); i++) {
+                            votes.get(keys.get(i)).record(perKey[i]);
+                        }
+                    });
+
+            for (int i = 0; i < keys.size(); i++) {
+                var key = keys.get(i);
+                int index = i;
+                votes.get(key).outcome().thenAcceptBoth(reply, (agreed, response) -> {
+                    var replied = splitPerKey(response, keys.size())[index];
+                    reconcile(protocol, key, server, command.toString(), replied, agreed);
+                });
+            }
+        }
+
+        var outcomes = requestedKeys.stream()
+                .map(key -> votes.get(key)
+                        .outcome()
+                        .copy()
+                        .orTimeout(settings.operationTimeoutMillis(), TimeUnit.MILLISECONDS)
+                        .exceptionally(e -> TIMEOUT.toString())
+                        .thenApply(outcome -> isWrite ? outcome : toValue(outcome)))
+                .toList();
+
+        return CompletableFuture.allOf(outcomes.toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> outcomes.stream()
+                        .map(CompletableFuture::join)
+                        .collect(Collectors.joining(ProtocolCommand.MULTI_VALUE_DELIMITER)));
+    }
+
+    //A reply that is not one line per key (e.g. a lock or argument error) counts as that reply for every key
+    private static String[] splitPerKey(String response, int keyCount) {
+        var lines = response.split(ProtocolCommand.MULTI_VALUE_DELIMITER, -1);
+        if (lines.length == keyCount) {
+            return lines;
+        }
+
+        var repeated = new String[keyCount];
+        Arrays.fill(repeated, response);
+        return repeated;
+    }
+
+    //Locks taken on one placement would not cover writes that also reach the other
+    private CompletableFuture<String> refuseTransaction() {
+        isDone = true;
+        return CompletableFuture.completedFuture(REBALANCE_IN_PROGRESS.toString());
+    }
+
+    private CompletableFuture<String> startTransaction(String originalCommand, String[] keys) {
         if (quorumDistribution.size() == 1) {
-            return sendKeyedCommandToServer(originalCommand, keys[0]);
+            return sendKeyedCommandToServer(BEGIN_TRANSACTION, originalCommand, keys[0]);
         }
 
         var prefix = BEGIN_TRANSACTION.getCommandName() + " ";
@@ -147,80 +693,269 @@ public final class ConsensusOperation {
                 .stream()
                 //Filter out empty transaction commands
                 .filter(e -> !prefix.equals(e.getValue()))
-                .map(e -> operateOnSingleServer(
-                        e.getValue(),
-                        e.getKey().getBuffer(),
-                        e.getKey().getServerConnection()))
+                .map(e -> enlist(e.getKey(), dispatch(e.getKey(), e.getValue()), -1))
                 .toArray(CompletableFuture[]::new);
 
         return waitForResponse(responseFutures, originalCommand);
     }
 
-    private static BiConsumer<Map.Entry<String, List<MultiClient.ServerConnection>>,
-            Consumer<Map.Entry<MultiClient.ServerConnection, String>>> reversePairing() {
-        return (entry, consumer) -> {
-            for (var server : entry.getValue()) {
-                consumer.accept(Map.entry(server, entry.getKey()));
+    //A server that started the transaction becomes a participant, and one that queued a command has to answer for
+    //it on commit. Commands travel over pinned connections, so every reply is seen before the PREPARE that follows it
+    private CompletableFuture<String> enlist(Replica server, CompletableFuture<String> reply, int position) {
+        reply.thenAccept(response -> {
+            if (position < 0 && response.contains(TRANSACTION_STARTED.toString())) {
+                participants.put(server.getAddress(), server);
+            } else if (position >= 0 && ACKNOWLEDGED.toString().equals(response)) {
+                queued.computeIfAbsent(server.getAddress(), ignored -> new ConcurrentSkipListSet<>()).add(position);
             }
-        };
+        });
+        return reply;
     }
 
-    private String sendKeylessCommand(String originalCommand) {
-        CompletableFuture<String>[] responseFutures = servers.stream()
-                .map(server -> operateOnSingleServer(originalCommand, server.getBuffer(), server.getServerConnection()))
-                .toArray(CompletableFuture[]::new);
+    //Two-phase commit over the participants: one PREPARE each, all at once, since the writes are already queued on
+    //them; then the decision, once, to all of them. It commits only if every participant prepared, and either way
+    //the operation is over. The reply is put together from the participants' outputs in command order
+    private CompletableFuture<String> commitTransaction() {
+        if (participants.isEmpty()) {
+            isDone = true;
+            return CompletableFuture.completedFuture(TRANSACTION_DNE.toString());
+        } else if (transactionCommands == 0) {
+            return CompletableFuture.completedFuture(EMPTY_TRANSACTION.toString());
+        } else if (!transactionWrites) {
+            return CompletableFuture.completedFuture(NO_WRITES_ISSUE.toString());
+        }
 
-        var response = waitForResponse(responseFutures, originalCommand);
+        var members = participants.values()
+                .stream()
+                .sorted(Comparator.comparing(Replica::getAddress))
+                .toList();
+        var id = UUID.randomUUID().toString();
+        var prepare = PREPARE_TRANSACTION.getCommandName() + " " + id + " " +
+                members.stream().map(Replica::getAddress).collect(Collectors.joining(","));
+
+        var votes = members.stream()
+                .map(server -> answerOf(server, prepare, settings.replicaTimeoutMillis()))
+                .toList();
+        return decide(id, members, votes);
+    }
 
-        //The only 2 scenarios where a transaction closes
-        isDone = response.startsWith(SUCCESS.toString()) ||
-                ACKNOWLEDGED.toString().equals(response);
-        return response;
+    //The second round: the decision goes once to every participant, commit only if every vote was PREPARED
+    private CompletableFuture<String> decide(String id, List<Replica> members, List<CompletableFuture<String>> votes) {
+        return CompletableFuture.allOf(votes.toArray(CompletableFuture[]::new)).thenCompose(ignored -> {
+            boolean commit = votes.stream()
+                    .map(CompletableFuture::join)
+                    .allMatch(TRANSACTION_PREPARED.toString()::equals);
+            var decision = DECIDE_TRANSACTION.getCommandName() + " " + id + " " +
+                    (commit ? COMMIT_TRANSACTION : ABORT_TRANSACTION).getCommandName();
+            LOG.debug("Transaction {} decided {} by {} participants", id, commit ? "commit" : "abort", members.size());
+
+            var outcomes = members.stream()
+                    .map(server -> answerOf(server, decision, settings.operationTimeoutMillis()))
+                    .toList();
+            isDone = true;
+            return CompletableFuture.allOf(outcomes.toArray(CompletableFuture[]::new))
+                    .thenApply(done -> commit ?
+                            mergeOutputs(members, outcomes.stream().map(CompletableFuture::join).toList()) :
+                            TRANSACTION_ABORTED.toString());
+        });
     }
 
-    private static String waitForResponse(CompletableFuture<String>[] responseFutures, String originalCommand) {
-        try {
-            CompletableFuture.allOf(responseFutures).get(TIMEOUT_NUMBER, TIMEOUT_UNIT);
-        } catch (ExecutionException | InterruptedException | TimeoutException e) {
-            LOG.error("Sending command [{}] to server failed", originalCommand, e);
-            return TIMEOUT.toString();
+    //Keys that share their replicas need one round trip: every replica runs the whole EXEC at once, and W matching
+    //answers settle it like a write. Otherwise each server is sent the keys it replicates and the commands on them,
+    //ending in a PREPARE, and the decision follows as for any transaction, for two round trips in all
+    private CompletableFuture<String> execute(String originalCommand, String[] keys) {
+        var arguments = originalCommand.trim().split(" +");
+        var segments = ProtocolCommand.segments(Arrays.copyOfRange(arguments, 1, arguments.length));
+        var commands = segments.subList(1, segments.size());
+        if (keys.length == 0 || commands.isEmpty()) {
+            return CompletableFuture.completedFuture(INSUFFICIENT_ARGUMENTS.toString());
+        }
+        for (var command : commands) {
+            var protocol = ProtocolCommand.lookup(command.isEmpty() ? "" : command.get(0));
+            if (!protocol.isTransactionCommand()) {
+                return CompletableFuture.completedFuture(INVALID_TRANSACTION_COMMAND.toString());
+            } else if (!protocol.containsSufficientArguments(command.size() - 1)) {
+                return CompletableFuture.completedFuture(INSUFFICIENT_ARGUMENTS.toString());
+            } else if (!quorumDistribution.containsKey(command.get(1))) {
+                return CompletableFuture.completedFuture(TRANSACTION_DOES_NOT_HAVE_KEY.toString());
+            }
         }
 
-        var responseFrequencies = Arrays.stream(responseFutures)
-                .map(CompletableFuture::join)
-                .collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+        var uniqueKeys = new LinkedHashSet<>(Arrays.asList(keys));
+        //Replica lists come in ring order from each key, so the same servers can be listed differently
+        var placements = uniqueKeys.stream()
+                .map(key -> Set.copyOf(quorumDistribution.get(key)))
+                .distinct()
+                .toList();
+        if (placements.size() == 1) {
+            int required = uniqueKeys.stream()
+                    .mapToInt(key -> quorumPolicies.get(key).writeQuorum())
+                    .max()
+                    .orElseThrow();
+            CompletableFuture<String>[] responseFutures = placements.get(0)
+                    .stream()
+                    .map(server -> dispatch(server, originalCommand))
+                    .toArray(CompletableFuture[]::new);
+            return waitForResponse(responseFutures, required, originalCommand);
+        }
 
-        LOG.trace("Command [{}] produced vote {}", originalCommand, responseFrequencies);
+        Map<Replica, List<String>> serverKeys = new LinkedHashMap<>();
+        for (var key : uniqueKeys) {
+            for (var server : quorumDistribution.get(key)) {
+                serverKeys.computeIfAbsent(server, ignored -> new ArrayList<>()).add(key);
+            }
+        }
+        Map<Replica, List<Integer>> serverCommands = new HashMap<>();
+        for (int i = 0; i < commands.size(); i++) {
+            for (var server : quorumDistribution.get(commands.get(i).get(1))) {
+                serverCommands.computeIfAbsent(server, ignored -> new ArrayList<>()).add(i);
+            }
+        }
 
-        return responseFrequencies.entrySet()
+        //A server with none of the commands has nothing to apply, so it need not take part
+        var members = serverCommands.keySet()
                 .stream()
-                .max(Comparator.comparingLong(Map.Entry::getValue))
-                .map(Map.Entry::getKey)
-                .orElse("If there are servers, this should be unreachable");
-    }
-
-    private static CompletableFuture<String> operateOnSingleServer(String command,
-                                                                   ByteBuffer buffer,
-                                                                   SocketChannel serverSocket) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                buffer.clear()
-                        .put(command.getBytes(StandardCharsets.UTF_8))
-                        .flip();
-                while (buffer.hasRemaining()) {
-                    serverSocket.write(buffer);
+                .sorted(Comparator.comparing(Replica::getAddress))
+                .map(Replica.class::cast)
+                .toList();
+        var id = UUID.randomUUID().toString();
+        var prepare = PREPARE_TRANSACTION.getCommandName() + " " + id + " " +
+                members.stream().map(Replica::getAddress).collect(Collectors.joining(","));
+        var separator = " " + ProtocolCommand.COMMAND_SEPARATOR + " ";
+
+        List<CompletableFuture<String>> votes = new ArrayList<>();
+        for (var server : members) {
+            var positions = serverCommands.get(server);
+            var part = new StringJoiner(separator, EXECUTE.getCommandName() + " ", separator + prepare);
+            part.add(String.join(" ", serverKeys.get(server)));
+            positions.forEach(position -> part.add(String.join(" ", commands.get(position))));
+            queued.put(server.getAddress(), new ConcurrentSkipListSet<>(positions));
+            votes.add(answerOf(server, part.toString(), settings.replicaTimeoutMillis()));
+        }
+        return decide(id, members, votes);
+    }
+
+    //Each participant answers its queued commands in order; a command's line comes from the first that queued it
+    private String mergeOutputs(List<Replica> members, List<String> outcomes) {
+        var prefix = SUCCESS + System.lineSeparator();
+        Map<Integer, String> lines = new TreeMap<>();
+        for (int i = 0; i < members.size(); i++) {
+            var outcome = outcomes.get(i);
+            var positions = queued.getOrDefault(members.get(i).getAddress(), Set.of());
+            if (!outcome.startsWith(prefix)) {
+                LOG.warn("Participant {} answered the commit with [{}]", members.get(i).getAddress(), outcome);
+                continue;
+            }
+
+            var output = outcome.substring(prefix.length()).split("\n");
+            int line = 0;
+            for (var position : positions) {
+                if (line < output.length) {
+                    lines.putIfAbsent(position, output[line++]);
                 }
+            }
+        }
 
-                buffer.clear();
+        var merged = new StringBuilder(prefix);
+        lines.values().forEach(line -> merged.append(line).append('\n'));
+        return merged.toString();
+    }
 
-                int n = serverSocket.read(buffer);
-                buffer.flip();
+    //Only the participants hold anything to release
+    private CompletableFuture<String> abortTransaction(String originalCommand) {
+        isDone = true;
+        if (participants.isEmpty()) {
+            return CompletableFuture.completedFuture(ACKNOWLEDGED.toString());
+        }
+
+        CompletableFuture<String>[] responseFutures = participants.values()
+                .stream()
+                .map(server -> dispatch(server, originalCommand))
+                .toArray(CompletableFuture[]::new);
+        return waitForResponse(responseFutures, originalCommand);
+    }
 
-                return new String(buffer.array(), buffer.position(), n);
-            } catch (IOException e) {
-                LOG.warn("Command [{}] couldn't be processed", command);
-                return SERVER_IO_ERROR.toString();
+    private CompletableFuture<String> answerOf(Replica server, String command, long timeoutMillis) {
+        return dispatch(server, command)
+                .copy()
+                .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .handle((response, e) -> e == null ? response : failedVote(e));
+    }
+
+    private static BiConsumer<Map.Entry<String, List<? extends Replica>>,
+            Consumer<Map.Entry<Replica, String>>> reversePairing() {
+        return (entry, consumer) -> {
+            for (var server : entry.getValue()) {
+                consumer.accept(Map.entry(server, entry.getKey()));
             }
+        };
+    }
+
+    private CompletableFuture<String> sendKeylessCommand(String originalCommand) {
+        return broadcastCommand(originalCommand).thenApply(response -> {
+            //The only 2 scenarios where a transaction closes
+            isDone = response.startsWith(SUCCESS.toString()) ||
+                    ACKNOWLEDGED.toString().equals(response);
+            return response;
         });
     }
+
+    private CompletableFuture<String> broadcastCommand(String originalCommand) {
+        CompletableFuture<String>[] responseFutures = servers.stream()
+                .map(server -> dispatch(server, originalCommand))
+                .toArray(CompletableFuture[]::new);
+
+        return waitForResponse(responseFutures, originalCommand);
+    }
+
+    //A suspected server fails at once rather than holding the vote until its timeout
+    private CompletableFuture<String> dispatch(Replica server, String command) {
+        if (!server.isAvailable()) {
+            return CompletableFuture.failedFuture(new IOException("Server " + server.getAddress() + " is suspected down"));
+        }
+        return metrics.timedSend(server, command);
+    }
+
+    private CompletableFuture<String> waitForResponse(CompletableFuture<String>[] responseFutures,
+                                                      String originalCommand) {
+        return waitForResponse(responseFutures, (responseFutures.length >> 1) + 1, originalCommand);
+    }
+
+    private CompletableFuture<String> waitForResponse(CompletableFuture<String>[] responseFutures,
+                                                      int required,
+                                                      String originalCommand) {
+        var vote = new MajorityVote(responseFutures.length, required);
+        for (var future : responseFutures) {
+            castVote(future, vote);
+        }
+        return settle(vote, originalCommand);
+    }
+
+    //Timing out a copy leaves the original running, so a straggler's reply can still be inspected later
+    private void castVote(CompletableFuture<String> reply, Vote vote) {
+        reply.copy()
+                .orTimeout(settings.replicaTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .handle((response, e) -> e == null ? response : failedVote(e))
+                .thenAccept(vote::record);
+    }
+
+    private CompletableFuture<String> settle(Vote vote, String originalCommand) {
+        return vote.outcome()
+                .copy()
+                .orTimeout(settings.operationTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .handle((response, e) -> {
+                    if (e != null) {
+                        LOG.error("Sending command [{}] to server failed", originalCommand, e);
+                        return TIMEOUT.toString();
+                    }
+
+                    LOG.trace("Command [{}] produced vote {}", originalCommand, vote.tally());
+                    return response;
+                });
+    }
+
+    private static String failedVote(Throwable e) {
+        var cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause instanceof TimeoutException ? TIMEOUT.toString() : SERVER_IO_ERROR.toString();
+    }
 }
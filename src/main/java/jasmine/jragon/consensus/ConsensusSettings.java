@@ -0,0 +1,141 @@
+package jasmine.jragon.consensus;
+
+import lombok.NonNull;
+import lombok.With;
+
+import java.util.HashMap;
+import java.util.Map;
+
+//A null quorum means a majority of whatever cluster the client connects to. An anti-entropy interval of 0 turns
+//background replica comparison off. With server replication a write goes to one replica, which forwards it to the rest.
+//With raft, a key's replicas form a Raft group and its reads and writes go to the group's leader.
+//Keys moving after a membership change are copied at up to rebalanceKeysPerSecond, 0 leaving the copy unpaced.
+//New settings are appended and set through the with copiers, e.g. DEFAULTS.withRaft(true), so callers never list them all
+@With
+public record ConsensusSettings(long replicaTimeoutMillis,
+                                long operationTimeoutMillis,
+                                QuorumPolicy quorum,
+                                @NonNull Map<String, QuorumPolicy> namespaces,
+                                boolean hedgeReads,
+                                double hedgePercentile,
+                                boolean latencyAwareReads,
+                                long antiEntropyIntervalMillis,
+                                boolean serverReplication,
+                                boolean raft,
+                                long rebalanceKeysPerSecond) {
+    public static final ConsensusSettings DEFAULTS =
+            new ConsensusSettings(5_000, 30_000, null, Map.of(), true, 0.95, true, 30_000, false, false, 5_000);
+
+    public static final char NAMESPACE_SEPARATOR = ':';
+
+    private static final String REPLICA_TIMEOUT = "replica-timeout-ms";
+    private static final String OPERATION_TIMEOUT = "operation-timeout-ms";
+    private static final String QUORUM = "quorum";
+    private static final String NAMESPACES = "namespaces";
+    private static final String HEDGE_READS = "hedge-reads";
+    private static final String HEDGE_PERCENTILE = "hedge-percentile";
+    private static final String LATENCY_AWARE_READS = "latency-aware-reads";
+    private static final String ANTI_ENTROPY_INTERVAL = "anti-entropy-interval-ms";
+    private static final String SERVER_REPLICATION = "server-replication";
+    private static final String RAFT = "raft";
+    private static final String REBALANCE_RATE = "rebalance-keys-per-second";
+
+    public ConsensusSettings {
+        if (replicaTimeoutMillis <= 0 || operationTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Timeouts must be positive");
+        } else if (hedgePercentile <= 0 || hedgePercentile > 1) {
+            throw new IllegalArgumentException("Hedge percentile must be in (0, 1]");
+        } else if (antiEntropyIntervalMillis < 0) {
+            throw new IllegalArgumentException("Anti-entropy interval cannot be negative");
+        } else if (rebalanceKeysPerSecond < 0) {
+            throw new IllegalArgumentException("Rebalance rate cannot be negative");
+        }
+        namespaces = Map.copyOf(namespaces);
+    }
+
+    //Reads the optional consensus section of config.yml, falling back to the defaults for anything left out
+    public static ConsensusSettings fromYml(@NonNull Map<?, ?> section) {
+        var quorum = section.get(QUORUM) instanceof Map<?, ?> quorumSection ?
+                QuorumPolicy.fromYml(quorumSection) :
+                DEFAULTS.quorum;
+
+        Map<String, QuorumPolicy> namespaces = new HashMap<>();
+        if (section.get(NAMESPACES) instanceof Map<?, ?> namespaceSection) {
+            for (var entry : namespaceSection.entrySet()) {
+                if (!(entry.getValue() instanceof Map<?, ?> policySection)) {
+                    throw new IllegalArgumentException("Namespace " + entry.getKey() + " needs a quorum policy");
+                }
+                namespaces.put(entry.getKey().toString(), QuorumPolicy.fromYml(policySection));
+            }
+        }
+
+        return new ConsensusSettings(
+                readMillis(section, REPLICA_TIMEOUT, DEFAULTS.replicaTimeoutMillis),
+                readMillis(section, OPERATION_TIMEOUT, DEFAULTS.operationTimeoutMillis),
+                quorum,
+                namespaces,
+                readFlag(section, HEDGE_READS, DEFAULTS.hedgeReads),
+                readPercentile(section, HEDGE_PERCENTILE, DEFAULTS.hedgePercentile),
+                readFlag(section, LATENCY_AWARE_READS, DEFAULTS.latencyAwareReads),
+                readMillis(section, ANTI_ENTROPY_INTERVAL, DEFAULTS.antiEntropyIntervalMillis),
+                readFlag(section, SERVER_REPLICATION, DEFAULTS.serverReplication),
+                readFlag(section, RAFT, DEFAULTS.raft),
+                readRate(section, REBALANCE_RATE, DEFAULTS.rebalanceKeysPerSecond)
+        );
+    }
+
+    //A key's namespace is everything before its first separator, e.g. session for session:42
+    public QuorumPolicy policyFor(@NonNull String key, int serverCount) {
+        int separator = key.indexOf(NAMESPACE_SEPARATOR);
+        var policy = separator < 0 ? null : namespaces.get(key.substring(0, separator));
+
+        if (policy == null) {
+            policy = quorum;
+        }
+        return policy == null ? QuorumPolicy.majorityOf(serverCount) : policy;
+    }
+
+    private static long readMillis(Map<?, ?> section, String name, long fallback) {
+        var value = section.get(name);
+        if (value == null) {
+            return fallback;
+        }
+
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a whole number of milliseconds", e);
+        }
+    }
+
+    private static long readRate(Map<?, ?> section, String name, long fallback) {
+        var value = section.get(name);
+        if (value == null) {
+            return fallback;
+        }
+
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a whole number of keys", e);
+        }
+    }
+
+    private static boolean readFlag(Map<?, ?> section, String name, boolean fallback) {
+        var value = section.get(name);
+        return value == null ? fallback : Boolean.parseBoolean(value.toString());
+    }
+
+    private static double readPercentile(Map<?, ?> section, String name, double fallback) {
+        var value = section.get(name);
+        if (value == null) {
+            return fallback;
+        }
+
+        try {
+            return Double.parseDouble(value.toString());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a fraction such as 0.95", e);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package jasmine.jragon.consensus;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+//Settles a versioned read on the newest of the first required well-formed replies, rather than the most common,
+//so a quorum that overlaps the write quorum always sees the latest write
+final class FreshestVote implements Vote {
+    private final int required;
+    private final Map<String, Integer> tally;
+    private final CompletableFuture<String> outcome;
+
+    private int replicaCount;
+    private int received;
+    private int versioned;
+    private VersionedReply freshest;
+    private String freshestResponse;
+
+    FreshestVote(int replicaCount, int required) {
+        this.replicaCount = replicaCount;
+        this.required = required;
+        this.tally = new HashMap<>();
+        this.outcome = new CompletableFuture<>();
+
+        if (replicaCount == 0) {
+            outcome.complete("If there are servers, this should be unreachable");
+        }
+    }
+
+    //Errors and timeouts do not count toward the quorum; if too few replicas answered properly, the freshest
+    //reply so far stands once every replica is heard from, or the last error when there is none
+    @Override
+    public synchronized void record(String response) {
+        received++;
+        tally.merge(response, 1, Integer::sum);
+
+        var reply = VersionedReply.parse(response);
+        if (reply.isPresent()) {
+            versioned++;
+            if (freshest == null || reply.get().isNewerThan(freshest)) {
+                freshest = reply.get();
+                freshestResponse = response;
+            }
+        }
+
+        if (versioned >= required) {
+            outcome.complete(freshestResponse);
+        } else if (received == replicaCount) {
+            outcome.complete(freshestResponse == null ? response : freshestResponse);
+        }
+    }
+
+    @Override
+    public synchronized void expect(int additionalReplicas) {
+        replicaCount += additionalReplicas;
+    }
+
+    @Override
+    public synchronized Map<String, Integer> tally() {
+        return Map.copyOf(tally);
+    }
+
+    @Override
+    public CompletableFuture<String> outcome() {
+        return outcome;
+    }
+}
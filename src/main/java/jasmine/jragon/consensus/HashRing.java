@@ -0,0 +1,157 @@
+package jasmine.jragon.consensus;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+public final class HashRing<N> {
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    public static final long MAX_POSITION = (1L << Integer.SIZE) - 1;
+
+    private static final HashFunction HASH = Hashing.murmur3_32_fixed();
+
+    @Getter
+    private final List<N> members;
+    private final int[] tokens;
+    //Distinct members in clockwise order starting from each token, so placement is one binary search
+    private final List<List<N>> preferenceLists;
+
+    public HashRing(@NonNull List<N> members, @NonNull Function<N, String> identity, int virtualNodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("Virtual node count must be positive");
+        }
+
+        this.members = List.copyOf(members);
+
+        int tokenCount = this.members.size() * virtualNodes;
+        var rawTokens = new int[tokenCount];
+        var rawOwners = new int[tokenCount];
+        for (int member = 0; member < this.members.size(); member++) {
+            var name = identity.apply(this.members.get(member));
+            for (int v = 0; v < virtualNodes; v++) {
+                int slot = member * virtualNodes + v;
+                rawTokens[slot] = hash(name + "#" + v);
+                rawOwners[slot] = member;
+            }
+        }
+
+        var order = IntStream.range(0, tokenCount)
+                .boxed()
+                .sorted(Comparator.comparingInt(slot -> rawTokens[slot]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        this.tokens = new int[tokenCount];
+        var owners = new int[tokenCount];
+        for (int i = 0; i < tokenCount; i++) {
+            tokens[i] = rawTokens[order[i]];
+            owners[i] = rawOwners[order[i]];
+        }
+
+        this.preferenceLists = new ArrayList<>(tokenCount);
+        for (int i = 0; i < tokenCount; i++) {
+            var distinct = new LinkedHashSet<N>();
+            for (int step = 0; step < tokenCount && distinct.size() < this.members.size(); step++) {
+                distinct.add(this.members.get(owners[(i + step) % tokenCount]));
+            }
+            preferenceLists.add(List.copyOf(distinct));
+        }
+    }
+
+    public List<N> replicasFor(@NonNull String key, int count) {
+        if (tokens.length == 0) {
+            return List.of();
+        }
+
+        return replicasAt(tokenIndex(hash(key)), count);
+    }
+
+    //Where a key falls in ring order, as an unsigned offset into the 32-bit hash space
+    public static long position(@NonNull String key) {
+        return Integer.toUnsignedLong(hash(key) ^ Integer.MIN_VALUE);
+    }
+
+    //The hash space cut at every token, in ring order, each piece with the first count members its keys go to
+    public List<Segment<N>> segments(int count) {
+        List<Segment<N>> segments = new ArrayList<>(tokens.length + 1);
+        if (tokens.length == 0) {
+            return segments;
+        }
+
+        long first = 0;
+        for (int i = 0; i < tokens.length; i++) {
+            long last = Integer.toUnsignedLong(tokens[i] ^ Integer.MIN_VALUE);
+            if (first <= last) {
+                segments.add(new Segment<>(first, last, replicasAt(i, count)));
+            }
+            first = last + 1;
+        }
+        //Past the last token the ring wraps around to the first
+        if (first <= MAX_POSITION) {
+            segments.add(new Segment<>(first, MAX_POSITION, replicasAt(0, count)));
+        }
+        return segments;
+    }
+
+    //Fraction of the hash space each member is primary for
+    public Map<N, Double> ownershipShares() {
+        Map<N, Double> shares = new LinkedHashMap<>();
+        for (var member : members) {
+            shares.put(member, 0.0);
+        }
+
+        double space = Math.pow(2, 32);
+        for (int i = 0; i < tokens.length; i++) {
+            long previous = i == 0 ? (long) tokens[tokens.length - 1] - (1L << 32) : tokens[i - 1];
+            shares.merge(preferenceLists.get(i).get(0), (tokens[i] - previous) / space, Double::sum);
+        }
+        return shares;
+    }
+
+    //Largest ownership share over the mean share: 1.0 is a perfectly even ring
+    public double imbalance() {
+        if (members.isEmpty()) {
+            return 1.0;
+        }
+
+        double largest = ownershipShares().values()
+                .stream()
+                .mapToDouble(Double::doubleValue)
+                .max()
+                .orElse(0.0);
+        return largest * members.size();
+    }
+
+    private List<N> replicasAt(int tokenIndex, int count) {
+        var preference = preferenceLists.get(tokenIndex);
+        return preference.subList(0, Math.min(count, preference.size()));
+    }
+
+    private int tokenIndex(int keyHash) {
+        int index = Arrays.binarySearch(tokens, keyHash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return index == tokens.length ? 0 : index;
+    }
+
+    private static int hash(String value) {
+        return HASH.hashString(value, StandardCharsets.UTF_8).asInt();
+    }
+
+    //Positions first through last, both inclusive
+    public record Segment<N>(long first, long last, List<N> replicas) {}
+}
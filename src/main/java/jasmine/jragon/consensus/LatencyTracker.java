@@ -0,0 +1,79 @@
+package jasmine.jragon.consensus;
+
+import java.util.Arrays;
+
+//A sliding window of recent response times for percentiles, plus a decaying average and the load for ranking
+final class LatencyTracker {
+    private static final int WINDOW = 512;
+    private static final int RESORT_INTERVAL = 32;
+    private static final double EWMA_WEIGHT = 0.1;
+    //A server that stops being read from forgets half its penalty every interval, so it gets probed again
+    private static final long DECAY_HALF_LIFE_NANOS = 2_000_000_000L;
+
+    private final long[] samples;
+    private long[] sorted;
+    private int next;
+    private int count;
+    private int sinceSort;
+
+    private double averageMicros;
+    private long lastSampleNanos;
+    private int outstanding;
+
+    LatencyTracker() {
+        this.samples = new long[WINDOW];
+        this.sorted = new long[0];
+    }
+
+    synchronized void started() {
+        outstanding++;
+    }
+
+    synchronized void finished() {
+        outstanding--;
+    }
+
+    synchronized void record(long micros) {
+        samples[next] = micros;
+        next = (next + 1) % WINDOW;
+        count = Math.min(count + 1, WINDOW);
+        sinceSort++;
+
+        long now = System.nanoTime();
+        averageMicros = count == 1 ?
+                micros :
+                decayedAverage(now) + EWMA_WEIGHT * (micros - decayedAverage(now));
+        lastSampleNanos = now;
+    }
+
+    synchronized int sampleCount() {
+        return count;
+    }
+
+    synchronized long percentileMicros(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        if (sinceSort >= RESORT_INTERVAL || sorted.length != count) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            sinceSort = 0;
+        }
+
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    //Lower is better: the average response time scaled by how many requests would queue ahead of a new one
+    synchronized double score(long nowNanos) {
+        return decayedAverage(nowNanos) * (outstanding + 1);
+    }
+
+    private double decayedAverage(long nowNanos) {
+        if (count == 0) {
+            return 0.0;
+        }
+        return averageMicros * Math.pow(0.5, (double) (nowNanos - lastSampleNanos) / DECAY_HALF_LIFE_NANOS);
+    }
+}
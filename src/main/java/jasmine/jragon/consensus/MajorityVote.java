@@ -0,0 +1,86 @@
+package jasmine.jragon.consensus;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+import static jasmine.jragon.response.ServerResponse.SERVER_IO_ERROR;
+import static jasmine.jragon.response.ServerResponse.TIMEOUT;
+
+final class MajorityVote implements Vote {
+    private final int required;
+    private final Map<String, Integer> tally;
+    private final CompletableFuture<String> outcome;
+
+    private int replicaCount;
+    private int received;
+    private int answered;
+
+    MajorityVote(int replicaCount) {
+        this(replicaCount, (replicaCount >> 1) + 1);
+    }
+
+    MajorityVote(int replicaCount, int required) {
+        this.replicaCount = replicaCount;
+        this.required = required;
+        this.tally = new HashMap<>();
+        this.outcome = new CompletableFuture<>();
+
+        if (replicaCount == 0) {
+            outcome.complete("If there are servers, this should be unreachable");
+        }
+    }
+
+    //Settles as soon as one response has the required votes, or on the plurality once every replica has answered.
+    //Errors and timeouts never count toward the required votes; one settles the vote only once too few replicas
+    //are left to reach them
+    @Override
+    public synchronized void record(String response) {
+        received++;
+        int votes = tally.merge(response, 1, Integer::sum);
+
+        if (!isError(response)) {
+            answered++;
+            if (votes >= required) {
+                outcome.complete(response);
+                return;
+            }
+        }
+
+        if (answered + replicaCount - received < required) {
+            plurality(MajorityVote::isError).ifPresent(outcome::complete);
+        } else if (received == replicaCount) {
+            plurality(ignored -> true).ifPresent(outcome::complete);
+        }
+    }
+
+    private Optional<String> plurality(Predicate<String> among) {
+        return tally.entrySet()
+                .stream()
+                .filter(entry -> among.test(entry.getKey()))
+                .max(Comparator.comparingInt(Map.Entry::getValue))
+                .map(Map.Entry::getKey);
+    }
+
+    private static boolean isError(String response) {
+        return SERVER_IO_ERROR.toString().equals(response) || TIMEOUT.toString().equals(response);
+    }
+
+    @Override
+    public synchronized void expect(int additionalReplicas) {
+        replicaCount += additionalReplicas;
+    }
+
+    @Override
+    public synchronized Map<String, Integer> tally() {
+        return Map.copyOf(tally);
+    }
+
+    @Override
+    public CompletableFuture<String> outcome() {
+        return outcome;
+    }
+}
@@ -0,0 +1,50 @@
+package jasmine.jragon.consensus;
+
+import lombok.NonNull;
+
+import java.util.regex.Pattern;
+
+public record QuorumOverride(int replicationFactor, int readQuorum, int writeQuorum) {
+    public static final QuorumOverride NONE = new QuorumOverride(0, 0, 0);
+
+    //Requests may lead with N=, R= or W= tokens, e.g. R=1 GET key
+    private static final Pattern TOKEN = Pattern.compile("([NRW])=(\\d{1,9})", Pattern.CASE_INSENSITIVE);
+
+    public static int countLeadingTokens(@NonNull String @NonNull [] components) {
+        int count = 0;
+        while (count < components.length && TOKEN.matcher(components[count]).matches()) {
+            count++;
+        }
+        return count;
+    }
+
+    public static QuorumOverride parse(@NonNull String @NonNull [] tokens) {
+        int replicationFactor = 0;
+        int readQuorum = 0;
+        int writeQuorum = 0;
+
+        for (var token : tokens) {
+            var matcher = TOKEN.matcher(token);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Not a quorum override: " + token);
+            }
+
+            int value = Integer.parseInt(matcher.group(2));
+            if (value == 0) {
+                throw new IllegalArgumentException("Quorum sizes must be positive: " + token);
+            }
+
+            switch (Character.toUpperCase(matcher.group(1).charAt(0))) {
+                case 'N' -> replicationFactor = value;
+                case 'R' -> readQuorum = value;
+                default -> writeQuorum = value;
+            }
+        }
+
+        return new QuorumOverride(replicationFactor, readQuorum, writeQuorum);
+    }
+
+    public boolean isEmpty() {
+        return replicationFactor == 0 && readQuorum == 0 && writeQuorum == 0;
+    }
+}
@@ -0,0 +1,73 @@
+package jasmine.jragon.consensus;
+
+import lombok.NonNull;
+
+import java.util.Map;
+
+public record QuorumPolicy(int replicationFactor, int readQuorum, int writeQuorum, boolean strong) {
+    private static final String REPLICATION_FACTOR = "n";
+    private static final String READ_QUORUM = "r";
+    private static final String WRITE_QUORUM = "w";
+    private static final String STRONG = "strong";
+
+    public QuorumPolicy {
+        if (replicationFactor < 1) {
+            throw new IllegalArgumentException("Replication factor must be positive");
+        }
+        if (readQuorum < 1 || readQuorum > replicationFactor || writeQuorum < 1 || writeQuorum > replicationFactor) {
+            throw new IllegalArgumentException("Read and write quorums must be between 1 and the replication factor");
+        }
+        //Only overlapping read and write sets guarantee a read sees the latest acknowledged write
+        if (strong && readQuorum + writeQuorum <= replicationFactor) {
+            throw new IllegalArgumentException("Strong consistency requires R + W > N");
+        }
+    }
+
+    //The original behaviour: a majority of the cluster holds each key and a majority of those must agree
+    public static QuorumPolicy majorityOf(int serverCount) {
+        int replicationFactor = Math.max(1, (serverCount >> 1) + 1);
+        int quorum = (replicationFactor >> 1) + 1;
+        return new QuorumPolicy(replicationFactor, quorum, quorum, true);
+    }
+
+    public static QuorumPolicy fromYml(@NonNull Map<?, ?> section) {
+        int replicationFactor = readInt(section, REPLICATION_FACTOR, 0);
+        if (replicationFactor == 0) {
+            throw new IllegalArgumentException("Quorum policy needs a replication factor " + REPLICATION_FACTOR);
+        }
+
+        int majority = (replicationFactor >> 1) + 1;
+        return new QuorumPolicy(
+                replicationFactor,
+                readInt(section, READ_QUORUM, majority),
+                readInt(section, WRITE_QUORUM, majority),
+                Boolean.parseBoolean(String.valueOf(section.get(STRONG)))
+        );
+    }
+
+    public QuorumPolicy withOverride(@NonNull QuorumOverride override) {
+        if (override.isEmpty()) {
+            return this;
+        }
+
+        return new QuorumPolicy(
+                override.replicationFactor() > 0 ? override.replicationFactor() : replicationFactor,
+                override.readQuorum() > 0 ? override.readQuorum() : readQuorum,
+                override.writeQuorum() > 0 ? override.writeQuorum() : writeQuorum,
+                strong
+        );
+    }
+
+    private static int readInt(Map<?, ?> section, String name, int fallback) {
+        var value = section.get(name);
+        if (value == null) {
+            return fallback;
+        }
+
+        try {
+            return Integer.parseInt(value.toString());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a whole number", e);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package jasmine.jragon.consensus;
+
+import lombok.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class RepairLog {
+    private static final Logger LOG = LoggerFactory.getLogger(RepairLog.class);
+
+    public static final int DEFAULT_CAPACITY = 1 << 12;
+
+    private final int capacity;
+    private final ConcurrentLinkedQueue<Divergence> divergences;
+    private final AtomicInteger size;
+
+    public RepairLog(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        this.capacity = capacity;
+        this.divergences = new ConcurrentLinkedQueue<>();
+        this.size = new AtomicInteger();
+    }
+
+    //Oldest entries are dropped once full; a later divergence on the same key supersedes them anyway
+    public void record(@NonNull Divergence divergence) {
+        LOG.debug("Replica {} diverged on [{}]: {} instead of {}", divergence.server(), divergence.command(),
+                divergence.reply(), divergence.agreed());
+
+        divergences.add(divergence);
+        if (size.incrementAndGet() > capacity && divergences.poll() != null) {
+            size.decrementAndGet();
+        }
+    }
+
+    public List<Divergence> drain() {
+        List<Divergence> drained = new ArrayList<>();
+        for (var divergence = divergences.poll(); divergence != null; divergence = divergences.poll()) {
+            size.decrementAndGet();
+            drained.add(divergence);
+        }
+        return drained;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public record Divergence(String key, String server, String command, String reply, String agreed) {}
+}
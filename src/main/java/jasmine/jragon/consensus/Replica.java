@@ -0,0 +1,15 @@
+package jasmine.jragon.consensus;
+
+import java.util.concurrent.CompletableFuture;
+
+public interface Replica {
+    String getAddress();
+
+    //Completes with the server's response, or exceptionally when the connection fails
+    CompletableFuture<String> send(String command);
+
+    //False while the server is believed down, so operations can count it out instead of waiting on it
+    default boolean isAvailable() {
+        return true;
+    }
+}
@@ -0,0 +1,161 @@
+package jasmine.jragon.consensus;
+
+import lombok.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+//Per-server response times and load shared by every operation of a client, plus how often reads had to hedge
+//or repair a stale replica and writes had to be hinted, and where each Raft group's leader was last found
+public final class ReplicaMetrics {
+    private static final int MIN_SAMPLES = 16;
+    //Placement order is kept unless a replica scores this much worse than the best, which keeps caches warm
+    private static final double BADNESS_THRESHOLD = 0.2;
+    //Sub-millisecond differences are noise, not a reason to move reads
+    private static final double SCORE_SLACK_MICROS = 200;
+
+    private final Map<String, LatencyTracker> latencies;
+    private final LongAdder hedgeableReads;
+    private final LongAdder hedges;
+    private final LongAdder hints;
+    private final LongAdder readRepairs;
+    private final Map<String, String> leaders;
+    private final LongAdder redirects;
+
+    public ReplicaMetrics() {
+        this.latencies = new ConcurrentHashMap<>();
+        this.hedgeableReads = new LongAdder();
+        this.hedges = new LongAdder();
+        this.hints = new LongAdder();
+        this.readRepairs = new LongAdder();
+        this.leaders = new ConcurrentHashMap<>();
+        this.redirects = new LongAdder();
+    }
+
+    CompletableFuture<String> timedSend(Replica replica, String command) {
+        var tracker = tracker(replica.getAddress());
+        long start = System.nanoTime();
+        tracker.started();
+        var response = replica.send(command);
+        response.whenComplete((reply, e) -> {
+            tracker.finished();
+            if (e == null) {
+                tracker.record((System.nanoTime() - start) / 1_000);
+            }
+        });
+        return response;
+    }
+
+    //Reorders a key's replicas best score first, like a dynamic snitch, once placement order has a clearly worse one
+    <R extends Replica> List<R> rankForReads(List<R> placement) {
+        if (placement.size() < 2) {
+            return placement;
+        }
+
+        long now = System.nanoTime();
+        Map<R, Double> scores = new HashMap<>();
+        for (var replica : placement) {
+            scores.put(replica, tracker(replica.getAddress()).score(now));
+        }
+
+        double best = Collections.min(scores.values());
+        double tolerated = best * (1 + BADNESS_THRESHOLD) + SCORE_SLACK_MICROS;
+        if (scores.values().stream().allMatch(score -> score <= tolerated)) {
+            return placement;
+        }
+
+        List<R> ranked = new ArrayList<>(placement);
+        ranked.sort(Comparator.comparingDouble(scores::get));
+        return ranked;
+    }
+
+    //Empty until the server has answered often enough for its percentile to mean anything
+    OptionalLong hedgeDelayMillis(Replica replica, double percentile) {
+        var tracker = tracker(replica.getAddress());
+        if (tracker.sampleCount() < MIN_SAMPLES) {
+            return OptionalLong.empty();
+        }
+
+        return OptionalLong.of(Math.max(1, (tracker.percentileMicros(percentile) + 999) / 1_000));
+    }
+
+    void recordHedgeableRead() {
+        hedgeableReads.increment();
+    }
+
+    void recordHedge() {
+        hedges.increment();
+    }
+
+    public long hedgeCount() {
+        return hedges.sum();
+    }
+
+    //Extra requests sent per read that had a spare replica to hedge to
+    public double hedgeRate() {
+        long reads = hedgeableReads.sum();
+        return reads == 0 ? 0.0 : (double) hedges.sum() / reads;
+    }
+
+    void recordHint() {
+        hints.increment();
+    }
+
+    //Writes parked on another server because their replica was suspected down
+    public long hintCount() {
+        return hints.sum();
+    }
+
+    void recordReadRepair() {
+        readRepairs.increment();
+    }
+
+    //Stale replicas a read sent the newest version to
+    public long readRepairCount() {
+        return readRepairs.sum();
+    }
+
+    void recordLeader(String group, String address) {
+        leaders.put(group, address);
+    }
+
+    Optional<String> leaderOf(String group) {
+        return Optional.ofNullable(leaders.get(group));
+    }
+
+    void recordRedirect() {
+        redirects.increment();
+    }
+
+    //Raft requests that reached a member other than the leader, or no member at all, and had to be sent again
+    public long redirectCount() {
+        return redirects.sum();
+    }
+
+    public long latencyPercentileMicros(@NonNull String address, double percentile) {
+        var tracker = latencies.get(address);
+        return tracker == null ? 0 : tracker.percentileMicros(percentile);
+    }
+
+    public double score(@NonNull String address) {
+        var tracker = latencies.get(address);
+        return tracker == null ? 0.0 : tracker.score(System.nanoTime());
+    }
+
+    void recordLatency(String address, long micros) {
+        tracker(address).record(micros);
+    }
+
+    private LatencyTracker tracker(String address) {
+        return latencies.computeIfAbsent(address, ignored -> new LatencyTracker());
+    }
+}
@@ -0,0 +1,52 @@
+package jasmine.jragon.consensus;
+
+import jasmine.jragon.command.ProtocolCommand;
+import lombok.NonNull;
+
+import java.util.Optional;
+
+import static jasmine.jragon.response.ServerResponse.VALUE_OR_NULL;
+
+//One "version ttl value" line of a GETV reply. Version 0 is either an absent key or a value written before versioning
+public record VersionedReply(long version, long ttlSeconds, @NonNull String value) {
+    public static Optional<VersionedReply> parse(@NonNull String line) {
+        var fields = line.split(" ", 3);
+        if (fields.length != 3) {
+            return Optional.empty();
+        }
+
+        try {
+            return Optional.of(new VersionedReply(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    public boolean isPresent() {
+        return !(version == 0 && ttlSeconds == 0 && VALUE_OR_NULL.toString().equals(value));
+    }
+
+    //Any value beats an absent one, then the higher version wins, then the larger value, as replicas break ties
+    public boolean isNewerThan(@NonNull VersionedReply other) {
+        if (isPresent() != other.isPresent()) {
+            return isPresent();
+        } else if (version != other.version) {
+            return version > other.version;
+        }
+        return value.compareTo(other.value) > 0;
+    }
+
+    //Unversioned values cannot be ordered against a stale copy, so they are never pushed to other replicas
+    public boolean isRepairable() {
+        return isPresent() && version > 0;
+    }
+
+    //A versioned PUT, which replicas apply only if it is newer than what they hold
+    public String repairCommand(@NonNull String key) {
+        var command = ProtocolCommand.WRITE.getCommandName() + " " + key + " " + value;
+        if (ttlSeconds > 0) {
+            command += " EX " + ttlSeconds;
+        }
+        return command + " VER " + version;
+    }
+}
@@ -0,0 +1,16 @@
+package jasmine.jragon.consensus;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+//Collects replica replies until they settle on the one an operation returns
+interface Vote {
+    void record(String response);
+
+    //A hedged request adds a replica whose reply the fallback has to wait for
+    void expect(int additionalReplicas);
+
+    Map<String, Integer> tally();
+
+    CompletableFuture<String> outcome();
+}
@@ -0,0 +1,33 @@
+package jasmine.jragon.network;
+
+import lombok.NonNull;
+
+import java.nio.charset.StandardCharsets;
+
+//Tagged requests travel as "#<id> <command>\n" and responses as "#<id> <byte length>\n<payload>",
+//so many requests can share one connection and be answered out of order. Untagged frames keep the
+//original one-command-per-read protocol that Client still speaks
+public record Frame(long id, String payload) {
+    public static final long UNTAGGED = -1;
+    public static final byte TAG = '#';
+    public static final byte TERMINATOR = '\n';
+    public static final int MAX_FRAME_BYTES = 1 << 20;
+
+    public boolean isTagged() {
+        return id != UNTAGGED;
+    }
+
+    public static byte[] encodeRequest(long id, @NonNull String command) {
+        return ("#" + id + " " + command + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static byte[] encodeResponse(long id, @NonNull String response) {
+        var payload = response.getBytes(StandardCharsets.UTF_8);
+        var header = ("#" + id + " " + payload.length + "\n").getBytes(StandardCharsets.UTF_8);
+
+        var frame = new byte[header.length + payload.length];
+        System.arraycopy(header, 0, frame, 0, header.length);
+        System.arraycopy(payload, 0, frame, header.length, payload.length);
+        return frame;
+    }
+}
@@ -0,0 +1,123 @@
+package jasmine.jragon.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+//Accumulates partial reads until whole frames are available. One decoder per connection and direction
+public final class FrameDecoder {
+    private final boolean decodesResponses;
+
+    private ByteBuffer pending;
+    //Payload length of the response whose header has been read, -1 while waiting on a header
+    private int payloadLength;
+    private long payloadId;
+
+    private FrameDecoder(boolean decodesResponses) {
+        this.decodesResponses = decodesResponses;
+        this.pending = ByteBuffer.allocate(256);
+        this.payloadLength = -1;
+    }
+
+    public static FrameDecoder forRequests() {
+        return new FrameDecoder(false);
+    }
+
+    public static FrameDecoder forResponses() {
+        return new FrameDecoder(true);
+    }
+
+    public List<Frame> decode(ByteBuffer incoming) throws IOException {
+        if (!decodesResponses && pending.position() == 0 && incoming.hasRemaining() &&
+                incoming.get(incoming.position()) != Frame.TAG) {
+            var command = StandardCharsets.UTF_8.decode(incoming).toString().trim();
+            return List.of(new Frame(Frame.UNTAGGED, command));
+        }
+
+        append(incoming);
+        pending.flip();
+
+        List<Frame> frames = new ArrayList<>();
+        try {
+            for (var frame = nextFrame(); frame != null; frame = nextFrame()) {
+                frames.add(frame);
+            }
+        } finally {
+            pending.compact();
+        }
+        return frames;
+    }
+
+    private Frame nextFrame() throws IOException {
+        if (payloadLength >= 0) {
+            if (pending.remaining() < payloadLength) {
+                return null;
+            }
+
+            var payload = new String(pending.array(), pending.position(), payloadLength, StandardCharsets.UTF_8);
+            pending.position(pending.position() + payloadLength);
+            payloadLength = -1;
+            return new Frame(payloadId, payload);
+        }
+
+        int end = indexOfTerminator();
+        if (end < 0) {
+            return null;
+        }
+
+        var line = new String(pending.array(), pending.position(), end - pending.position(), StandardCharsets.UTF_8);
+        pending.position(end + 1);
+
+        int space = line.indexOf(' ');
+        if (line.isEmpty() || line.charAt(0) != Frame.TAG || space < 0) {
+            throw new IOException("Malformed frame: " + line);
+        }
+
+        long id;
+        try {
+            id = Long.parseLong(line, 1, space, 10);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed frame id: " + line, e);
+        }
+
+        if (!decodesResponses) {
+            return new Frame(id, line.substring(space + 1).trim());
+        }
+
+        try {
+            payloadLength = Integer.parseInt(line, space + 1, line.length(), 10);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed frame length: " + line, e);
+        }
+        if (payloadLength < 0 || payloadLength > Frame.MAX_FRAME_BYTES) {
+            throw new IOException("Frame length out of range: " + line);
+        }
+        payloadId = id;
+        return nextFrame();
+    }
+
+    private int indexOfTerminator() throws IOException {
+        for (int i = pending.position(); i < pending.limit(); i++) {
+            if (pending.get(i) == Frame.TERMINATOR) {
+                return i;
+            }
+        }
+
+        if (pending.remaining() > Frame.MAX_FRAME_BYTES) {
+            throw new IOException("Frame exceeds " + Frame.MAX_FRAME_BYTES + " bytes");
+        }
+        return -1;
+    }
+
+    private void append(ByteBuffer incoming) {
+        if (pending.remaining() < incoming.remaining()) {
+            var grown = ByteBuffer.allocate(Math.max(pending.capacity() << 1, pending.position() + incoming.remaining()));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        pending.put(incoming);
+    }
+}
@@ -0,0 +1,53 @@
+package jasmine.jragon.raft;
+
+import lombok.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+record RaftEntry(long term, @NonNull String command) {
+    private static final char FIELD_SEPARATOR = ':';
+
+    //Entries travel as term:length:command, so a command's spaces never have to be escaped
+    static String encode(List<RaftEntry> entries) {
+        var encoded = new StringBuilder();
+        for (var entry : entries) {
+            if (!encoded.isEmpty()) {
+                encoded.append(' ');
+            }
+            encoded.append(entry.term)
+                    .append(FIELD_SEPARATOR)
+                    .append(entry.command.length())
+                    .append(FIELD_SEPARATOR)
+                    .append(entry.command);
+        }
+        return encoded.toString();
+    }
+
+    static List<RaftEntry> decode(String encoded) {
+        List<RaftEntry> entries = new ArrayList<>();
+        int position = 0;
+        while (position < encoded.length()) {
+            int termEnd = encoded.indexOf(FIELD_SEPARATOR, position);
+            int lengthEnd = termEnd < 0 ? -1 : encoded.indexOf(FIELD_SEPARATOR, termEnd + 1);
+            if (lengthEnd < 0) {
+                throw new IllegalArgumentException("Malformed entry at " + position);
+            }
+
+            long term = Long.parseLong(encoded, position, termEnd, 10);
+            int length = Integer.parseInt(encoded, termEnd + 1, lengthEnd, 10);
+            int end = lengthEnd + 1 + length;
+            if (length <= 0 || end > encoded.length()) {
+                throw new IllegalArgumentException("Entry at " + position + " runs past the message");
+            }
+
+            entries.add(new RaftEntry(term, encoded.substring(lengthEnd + 1, end)));
+            position = end + 1;
+        }
+        return entries;
+    }
+
+    int encodedLength() {
+        return command.length() + 24;
+    }
+}
@@ -0,0 +1,91 @@
+package jasmine.jragon.raft;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//One group's entries, term and vote. Indexes start at 1, index 0 stands for the empty log with term 0.
+//Every change is handed to the storage as it happens; restore rebuilds the same state from a replay without
+final class RaftLog {
+    private final String group;
+    private final RaftStorage storage;
+    private final List<RaftEntry> entries;
+
+    private long term;
+    private String votedFor;
+
+    RaftLog(String group, RaftStorage storage) {
+        this.group = group;
+        this.storage = storage;
+        this.entries = new ArrayList<>();
+    }
+
+    long term() {
+        return term;
+    }
+
+    String votedFor() {
+        return votedFor;
+    }
+
+    long lastIndex() {
+        return entries.size();
+    }
+
+    long lastTerm() {
+        return termAt(lastIndex());
+    }
+
+    long termAt(long index) {
+        return index <= 0 || index > lastIndex() ? 0 : entry(index).term();
+    }
+
+    RaftEntry entry(long index) {
+        return entries.get((int) (index - 1));
+    }
+
+    //Up to maxEntries from index on, cut short once the batch would pass maxChars
+    List<RaftEntry> slice(long index, int maxEntries, int maxChars) {
+        List<RaftEntry> batch = new ArrayList<>();
+        int chars = 0;
+        for (long i = index; i <= lastIndex() && batch.size() < maxEntries; i++) {
+            var entry = entry(i);
+            chars += entry.encodedLength();
+            if (!batch.isEmpty() && chars > maxChars) {
+                break;
+            }
+            batch.add(entry);
+        }
+        return batch;
+    }
+
+    void vote(long term, String votedFor) {
+        this.term = term;
+        this.votedFor = votedFor;
+        storage.hardState(group, term, votedFor);
+    }
+
+    long append(RaftEntry entry) {
+        entries.add(entry);
+        storage.entry(group, lastIndex(), entry);
+        return lastIndex();
+    }
+
+    //Writing at an index drops that entry and everything after it first, as when a follower's tail conflicts
+    void put(long index, RaftEntry entry) {
+        restore(index, entry);
+        storage.entry(group, index, entry);
+    }
+
+    void restore(long index, RaftEntry entry) {
+        if (index < 1 || index > lastIndex() + 1) {
+            throw new IllegalArgumentException("Entry " + index + " would leave a gap after " + lastIndex());
+        }
+        entries.subList((int) (index - 1), entries.size()).clear();
+        entries.add(entry);
+    }
+
+    void restoreHardState(long term, String votedFor) {
+        this.term = term;
+        this.votedFor = votedFor;
+    }
+}
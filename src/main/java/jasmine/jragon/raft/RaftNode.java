@@ -0,0 +1,516 @@
+package jasmine.jragon.raft;
+
+import jasmine.jragon.command.ProtocolCommand;
+import jasmine.jragon.command.WriteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static jasmine.jragon.command.ProtocolCommand.APPEND_ENTRIES;
+import static jasmine.jragon.command.ProtocolCommand.COMPARE_AND_SET;
+import static jasmine.jragon.command.ProtocolCommand.PING;
+import static jasmine.jragon.command.ProtocolCommand.REQUEST_VOTE;
+import static jasmine.jragon.command.ProtocolCommand.VERSIONED_MULTI_WRITE;
+import static jasmine.jragon.command.ProtocolCommand.WRITE;
+import static jasmine.jragon.response.ServerResponse.INSUFFICIENT_ARGUMENTS;
+import static jasmine.jragon.response.ServerResponse.INVALID_NUMBER;
+import static jasmine.jragon.response.ServerResponse.INVALID_RAFT_COMMAND;
+import static jasmine.jragon.response.ServerResponse.INVALID_WRITE_OPTION;
+import static jasmine.jragon.response.ServerResponse.NOT_LEADER;
+
+//This server's member of one Raft group (Ongaro & Ousterhout). Everything here runs on the server's selector
+//thread: requests come in through TreeClient, and peer replies are queued by RaftServer and run on its next tick
+final class RaftNode {
+    private static final Logger LOG = LoggerFactory.getLogger(RaftNode.class);
+
+    static final long HEARTBEAT_MILLIS = 50;
+    //Elections start after a random wait between this and twice this without hearing from a leader
+    static final long ELECTION_TIMEOUT_MILLIS = 300;
+    //Members that heard from the leader refuse candidates for ELECTION_TIMEOUT_MILLIS, so no rival can be elected
+    //while the lease runs. The last tenth is left unused in case the members' clocks run at different rates
+    static final long LEASE_MILLIS = ELECTION_TIMEOUT_MILLIS * 9 / 10;
+    static final int MAX_BATCH_ENTRIES = 64;
+    static final int MAX_BATCH_CHARS = 256 * 1024;
+    //Batches sent to one follower without waiting for the first to be acknowledged
+    static final int MAX_IN_FLIGHT = 4;
+    //Committed by every new leader, which is how it learns what its predecessors committed
+    static final String NO_OP = PING.getCommandName();
+
+    enum Role {FOLLOWER, CANDIDATE, LEADER}
+
+    private final String group;
+    private final String self;
+    private final List<String> peers;
+    private final RaftLog log;
+    private final RaftServer server;
+
+    private final Set<String> votes;
+    private final Map<String, Progress> progress;
+    private final Map<Long, CompletableFuture<String>> proposals;
+    private final ArrayDeque<PendingRead> reads;
+
+    private Role role;
+    private String leader;
+    private long commitIndex;
+    private long durableIndex;
+    private long electionDeadline;
+    private long lastLeaderContact;
+    private long leaderSince;
+    private long termStartIndex;
+
+    RaftNode(String group, String self, RaftLog log, RaftServer server) {
+        this.group = group;
+        this.self = self;
+        this.peers = Arrays.stream(group.split(","))
+                .filter(member -> !member.equals(self))
+                .toList();
+        this.log = log;
+        this.server = server;
+        this.votes = new HashSet<>();
+        this.progress = new HashMap<>();
+        this.proposals = new HashMap<>();
+        this.reads = new ArrayDeque<>();
+        this.role = Role.FOLLOWER;
+        this.lastLeaderContact = Long.MIN_VALUE / 2;
+        resetElectionTimer(server.now());
+    }
+
+    String self() {
+        return self;
+    }
+
+    Role role() {
+        return role;
+    }
+
+    String leader() {
+        return leader;
+    }
+
+    long term() {
+        return log.term();
+    }
+
+    long commitIndex() {
+        return commitIndex;
+    }
+
+    RaftLog log() {
+        return log;
+    }
+
+    //Replay stopped at the last commit the file recorded; the leader brings the rest later
+    void restoreCommit(long index) {
+        for (long i = commitIndex + 1; i <= Math.min(index, log.lastIndex()); i++) {
+            server.apply(log.entry(i).command());
+            commitIndex = i;
+        }
+    }
+
+    //Clients reach the group through any member; all but the leader answer with where the leader is
+    CompletableFuture<String> submit(String command) {
+        var tokens = command.trim().split(" +");
+        var protocol = ProtocolCommand.lookup(tokens[0]);
+        var arguments = Arrays.copyOfRange(tokens, 1, tokens.length);
+        if (!protocol.containsSufficientArguments(arguments.length)) {
+            return CompletableFuture.completedFuture(INSUFFICIENT_ARGUMENTS.toString());
+        } else if (role != Role.LEADER) {
+            return CompletableFuture.completedFuture(redirect());
+        }
+
+        return switch (protocol) {
+            case READ, CHECK, MULTI_READ, VERSIONED_READ -> read(protocol, arguments);
+            case WRITE, MULTI_WRITE, VERSIONED_MULTI_WRITE, COMPARE_AND_SET, INCREMENT_BY, APPEND, PUT_IF_ABSENT ->
+                    propose(protocol, arguments);
+            default -> CompletableFuture.completedFuture(INVALID_RAFT_COMMAND.toString());
+        };
+    }
+
+    //APPENDENTRIES <group> <self> <term> <leader> <prevIndex> <prevTerm> <leaderCommit> [entries], answered
+    //with "<term> <success> <index>": the last index now matching the leader, or on failure where to retry from.
+    //Acknowledging is promising the entries survive a crash, so the answer waits for the next flush
+    CompletableFuture<String> onAppend(long term, String from, long prevIndex, long prevTerm, long leaderCommit,
+                                       List<RaftEntry> entries) {
+        long now = server.now();
+        if (term < log.term()) {
+            return CompletableFuture.completedFuture(log.term() + " false " + log.lastIndex());
+        } else if (term > log.term() || role != Role.FOLLOWER) {
+            stepDown(term);
+        }
+
+        leader = from;
+        lastLeaderContact = now;
+        resetElectionTimer(now);
+
+        if (prevIndex > log.lastIndex()) {
+            return server.whenFlushed(term + " false " + log.lastIndex());
+        } else if (log.termAt(prevIndex) != prevTerm) {
+            return server.whenFlushed(term + " false " + (prevIndex - 1));
+        }
+
+        long index = prevIndex;
+        for (var entry : entries) {
+            index++;
+            if (index <= log.lastIndex() && log.termAt(index) == entry.term()) {
+                continue;
+            }
+            log.put(index, entry);
+            server.observe(entry.command());
+        }
+
+        if (leaderCommit > commitIndex) {
+            commitTo(Math.min(leaderCommit, index));
+        }
+        return server.whenFlushed(term + " true " + index);
+    }
+
+    //REQUESTVOTE <group> <self> <term> <candidate> <lastIndex> <lastTerm>, answered with "<term> <granted>"
+    //once the vote is on disk
+    CompletableFuture<String> onVote(long term, String candidate, long lastIndex, long lastTerm) {
+        long now = server.now();
+        //Ignoring candidates while a leader is heard from is what keeps that leader's lease safe
+        if (term < log.term() || role == Role.LEADER ||
+                (leader != null && now - lastLeaderContact < ELECTION_TIMEOUT_MILLIS)) {
+            return CompletableFuture.completedFuture(log.term() + " false");
+        } else if (term > log.term()) {
+            stepDown(term);
+        }
+
+        boolean upToDate = lastTerm > log.lastTerm() || (lastTerm == log.lastTerm() && lastIndex >= log.lastIndex());
+        boolean granted = upToDate && (log.votedFor() == null || log.votedFor().equals(candidate));
+        if (granted) {
+            log.vote(term, candidate);
+            resetElectionTimer(now);
+        }
+        return server.whenFlushed(log.term() + " " + granted);
+    }
+
+    //Called once the storage has been flushed, so everything in the log so far is durable
+    void persisted() {
+        durableIndex = log.lastIndex();
+    }
+
+    void tick() {
+        long now = server.now();
+        if (role != Role.LEADER) {
+            if (now >= electionDeadline) {
+                startElection(now);
+            }
+            return;
+        }
+
+        //A leader no majority has answered for a while is most likely cut off, and stepping down fails its
+        //waiting requests over to a leader that can serve them
+        if (!peers.isEmpty() && now - Math.max(leaseStart(), leaderSince) > 2 * ELECTION_TIMEOUT_MILLIS) {
+            LOG.info("{} lost touch with group {} and steps down in term {}", self, group, log.term());
+            stepDown(log.term());
+            return;
+        }
+
+        advanceCommit();
+        replicate(now);
+        serveReads(now);
+    }
+
+    private void startElection(long now) {
+        role = Role.CANDIDATE;
+        leader = null;
+        log.vote(log.term() + 1, self);
+        votes.clear();
+        votes.add(self);
+        resetElectionTimer(now);
+        //A vote for itself not on disk could be cast again for another candidate after a crash
+        if (!server.flush()) {
+            return;
+        }
+        LOG.debug("{} stands for election in group {} for term {}", self, group, log.term());
+
+        if (votes.size() >= majority()) {
+            becomeLeader(now);
+            return;
+        }
+
+        long term = log.term();
+        for (var peer : peers) {
+            var request = REQUEST_VOTE.getCommandName() + " " + group + " " + peer + " " + term + " " + self + " " +
+                    log.lastIndex() + " " + log.lastTerm();
+            server.send(peer, request)
+                    .whenComplete((reply, e) -> server.post(() -> onVoteReply(peer, term, e == null ? reply : null)));
+        }
+    }
+
+    private void onVoteReply(String peer, long requestTerm, String reply) {
+        var fields = reply == null ? new String[0] : reply.split(" ");
+        if (fields.length != 2) {
+            return;
+        }
+
+        long term;
+        try {
+            term = Long.parseLong(fields[0]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        if (term > log.term()) {
+            stepDown(term);
+        } else if (role == Role.CANDIDATE && log.term() == requestTerm && Boolean.parseBoolean(fields[1])) {
+            votes.add(peer);
+            if (votes.size() >= majority()) {
+                becomeLeader(server.now());
+            }
+        }
+    }
+
+    private void becomeLeader(long now) {
+        role = Role.LEADER;
+        leader = self;
+        leaderSince = now;
+        progress.clear();
+        for (var peer : peers) {
+            progress.put(peer, new Progress(log.lastIndex() + 1));
+        }
+        termStartIndex = log.append(new RaftEntry(log.term(), NO_OP));
+        LOG.info("{} leads group {} in term {}", self, group, log.term());
+    }
+
+    private void stepDown(long term) {
+        if (term > log.term()) {
+            log.vote(term, null);
+        }
+
+        if (role == Role.LEADER) {
+            leader = null;
+            //The entries may still commit under the next leader, which is why callers are only told to retry
+            var failed = redirect();
+            proposals.values().forEach(reply -> reply.complete(failed));
+            proposals.clear();
+            reads.forEach(read -> read.reply().complete(failed));
+            reads.clear();
+        }
+        role = Role.FOLLOWER;
+        resetElectionTimer(server.now());
+    }
+
+    private CompletableFuture<String> propose(ProtocolCommand protocol, String[] arguments) {
+        var command = stamp(protocol, arguments);
+        if (command.isEmpty()) {
+            return CompletableFuture.completedFuture(protocol == WRITE || protocol.isAtomicWrite() ?
+                    INVALID_WRITE_OPTION.toString() :
+                    INVALID_NUMBER.toString());
+        }
+
+        var reply = new CompletableFuture<String>();
+        proposals.put(log.append(new RaftEntry(log.term(), command)), reply);
+        return reply;
+    }
+
+    //The log orders writes, so the leader versions every one itself and drops whatever version a client sent.
+    //Versions then only grow along the log, and a TTL counts from the version's wall time on every member alike
+    private String stamp(ProtocolCommand protocol, String[] arguments) {
+        if (protocol == WRITE || protocol.isAtomicWrite()) {
+            //Atomic writes are decided as each member applies them, on equal trees, so they decide alike
+            int optionsAt = protocol == COMPARE_AND_SET ? 3 : 2;
+            var options = WriteOptions.parse(arguments, optionsAt);
+            return options.map(parsed -> String.join(" ", protocol.getCommandName(),
+                            String.join(" ", Arrays.copyOf(arguments, optionsAt)),
+                            new WriteOptions(parsed.ttlSeconds(), server.versions().next()).format()))
+                    .orElse("");
+        }
+
+        int pairsFrom = 0;
+        if (protocol == VERSIONED_MULTI_WRITE) {
+            try {
+                Long.parseLong(arguments[0]);
+            } catch (NumberFormatException e) {
+                return "";
+            }
+            pairsFrom = 1;
+        }
+        return VERSIONED_MULTI_WRITE.getCommandName() + " " + server.versions().next() + " " +
+                String.join(" ", Arrays.copyOfRange(arguments, pairsFrom, arguments.length));
+    }
+
+    //Served from this member's tree while the lease holds and this term's first entry has committed, since every
+    //write acknowledged before is then applied here. Otherwise the read waits for the next round of acks
+    private CompletableFuture<String> read(ProtocolCommand protocol, String[] arguments) {
+        long now = server.now();
+        if (reads.isEmpty() && canServeReads(now)) {
+            return CompletableFuture.completedFuture(server.read(protocol, arguments));
+        }
+
+        var reply = new CompletableFuture<String>();
+        reads.add(new PendingRead(protocol, arguments, reply));
+        return reply;
+    }
+
+    private void serveReads(long now) {
+        while (!reads.isEmpty() && canServeReads(now)) {
+            var read = reads.poll();
+            read.reply().complete(server.read(read.protocol(), read.arguments()));
+        }
+    }
+
+    private boolean canServeReads(long now) {
+        return role == Role.LEADER && commitIndex >= termStartIndex && now < leaseStart() + LEASE_MILLIS;
+    }
+
+    //When the latest round a majority answered was sent, counting this member as always answering at once
+    private long leaseStart() {
+        if (peers.isEmpty()) {
+            return server.now();
+        }
+
+        var acknowledged = progress.values()
+                .stream()
+                .map(Progress::acknowledgedSentAt)
+                .sorted(Comparator.reverseOrder())
+                .toList();
+        return acknowledged.get(majority() - 2);
+    }
+
+    //Pipelined: up to MAX_IN_FLIGHT batches go to a follower before the first is acknowledged. A follower with
+    //nothing new still gets an empty batch every HEARTBEAT_MILLIS, which holds its vote and renews the lease
+    private void replicate(long now) {
+        for (var peer : peers) {
+            var follower = progress.get(peer);
+            boolean heartbeatDue = now - follower.lastSentAt >= HEARTBEAT_MILLIS;
+            while (follower.inFlight < MAX_IN_FLIGHT && (follower.nextIndex <= log.lastIndex() || heartbeatDue)) {
+                sendAppend(peer, follower, log.slice(follower.nextIndex, MAX_BATCH_ENTRIES, MAX_BATCH_CHARS), now);
+                heartbeatDue = false;
+            }
+        }
+    }
+
+    private void sendAppend(String peer, Progress follower, List<RaftEntry> batch, long now) {
+        long prevIndex = follower.nextIndex - 1;
+        var request = new StringBuilder(APPEND_ENTRIES.getCommandName())
+                .append(' ').append(group)
+                .append(' ').append(peer)
+                .append(' ').append(log.term())
+                .append(' ').append(self)
+                .append(' ').append(prevIndex)
+                .append(' ').append(log.termAt(prevIndex))
+                .append(' ').append(commitIndex);
+        if (!batch.isEmpty()) {
+            request.append(' ').append(RaftEntry.encode(batch));
+        }
+
+        follower.nextIndex += batch.size();
+        follower.inFlight++;
+        follower.lastSentAt = now;
+
+        long term = log.term();
+        server.send(peer, request.toString())
+                .whenComplete((reply, e) -> server.post(() -> onAppendReply(peer, term, now, e == null ? reply : null)));
+    }
+
+    private void onAppendReply(String peer, long requestTerm, long sentAt, String reply) {
+        var follower = progress.get(peer);
+        if (role != Role.LEADER || log.term() != requestTerm || follower == null) {
+            return;
+        }
+        follower.inFlight = Math.max(0, follower.inFlight - 1);
+
+        var fields = reply == null ? new String[0] : reply.split(" ");
+        long term;
+        long index;
+        try {
+            if (fields.length != 3) {
+                throw new NumberFormatException(reply);
+            }
+            term = Long.parseLong(fields[0]);
+            index = Long.parseLong(fields[2]);
+        } catch (NumberFormatException e) {
+            //Lost or garbled: everything past what the follower confirmed goes out again
+            follower.nextIndex = follower.matchIndex + 1;
+            return;
+        }
+
+        if (term > log.term()) {
+            stepDown(term);
+            return;
+        }
+
+        follower.acknowledgedSentAt = Math.max(follower.acknowledgedSentAt, sentAt);
+        if (Boolean.parseBoolean(fields[1])) {
+            follower.matchIndex = Math.max(follower.matchIndex, index);
+            follower.nextIndex = Math.max(follower.nextIndex, follower.matchIndex + 1);
+            advanceCommit();
+        } else {
+            follower.nextIndex = Math.max(follower.matchIndex + 1, Math.min(follower.nextIndex, index + 1));
+        }
+        serveReads(server.now());
+    }
+
+    //The highest index a majority holds, once it is from this term; earlier entries commit along with it
+    private void advanceCommit() {
+        List<Long> matched = new ArrayList<>();
+        matched.add(durableIndex);
+        progress.values().forEach(follower -> matched.add(follower.matchIndex));
+        matched.sort(Comparator.reverseOrder());
+
+        long candidate = matched.get(majority() - 1);
+        if (candidate > commitIndex && log.termAt(candidate) == log.term()) {
+            commitTo(candidate);
+        }
+    }
+
+    private void commitTo(long index) {
+        if (index <= commitIndex) {
+            return;
+        }
+
+        for (long i = commitIndex + 1; i <= index; i++) {
+            var result = server.apply(log.entry(i).command());
+            var proposal = proposals.remove(i);
+            if (proposal != null) {
+                proposal.complete(result);
+            }
+        }
+        commitIndex = index;
+        server.storage().commit(group, index);
+    }
+
+    private String redirect() {
+        return leader == null || leader.equals(self) ? NOT_LEADER.toString() : NOT_LEADER + " " + leader;
+    }
+
+    private int majority() {
+        return (peers.size() + 1) / 2 + 1;
+    }
+
+    private void resetElectionTimer(long now) {
+        electionDeadline = now + server.electionTimeout();
+    }
+
+    private static final class Progress {
+        private long nextIndex;
+        private long matchIndex;
+        private int inFlight;
+        private long lastSentAt;
+        private long acknowledgedSentAt;
+
+        private Progress(long nextIndex) {
+            this.nextIndex = nextIndex;
+            this.lastSentAt = Long.MIN_VALUE / 2;
+            this.acknowledgedSentAt = Long.MIN_VALUE / 2;
+        }
+
+        private long acknowledgedSentAt() {
+            return acknowledgedSentAt;
+        }
+    }
+
+    private record PendingRead(ProtocolCommand protocol, String[] arguments, CompletableFuture<String> reply) {}
+}
@@ -0,0 +1,292 @@
+package jasmine.jragon.raft;
+
+import jasmine.jragon.clock.HybridClock;
+import jasmine.jragon.command.ProtocolCommand;
+import jasmine.jragon.command.WriteOptions;
+import jasmine.jragon.response.ServerResponse;
+import jasmine.jragon.tree.BTree;
+import lombok.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.LongSupplier;
+
+import static jasmine.jragon.response.ServerResponse.INSUFFICIENT_ARGUMENTS;
+import static jasmine.jragon.response.ServerResponse.INVALID_NUMBER;
+import static jasmine.jragon.response.ServerResponse.INVALID_RAFT_GROUP;
+
+//Every Raft group this server is a member of. A group is named by its members' addresses joined with commas, and
+//every message names the member it is for, so a server joins a group the first time it hears of it.
+//The groups share one log file that replaces the tree's own log: at startup the tree is rebuilt by replaying the
+//committed entries of every group
+public final class RaftServer implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(RaftServer.class);
+
+    //Heartbeats leave every RaftNode.HEARTBEAT_MILLIS, which the server's selector has to wake up often enough for
+    public static final long TICK_MILLIS = 10;
+
+    private final BTree tree;
+    private final RaftStorage storage;
+    private final RaftTransport transport;
+    private final LongSupplier clock;
+    private final Random random;
+    private final Runnable wakeup;
+    private final HybridClock versions;
+    private final Map<String, RaftNode> groups;
+    private final Queue<Runnable> inbox;
+
+    private CompletableFuture<Void> nextFlush;
+
+    RaftServer(BTree tree, RaftStorage storage, RaftTransport transport,
+               LongSupplier clock, Random random, Runnable wakeup) {
+        this.tree = tree;
+        this.storage = storage;
+        this.transport = transport;
+        this.clock = clock;
+        this.random = random;
+        this.wakeup = wakeup;
+        this.versions = new HybridClock(clock);
+        this.groups = new HashMap<>();
+        this.inbox = new ConcurrentLinkedQueue<>();
+        this.nextFlush = new CompletableFuture<>();
+    }
+
+    //The tree should be empty and unlogged: whatever it holds comes from the Raft log
+    public static RaftServer open(@NonNull File logFile, @NonNull BTree tree,
+                                  @NonNull RaftTransport transport, @NonNull Runnable wakeup) throws IOException {
+        return open(logFile, tree, transport, System::currentTimeMillis, new Random(), wakeup);
+    }
+
+    static RaftServer open(File logFile, BTree tree, RaftTransport transport,
+                           LongSupplier clock, Random random, Runnable wakeup) throws IOException {
+        var server = new RaftServer(tree, RaftStorage.open(logFile), transport, clock, random, wakeup);
+
+        Map<String, Long> commits = new HashMap<>();
+        RaftStorage.replay(logFile, record -> {
+            try {
+                server.restore(record, commits);
+            } catch (RuntimeException e) {
+                LOG.warn("Skipping malformed Raft record {}: {}", Arrays.toString(record), e.getMessage());
+            }
+        });
+
+        commits.forEach((group, index) -> {
+            var node = server.groups.get(group);
+            if (node != null) {
+                node.restoreCommit(index);
+            }
+        });
+        server.groups.values().forEach(RaftNode::persisted);
+        LOG.info("Replayed {} Raft groups into {} keys", server.groups.size(), tree.keyCount());
+        return server;
+    }
+
+    private void restore(String[] record, Map<String, Long> commits) {
+        switch (record[0]) {
+            case RaftStorage.GROUP -> groups.computeIfAbsent(record[1], group ->
+                    new RaftNode(group, record[2], new RaftLog(group, storage), this));
+            case RaftStorage.HARD_STATE -> node(record[1]).log()
+                    .restoreHardState(Long.parseLong(record[2]), RaftStorage.NO_VOTE.equals(record[3]) ? null : record[3]);
+            case RaftStorage.ENTRY -> {
+                node(record[1]).log()
+                        .restore(Long.parseLong(record[2]), new RaftEntry(Long.parseLong(record[3]), record[4]));
+                observe(record[4]);
+            }
+            case RaftStorage.COMMIT -> commits.merge(record[1], Long.parseLong(record[2]), Math::max);
+            default -> throw new IllegalArgumentException("Unknown record type " + record[0]);
+        }
+    }
+
+    private RaftNode node(String group) {
+        var node = groups.get(group);
+        if (node == null) {
+            throw new IllegalArgumentException("Group " + group + " was never created");
+        }
+        return node;
+    }
+
+    //RAFT <group> <self> <command>, APPENDENTRIES and REQUESTVOTE, the arguments exactly as they arrived
+    public CompletableFuture<String> handle(@NonNull ProtocolCommand protocol, @NonNull String arguments) {
+        var fields = arguments.trim().split(" +", protocol == ProtocolCommand.RAFT ? 3 : 8);
+        if (!protocol.containsSufficientArguments(fields.length)) {
+            return CompletableFuture.completedFuture(INSUFFICIENT_ARGUMENTS.toString());
+        }
+
+        var node = join(fields[0], fields[1]);
+        if (node.isEmpty()) {
+            return CompletableFuture.completedFuture(INVALID_RAFT_GROUP.toString());
+        }
+
+        try {
+            return switch (protocol) {
+                case RAFT -> node.get().submit(fields[2]);
+                case APPEND_ENTRIES -> node.get().onAppend(
+                        Long.parseLong(fields[2]),
+                        fields[3],
+                        Long.parseLong(fields[4]),
+                        Long.parseLong(fields[5]),
+                        Long.parseLong(fields[6]),
+                        fields.length == 8 ? RaftEntry.decode(fields[7]) : List.of()
+                );
+                case REQUEST_VOTE -> node.get().onVote(
+                        Long.parseLong(fields[2]),
+                        fields[3],
+                        Long.parseLong(fields[4]),
+                        Long.parseLong(fields[5])
+                );
+                default -> CompletableFuture.completedFuture(ServerResponse.UNSUPPORTED_COMMAND.toString());
+            };
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(INVALID_NUMBER.toString());
+        }
+    }
+
+    //Runs every peer reply that came in since the last tick, then lets each group time out, replicate and commit.
+    //The log is flushed first, so whatever was appended since the last tick goes to disk in one write, and the
+    //answers waiting on it go out together. A flush that fails acknowledges nothing, and is retried next tick
+    public void tick() {
+        if (storage.flush()) {
+            groups.values().forEach(RaftNode::persisted);
+            var flushed = nextFlush;
+            nextFlush = new CompletableFuture<>();
+            flushed.complete(null);
+        }
+
+        for (var task = inbox.poll(); task != null; task = inbox.poll()) {
+            task.run();
+        }
+        groups.values().forEach(RaftNode::tick);
+    }
+
+    public int groupCount() {
+        return groups.size();
+    }
+
+    public long leaderCount() {
+        return groups.values()
+                .stream()
+                .filter(node -> node.role() == RaftNode.Role.LEADER)
+                .count();
+    }
+
+    Optional<RaftNode> group(String group) {
+        return Optional.ofNullable(groups.get(group));
+    }
+
+    //A member address may only be named for a group once, and must be one of the group's members
+    private Optional<RaftNode> join(String group, String self) {
+        var existing = groups.get(group);
+        if (existing != null) {
+            return existing.self().equals(self) ? Optional.of(existing) : Optional.empty();
+        }
+
+        var members = List.of(group.split(","));
+        if (!members.contains(self) || Set.copyOf(members).size() != members.size()) {
+            return Optional.empty();
+        }
+
+        storage.group(group, self);
+        var node = new RaftNode(group, self, new RaftLog(group, storage), this);
+        groups.put(group, node);
+        LOG.debug("Joined Raft group {} as {}", group, self);
+        return Optional.of(node);
+    }
+
+    long now() {
+        return clock.getAsLong();
+    }
+
+    long electionTimeout() {
+        return RaftNode.ELECTION_TIMEOUT_MILLIS + random.nextInt((int) RaftNode.ELECTION_TIMEOUT_MILLIS);
+    }
+
+    HybridClock versions() {
+        return versions;
+    }
+
+    RaftStorage storage() {
+        return storage;
+    }
+
+    boolean flush() {
+        return storage.flush();
+    }
+
+    CompletableFuture<String> whenFlushed(String reply) {
+        return nextFlush.thenApply(ignored -> reply);
+    }
+
+    CompletableFuture<String> send(String address, String command) {
+        try {
+            return transport.send(address, command);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    //Peer replies complete on the transport's threads, so they wait here for the selector thread
+    void post(Runnable task) {
+        inbox.add(task);
+        wakeup.run();
+    }
+
+    //Writes in the log carry a version, which this server's clock moves past so any it issues as leader come later
+    void observe(String command) {
+        var tokens = command.split(" +");
+        var protocol = ProtocolCommand.lookup(tokens[0]);
+        try {
+            if (protocol == ProtocolCommand.WRITE || protocol.isAtomicWrite()) {
+                WriteOptions.parse(tokens, protocol == ProtocolCommand.COMPARE_AND_SET ? 4 : 3)
+                        .ifPresent(options -> versions.observe(options.version()));
+            } else if (protocol == ProtocolCommand.VERSIONED_MULTI_WRITE && tokens.length > 1) {
+                versions.observe(Long.parseLong(tokens[1]));
+            }
+        } catch (NumberFormatException e) {
+            LOG.warn("Entry [{}] has a malformed version", command);
+        }
+    }
+
+    //Every member applies the same entries in the same order with the same versions, so their trees end up equal.
+    //A TTL counts from when the leader versioned the write rather than from when this member applied it
+    String apply(String command) {
+        var tokens = command.split(" +");
+        var protocol = ProtocolCommand.lookup(tokens[0]);
+        var arguments = Arrays.copyOfRange(tokens, 1, tokens.length);
+        return switch (protocol) {
+            case WRITE -> {
+                var options = WriteOptions.parse(arguments, 2).orElse(WriteOptions.NONE);
+                long expiresAt = options.expires() ?
+                        HybridClock.wallMillisOf(options.version()) + options.ttlSeconds() * 1000 :
+                        0;
+                var old = tree.put(arguments[0], arguments[1], expiresAt, options.version());
+                yield ServerResponse.VALUE_OR_NULL.useOrDefault(String.valueOf(old));
+            }
+            case VERSIONED_MULTI_WRITE -> protocol.handleRequest(arguments, Set.of(), tree);
+            case COMPARE_AND_SET, INCREMENT_BY, APPEND, PUT_IF_ABSENT ->
+                    protocol.handleAtomicRequest(arguments, Set.of(), tree,
+                            options -> HybridClock.wallMillisOf(options.version()) + options.ttlSeconds() * 1000);
+            default -> ServerResponse.NONE.toString();
+        };
+    }
+
+    String read(ProtocolCommand protocol, String[] arguments) {
+        return protocol.handleRequest(arguments, Set.of(), tree);
+    }
+
+    @Override
+    public void close() {
+        storage.close();
+    }
+}
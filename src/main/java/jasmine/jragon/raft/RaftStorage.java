@@ -0,0 +1,126 @@
+package jasmine.jragon.raft;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+//The one append-only file every group on a server logs to, which in Raft mode is also the server's write-ahead log.
+//G <group> <self> creates a group, S <group> <term> <vote> records a term and vote, E <group> <index> <term> <command>
+//an entry (replacing any at or after its index) and C <group> <index> how far the group has committed.
+//Records are buffered and reach the disk together on flush, so a whole tick's appends cost one sync
+final class RaftStorage implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(RaftStorage.class);
+
+    static final String GROUP = "G";
+    static final String HARD_STATE = "S";
+    static final String ENTRY = "E";
+    static final String COMMIT = "C";
+    static final String NO_VOTE = "-";
+
+    private final FileChannel channel;
+    private final StringBuilder pending;
+
+    //Records taken from pending for a write that failed part way, and whether anything written is not yet synced
+    private ByteBuffer unwritten;
+    private boolean unsynced;
+
+    RaftStorage(FileChannel channel) {
+        this.channel = channel;
+        this.pending = new StringBuilder();
+    }
+
+    static RaftStorage open(File file) throws IOException {
+        return new RaftStorage(FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+    }
+
+    static RaftStorage inMemory() {
+        return new RaftStorage(null);
+    }
+
+    //Hands every record to the consumer split into its fields, the command of an entry kept whole
+    static void replay(File file, Consumer<String[]> record) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        try (var lines = Files.lines(file.toPath(), StandardCharsets.UTF_8)) {
+            lines.filter(line -> !line.isBlank())
+                    .map(line -> line.split(" ", line.startsWith(ENTRY + " ") ? 5 : 4))
+                    .forEach(record);
+        }
+    }
+
+    void group(String group, String self) {
+        append(GROUP + " " + group + " " + self);
+    }
+
+    void hardState(String group, long term, String votedFor) {
+        append(HARD_STATE + " " + group + " " + term + " " + (votedFor == null ? NO_VOTE : votedFor));
+    }
+
+    void entry(String group, long index, RaftEntry entry) {
+        append(ENTRY + " " + group + " " + index + " " + entry.term() + " " + entry.command());
+    }
+
+    void commit(String group, long index) {
+        append(COMMIT + " " + group + " " + index);
+    }
+
+    //False when the records did not all reach the disk. Nothing is dropped: the next flush carries on from the
+    //first byte not written and syncs again
+    boolean flush() {
+        if (channel == null) {
+            pending.setLength(0);
+            return true;
+        }
+
+        try {
+            while (unwritten != null || !pending.isEmpty()) {
+                if (unwritten == null) {
+                    unwritten = ByteBuffer.wrap(pending.toString().getBytes(StandardCharsets.UTF_8));
+                    pending.setLength(0);
+                }
+
+                unsynced = true;
+                while (unwritten.hasRemaining()) {
+                    channel.write(unwritten);
+                }
+                unwritten = null;
+            }
+
+            if (unsynced) {
+                channel.force(false);
+                unsynced = false;
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.error("Writing the Raft log failed", e);
+            return false;
+        }
+    }
+
+    private void append(String record) {
+        pending.append(record).append('\n');
+    }
+
+    @Override
+    public void close() {
+        flush();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Closing the Raft log failed: {}", e.getMessage());
+            }
+        }
+    }
+}
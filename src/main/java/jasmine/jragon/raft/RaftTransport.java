@@ -0,0 +1,9 @@
+package jasmine.jragon.raft;
+
+import java.util.concurrent.CompletableFuture;
+
+//How one group member reaches another. Replies may complete on any thread
+@FunctionalInterface
+public interface RaftTransport {
+    CompletableFuture<String> send(String address, String command);
+}
@@ -7,10 +7,28 @@ public enum ServerResponse {
     NONE(""),
     SUCCESS("Successful command: "),
     ACKNOWLEDGED("Command acknowledged"),
+    PONG("PONG"),
     INSUFFICIENT_ARGUMENTS("Incorrect Number of Arguments on Command"),
     DUPLICATE_KEYS("Duplicate Keys detected in TRANSACT"),
     UNSUPPORTED_COMMAND("Unsupported command"),
     INVALID_TRANSACTION_COMMAND("Invalid Transaction Command"),
+    INVALID_NUMBER("Argument must be a whole number"),
+    INVALID_WRITE_OPTION("Unrecognized or malformed write option"),
+    INVALID_QUORUM("Invalid replication factor or quorum size"),
+    INVALID_HINT("Only single-line PUT, MPUT and MPUTV commands can be hinted"),
+    INVALID_REPLICATION("Only versioned PUT and MPUTV commands and atomic writes can be replicated"),
+    REPLICATION_INCOMPLETE("Write stored on fewer replicas than required"),
+    NOT_LEADER("Not the leader of this Raft group"),
+    INVALID_RAFT_GROUP("Raft group does not list this server as a member"),
+    INVALID_RAFT_COMMAND("Only key reads and writes can go through a Raft group"),
+    RAFT_REQUIRED("Writes on this server must go through its Raft groups"),
+    NO_COORDINATOR("This server was not given a cluster to coordinate"),
+    INVALID_MEMBERSHIP("Membership must be an epoch and comma-separated host:port lists"),
+    STALE_MEMBERSHIP("Membership is older than the one this server holds"),
+    MEMBERSHIP_REFUSED("Membership change refused: "),
+    REBALANCED("Keys moved: "),
+    REBALANCE_IN_PROGRESS("Transactions cannot start while keys move between servers"),
+    ATOMIC_WRITE_REBALANCING("Atomic writes cannot run while keys move between servers"),
     VALUE_OR_NULL("null") {
         @Override
         public String useOrDefault(String newValue) {
@@ -19,10 +37,18 @@ public enum ServerResponse {
     },
     KEY_LOCKED_ISSUE("Requested key(s) is locked"),
     TRANSACTION_DNE("No such transaction exists"),
+    SNAPSHOT_IN_PROGRESS("Snapshot already open"),
+    SNAPSHOT_DNE("No such snapshot exists"),
     EMPTY_TRANSACTION("Transaction has no history. Nothing committed"),
     TRANSACTION_IN_PROGRESS("Transaction In Progress"),
     TRANSACTION_EXPIRED_ISSUE("Transaction expired"),
     TRANSACTION_DOES_NOT_HAVE_KEY("Transaction does not have key"),
+    TRANSACTION_STARTED("Transaction started & expires at "),
+    TRANSACTION_PREPARED("Transaction prepared"),
+    TRANSACTION_NOT_PREPARED("Transaction must be prepared before it is committed"),
+    TRANSACTION_COMMITTED("Transaction committed"),
+    TRANSACTION_ABORTED("Transaction aborted"),
+    INVALID_DECISION("Decision must be COMMIT or ABORT"),
     NO_WRITES_ISSUE("No writes submitted"),
     SHUTDOWN_IN_PROGRESS("Shutdown in progress. Cannot accept new commands"),
     KEY_DOES_NOT_EXIST_IN_QUORUM("Key does not exist within current quorum"),
@@ -1,5 +1,6 @@
 package jasmine.jragon.tree;
 
+import jasmine.jragon.clock.HybridClock;
 import lombok.NonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,20 +9,52 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 public final class BTree {
     public static final String LOG_DELIMITER = "=";
+    public static final int MERKLE_DEPTH = MerkleIndex.DEPTH;
 
     static final int MIN_DEGREE = 2;
 
+    private static final int PRUNE_SLICE = 4;
+    private static final int FILTER_SLICE = 16;
+    private static final int EXPIRE_SLICE = 64;
+    private static final long NEVER_EXPIRES = 0;
+
     private static final Logger LOG = LoggerFactory.getLogger(BTree.class);
 
     private final int degree;
     private final EntryLogger logger;
 
+    private final ValueCodec codec = new ValueCodec(ValueCodec.DEFAULT_THRESHOLD);
+    private final KeyFilter keyFilter = new KeyFilter();
+    private final MerkleIndex merkle = new MerkleIndex();
+    private final TreeMap<Long, Integer> openSnapshots = new TreeMap<>();
+    private final Set<String> multiVersionKeys = new LinkedHashSet<>();
+
+    private LongSupplier clock = System::currentTimeMillis;
+    private final HybridClock versions = new HybridClock(() -> clock.getAsLong());
+    private ExpirationWheel expirations = new ExpirationWheel(ExpirationWheel.DEFAULT_TICK_MILLIS, clock.getAsLong());
+
     private BTreeNode root;
+    //Last key added to the key filter being rebuilt
+    private String filterCursor;
+    private long commitStamp;
+    private int batchDepth;
+    private long rawValueSize;
+    private long storedValueSize;
 
     public BTree(int degree) {
         validateDegree(degree);
@@ -48,6 +81,7 @@ public final class BTree {
         logger.setReconstructing(true);
         reconstruct(reconstructionFile);
         logger.setReconstructing(false);
+        rebuildKeyFilter();
     }
 
     public BTree(int degree, @NonNull String loggingFileName, int bufferSize) {
@@ -68,33 +102,213 @@ public final class BTree {
         logger.setReconstructing(true);
         reconstruct(reconstructionFile);
         logger.setReconstructing(false);
+        rebuildKeyFilter();
     }
 
     public String put(@NonNull String key, @NonNull String value) {
+        return put(key, value, NEVER_EXPIRES);
+    }
+
+    public String put(@NonNull String key, @NonNull String value, long expiresAt) {
+        return write(key, value, expiresAt, versions.next());
+    }
+
+    //Last writer wins: a write older than the stored value is dropped, so replicated, hinted and repaired
+    //writes can arrive in any order. Equal versions fall back to the larger value so every replica agrees
+    public String put(@NonNull String key, @NonNull String value, long expiresAt, long version) {
+        versions.observe(version);
+
+        var head = find(key);
+        if (head != null && head.isLive(clock.getAsLong()) &&
+                (head.getVersion() > version || (head.getVersion() == version && head.getValue().compareTo(value) >= 0))) {
+            return head.getValue();
+        }
+        return write(key, value, expiresAt, version);
+    }
+
+    private String write(String key, String value, long expiresAt, long writeVersion) {
         if (root == null) {
             root = new BTreeNode(degree);
         }
 
-        if (!root.isFull()) {
-            var old = root.insert(key, value);
-            logger.put(key, value);
-            return old;
+        var version = codec.encode(value, nextStamp(), expiresAt, writeVersion);
+        var old = insertAtRoot(key, version);
+        logger.put(key, value, expiresAt, writeVersion);
+        keyFilter.add(key);
+        trackValueSize(version, old);
+
+        //Replicas compute their own deadlines, so keys with a TTL are left to expire rather than be repaired
+        if (expiresAt == NEVER_EXPIRES) {
+            merkle.put(key, value, writeVersion);
+        } else {
+            merkle.remove(key);
+        }
+
+        if (expiresAt != NEVER_EXPIRES) {
+            expirations.schedule(key, expiresAt);
         }
 
-        var nextRoot = new BTreeNode(degree);
-        nextRoot.children[0] = root;
-        nextRoot.splitChild(0, root);
+        if (old != null && !version.prune(oldestVisibleStamp())) {
+            multiVersionKeys.add(key);
+        }
+        pruneVersions(PRUNE_SLICE);
 
-        int i = nextRoot.findLocation(key);
+        if (keyFilter.needsRebuild()) {
+            keyFilter.startRebuild(root.getKeyCount());
+            filterCursor = null;
+        }
+        rebuildKeyFilterSlice(FILTER_SLICE);
 
-        if (i < 0)
-            i = -i - 1;
+        return old == null || !old.isLive(clock.getAsLong()) ? null : old.getValue();
+    }
 
-        var v = nextRoot.children[i].insert(key, value);
-        logger.put(key, value);
-        root = nextRoot;
+    //Insertion splits full nodes on the way down, so a full root is split first
+    private ValueVersion insertAtRoot(String key, ValueVersion version) {
+        if (root.isFull()) {
+            var nextRoot = new BTreeNode(degree);
+            nextRoot.children[0] = root;
+            nextRoot.splitChild(0, root);
+            root = nextRoot;
+        }
 
-        return v;
+        return root.insert(key, version);
+    }
+
+    public Optional<String> remove(@NonNull String key) {
+        return remove(key, clock.getAsLong());
+    }
+
+    private Optional<String> remove(String key, long removedAt) {
+        var head = find(key);
+        if (head == null || head.isTombstone()) {
+            return Optional.empty();
+        }
+
+        var removedValue = head.isLive(clock.getAsLong()) ? head.getValue() : null;
+        logger.remove(key, removedAt);
+        trackValueSize(null, head);
+        merkle.remove(key);
+
+        if (openSnapshots.isEmpty()) {
+            deleteNode(key);
+        } else {
+            //An open snapshot may still read the old value, so the pair is only unlinked once pruning allows it
+            var tombstone = ValueVersion.tombstone(nextStamp());
+            insertAtRoot(key, tombstone);
+            if (!tombstone.prune(oldestVisibleStamp())) {
+                multiVersionKeys.add(key);
+            } else {
+                deleteNode(key);
+            }
+        }
+
+        return Optional.ofNullable(removedValue);
+    }
+
+    public long deadlineAfter(long ttlMillis) {
+        return clock.getAsLong() + ttlMillis;
+    }
+
+    //Removes at most budget expired keys so a caller on an event loop never stalls on a large expiry wave. A key
+    //filter rebuild under way moves on by as many keys, so one finishes on an idle tree too
+    public int expireSlice(int budget) {
+        int expired = expire(budget);
+        rebuildKeyFilterSlice(budget);
+        return expired;
+    }
+
+    private int expire(int budget) {
+        long now = clock.getAsLong();
+        expirations.advance(now);
+
+        int expired = 0;
+        List<ExpirationWheel.Timer> early = new ArrayList<>();
+        for (int i = 0; i < budget; i++) {
+            var timer = expirations.pollDue();
+            if (timer == null) {
+                break;
+            }
+
+            var head = find(timer.key());
+            //Timers are never cancelled, a newer write may have replaced or extended the entry since
+            if (head == null || head.isTombstone() || head.getExpiresAt() != timer.expiresAt()) {
+                continue;
+            } else if (!head.isExpired(now)) {
+                early.add(timer);
+                continue;
+            }
+
+            remove(timer.key(), timer.expiresAt());
+            LOG.info("Key {} expired", timer.key());
+            expired++;
+        }
+
+        early.forEach(timer -> expirations.schedule(timer.key(), timer.expiresAt()));
+        return expired;
+    }
+
+    //Order statistics count keys rather than read them, so expired keys are removed first to agree with get. Only a
+    //slice goes per call, as on a selector tick, so a large expiry wave is counted until it has been worked off
+    private void expireDue() {
+        expire(EXPIRE_SLICE);
+    }
+
+    void setClock(@NonNull LongSupplier clock) {
+        this.clock = clock;
+        this.expirations = new ExpirationWheel(ExpirationWheel.DEFAULT_TICK_MILLIS, clock.getAsLong());
+    }
+
+    //0 stores every value uncompressed
+    public void setCompressionThreshold(int thresholdChars) {
+        codec.setThreshold(thresholdChars);
+    }
+
+    public TreeStatistics statistics() {
+        return new TreeStatistics(
+                keyCount(),
+                nodeCount(),
+                root == null ? 0 : root.getRawKeyChars(),
+                root == null ? 0 : root.getStoredKeyChars(),
+                rawValueSize,
+                storedValueSize,
+                openSnapshotCount(),
+                expirations.getScheduledCount(),
+                keyFilter.expectedFalsePositiveRate(),
+                keyFilter.observedFalsePositiveRate()
+        );
+    }
+
+    public <T> T atomically(@NonNull Supplier<T> batch) {
+        batchDepth++;
+        try {
+            return batch.get();
+        } finally {
+            if (--batchDepth == 0) {
+                commitStamp++;
+            }
+        }
+    }
+
+    public long openSnapshot() {
+        openSnapshots.merge(commitStamp, 1, Integer::sum);
+        return commitStamp;
+    }
+
+    public boolean releaseSnapshot(long snapshot) {
+        if (!openSnapshots.containsKey(snapshot)) {
+            return false;
+        }
+
+        openSnapshots.computeIfPresent(snapshot, (stamp, count) -> count == 1 ? null : count - 1);
+        pruneVersions(PRUNE_SLICE);
+        return true;
+    }
+
+    public int openSnapshotCount() {
+        return openSnapshots.values()
+                .stream()
+                .mapToInt(Integer::intValue)
+                .sum();
     }
 
     public Optional<String> get(@NonNull String key) {
@@ -102,9 +316,50 @@ public final class BTree {
             throw new IllegalArgumentException("Key is empty");
         }
 
-        return root != null ?
-                Optional.ofNullable(root.search(key)) :
-                Optional.empty();
+        long now = clock.getAsLong();
+        return Optional.ofNullable(find(key))
+                .filter(head -> head.isLive(now))
+                .map(ValueVersion::getValue);
+    }
+
+    public Optional<String> get(@NonNull String key, long snapshot) {
+        if (key.isEmpty()) {
+            throw new IllegalArgumentException("Key is empty");
+        }
+
+        long now = clock.getAsLong();
+        return Optional.ofNullable(find(key))
+                .map(head -> head.visibleAt(snapshot))
+                .filter(version -> version.isLive(now))
+                .map(ValueVersion::getValue);
+    }
+
+    public Optional<VersionedValue> getVersioned(@NonNull String key) {
+        if (key.isEmpty()) {
+            throw new IllegalArgumentException("Key is empty");
+        }
+
+        long now = clock.getAsLong();
+        return Optional.ofNullable(find(key))
+                .filter(head -> head.isLive(now))
+                .map(head -> versioned(head, now));
+    }
+
+    public Optional<VersionedValue> getVersioned(@NonNull String key, long snapshot) {
+        if (key.isEmpty()) {
+            throw new IllegalArgumentException("Key is empty");
+        }
+
+        long now = clock.getAsLong();
+        return Optional.ofNullable(find(key))
+                .map(head -> head.visibleAt(snapshot))
+                .filter(version -> version.isLive(now))
+                .map(version -> versioned(version, now));
+    }
+
+    private static VersionedValue versioned(ValueVersion version, long now) {
+        long ttlSeconds = version.getExpiresAt() == NEVER_EXPIRES ? 0 : (version.getExpiresAt() - now + 999) / 1000;
+        return new VersionedValue(version.getValue(), version.getVersion(), ttlSeconds);
     }
 
     public boolean contains(@NonNull String key) {
@@ -112,10 +367,69 @@ public final class BTree {
             throw new IllegalArgumentException("Key is empty");
         }
 
-        return root != null && root.search(key) != null;
+        var head = find(key);
+        return head != null && head.isLive(clock.getAsLong());
+    }
+
+    public boolean contains(@NonNull String key, long snapshot) {
+        return get(key, snapshot).isPresent();
+    }
+
+    //Keys that were never written are answered by the filter without descending the tree
+    private ValueVersion find(String key) {
+        if (root == null || !keyFilter.mightContain(key)) {
+            return null;
+        }
+
+        var head = root.search(key);
+        if (head == null) {
+            keyFilter.recordFalsePositive();
+        }
+        return head;
+    }
+
+    //Only recovery rebuilds the whole filter at once, before the tree serves anything
+    private void rebuildKeyFilter() {
+        keyFilter.rebuild(root == null ? 0 : root.getKeyCount(), action -> {
+            if (root != null) {
+                root.forEachKey(action);
+            }
+        });
+        filterCursor = null;
+    }
+
+    //Otherwise a new filter is filled a slice of keys at a time while the old one keeps answering. Keys written in
+    //the meantime go to both, so the new filter is complete once the walk reaches the last key
+    private void rebuildKeyFilterSlice(int budget) {
+        if (!keyFilter.isRebuilding()) {
+            return;
+        }
+
+        var remaining = new AtomicInteger(budget);
+        boolean finished = root == null || root.forEachKeyAfter(filterCursor, key -> {
+            keyFilter.addToRebuild(key);
+            filterCursor = key;
+            return remaining.decrementAndGet() > 0;
+        });
+
+        if (finished) {
+            keyFilter.finishRebuild();
+            filterCursor = null;
+        }
+    }
+
+    //Digest of the keys without a TTL in one node of the Merkle tree, level 0 being the root
+    public long merkleDigest(int level, int index) {
+        return merkle.digest(level, index);
+    }
+
+    //Entry hashes of one bottom-level Merkle bucket, keyed by key
+    public Map<String, Long> merkleBucket(int bucket) {
+        return merkle.entries(bucket);
     }
 
     public long keyCount() {
+        expireDue();
         return root == null ? 0 : root.getKeyCount();
     }
 
@@ -123,21 +437,121 @@ public final class BTree {
         return root == null ? 0 : root.getNodeCount();
     }
 
+    public long rank(@NonNull String key) {
+        if (key.isEmpty()) {
+            throw new IllegalArgumentException("Key is empty");
+        }
+
+        expireDue();
+        return root == null ? 0 : root.countLessThan(key);
+    }
+
+    public long countRange(@NonNull String startKey, @NonNull String endKey) {
+        if (startKey.compareTo(endKey) > 0) {
+            return 0;
+        }
+
+        long endRank = rank(endKey) + (contains(endKey) ? 1 : 0);
+        return endRank - rank(startKey);
+    }
+
+    public Optional<String> select(long rank) {
+        expireDue();
+        if (root == null || rank < 0 || rank >= root.getKeyCount()) {
+            return Optional.empty();
+        }
+
+        return Optional.ofNullable(root.select(rank));
+    }
+
+    //Up to limit keys in order, starting past after, or from the first key when after is null
+    public List<String> keysAfter(String after, int limit) {
+        expireDue();
+        if (root == null || limit <= 0) {
+            return List.of();
+        }
+
+        long rank = after == null ? 0 : rank(after);
+        if (after != null && after.equals(root.select(rank))) {
+            rank++;
+        }
+
+        List<String> keys = new ArrayList<>();
+        for (long end = Math.min(root.getKeyCount(), rank + limit); rank < end; rank++) {
+            keys.add(root.select(rank));
+        }
+        return keys;
+    }
+
+    private void deleteNode(String key) {
+        root.delete(key);
+        keyFilter.recordRemoval();
+
+        if (root.getPairCount() == 0) {
+            root = root.isLeaf() ? null : root.children[0];
+        }
+    }
+
+    private void trackValueSize(ValueVersion current, ValueVersion replaced) {
+        if (current != null) {
+            rawValueSize += current.rawSize();
+            storedValueSize += current.storedSize();
+        }
+
+        if (replaced != null) {
+            rawValueSize -= replaced.rawSize();
+            storedValueSize -= replaced.storedSize();
+        }
+    }
+
+    private long nextStamp() {
+        return batchDepth > 0 ? commitStamp + 1 : ++commitStamp;
+    }
+
+    private long oldestVisibleStamp() {
+        return openSnapshots.isEmpty() ? Long.MAX_VALUE : openSnapshots.firstKey();
+    }
+
+    private void pruneVersions(int budget) {
+        if (multiVersionKeys.isEmpty()) {
+            return;
+        }
+
+        long oldestVisible = oldestVisibleStamp();
+        Iterator<String> iterator = multiVersionKeys.iterator();
+        for (int i = 0; i < budget && iterator.hasNext(); i++) {
+            var key = iterator.next();
+            var head = find(key);
+            if (head == null || head.prune(oldestVisible)) {
+                iterator.remove();
+
+                if (head != null && head.isTombstone()) {
+                    deleteNode(key);
+                }
+            }
+        }
+    }
+
     public void shutdownGracefully() {
         logger.flushImmediately();
     }
 
+    //False when the log could not reach the disk, in which case writes since the last sync may not survive a crash
+    public boolean forceLog() {
+        return logger.force();
+    }
+
     private void reconstruct(File file) {
         if (file.exists() && file.isFile()) {
             try (var lines = new BufferedReader(new FileReader(file)).lines()) {
                 lines.map(line -> line.split(LOG_DELIMITER))
                         .filter(line -> {
-                if (line.length != 2) {
+                if (line.length < 2 || line.length > 4) {
                     LOG.warn("{} is an anomaly", Arrays.toString(line));
                     return false;
                 }
                 return true;
-            }).forEach(line -> put(line[0], line[1]));
+            }).forEach(this::replay);
             } catch (IOException e) {
                 LOG.error("Error reading file {}. Cannot reconstruct", file.getAbsolutePath(), e);
             }
@@ -146,6 +560,32 @@ public final class BTree {
         }
     }
 
+    //The log is already in apply order, so replay writes entries as they are rather than comparing versions.
+    //Entries from before versioning have 2 or 3 fields and replay as version 0, older than any versioned write
+    private void replay(String[] entry) {
+        if (entry.length == 2) {
+            write(entry[0], entry[1], NEVER_EXPIRES, 0);
+            return;
+        }
+
+        try {
+            long expiresAt = Long.parseLong(entry[2]);
+            long version = entry.length == 4 ? Long.parseLong(entry[3]) : 0;
+            versions.observe(version);
+
+            //Covers both entries that lapsed while the server was down and logged removals
+            if (expiresAt == NEVER_EXPIRES) {
+                write(entry[0], entry[1], NEVER_EXPIRES, version);
+            } else if (expiresAt <= clock.getAsLong()) {
+                remove(entry[0]);
+            } else {
+                write(entry[0], entry[1], expiresAt, version);
+            }
+        } catch (NumberFormatException e) {
+            LOG.warn("{} has a malformed expiration or version", Arrays.toString(entry));
+        }
+    }
+
     private static void validateDegree(int degree) {
         if (degree < MIN_DEGREE)
             throw new IllegalArgumentException("Degree must be >= " + MIN_DEGREE);
@@ -1,13 +1,12 @@
 package jasmine.jragon.tree;
 
-import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NonNull;
 
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Objects;
-import java.util.stream.Stream;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 final class BTreeNode {
     final BTreeNode[] children;
@@ -17,6 +16,14 @@ final class BTreeNode {
     @Getter
     private int pairCount;
     private int childCount;
+    //Tombstones kept for open snapshots are not keys, so they are left out of the count and of every rank
+    private long subtreeKeyCount;
+    private int subtreeNodeCount;
+    private long subtreeRawKeyChars;
+    private long subtreeStoredKeyChars;
+
+    //Every key in this node starts with keyPrefix, so the pairs only hold what follows it
+    private String keyPrefix;
 
     BTreeNode(int degree) {
         if (degree < BTree.MIN_DEGREE) {
@@ -28,66 +35,87 @@ final class BTreeNode {
         this.degree = degree;
         pairCount = 0;
         childCount = 0;
+        subtreeKeyCount = 0;
+        subtreeNodeCount = 1;
+        keyPrefix = "";
     }
 
-    String insert(@NonNull String key, @NonNull String value) {
+    ValueVersion insert(@NonNull String key, @NonNull ValueVersion version) {
         if (key.isEmpty()) {
             throw new IllegalArgumentException("key must not be empty");
         }
 
-        var pair = new KVPair(key, value);
-        int index = findLocation(pair);
+        int index = findLocation(key);
 
         if (index >= 0 || isLeaf()) {
-            return handleSimpleInsert(pair);
+            return handleSimpleInsert(key, version);
         } else {
             index = -index - 1;
 
             if (children[index].isFull()) {
                 splitChild(index, children[index]);
 
-                if (pairs[index].compareTo(key) < 0)
+                int comparison = fullKey(index).compareTo(key);
+                if (comparison == 0)
+                    return handleSimpleInsert(key, version);
+                else if (comparison < 0)
                     index++;
             }
 
-            return children[index].insert(key, value);
+            var old = children[index].insert(key, version);
+            updateSubtreeCounts();
+            return old;
         }
     }
 
-    private String handleSimpleInsert(KVPair pair) {
-        if (pairCount == 0) {
-            pairs[pairCount++] = pair;
-            return null;
-        }
-
-        int index = findLocation(pair);
+    private ValueVersion handleSimpleInsert(String key, ValueVersion version) {
+        int index = findLocation(key);
 
         if (index >= 0) {
-            var old = pairs[index].value;
-            pairs[index].value = pair.value;
+            var old = pairs[index].head;
+            version.supersede(old);
+            pairs[index].head = version;
+            updateSubtreeCounts();
             return old;
         }
 
-        int dest = -index - 1;
-        for (int i = pairCount; i > dest; i--) {
-            pairs[i] = pairs[i - 1];
-        }
-        pairs[dest] = pair;
-        pairCount++;
+        placePair(-index - 1, key, version);
+        updateSubtreeCounts();
         return null;
     }
 
     int findLocation(@NonNull String key) {
-        return findLocation(new KVPair(key));
-    }
+        if (!key.startsWith(keyPrefix)) {
+            //Every stored key extends the prefix, so the key sorts before or after all of them
+            return key.compareTo(keyPrefix) < 0 ? -1 : -(pairCount + 1);
+        }
+
+        int offset = keyPrefix.length();
+        int low = 0;
+        int high = pairCount - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compareSuffix(pairs[middle].suffix, key, offset);
 
-    private int findLocation(KVPair pair) {
-        return Arrays.binarySearch(pairs, pair, KVPair.SEARCH_PARAMETER);
+            if (comparison < 0)
+                low = middle + 1;
+            else if (comparison > 0)
+                high = middle - 1;
+            else
+                return middle;
+        }
+
+        return -(low + 1);
     }
 
     void splitChild(int i, @NonNull BTreeNode child) {
+        var promotedKey = child.fullKey(degree - 1);
+        var promotedHead = child.pairs[degree - 1].head;
+
         var split = new BTreeNode(child.degree);
         split.pairCount = degree - 1;
+        split.keyPrefix = child.keyPrefix;
 
         System.arraycopy(child.pairs, degree, split.pairs, 0, degree - 1);
 
@@ -100,6 +128,10 @@ final class BTreeNode {
         }
 
         child.pairCount = degree - 1;
+        Arrays.fill(child.pairs, degree - 1, child.pairs.length, null);
+
+        child.recompress();
+        split.recompress();
 
         for (int j = pairCount; j >= i + 1; j--)
             children[j + 1] = children[j];
@@ -107,22 +139,148 @@ final class BTreeNode {
         children[i + 1] = split;
         updateChildCount();
 
-        for (int j = pairCount - 1; j >= i; j--)
-            pairs[j + 1] = pairs[j];
+        placePair(i, promotedKey, promotedHead);
 
-        pairs[i] = child.pairs[degree - 1];
-        pairCount++;
-        Arrays.fill(child.pairs, degree - 1, child.pairs.length, null);
+        child.updateSubtreeCounts();
+        split.updateSubtreeCounts();
+        updateSubtreeCounts();
     }
 
-    String search(@NonNull String key) {
+    ValueVersion delete(@NonNull String key) {
+        int index = findLocation(key);
+        ValueVersion removed;
+
+        if (index >= 0) {
+            removed = isLeaf() ?
+                    removePairAt(index).head() :
+                    deleteFromInternal(index, key);
+        } else if (isLeaf()) {
+            return null;
+        } else {
+            int childIndex = prepareChildForDeletion(-index - 1);
+            removed = children[childIndex].delete(key);
+        }
+
+        updateSubtreeCounts();
+        return removed;
+    }
+
+    private ValueVersion deleteFromInternal(int index, String key) {
+        var left = children[index];
+        var right = children[index + 1];
+        var removed = pairs[index].head;
+
+        if (left.pairCount >= degree) {
+            var predecessor = left.maximum();
+            replacePairAt(index, predecessor);
+            left.delete(predecessor.key());
+            return removed;
+        } else if (right.pairCount >= degree) {
+            var successor = right.minimum();
+            replacePairAt(index, successor);
+            right.delete(successor.key());
+            return removed;
+        }
+
+        mergeChildren(index);
+        return left.delete(key);
+    }
+
+    //Guarantees the child we descend into can give up a key, returning where that child now sits
+    private int prepareChildForDeletion(int index) {
+        if (children[index].pairCount >= degree) {
+            return index;
+        } else if (index > 0 && children[index - 1].pairCount >= degree) {
+            borrowFromLeft(index);
+            return index;
+        } else if (index < pairCount && children[index + 1].pairCount >= degree) {
+            borrowFromRight(index);
+            return index;
+        } else if (index < pairCount) {
+            mergeChildren(index);
+            return index;
+        }
+
+        mergeChildren(index - 1);
+        return index - 1;
+    }
+
+    private void borrowFromLeft(int index) {
+        var child = children[index];
+        var sibling = children[index - 1];
+
+        var moved = sibling.removePairAt(sibling.pairCount - 1);
+        var separator = entryAt(index - 1);
+        child.placePair(0, separator.key(), separator.head());
+        replacePairAt(index - 1, moved);
+
+        if (!sibling.isLeaf()) {
+            child.insertChildAt(0, sibling.removeChildAt(sibling.childCount - 1));
+        }
+
+        sibling.updateSubtreeCounts();
+        child.updateSubtreeCounts();
+    }
+
+    private void borrowFromRight(int index) {
+        var child = children[index];
+        var sibling = children[index + 1];
+
+        var moved = sibling.removePairAt(0);
+        var separator = entryAt(index);
+        child.placePair(child.pairCount, separator.key(), separator.head());
+        replacePairAt(index, moved);
+
+        if (!sibling.isLeaf()) {
+            child.insertChildAt(child.childCount, sibling.removeChildAt(0));
+        }
+
+        sibling.updateSubtreeCounts();
+        child.updateSubtreeCounts();
+    }
+
+    private void mergeChildren(int index) {
+        var left = children[index];
+        var right = children[index + 1];
+
+        var separator = removePairAt(index);
+        left.placePair(left.pairCount, separator.key(), separator.head());
+
+        for (int j = 0; j < right.pairCount; j++) {
+            left.placePair(left.pairCount, right.fullKey(j), right.pairs[j].head);
+        }
+        for (int j = 0; j < right.childCount; j++) {
+            left.insertChildAt(left.childCount, right.children[j]);
+        }
+
+        removeChildAt(index + 1);
+        left.updateSubtreeCounts();
+    }
+
+    private Entry maximum() {
+        var node = this;
+        while (!node.isLeaf()) {
+            node = node.children[node.childCount - 1];
+        }
+        return node.entryAt(node.pairCount - 1);
+    }
+
+    private Entry minimum() {
+        var node = this;
+        while (!node.isLeaf()) {
+            node = node.children[0];
+        }
+        return node.entryAt(0);
+    }
+
+    ValueVersion search(@NonNull String key) {
         if (pairCount == 0)
             return null;
 
-        int index = findLocation(new KVPair(key));
+        int index = findLocation(key);
 
         if (index >= 0)
-            return pairs[index].value;
+            return pairs[index].head;
 
         if (isLeaf())
             return null;
@@ -142,52 +300,211 @@ final class BTreeNode {
 
     @Override
     public String toString() {
-        return String.format("Nodes %s - Child Count: %d - Pairs: %d", Arrays.toString(pairs), childCount, pairCount);
+        return String.format("Nodes %s* %s - Child Count: %d - Pairs: %d",
+                keyPrefix, Arrays.toString(pairs), childCount, pairCount);
     }
 
     long getKeyCount() {
-        return getKeyCount(this);
+        return subtreeKeyCount;
+    }
+
+    int getNodeCount() {
+        return subtreeNodeCount;
+    }
+
+    long getRawKeyChars() {
+        return subtreeRawKeyChars;
+    }
+
+    long getStoredKeyChars() {
+        return subtreeStoredKeyChars;
     }
 
-    private long getKeyCount(BTreeNode node) {
-        if (node == null)
-            return 0;
+    long countLessThan(@NonNull String key) {
+        int index = findLocation(key);
+        int position = index >= 0 ? index : -index - 1;
+        long count = 0;
 
-        Stream.Builder<String> builder = Stream.builder();
-        extractKeysFromChildren(node, builder);
+        for (int i = 0; i < position; i++) {
+            if (isKey(i))
+                count++;
+            if (!isLeaf())
+                count += children[i].subtreeKeyCount;
+        }
 
-        return builder.build()
-                .distinct()
-                .count();
+        if (isLeaf())
+            return count;
+
+        return index >= 0 ?
+                count + children[index].subtreeKeyCount :
+                count + children[position].countLessThan(key);
     }
 
-    private void extractKeysFromChildren(BTreeNode node, Stream.Builder<String> builder) {
-        if (node != null) {
-            Arrays.stream(node.pairs)
-                    .takeWhile(Objects::nonNull)
-                    .map(KVPair::getKey)
-                    .forEach(builder);
+    String select(long rank) {
+        for (int i = 0; i <= pairCount; i++) {
+            if (!isLeaf()) {
+                long childKeys = children[i].subtreeKeyCount;
+                if (rank < childKeys)
+                    return children[i].select(rank);
+                rank -= childKeys;
+            }
 
-            for (BTreeNode child : node.children) {
-                extractKeysFromChildren(child, builder);
+            if (i < pairCount && isKey(i)) {
+                if (rank == 0)
+                    return fullKey(i);
+                rank--;
             }
         }
+
+        return null;
     }
 
-    int getNodeCount() {
-        return getNodeCount(this);
+    void forEachKey(Consumer<String> action) {
+        for (int i = 0; i < pairCount; i++) {
+            if (!isLeaf())
+                children[i].forEachKey(action);
+            action.accept(fullKey(i));
+        }
+
+        if (!isLeaf())
+            children[pairCount].forEachKey(action);
+    }
+
+    //Visits the keys past after in order, or every key when after is null, tombstones included, until action
+    //returns false. Returns true when it ran out of keys
+    boolean forEachKeyAfter(String after, Predicate<String> action) {
+        int index = after == null ? -1 : findLocation(after);
+        int position = index >= 0 ? index + 1 : -index - 1;
+
+        if (!isLeaf() && !children[position].forEachKeyAfter(index >= 0 ? null : after, action))
+            return false;
+
+        for (int i = position; i < pairCount; i++) {
+            if (!action.test(fullKey(i)))
+                return false;
+            if (!isLeaf() && !children[i + 1].forEachKeyAfter(null, action))
+                return false;
+        }
+
+        return true;
+    }
+
+    void updateSubtreeCounts() {
+        long keys = 0;
+        int nodes = 1;
+        long suffixChars = 0;
+        for (int i = 0; i < pairCount; i++) {
+            suffixChars += pairs[i].suffix.length();
+            if (isKey(i))
+                keys++;
+        }
+
+        long rawKeyChars = suffixChars + (long) pairCount * keyPrefix.length();
+        long storedKeyChars = pairCount == 0 ? 0 : suffixChars + keyPrefix.length();
+
+        for (int i = 0; i < childCount; i++) {
+            keys += children[i].subtreeKeyCount;
+            nodes += children[i].subtreeNodeCount;
+            rawKeyChars += children[i].subtreeRawKeyChars;
+            storedKeyChars += children[i].subtreeStoredKeyChars;
+        }
+
+        subtreeKeyCount = keys;
+        subtreeNodeCount = nodes;
+        subtreeRawKeyChars = rawKeyChars;
+        subtreeStoredKeyChars = storedKeyChars;
+    }
+
+    private boolean isKey(int index) {
+        return !pairs[index].head.isTombstone();
     }
 
-    private int getNodeCount(BTreeNode node) {
-        if (node == null)
-            return 0;
+    private String fullKey(int index) {
+        return keyPrefix + pairs[index].suffix;
+    }
 
-        int n = 1;
-        for (BTreeNode child : node.children) {
-            n += getNodeCount(child);
+    private Entry entryAt(int index) {
+        return new Entry(fullKey(index), pairs[index].head);
+    }
+
+    private void replacePairAt(int index, Entry entry) {
+        removePairAt(index);
+        placePair(index, entry.key(), entry.head());
+    }
+
+    private Entry removePairAt(int index) {
+        var removed = entryAt(index);
+
+        for (int j = index; j < pairCount - 1; j++) {
+            pairs[j] = pairs[j + 1];
         }
+        pairs[--pairCount] = null;
+
+        recompress();
+        return removed;
+    }
 
-        return n;
+    private void insertChildAt(int index, BTreeNode child) {
+        for (int j = childCount; j > index; j--) {
+            children[j] = children[j - 1];
+        }
+        children[index] = child;
+        childCount++;
+    }
+
+    private BTreeNode removeChildAt(int index) {
+        var removed = children[index];
+
+        for (int j = index; j < childCount - 1; j++) {
+            children[j] = children[j + 1];
+        }
+        children[--childCount] = null;
+
+        return removed;
+    }
+
+    private void placePair(int dest, String key, ValueVersion head) {
+        if (pairCount == 0) {
+            keyPrefix = key;
+        } else if (!key.startsWith(keyPrefix)) {
+            shortenPrefix(commonPrefixLength(keyPrefix, key));
+        }
+
+        for (int j = pairCount; j > dest; j--) {
+            pairs[j] = pairs[j - 1];
+        }
+
+        pairs[dest] = new KVPair(key.substring(keyPrefix.length()), head);
+        pairCount++;
+    }
+
+    private void shortenPrefix(int length) {
+        var released = keyPrefix.substring(length);
+        for (int i = 0; i < pairCount; i++) {
+            pairs[i].suffix = released + pairs[i].suffix;
+        }
+        keyPrefix = keyPrefix.substring(0, length);
+    }
+
+    //Keys are sorted, so the prefix shared by the first and last key is shared by all of them
+    private void recompress() {
+        if (pairCount == 0) {
+            keyPrefix = "";
+            return;
+        }
+
+        var first = fullKey(0);
+        var last = fullKey(pairCount - 1);
+        int length = commonPrefixLength(first, last);
+
+        if (length == keyPrefix.length()) {
+            return;
+        }
+
+        for (int i = 0; i < pairCount; i++) {
+            pairs[i].suffix = fullKey(i).substring(length);
+        }
+        keyPrefix = first.substring(0, length);
     }
 
     private void updateChildCount() {
@@ -196,35 +513,44 @@ final class BTreeNode {
                 .count());
     }
 
-    private static final class KVPair implements Comparable<KVPair> {
-        private static final Comparator<KVPair> SEARCH_PARAMETER = Comparator.nullsLast(KVPair::compareTo);
+    private static int commonPrefixLength(String left, String right) {
+        int limit = Math.min(left.length(), right.length());
+        int i = 0;
+        while (i < limit && left.charAt(i) == right.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
 
-        @Getter(value = AccessLevel.PRIVATE)
-        private final String key;
-        private String value;
+    //Same ordering as suffix.compareTo(key.substring(offset)) without allocating the substring
+    private static int compareSuffix(String suffix, String key, int offset) {
+        int keyLength = key.length() - offset;
+        int limit = Math.min(suffix.length(), keyLength);
 
-        public KVPair(String key, String value) {
-            this.key = key;
-            this.value = value;
+        for (int i = 0; i < limit; i++) {
+            int difference = suffix.charAt(i) - key.charAt(offset + i);
+            if (difference != 0) {
+                return difference;
+            }
         }
 
-        public KVPair(String key) {
-            this.key = key;
-            this.value = "";
-        }
+        return suffix.length() - keyLength;
+    }
 
-        @Override
-        public int compareTo(KVPair o) {
-            return key.compareTo(o.key);
-        }
+    private record Entry(String key, ValueVersion head) {}
+
+    private static final class KVPair {
+        private String suffix;
+        private ValueVersion head;
 
-        public int compareTo(String key) {
-            return this.key.compareTo(key);
+        public KVPair(String suffix, ValueVersion head) {
+            this.suffix = suffix;
+            this.head = head;
         }
 
         @Override
         public String toString() {
-            return key + " -> " + value;
+            return suffix + " -> " + head;
         }
     }
 }
@@ -44,15 +44,21 @@ final class EntryLogger {
 //        this.futures = new ArrayList<>();
     }
 
-    void put(String key, String value) {
+    //key=value=expiresAt=version, with 0 for a value that never expires
+    void put(String key, String value, long expiresAt, long version) {
+        append(key + BTree.LOG_DELIMITER + value + BTree.LOG_DELIMITER + expiresAt + BTree.LOG_DELIMITER + version + '\n');
+    }
+
+    //Logged as an entry that expired at the moment of removal so replay drops the key
+    void remove(String key, long removedAt) {
+        append(key + BTree.LOG_DELIMITER + BTree.LOG_DELIMITER + removedAt + '\n');
+    }
+
+    private void append(String line) {
         if (!isReconstructing && logging) {
-            buffer[clock++] = key + BTree.LOG_DELIMITER + value + '\n';
+            buffer[clock++] = line;
 
             if (clock == buffer.length) {
-                clock = 0;
-            }
-
-            if (clock == 0) {
 //                var copy = Arrays.copyOf(buffer, buffer.length);
 //                var f = CompletableFuture.runAsync(() -> flushLogs(copy));
 //                futures.add(f);
@@ -74,14 +80,40 @@ final class EntryLogger {
         }
     }
 
+    //Buffered entries are written and the file synced, so everything logged so far survives a crash
+    boolean force() {
+        if (!logging) {
+            return true;
+        }
+
+        synchronized (loggingFile) {
+            try (var out = new FileOutputStream(loggingFile, true)) {
+                for (int i = 0; i < clock; i++) {
+                    out.write(buffer[i].getBytes());
+                }
+                out.getFD().sync();
+                Arrays.fill(buffer, null);
+                clock = 0;
+                return true;
+            } catch (IOException e) {
+                LOG.error("Syncing logging file {} failed", loggingFile, e);
+                return false;
+            }
+        }
+    }
+
     void flushImmediately() {
+        if (!logging) {
+            return;
+        }
+
         synchronized (loggingFile) {
             try (var out = new BufferedOutputStream(new FileOutputStream(loggingFile, true))) {
-                for (var str : buffer) {
-                    if (str != null) {
-                        out.write(str.getBytes());
-                    }
+                //Only the entries since the last flush, otherwise stale lines would be replayed after newer ones
+                for (int i = 0; i < clock; i++) {
+                    out.write(buffer[i].getBytes());
                 }
+                Arrays.fill(buffer, null);
                 clock = 0;
             } catch (IOException e) {
                 LOG.error("flushImmediately encountered an issue on {}", Arrays.toString(buffer), e);
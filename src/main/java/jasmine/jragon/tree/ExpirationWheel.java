@@ -0,0 +1,120 @@
+package jasmine.jragon.tree;
+
+import lombok.Getter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+final class ExpirationWheel {
+    static final long DEFAULT_TICK_MILLIS = 100;
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final List<List<ArrayDeque<Timer>>> levels;
+    private final ArrayDeque<Timer> due;
+
+    private long currentTick;
+    @Getter
+    private int scheduledCount;
+
+    ExpirationWheel(long tickMillis, long nowMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be positive");
+        }
+
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        this.due = new ArrayDeque<>();
+        this.levels = new ArrayList<>(LEVELS);
+        for (int level = 0; level < LEVELS; level++) {
+            List<ArrayDeque<Timer>> slots = new ArrayList<>(SLOTS);
+            for (int slot = 0; slot < SLOTS; slot++) {
+                slots.add(new ArrayDeque<>());
+            }
+            levels.add(slots);
+        }
+    }
+
+    void schedule(String key, long expiresAt) {
+        scheduledCount++;
+        place(new Timer(key, expiresAt));
+    }
+
+    //Moves every timer that has come due into the ready queue, cascading the coarser levels as their slots come up.
+    //The clock is rounded up like deadlines are, so every timer whose deadline has passed is ready, along with some
+    //of those due later in the same tick, which the caller schedules again
+    void advance(long nowMillis) {
+        long targetTick = Math.floorDiv(nowMillis + tickMillis - 1, tickMillis);
+
+        if (scheduledCount == due.size()) {
+            currentTick = Math.max(currentTick, targetTick);
+            return;
+        }
+
+        while (currentTick < targetTick) {
+            currentTick++;
+
+            for (int level = LEVELS - 1; level > 0; level--) {
+                long boundary = 1L << (SLOT_BITS * level);
+                if (currentTick % boundary == 0) {
+                    cascade(level);
+                }
+            }
+
+            var slot = levels.get(0).get((int) (currentTick & SLOT_MASK));
+            due.addAll(slot);
+            slot.clear();
+        }
+    }
+
+    Timer pollDue() {
+        var timer = due.poll();
+        if (timer != null) {
+            scheduledCount--;
+        }
+        return timer;
+    }
+
+    private void cascade(int level) {
+        var slot = levels.get(level).get(slotIndex(currentTick, level));
+        var timers = new ArrayList<>(slot);
+        slot.clear();
+
+        for (var timer : timers) {
+            place(timer);
+        }
+    }
+
+    private void place(Timer timer) {
+        //Rounded up so a timer is never ready before the tick its deadline falls in
+        long expiresTick = Math.floorDiv(timer.expiresAt() + tickMillis - 1, tickMillis);
+        long delta = expiresTick - currentTick;
+
+        if (delta <= 0) {
+            due.add(timer);
+            return;
+        }
+
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (SLOT_BITS * (level + 1))) {
+                levels.get(level).get(slotIndex(expiresTick, level)).add(timer);
+                return;
+            }
+        }
+
+        //Beyond the top level's horizon: park it in the farthest slot and re-place it when that slot cascades
+        long farthest = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+        levels.get(LEVELS - 1).get(slotIndex(farthest, LEVELS - 1)).add(timer);
+    }
+
+    private static int slotIndex(long tick, int level) {
+        return (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+    }
+
+    record Timer(String key, long expiresAt) {}
+}
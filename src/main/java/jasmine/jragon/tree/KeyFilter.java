@@ -0,0 +1,117 @@
+package jasmine.jragon.tree;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+final class KeyFilter {
+    private static final long MIN_CAPACITY = 1 << 10;
+    private static final double TARGET_FPP = 0.01;
+
+    private BloomFilter<CharSequence> filter;
+    private long capacity;
+    private long insertions;
+    private long removals;
+
+    //While a rebuild is under way lookups still use filter, and every key goes to both until next holds them all
+    private BloomFilter<CharSequence> next;
+    private long nextCapacity;
+    private long nextInsertions;
+    private long nextRemovals;
+
+    @Getter
+    private long filteredLookups;
+    @Getter
+    private long falsePositives;
+
+    KeyFilter() {
+        reset(MIN_CAPACITY);
+    }
+
+    boolean mightContain(String key) {
+        if (filter.mightContain(key)) {
+            return true;
+        }
+
+        filteredLookups++;
+        return false;
+    }
+
+    void recordFalsePositive() {
+        falsePositives++;
+    }
+
+    void add(String key) {
+        if (filter.put(key)) {
+            insertions++;
+        }
+        addToRebuild(key);
+    }
+
+    //A bloom filter cannot forget a key, so removals only count towards the next rebuild
+    void recordRemoval() {
+        removals++;
+        if (isRebuilding()) {
+            nextRemovals++;
+        }
+    }
+
+    boolean needsRebuild() {
+        return !isRebuilding() && (insertions > capacity || removals > capacity >> 1);
+    }
+
+    boolean isRebuilding() {
+        return next != null;
+    }
+
+    void startRebuild(long keyCount) {
+        nextCapacity = Math.max(MIN_CAPACITY, keyCount << 1);
+        next = create(nextCapacity);
+        nextInsertions = 0;
+        nextRemovals = 0;
+    }
+
+    void addToRebuild(String key) {
+        if (isRebuilding() && next.put(key)) {
+            nextInsertions++;
+        }
+    }
+
+    //Called once every stored key has been added to the rebuild
+    void finishRebuild() {
+        filter = next;
+        capacity = nextCapacity;
+        insertions = nextInsertions;
+        removals = nextRemovals;
+        next = null;
+    }
+
+    void rebuild(long keyCount, Consumer<Consumer<String>> keySource) {
+        reset(Math.max(MIN_CAPACITY, keyCount << 1));
+        keySource.accept(this::add);
+    }
+
+    double expectedFalsePositiveRate() {
+        return filter.expectedFpp();
+    }
+
+    double observedFalsePositiveRate() {
+        long negatives = filteredLookups + falsePositives;
+        return negatives == 0 ? 0.0 : (double) falsePositives / negatives;
+    }
+
+    private void reset(long capacity) {
+        this.capacity = capacity;
+        this.filter = create(capacity);
+        this.insertions = 0;
+        this.removals = 0;
+        this.next = null;
+    }
+
+    private static BloomFilter<CharSequence> create(long capacity) {
+        return BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), capacity, TARGET_FPP);
+    }
+}
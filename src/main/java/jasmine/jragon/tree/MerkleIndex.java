@@ -0,0 +1,112 @@
+package jasmine.jragon.tree;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+//Merkle tree over buckets of the placement hash space, so replicas compare digests instead of keys.
+//A bucket's digest is the sum of its entries' hashes: a write only touches its own bucket, and inner nodes
+//are recomputed lazily the next time a digest above them is asked for
+final class MerkleIndex {
+    static final int DEPTH = 16;
+
+    //The same hash HashRing places keys with, so buckets line up with replica ranges
+    private static final HashFunction PLACEMENT_HASH = Hashing.murmur3_32_fixed();
+    private static final HashFunction ENTRY_HASH = Hashing.murmur3_128();
+
+    //Heap layout: node 1 is the root, the children of n are 2n and 2n + 1, buckets start at 1 << DEPTH
+    private final long[] nodes;
+    private final boolean[] dirty;
+    private final Map<Integer, Map<String, Long>> buckets;
+
+    MerkleIndex() {
+        this.nodes = new long[2 << DEPTH];
+        this.dirty = new boolean[1 << DEPTH];
+        this.buckets = new HashMap<>();
+    }
+
+    void put(String key, String value, long version) {
+        int bucket = bucketOf(key);
+        long entry = entryHash(key, value, version);
+        var replaced = buckets.computeIfAbsent(bucket, ignored -> new HashMap<>()).put(key, entry);
+        adjust(bucket, entry - (replaced == null ? 0 : replaced));
+    }
+
+    void remove(String key) {
+        int bucket = bucketOf(key);
+        var entries = buckets.get(bucket);
+        var removed = entries == null ? null : entries.remove(key);
+        if (removed == null) {
+            return;
+        }
+
+        if (entries.isEmpty()) {
+            buckets.remove(bucket);
+        }
+        adjust(bucket, -removed);
+    }
+
+    long digest(int level, int index) {
+        if (level < 0 || level > DEPTH) {
+            throw new IllegalArgumentException("Level must be between 0 and " + DEPTH);
+        } else if (index < 0 || index >= 1 << level) {
+            throw new IllegalArgumentException("Level " + level + " has no node " + index);
+        }
+        return refresh((1 << level) + index);
+    }
+
+    Map<String, Long> entries(int bucket) {
+        if (bucket < 0 || bucket >= 1 << DEPTH) {
+            throw new IllegalArgumentException("No bucket " + bucket);
+        }
+        return Map.copyOf(buckets.getOrDefault(bucket, Map.of()));
+    }
+
+    //Buckets split the hash space in ring order, which runs from Integer.MIN_VALUE upwards
+    static int bucketOf(String key) {
+        int hash = PLACEMENT_HASH.hashString(key, StandardCharsets.UTF_8).asInt();
+        return (hash ^ Integer.MIN_VALUE) >>> (Integer.SIZE - DEPTH);
+    }
+
+    private static long entryHash(String key, String value, long version) {
+        return ENTRY_HASH.newHasher()
+                .putString(key, StandardCharsets.UTF_8)
+                .putByte((byte) 0)
+                .putString(value, StandardCharsets.UTF_8)
+                .putLong(version)
+                .hash()
+                .asLong();
+    }
+
+    //Marks the path to the root stale, stopping at the first node that already is
+    private void adjust(int bucket, long delta) {
+        int node = (1 << DEPTH) + bucket;
+        nodes[node] += delta;
+        for (node >>= 1; node > 0 && !dirty[node]; node >>= 1) {
+            dirty[node] = true;
+        }
+    }
+
+    private long refresh(int node) {
+        if (node < dirty.length && dirty[node]) {
+            nodes[node] = combine(refresh(node << 1), refresh((node << 1) + 1));
+            dirty[node] = false;
+        }
+        return nodes[node];
+    }
+
+    //Empty subtrees stay 0, so a tree that gained and lost a key matches one that never had it
+    private static long combine(long left, long right) {
+        return left == 0 && right == 0 ? 0 : mix(mix(left) + right);
+    }
+
+    //SplitMix64's finalizer
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,32 @@
+package jasmine.jragon.tree;
+
+public record TreeStatistics(long keyCount,
+                             int nodeCount,
+                             long rawKeyChars,
+                             long storedKeyChars,
+                             long rawValueChars,
+                             long storedValueChars,
+                             int openSnapshots,
+                             int pendingExpirations,
+                             double expectedFilterFalsePositiveRate,
+                             double observedFilterFalsePositiveRate) {
+    public double keyCompressionRatio() {
+        return ratio(rawKeyChars, storedKeyChars);
+    }
+
+    public double valueCompressionRatio() {
+        return ratio(rawValueChars, storedValueChars);
+    }
+
+    private static double ratio(long raw, long stored) {
+        return stored == 0 ? 1.0 : (double) raw / stored;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("keys=%d nodes=%d key-compression=%.2f value-compression=%.2f snapshots=%d " +
+                        "expirations=%d filter-fpp=%.4f filter-observed-fpp=%.4f",
+                keyCount, nodeCount, keyCompressionRatio(), valueCompressionRatio(), openSnapshots,
+                pendingExpirations, expectedFilterFalsePositiveRate, observedFilterFalsePositiveRate);
+    }
+}
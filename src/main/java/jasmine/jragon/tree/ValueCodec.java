@@ -0,0 +1,92 @@
+package jasmine.jragon.tree;
+
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+final class ValueCodec {
+    static final int DEFAULT_THRESHOLD = 128;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ValueCodec.class);
+    private static final int BLOCK_SIZE = 512;
+
+    private final Deflater deflater;
+    private final byte[] scratch;
+
+    @Getter
+    private int threshold;
+
+    ValueCodec(int threshold) {
+        this.deflater = new Deflater(Deflater.BEST_SPEED, true);
+        this.scratch = new byte[BLOCK_SIZE];
+        this.threshold = threshold;
+    }
+
+    void setThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Compression threshold must not be negative");
+        }
+        this.threshold = threshold;
+    }
+
+    ValueVersion encode(String value, long stamp, long expiresAt, long version) {
+        if (threshold == 0 || value.length() < threshold) {
+            return new ValueVersion(value, stamp, expiresAt, version);
+        }
+
+        var raw = value.getBytes(StandardCharsets.UTF_8);
+        var packed = deflate(raw);
+
+        //Incompressible values are kept as-is so a read never pays for inflating them
+        return packed.length < raw.length ?
+                new ValueVersion(new PackedValue(packed, raw.length), stamp, expiresAt, version) :
+                new ValueVersion(value, stamp, expiresAt, version);
+    }
+
+    private byte[] deflate(byte[] raw) {
+        var out = new ByteArrayOutputStream(raw.length);
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+
+        while (!deflater.finished()) {
+            int n = deflater.deflate(scratch);
+            out.write(scratch, 0, n);
+        }
+
+        return out.toByteArray();
+    }
+
+    static String inflate(PackedValue packed) {
+        var inflater = new Inflater(true);
+        try {
+            inflater.setInput(packed.data());
+            var raw = new byte[packed.rawLength()];
+
+            int offset = 0;
+            while (offset < raw.length && !inflater.finished()) {
+                int n = inflater.inflate(raw, offset, raw.length - offset);
+                if (n == 0 && inflater.needsInput()) {
+                    break;
+                }
+                offset += n;
+            }
+
+            return new String(raw, 0, offset, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            LOG.error("Corrupted compressed value {}", Arrays.toString(packed.data()), e);
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    record PackedValue(byte[] data, int rawLength) {}
+}
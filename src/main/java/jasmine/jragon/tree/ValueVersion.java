@@ -0,0 +1,93 @@
+package jasmine.jragon.tree;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+final class ValueVersion {
+    private final String plainValue;
+    private final ValueCodec.PackedValue packedValue;
+    @Getter(value = AccessLevel.PACKAGE)
+    private final long stamp;
+    //Epoch millis after which the value is gone, 0 when it never expires
+    @Getter(value = AccessLevel.PACKAGE)
+    private final long expiresAt;
+    //Hybrid logical clock version of the write that produced this value, 0 for values logged before versioning
+    @Getter(value = AccessLevel.PACKAGE)
+    private final long version;
+
+    private ValueVersion previous;
+
+    ValueVersion(String value, long stamp, long expiresAt, long version) {
+        this.plainValue = value;
+        this.packedValue = null;
+        this.stamp = stamp;
+        this.expiresAt = expiresAt;
+        this.version = version;
+    }
+
+    ValueVersion(ValueCodec.PackedValue packedValue, long stamp, long expiresAt, long version) {
+        this.plainValue = null;
+        this.packedValue = packedValue;
+        this.stamp = stamp;
+        this.expiresAt = expiresAt;
+        this.version = version;
+    }
+
+    static ValueVersion tombstone(long stamp) {
+        return new ValueVersion((String) null, stamp, 0, 0);
+    }
+
+    boolean isTombstone() {
+        return plainValue == null && packedValue == null;
+    }
+
+    boolean isExpired(long nowMillis) {
+        return expiresAt != 0 && expiresAt <= nowMillis;
+    }
+
+    boolean isLive(long nowMillis) {
+        return !isTombstone() && !isExpired(nowMillis);
+    }
+
+    String getValue() {
+        return packedValue == null ? plainValue : ValueCodec.inflate(packedValue);
+    }
+
+    long rawSize() {
+        if (isTombstone())
+            return 0;
+        return packedValue == null ? plainValue.length() : packedValue.rawLength();
+    }
+
+    long storedSize() {
+        if (isTombstone())
+            return 0;
+        return packedValue == null ? plainValue.length() : packedValue.data().length;
+    }
+
+    ValueVersion visibleAt(long snapshot) {
+        var version = this;
+        while (version != null && version.stamp > snapshot) {
+            version = version.previous;
+        }
+        return version;
+    }
+
+    void supersede(ValueVersion older) {
+        previous = older;
+    }
+
+    //Drops every version that no open snapshot can reach. Returns true once only this version remains
+    boolean prune(long oldestVisibleStamp) {
+        var version = visibleAt(oldestVisibleStamp);
+        if (version != null) {
+            version.previous = null;
+        }
+        return previous == null;
+    }
+
+    @Override
+    public String toString() {
+        return (packedValue == null ? plainValue : "<" + packedValue.rawLength() + " packed bytes>") + "@" + stamp;
+    }
+}
@@ -0,0 +1,4 @@
+package jasmine.jragon.tree;
+
+//A live value with the version of the write behind it and, for a value with a TTL, the whole seconds it has left
+public record VersionedValue(String value, long version, long ttlSeconds) {}
@@ -1,13 +1,26 @@
 package jasmine.jragon.client;
 
+import jasmine.jragon.client.handoff.HintStore;
+import jasmine.jragon.client.membership.MembershipStore;
+import jasmine.jragon.client.transaction.TransactionLog;
+import jasmine.jragon.cluster.ConnectionSettings;
+import jasmine.jragon.cluster.Coordinator;
+import jasmine.jragon.cluster.PeerReplicator;
+import jasmine.jragon.consensus.ConsensusSettings;
+import jasmine.jragon.raft.RaftServer;
 import jasmine.jragon.tree.BTree;
 import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.testng.Assert.assertEquals;
@@ -22,6 +35,9 @@ public class TreeClientTest {
 
     private Set<String> globalKeyLock;
     private BTree btree;
+    private HintStore hints;
+    private MembershipStore membership;
+    private TransactionLog transactions;
     private TreeClient clientUnderTest;
     private final AtomicBoolean shutdownAtomic = new AtomicBoolean(false);
 
@@ -43,8 +59,11 @@ public class TreeClientTest {
         btree.put("10", "j");
 
         globalKeyLock = new HashSet<>();
+        hints = HintStore.inMemory();
+        membership = MembershipStore.inMemory();
+        transactions = TransactionLog.inMemory(globalKeyLock);
 
-        clientUnderTest = TreeClient.from(RANDOM.nextLong(), globalKeyLock, btree, null);
+        clientUnderTest = TreeClient.from(RANDOM.nextLong(), globalKeyLock, btree, null, hints, membership, null, null, null, transactions);
     }
 
     @Test
@@ -245,7 +264,7 @@ public class TreeClientTest {
 
     @Test(dependsOnMethods = "doubleTransactionTest")
     public void otherClientLockTest() {
-        var other = TreeClient.from(RANDOM.nextLong(), globalKeyLock, btree, null);
+        var other = TreeClient.from(RANDOM.nextLong(), globalKeyLock, btree, null, hints, membership, null, null, null, transactions);
         other.acceptCommand("TRANSACT 1 2 3", shutdownAtomic);
 
         assertFalse(other.isDone());
@@ -267,4 +286,342 @@ public class TreeClientTest {
 
         assertTrue(transactionResponse.matches(EXPIRATION_DATE_REGEXP));
     }
+
+    @Test
+    public void readLockedKeyTest() {
+        var other = TreeClient.from(RANDOM.nextLong(), globalKeyLock, btree, null, hints, membership, null, null, null, transactions);
+        other.acceptCommand("TRANSACT 1 2", shutdownAtomic);
+        other.acceptCommand("PUT 1 z", shutdownAtomic);
+
+        assertEquals(clientUnderTest.acceptCommand("GET 1", shutdownAtomic), "a");
+        assertEquals(clientUnderTest.acceptCommand("PUT 1 q", shutdownAtomic), "Requested key(s) is locked");
+
+        other.acceptCommand("COMMIT", shutdownAtomic);
+
+        assertEquals(clientUnderTest.acceptCommand("GET 1", shutdownAtomic), "z");
+    }
+
+    @Test
+    public void snapshotTest() {
+        assertEquals(clientUnderTest.acceptCommand("RELEASE", shutdownAtomic), "No such snapshot exists");
+        assertTrue(clientUnderTest.acceptCommand("SNAPSHOT", shutdownAtomic).startsWith("Snapshot opened at version "));
+        assertEquals(clientUnderTest.acceptCommand("SNAPSHOT", shutdownAtomic), "Snapshot already open");
+
+        var other = TreeClient.from(RANDOM.nextLong(), globalKeyLock, btree, null, hints, membership, null, null, null, transactions);
+        other.acceptCommand("TRANSACT 1 11", shutdownAtomic);
+        other.acceptCommand("PUT 1 z", shutdownAtomic);
+        other.acceptCommand("PUT 11 k", shutdownAtomic);
+        other.acceptCommand("COMMIT", shutdownAtomic);
+
+        assertEquals(clientUnderTest.acceptCommand("GET 1", shutdownAtomic), "a");
+        assertEquals(clientUnderTest.acceptCommand("CONTAINS 11", shutdownAtomic), "false");
+
+        assertEquals(clientUnderTest.acceptCommand("RELEASE", shutdownAtomic), "Command acknowledged");
+
+        assertEquals(clientUnderTest.acceptCommand("GET 1", shutdownAtomic), "z");
+        assertEquals(clientUnderTest.acceptCommand("CONTAINS 11", shutdownAtomic), "true");
+        assertEquals(btree.openSnapshotCount(), 0);
+    }
+
+    @Test
+    public void pingTest() {
+        assertEquals(clientUnderTest.acceptCommand("PING", shutdownAtomic), "PONG");
+
+        clientUnderTest.acceptCommand("TRANSACT 1", shutdownAtomic);
+        assertEquals(clientUnderTest.acceptCommand("PING", shutdownAtomic), "PONG");
+    }
+
+    @Test
+    public void hintTest() {
+        assertEquals(clientUnderTest.acceptCommand("HINTS", shutdownAtomic), "");
+        assertEquals(clientUnderTest.acceptCommand("HINT a:1 PUT x 1", shutdownAtomic), "Command acknowledged");
+        assertEquals(clientUnderTest.acceptCommand("HINT a:1 MPUT x 2 y 3", shutdownAtomic), "Command acknowledged");
+        assertEquals(clientUnderTest.acceptCommand("HINT b:2 PUT z 4 EX 60", shutdownAtomic), "Command acknowledged");
+        assertEquals(clientUnderTest.acceptCommand("HINT b:2 MPUTV 7 z 5", shutdownAtomic), "Command acknowledged");
+        assertEquals(clientUnderTest.acceptCommand("HINT b:2 MPUTV 7 z", shutdownAtomic), "Only single-line PUT, MPUT and MPUTV commands can be hinted");
+        assertEquals(clientUnderTest.acceptCommand("HINT a:1 GET x", shutdownAtomic), "Only single-line PUT, MPUT and MPUTV commands can be hinted");
+        assertEquals(clientUnderTest.acceptCommand("HINT a:1 PUT x", shutdownAtomic), "Only single-line PUT, MPUT and MPUTV commands can be hinted");
+
+        //Hints are queued for their owner and never applied to the holder's own tree
+        assertEquals(clientUnderTest.acceptCommand("GET x", shutdownAtomic), "null");
+
+        var other = TreeClient.from(RANDOM.nextLong(), globalKeyLock, btree, null, hints, membership, null, null, null, transactions);
+        assertEquals(other.acceptCommand("HINTS", shutdownAtomic), "a:1 2\nb:2 2");
+        assertEquals(other.acceptCommand("HINTS a:1 10", shutdownAtomic), "PUT x 1\nMPUT x 2 y 3");
+        assertEquals(other.acceptCommand("HINTS a:1 zero", shutdownAtomic), "Argument must be a whole number");
+
+        assertEquals(other.acceptCommand("HANDOFF a:1 1", shutdownAtomic), "Command acknowledged");
+        assertEquals(other.acceptCommand("HINTS a:1 10", shutdownAtomic), "MPUT x 2 y 3");
+        assertEquals(other.acceptCommand("HANDOFF a:1 5", shutdownAtomic), "Command acknowledged");
+        assertEquals(other.acceptCommand("HINTS", shutdownAtomic), "b:2 2");
+    }
+
+    @Test
+    public void replicateTest() throws IOException {
+        //Nothing listens on port 1, so the only peer never stores anything
+        try (var replicator = PeerReplicator.start(ConnectionSettings.DEFAULTS, 1_000)) {
+            var primary = TreeClient.from(RANDOM.nextLong(), globalKeyLock, btree, null, hints, membership, replicator, null, null, transactions);
+
+            assertEquals(primary.acceptAsync("REPLICATE 1 127.0.0.1:1 PUT x 1 VER 5", shutdownAtomic).join(), "null");
+            assertEquals(primary.acceptAsync("REPLICATE 2 127.0.0.1:1 PUT x 2 VER 6", shutdownAtomic).join(),
+                    "Write stored on fewer replicas than required");
+            assertEquals(primary.acceptCommand("GET x", shutdownAtomic), "2");
+
+            assertEquals(primary.acceptAsync("REPLICATE 1 127.0.0.1:1 MPUTV 7 x 3 y 4", shutdownAtomic).join(), "2\nnull");
+            assertEquals(primary.acceptCommand("MGET x y", shutdownAtomic), "3\n4");
+
+            assertEquals(primary.acceptAsync("REPLICATE 1 127.0.0.1:1 PUT x 5", shutdownAtomic).join(),
+                    "Only versioned PUT and MPUTV commands and atomic writes can be replicated");
+            assertEquals(primary.acceptAsync("REPLICATE 1 127.0.0.1:1 GET x", shutdownAtomic).join(),
+                    "Only versioned PUT and MPUTV commands and atomic writes can be replicated");
+            assertEquals(primary.acceptAsync("REPLICATE 0 127.0.0.1:1 PUT x 5 VER 8", shutdownAtomic).join(),
+                    "Argument must be a whole number");
+            assertEquals(primary.acceptAsync("REPLICATE 1 127.0.0.1:1", shutdownAtomic).join(),
+                    "Incorrect Number of Arguments on Command");
+
+            clientUnderTest.acceptCommand("TRANSACT x", shutdownAtomic);
+            assertEquals(primary.acceptAsync("REPLICATE 1 127.0.0.1:1 PUT x 6 VER 9", shutdownAtomic).join(),
+                    "Requested key(s) is locked");
+            assertEquals(clientUnderTest.acceptAsync("REPLICATE 1 127.0.0.1:1 PUT x 6 VER 9", shutdownAtomic).join(),
+                    "Invalid Transaction Command");
+            assertEquals(primary.acceptCommand("GET x", shutdownAtomic), "3");
+        }
+    }
+
+    //The primary decides an atomic write on its own, then hands its peers whatever value it was left holding
+    @Test
+    public void replicateAtomicTest() throws IOException {
+        try (var replicator = PeerReplicator.start(ConnectionSettings.DEFAULTS, 1_000)) {
+            var primary = TreeClient.from(RANDOM.nextLong(), globalKeyLock, btree, null, hints, membership, replicator, null, null, transactions);
+
+            assertEquals(primary.acceptAsync("REPLICATE 1 127.0.0.1:1 INCRBY n 2", shutdownAtomic).join(), "2");
+            assertEquals(primary.acceptAsync("REPLICATE 2 127.0.0.1:1 INCRBY n 3", shutdownAtomic).join(),
+                    "Write stored on fewer replicas than required");
+            assertEquals(primary.acceptAsync("REPLICATE 1 127.0.0.1:1 CAS n 2 9", shutdownAtomic).join(), "false");
+            assertEquals(primary.acceptAsync("REPLICATE 2 127.0.0.1:1 PUTIFABSENT absent v", shutdownAtomic).join(),
+                    "Write stored on fewer replicas than required");
+            assertEquals(primary.acceptAsync("REPLICATE 2 127.0.0.1:1 CAS missing v w", shutdownAtomic).join(), "false");
+            assertEquals(primary.acceptCommand("MGET n absent missing", shutdownAtomic), "5\nv\nnull");
+        }
+    }
+
+    @Test
+    public void atomicWriteTest() {
+        assertEquals(clientUnderTest.acceptCommand("INCRBY n 2", shutdownAtomic), "2");
+        assertEquals(clientUnderTest.acceptCommand("APPEND 1 b", shutdownAtomic), "ab");
+        assertEquals(clientUnderTest.acceptCommand("CAS 1 ab c", shutdownAtomic), "true");
+        assertEquals(clientUnderTest.acceptCommand("PUTIFABSENT 1 d", shutdownAtomic), "c");
+
+        //Keys a transaction holds are refused, and a transaction cannot run one itself
+        var other = TreeClient.from(RANDOM.nextLong(), globalKeyLock, btree, null, hints, membership, null, null, null, transactions);
+        other.acceptCommand("TRANSACT n", shutdownAtomic);
+        assertEquals(clientUnderTest.acceptCommand("INCRBY n 2", shutdownAtomic), "Requested key(s) is locked");
+        assertEquals(other.acceptCommand("INCRBY n 2", shutdownAtomic), "Invalid Transaction Command");
+        assertEquals(other.acceptCommand("EXEC n | INCRBY n 2", shutdownAtomic), "Invalid Transaction Command");
+        other.acceptCommand("ABORT", shutdownAtomic);
+        assertEquals(clientUnderTest.acceptCommand("INCRBY n 2", shutdownAtomic), "4");
+    }
+
+    @Test
+    public void raftTest() throws IOException {
+        assertEquals(clientUnderTest.acceptAsync("RAFT a:1,b:2 a:1 GET x", shutdownAtomic).join(), "Unsupported command");
+        assertEquals(clientUnderTest.acceptAsync("REQUESTVOTE a:1,b:2 a:1 1 b:2 0 0", shutdownAtomic).join(),
+                "Unsupported command");
+
+        var logFile = File.createTempFile("raft-log", ".txt");
+        logFile.deleteOnExit();
+        try (var raft = RaftServer.open(logFile, btree,
+                (address, command) -> CompletableFuture.failedFuture(new IOException(address)), () -> {})) {
+            var member = TreeClient.from(RANDOM.nextLong(), globalKeyLock, btree, null, hints, membership, null, raft, null, transactions);
+
+            //The tree only changes through the groups, though it can still be read directly
+            assertEquals(member.acceptAsync("PUT x 1", shutdownAtomic).join(),
+                    "Writes on this server must go through its Raft groups");
+            assertEquals(member.acceptAsync("TRANSACT x", shutdownAtomic).join(),
+                    "Writes on this server must go through its Raft groups");
+            assertEquals(member.acceptAsync("REPLICATE 1 127.0.0.1:1 PUT x 5 VER 8", shutdownAtomic).join(),
+                    "Writes on this server must go through its Raft groups");
+            assertEquals(member.acceptAsync("GET 1", shutdownAtomic).join(), "a");
+
+            assertEquals(member.acceptAsync("RAFT a:1,b:2 c:3 GET x", shutdownAtomic).join(),
+                    "Raft group does not list this server as a member");
+            assertEquals(member.acceptAsync("RAFT a:1,b:2", shutdownAtomic).join(),
+                    "Incorrect Number of Arguments on Command");
+            assertEquals(member.acceptAsync("RAFT a:1,b:2 a:1 GET x", shutdownAtomic).join(),
+                    "Not the leader of this Raft group");
+            assertEquals(raft.groupCount(), 1);
+        }
+    }
+
+    @Test
+    public void coordinateTest() {
+        assertEquals(clientUnderTest.acceptAsync("COORDINATE", shutdownAtomic).join(),
+                "This server was not given a cluster to coordinate");
+        assertEquals(clientUnderTest.acceptAsync("GET 1", shutdownAtomic).join(), "a");
+
+        //Nothing listens on port 1, so coordinated commands reach no replica
+        try (var coordinator = new Coordinator(List.of(new InetSocketAddress("127.0.0.1", 1)),
+                ConsensusSettings.DEFAULTS, ConnectionSettings.DEFAULTS)) {
+            var thin = TreeClient.from(RANDOM.nextLong(), globalKeyLock, btree, null, hints, membership, null, null, coordinator, transactions);
+            assertEquals(thin.acceptAsync("GET 1", shutdownAtomic).join(), "a");
+            assertEquals(thin.acceptAsync("COORDINATE", shutdownAtomic).join(), "Command acknowledged");
+
+            assertEquals(thin.acceptAsync("GET 1", shutdownAtomic).join(), "Server Error");
+            assertEquals(thin.acceptAsync("N=4 GET 1", shutdownAtomic).join(), "Invalid replication factor or quorum size");
+            assertEquals(thin.acceptAsync("TRANSACT 1", shutdownAtomic).join(), "Invalid Transaction Command");
+            //Commands without keys stay with the server
+            assertEquals(thin.acceptAsync("PING", shutdownAtomic).join(), "PONG");
+            assertEquals(thin.acceptAsync("RANK 1", shutdownAtomic).join(), "0");
+        }
+    }
+
+    @Test
+    public void membersTest() {
+        assertEquals(clientUnderTest.acceptCommand("MEMBERS", shutdownAtomic), "0");
+        assertEquals(clientUnderTest.acceptCommand("MEMBERS 1 a:1,b:2 a:1", shutdownAtomic), "Command acknowledged");
+        assertEquals(clientUnderTest.acceptCommand("MEMBERS 1 a:1,b:2 a:1", shutdownAtomic), "Command acknowledged");
+
+        //Every connection sees the newest view, and an older one cannot replace it
+        var other = TreeClient.from(RANDOM.nextLong(), globalKeyLock, btree, null, hints, membership, null, null, null, transactions);
+        assertEquals(other.acceptCommand("MEMBERS", shutdownAtomic), "1 a:1,b:2 a:1");
+        assertEquals(other.acceptCommand("MEMBERS 2 a:1,b:2", shutdownAtomic), "Command acknowledged");
+        assertEquals(other.acceptCommand("MEMBERS 1 a:1", shutdownAtomic), "Membership is older than the one this server holds");
+        assertEquals(other.acceptCommand("MEMBERS 3 a", shutdownAtomic), "Membership must be an epoch and comma-separated host:port lists");
+        assertEquals(clientUnderTest.acceptCommand("MEMBERS", shutdownAtomic), "2 a:1,b:2");
+
+        assertEquals(clientUnderTest.acceptCommand("JOIN c:3", shutdownAtomic), "Unsupported command");
+    }
+
+    @Test
+    public void twoPhaseCommitTest() {
+        clientUnderTest.acceptCommand("TRANSACT 1 2", shutdownAtomic);
+        clientUnderTest.acceptCommand("PUT 1 z", shutdownAtomic);
+        clientUnderTest.acceptCommand("GET 2", shutdownAtomic);
+
+        assertEquals(clientUnderTest.acceptCommand("DECIDE t1 COMMIT", shutdownAtomic), "Transaction must be prepared before it is committed");
+        assertEquals(clientUnderTest.acceptCommand("PREPARE t1 a:1,b:2", shutdownAtomic), "Transaction prepared");
+        assertEquals(clientUnderTest.acceptCommand("PREPARE t1 a:1,b:2", shutdownAtomic), "Transaction prepared");
+
+        //Once prepared, nothing but the decision changes the transaction
+        assertEquals(clientUnderTest.acceptCommand("PUT 2 q", shutdownAtomic), "Invalid Transaction Command");
+        assertEquals(clientUnderTest.acceptCommand("COMMIT", shutdownAtomic), "Invalid Transaction Command");
+        assertEquals(clientUnderTest.acceptCommand("DECIDE t1 MAYBE", shutdownAtomic), "Decision must be COMMIT or ABORT");
+
+        var other = TreeClient.from(RANDOM.nextLong(), globalKeyLock, btree, null, hints, membership, null, null, null, transactions);
+        assertEquals(other.acceptCommand("OUTCOME t1", shutdownAtomic), "Transaction prepared");
+        assertEquals(other.acceptCommand("PUT 1 q", shutdownAtomic), "Requested key(s) is locked");
+
+        var committed = clientUnderTest.acceptCommand("DECIDE t1 COMMIT", shutdownAtomic);
+        assertTrue(committed.startsWith("Successful command: "));
+        assertTrue(committed.contains("a\nb"));
+        assertTrue(clientUnderTest.isDone());
+        assertTrue(globalKeyLock.isEmpty());
+        assertEquals(btree.get("1").orElseThrow(), "z");
+        assertEquals(other.acceptCommand("OUTCOME t1", shutdownAtomic), "Transaction committed");
+
+        //An id nobody prepared is presumed aborted, and a PREPARE arriving after that answer is refused
+        assertEquals(other.acceptCommand("OUTCOME t2", shutdownAtomic), "Transaction aborted");
+        other.acceptCommand("TRANSACT 3", shutdownAtomic);
+        other.acceptCommand("PUT 3 x", shutdownAtomic);
+        assertEquals(other.acceptCommand("PREPARE t2 a:1", shutdownAtomic), "Transaction aborted");
+        assertTrue(other.isDone());
+        assertTrue(globalKeyLock.isEmpty());
+        assertEquals(btree.get("3").orElseThrow(), "c");
+    }
+
+    @Test
+    public void orphanedTransactionTest() {
+        clientUnderTest.acceptCommand("TRANSACT 1", shutdownAtomic);
+        clientUnderTest.acceptCommand("PUT 1 z", shutdownAtomic);
+        clientUnderTest.acceptCommand("PREPARE t1 a:1", shutdownAtomic);
+
+        //The connection closes before the decision, which then arrives on another one
+        clientUnderTest.abandonTransaction();
+        assertTrue(clientUnderTest.isDone());
+        assertEquals(globalKeyLock, Set.of("1"));
+
+        var other = TreeClient.from(RANDOM.nextLong(), globalKeyLock, btree, null, hints, membership, null, null, null, transactions);
+        assertEquals(other.acceptCommand("DECIDE t2 COMMIT", shutdownAtomic), "No such transaction exists");
+        assertTrue(other.acceptCommand("DECIDE t1 COMMIT", shutdownAtomic).startsWith("Successful command: "));
+        assertTrue(globalKeyLock.isEmpty());
+        assertEquals(btree.get("1").orElseThrow(), "z");
+
+        //An unprepared transaction is rolled back with its connection
+        other.acceptCommand("TRANSACT 2", shutdownAtomic);
+        other.acceptCommand("PUT 2 z", shutdownAtomic);
+        other.abandonTransaction();
+        assertTrue(globalKeyLock.isEmpty());
+        assertEquals(btree.get("2").orElseThrow(), "b");
+    }
+
+    @DataProvider
+    public Object[][] syncedCommitProvider() {
+        return new Object[][]{
+                //Whether the decision arrives after the connection holding the transaction closed
+                {false},
+                {true},
+        };
+    }
+
+    //The tree log buffers its writes, so a commit syncs them before its C record lets the transaction log forget them
+    @Test(dataProvider = "syncedCommitProvider")
+    public void syncedCommitTest(boolean orphaned) throws IOException {
+        var logFile = File.createTempFile("tree-log", ".txt");
+        logFile.deleteOnExit();
+        var logged = new BTree(5, logFile.getPath());
+
+        var client = TreeClient.from(RANDOM.nextLong(), globalKeyLock, logged, null, hints, membership, null, null, null, transactions);
+        client.acceptCommand("TRANSACT 1", shutdownAtomic);
+        client.acceptCommand("PUT 1 z", shutdownAtomic);
+        client.acceptCommand("PREPARE t1 a:1", shutdownAtomic);
+        if (orphaned) {
+            client.abandonTransaction();
+            client = TreeClient.from(RANDOM.nextLong(), globalKeyLock, logged, null, hints, membership, null, null, null, transactions);
+        }
+
+        assertTrue(client.acceptCommand("DECIDE t1 COMMIT", shutdownAtomic).startsWith("Successful command: "));
+        assertEquals(new BTree(5, logFile).get("1").orElseThrow(), "z");
+    }
+
+    @DataProvider
+    public Object[][] executeProvider() {
+        return new Object[][]{
+                //Command, expected response, expected value of key 1 afterwards
+                {"EXEC 1 2 | PUT 1 z | GET 2 | GET 1", "Successful command: " + System.lineSeparator() + "a\nb\nz\n", "z"},
+                {"EXEC 1 1 | CONTAINS 1", "Successful command: " + System.lineSeparator() + "true\n", "a"},
+                {"EXEC 1 | PUT 1 z | PUT 2 z", "Transaction does not have key", "a"},
+                {"EXEC 1 | PUT 1 z | MGET 1", "Invalid Transaction Command", "a"},
+                {"EXEC 1 | PUT 1", "Incorrect Number of Arguments on Command", "a"},
+                {"EXEC 1 | | PUT 1 z", "Incorrect Number of Arguments on Command", "a"},
+                {"EXEC 9 | PUT 1 z", "Requested key(s) is locked", "a"},
+        };
+    }
+
+    //Locks are only checked, since nothing can run between taking and releasing them within one command
+    @Test(dataProvider = "executeProvider")
+    public void executeTest(String command, String expectedResponse, String expectedValue) {
+        var other = TreeClient.from(RANDOM.nextLong(), globalKeyLock, btree, null, hints, membership, null, null, null, transactions);
+        other.acceptCommand("TRANSACT 9", shutdownAtomic);
+
+        assertEquals(clientUnderTest.acceptCommand(command, shutdownAtomic), expectedResponse);
+        assertEquals(btree.get("1").orElseThrow(), expectedValue);
+        assertEquals(globalKeyLock, Set.of("9"));
+        assertEquals(other.acceptCommand(command, shutdownAtomic), "Invalid Transaction Command");
+    }
+
+    @Test
+    public void preparedExecuteTest() {
+        assertEquals(clientUnderTest.acceptCommand("EXEC 1 | PUT 1 z | PREPARE t1 a:1,b:2", shutdownAtomic), "Transaction prepared");
+
+        //No connection holds the transaction, so its keys stay locked until a decision arrives on any of them
+        assertTrue(clientUnderTest.isDone());
+        assertEquals(globalKeyLock, Set.of("1"));
+        assertEquals(clientUnderTest.acceptCommand("EXEC 1 | GET 1", shutdownAtomic), "Requested key(s) is locked");
+
+        var other = TreeClient.from(RANDOM.nextLong(), globalKeyLock, btree, null, hints, membership, null, null, null, transactions);
+        assertEquals(other.acceptCommand("DECIDE t1 COMMIT", shutdownAtomic), "Successful command: " + System.lineSeparator() + "a\n");
+        assertTrue(globalKeyLock.isEmpty());
+        assertEquals(btree.get("1").orElseThrow(), "z");
+        assertEquals(clientUnderTest.acceptCommand("EXEC 1 | PUT 1 y | PREPARE t1 a:1", shutdownAtomic), "Transaction committed");
+    }
 }
@@ -0,0 +1,40 @@
+package jasmine.jragon.client.handoff;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class HintStoreTest {
+    @Test
+    public void durabilityTest() throws IOException {
+        var file = File.createTempFile("hints", ".txt");
+        file.deleteOnExit();
+
+        var store = HintStore.open(file);
+        store.add("a:1", "PUT x 1");
+        store.add("a:1", "PUT x 2");
+        store.add("b:2", "MPUT y 3 z 4");
+        assertEquals(store.acknowledge("a:1", 1), 1);
+        //Left open, as after a crash: every record is already on disk
+
+        var reopened = HintStore.open(file);
+        assertEquals(reopened.queueSizes(), Map.of("a:1", 1, "b:2", 1));
+        assertEquals(reopened.peek("a:1", 10), List.of("PUT x 2"));
+        assertEquals(reopened.peek("c:3", 10), List.of());
+
+        assertEquals(reopened.acknowledge("a:1", 5), 1);
+        assertEquals(reopened.acknowledge("b:2", 1), 1);
+        assertTrue(reopened.queueSizes().isEmpty());
+        //Draining every queue compacts the log away
+        assertEquals(Files.size(file.toPath()), 0);
+        reopened.close();
+        store.close();
+    }
+}
@@ -0,0 +1,76 @@
+package jasmine.jragon.client.transaction;
+
+import jasmine.jragon.command.ProtocolCommand;
+import jasmine.jragon.tree.BTree;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static jasmine.jragon.response.ServerResponse.TRANSACTION_ABORTED;
+import static jasmine.jragon.response.ServerResponse.TRANSACTION_COMMITTED;
+import static jasmine.jragon.response.ServerResponse.TRANSACTION_PREPARED;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TransactionLogTest {
+    @DataProvider
+    public Object[][] recoveryProvider() {
+        return new Object[][]{
+                //What the other participant answers, expected value of the orphan's key once it is decided
+                {TRANSACTION_COMMITTED.toString(), "2"},
+                {TRANSACTION_ABORTED.toString(), null},
+        };
+    }
+
+    //A transaction prepared before a crash comes back locked, and ends the way the other participants say it did
+    @Test(dataProvider = "recoveryProvider")
+    public void recoveryTest(String peerOutcome, String expectedValue) throws IOException {
+        var file = File.createTempFile("transactions", ".txt");
+        file.deleteOnExit();
+
+        var btree = new BTree(5);
+        Set<String> locks = new HashSet<>();
+        var log = TransactionLog.open(file, btree, locks);
+        assertEquals(log.prepare("t1", List.of("a:1", "b:2"), writing(btree, "x", "1")), TRANSACTION_PREPARED);
+        assertEquals(log.prepare("t2", List.of("a:1", "b:2"), writing(btree, "y", "2")), TRANSACTION_PREPARED);
+        log.commit("t1");
+        //Left open, as after a crash: every record is already on disk
+
+        Set<String> recoveredLocks = new HashSet<>();
+        var recovered = TransactionLog.open(file, btree, recoveredLocks);
+        assertEquals(recovered.orphanCount(), 1);
+        assertEquals(recoveredLocks, Set.of("y"));
+        assertEquals(recovered.outcome("t1"), TRANSACTION_COMMITTED);
+        assertEquals(recovered.outcome("t2"), TRANSACTION_PREPARED);
+
+        List<String> asked = new CopyOnWriteArrayList<>();
+        recovered.tick((address, command) -> {
+            asked.add(address + " " + command);
+            return CompletableFuture.completedFuture(address.equals("b:2") ? peerOutcome : TRANSACTION_PREPARED.toString());
+        });
+        assertEquals(asked, List.of("a:1 OUTCOME t2", "b:2 OUTCOME t2"));
+
+        //Replies are applied on the next tick, on the server's own thread
+        recovered.tick((address, command) -> new CompletableFuture<>());
+        assertEquals(recovered.orphanCount(), 0);
+        assertTrue(recoveredLocks.isEmpty());
+        assertEquals(btree.get("y").orElse(null), expectedValue);
+        assertEquals(recovered.outcome("t2").toString(), peerOutcome);
+
+        recovered.close();
+        log.close();
+    }
+
+    private static Transaction writing(BTree btree, String key, String value) {
+        var transaction = new Transaction(btree, List.of(key));
+        transaction.addTransactionCommand(ProtocolCommand.WRITE, new String[]{key, value}, 0);
+        return transaction;
+    }
+}
@@ -0,0 +1,129 @@
+package jasmine.jragon.cluster;
+
+import jasmine.jragon.consensus.ConsensusSettings;
+import jasmine.jragon.consensus.HashRing;
+import jasmine.jragon.consensus.QuorumPolicy;
+import jasmine.jragon.tree.BTree;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+public class AntiEntropyTest {
+    //A long heartbeat interval, so no server is suspected while the test runs without heartbeats
+    private static final ConnectionSettings CONNECTIONS = new ConnectionSettings(2, true, 64, 0, 60_000, 8.0);
+
+    private static TreeMap<Long, Long> ranges(long... bounds) {
+        TreeMap<Long, Long> ranges = new TreeMap<>();
+        for (int i = 0; i < bounds.length; i += 2) {
+            ranges.put(bounds[i], bounds[i + 1]);
+        }
+        return ranges;
+    }
+
+    private static String read(BTree tree, String key) {
+        synchronized (tree) {
+            return tree.getVersioned(key).map(value -> value.version() + " " + value.value()).orElse(null);
+        }
+    }
+
+    @DataProvider
+    public Object[][] coverageProvider() {
+        return new Object[][]{
+                //Shared ranges, Merkle level, node, expected coverage
+                {ranges(0, 0xffff_ffffL), 0, 0, AntiEntropy.Coverage.FULL},
+                {ranges(0x1000_0000L, 0x2fff_ffffL), 4, 1, AntiEntropy.Coverage.FULL},
+                {ranges(0x1000_0000L, 0x2fff_ffffL), 4, 2, AntiEntropy.Coverage.FULL},
+                {ranges(0x1000_0000L, 0x2fff_ffffL), 4, 3, AntiEntropy.Coverage.NONE},
+                {ranges(0x1000_0000L, 0x2fff_ffffL), 4, 0, AntiEntropy.Coverage.NONE},
+                //A node the range starts or ends inside of, or that spans it
+                {ranges(0x1000_0000L, 0x2fff_ffffL), 3, 0, AntiEntropy.Coverage.PARTIAL},
+                {ranges(0x1000_0000L, 0x2fff_ffffL), 3, 1, AntiEntropy.Coverage.PARTIAL},
+                {ranges(0x1000_0000L, 0x17ff_ffffL), 4, 1, AntiEntropy.Coverage.PARTIAL},
+                {ranges(0x1800_0000L, 0x1800_0000L), 4, 1, AntiEntropy.Coverage.PARTIAL},
+                {ranges(0x1800_0000L, 0x1800_0000L), BTree.MERKLE_DEPTH, 0x1800, AntiEntropy.Coverage.PARTIAL},
+                {ranges(0x1800_0000L, 0x1800_0000L), BTree.MERKLE_DEPTH, 0x1801, AntiEntropy.Coverage.NONE},
+                //Two ranges with a gap inside the node
+                {ranges(0x1000_0000L, 0x13ff_ffffL, 0x1800_0000L, 0x1fff_ffffL), 4, 1, AntiEntropy.Coverage.PARTIAL},
+                {ranges(0x1000_0000L, 0x13ff_ffffL, 0x1800_0000L, 0x1fff_ffffL), 6, 6, AntiEntropy.Coverage.FULL},
+                {ranges(0x1000_0000L, 0x13ff_ffffL, 0x1800_0000L, 0x1fff_ffffL), 6, 5, AntiEntropy.Coverage.NONE},
+        };
+    }
+
+    //Merkle node n at level l covers ring positions [n << (32 - l), (n + 1) << (32 - l))
+    @Test(dataProvider = "coverageProvider")
+    public void coverageTest(TreeMap<Long, Long> shared, int level, int node, AntiEntropy.Coverage expected) {
+        assertEquals(AntiEntropy.coverage(shared, level, node), expected);
+    }
+
+    //Three servers with two replicas per key, so every pair shares only part of the ring. Each key the pair of its
+    //replicas disagree on ends up at the newest version on both, and nothing is written to a server not holding it
+    @Test
+    public void repairTest() throws Exception {
+        var settings = ConsensusSettings.DEFAULTS.withQuorum(new QuorumPolicy(2, 1, 1, false));
+        var trees = List.of(new BTree(3), new BTree(3), new BTree(3));
+        List<FrameServer> servers = new ArrayList<>();
+        for (var tree : trees) {
+            servers.add(FrameServer.serving(tree));
+        }
+
+        try (var loop = new EventLoop("anti-entropy-test")) {
+            List<NodePool> pools = new ArrayList<>();
+            for (var server : servers) {
+                pools.add(NodePool.open(server.address(), loop, CONNECTIONS));
+            }
+            for (var pool : pools) {
+                pool.whenSettled().get(5, TimeUnit.SECONDS);
+            }
+            var ring = new HashRing<>(pools, NodePool::getAddress, HashRing.DEFAULT_VIRTUAL_NODES);
+
+            int diverged = 0;
+            for (int i = 0; i < 400; i++) {
+                var key = "key" + i;
+                var replicas = ring.replicasFor(key, 2);
+                var first = trees.get(pools.indexOf(replicas.get(0)));
+                var second = trees.get(pools.indexOf(replicas.get(1)));
+                first.put(key, "v", 0, 100);
+                second.put(key, "v", 0, 100);
+
+                if (i % 10 == 0) {
+                    second.put(key, "newer", 0, 200);
+                    diverged++;
+                } else if (i % 10 == 5) {
+                    first.remove(key);
+                    diverged++;
+                }
+            }
+
+            var antiEntropy = new AntiEntropy(settings);
+            assertEquals(antiEntropy.round(ring).get(10, TimeUnit.SECONDS).intValue(), diverged);
+
+            for (int i = 0; i < 400; i++) {
+                var key = "key" + i;
+                var replicas = ring.replicasFor(key, 2);
+                var expected = i % 10 == 0 ? "200 newer" : "100 v";
+                for (int server = 0; server < pools.size(); server++) {
+                    if (replicas.contains(pools.get(server))) {
+                        assertEquals(read(trees.get(server), key), expected, key);
+                    } else {
+                        assertFalse(trees.get(server).contains(key), key);
+                    }
+                }
+            }
+
+            assertEquals(antiEntropy.round(ring).get(10, TimeUnit.SECONDS).intValue(), 0);
+            assertEquals(antiEntropy.keysRepaired(), diverged);
+            pools.forEach(NodePool::close);
+        } finally {
+            for (var server : servers) {
+                server.close();
+            }
+        }
+    }
+}
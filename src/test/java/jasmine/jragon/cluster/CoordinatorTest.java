@@ -0,0 +1,47 @@
+package jasmine.jragon.cluster;
+
+import jasmine.jragon.consensus.ConsensusSettings;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+public class CoordinatorTest {
+    @DataProvider
+    public Object[][] commandProvider() {
+        return new Object[][]{
+                //Command a coordinating connection sent, whether the cluster answers it rather than this server
+                {"GET x", true},
+                {"put x 1", true},
+                {"CONTAINS x", true},
+                {"MGET x y", true},
+                {"MPUT x 1 y 2", true},
+                {"R=1 GET x", true},
+                {"N=3 W=2 PUT x 1", true},
+                {"N=0 PUT x 1", true},
+                {"TRANSACT x y", true},
+                {"EXEC x | GET x", true},
+                {"DECIDE t COMMIT", false},
+                {"PING", false},
+                {"STATS", false},
+                {"RANK x", false},
+                {"SNAPSHOT", false},
+                {"MPUTV 5 x 1", false},
+                {"GETV x", false},
+                {"COORDINATE", false},
+                {"SHUTDOWN", false},
+        };
+    }
+
+    @Test(dataProvider = "commandProvider")
+    public void coordinatesTest(String command, boolean coordinated) {
+        assertEquals(Coordinator.coordinates(command), coordinated);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void noServersTest() {
+        new Coordinator(List.of(), ConsensusSettings.DEFAULTS, ConnectionSettings.DEFAULTS);
+    }
+}
@@ -0,0 +1,147 @@
+package jasmine.jragon.cluster;
+
+import jasmine.jragon.command.ProtocolCommand;
+import jasmine.jragon.network.Frame;
+import jasmine.jragon.tree.BTree;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import static jasmine.jragon.command.ProtocolCommand.PING;
+import static jasmine.jragon.response.ServerResponse.PONG;
+
+//A local server speaking tagged frames, one thread per connection. Requests are answered by the handler, by default
+//with their own command, unless held, in which case they wait in requests for a test to answer. Reading can be paused
+//to back up the socket
+final class FrameServer implements AutoCloseable {
+    private final ServerSocket serverSocket;
+    private final List<Socket> connections = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    private final CountDownLatch reading;
+    private final boolean holding;
+    private final UnaryOperator<String> handler;
+
+    FrameServer(boolean holding, boolean reading) throws IOException {
+        this(holding, reading, UnaryOperator.identity());
+    }
+
+    FrameServer(UnaryOperator<String> handler) throws IOException {
+        this(false, true, handler);
+    }
+
+    //Answers every command against the tree, as a server would
+    static FrameServer serving(BTree tree) throws IOException {
+        return new FrameServer(command -> {
+            var split = command.split(" +", 2);
+            var arguments = split.length == 1 ? new String[0] : split[1].split(" +");
+            synchronized (tree) {
+                return ProtocolCommand.lookup(split[0]).handleRequest(arguments, Collections.emptySet(), tree);
+            }
+        });
+    }
+
+    private FrameServer(boolean holding, boolean reading, UnaryOperator<String> handler) throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.holding = holding;
+        this.handler = handler;
+        this.reading = new CountDownLatch(reading ? 0 : 1);
+
+        var acceptor = new Thread(this::accept, "frame-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    record Request(int connection, long id, String command, OutputStream out) {
+        void answer(String response) throws IOException {
+            synchronized (out) {
+                out.write(Frame.encodeResponse(id, response));
+                out.flush();
+            }
+        }
+    }
+
+    InetSocketAddress address() {
+        return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    }
+
+    Request nextRequest() throws InterruptedException {
+        var request = requests.poll(5, TimeUnit.SECONDS);
+        if (request == null) {
+            throw new AssertionError("No request arrived");
+        }
+        return request;
+    }
+
+    boolean hasRequest() {
+        return !requests.isEmpty();
+    }
+
+    void startReading() {
+        reading.countDown();
+    }
+
+    //Drops every connection, as a server going down would
+    void disconnect() throws IOException {
+        for (var connection : connections) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        disconnect();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                var connection = serverSocket.accept();
+                int index = connections.size();
+                connections.add(connection);
+
+                var reader = new Thread(() -> serve(index, connection), "frame-server-" + index);
+                reader.setDaemon(true);
+                reader.start();
+            }
+        } catch (IOException e) {
+            //Closed by the test
+        }
+    }
+
+    private void serve(int index, Socket connection) {
+        try (connection) {
+            reading.await();
+            var in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+            var out = connection.getOutputStream();
+            for (var line = in.readLine(); line != null; line = in.readLine()) {
+                int space = line.indexOf(' ');
+                var request = new Request(index, Long.parseLong(line.substring(1, space)), line.substring(space + 1), out);
+                if (PING.getCommandName().equals(request.command())) {
+                    request.answer(PONG.toString());
+                } else if (holding) {
+                    requests.add(request);
+                } else {
+                    request.answer(handler.apply(request.command()));
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            //The client or the test closed the connection
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package jasmine.jragon.cluster;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class MembershipTest {
+    @DataProvider
+    public Object[][] parseProvider() {
+        return new Object[][]{
+                //Encoded membership, whether it parses
+                {"0", true},
+                {"1 a:1", true},
+                {"3 a:1,b:2,c:3", true},
+                {"4 a:1,b:2,d:4 a:1,b:2,c:3", true},
+                {"1", false},
+                {"-1 a:1", false},
+                {"x a:1", false},
+                {"1 a", false},
+                {"1 a:port", false},
+                {"1 a:1,a:1", false},
+                {"1 a:1 b:2 c:3", false},
+        };
+    }
+
+    @Test(dataProvider = "parseProvider")
+    public void parseTest(String encoded, boolean parses) {
+        var parsed = Membership.parse(encoded);
+
+        assertEquals(parsed.isPresent(), parses);
+        parsed.ifPresent(view -> assertEquals(view.encode(), encoded));
+    }
+
+    @Test
+    public void rebalancingTest() {
+        var view = Membership.parse("2 a:1,b:2,d:4 a:1,b:2,c:3").orElseThrow();
+
+        assertTrue(view.isRebalancing());
+        assertTrue(view.isNewerThan(Membership.NONE));
+        assertEquals(view.allMembers(), List.of("a:1", "b:2", "d:4", "c:3"));
+        assertFalse(Membership.parse("3 a:1,b:2,d:4").orElseThrow().isRebalancing());
+        assertEquals(Membership.parse(" 0 "), Optional.of(Membership.NONE));
+    }
+}
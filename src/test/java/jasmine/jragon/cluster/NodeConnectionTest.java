@@ -0,0 +1,97 @@
+package jasmine.jragon.cluster;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class NodeConnectionTest {
+    private static ConnectionSettings settings(long batchWindowMillis) {
+        return new ConnectionSettings(1, true, 64, batchWindowMillis, 250, 8.0);
+    }
+
+    private static void awaitAll(List<CompletableFuture<String>> responses, long timeoutMillis) throws Exception {
+        CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new)).get(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    //Requests handed to the loop together leave in shared writes of up to batchSize frames
+    @Test
+    public void coalescingTest() throws Exception {
+        try (var server = new FrameServer(false, true); var loop = new EventLoop("connection-test")) {
+            var connection = NodeConnection.open(server.address(), loop, settings(0));
+            connection.whenConnected().get(5, TimeUnit.SECONDS);
+
+            List<CompletableFuture<String>> responses = new ArrayList<>();
+            loop.execute(() -> {
+                for (int i = 0; i < 500; i++) {
+                    responses.add(connection.send("GET k" + i));
+                }
+            });
+            while (responses.size() < 500) {
+                Thread.sleep(1);
+            }
+            awaitAll(responses, 5_000);
+
+            for (int i = 0; i < responses.size(); i++) {
+                assertEquals(responses.get(i).join(), "GET k" + i);
+            }
+            assertEquals(connection.frameCount(), 500);
+            assertTrue(connection.writeCount() <= 500 / 64 + 1, connection.writeCount() + " writes");
+            connection.close();
+        }
+    }
+
+    //A batch window only holds requests behind unanswered ones, and the last of a burst goes out once they are
+    //answered rather than when the window closes
+    @Test
+    public void idleBurstTest() throws Exception {
+        try (var server = new FrameServer(false, true); var loop = new EventLoop("connection-test")) {
+            var connection = NodeConnection.open(server.address(), loop, settings(60_000));
+            connection.whenConnected().get(5, TimeUnit.SECONDS);
+
+            assertEquals(connection.send("GET alone").get(5, TimeUnit.SECONDS), "GET alone");
+
+            List<CompletableFuture<String>> responses = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                responses.add(connection.send("GET k" + i));
+            }
+            awaitAll(responses, 5_000);
+            assertEquals(responses.get(199).join(), "GET k199");
+            connection.close();
+        }
+    }
+
+    //A write the socket only partly takes resumes where it stopped once the server reads again
+    @Test
+    public void partialWriteTest() throws Exception {
+        try (var server = new FrameServer(false, false); var loop = new EventLoop("connection-test")) {
+            var connection = NodeConnection.open(server.address(), loop, settings(0));
+            connection.whenConnected().get(5, TimeUnit.SECONDS);
+
+            List<String> commands = new ArrayList<>();
+            List<CompletableFuture<String>> responses = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                var command = "PUT k" + i + " " + String.valueOf((char) ('a' + i % 26)).repeat(256 * 1024);
+                commands.add(command);
+                responses.add(connection.send(command));
+            }
+
+            Thread.sleep(200);
+            assertTrue(connection.frameCount() < commands.size(), connection.frameCount() + " frames written");
+
+            server.startReading();
+            awaitAll(responses, 10_000);
+            for (int i = 0; i < commands.size(); i++) {
+                assertEquals(responses.get(i).join(), commands.get(i));
+            }
+            assertEquals(connection.frameCount(), commands.size());
+            assertTrue(connection.writeCount() > 1);
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package jasmine.jragon.cluster;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+public class NodePoolTest {
+    private static ConnectionSettings settings(int poolSize, boolean multiplexing) {
+        return new ConnectionSettings(poolSize, multiplexing, 64, 0, 250, 8.0);
+    }
+
+    private static String await(CompletableFuture<String> response) throws Exception {
+        return response.get(5, TimeUnit.SECONDS);
+    }
+
+    //Each request goes to the live connection with the fewest outstanding
+    @Test
+    public void leastOutstandingTest() throws Exception {
+        try (var server = new FrameServer(true, true); var loop = new EventLoop("pool-test")) {
+            var pool = NodePool.open(server.address(), loop, settings(2, true));
+            pool.whenSettled().get(5, TimeUnit.SECONDS);
+
+            var first = pool.send("GET a");
+            var second = pool.send("GET b");
+            var firstRequest = server.nextRequest();
+            var secondRequest = server.nextRequest();
+            assertNotEquals(firstRequest.connection(), secondRequest.connection());
+            assertEquals(pool.outstanding(), 2);
+
+            var answered = firstRequest.command().equals("GET a") ? firstRequest : secondRequest;
+            var waiting = answered == firstRequest ? secondRequest : firstRequest;
+            answered.answer("1");
+            assertEquals(await(first), "1");
+
+            var third = pool.send("GET c");
+            var thirdRequest = server.nextRequest();
+            assertEquals(thirdRequest.connection(), answered.connection());
+
+            waiting.answer("2");
+            thirdRequest.answer("3");
+            assertEquals(await(second), "2");
+            assertEquals(await(third), "3");
+            pool.close();
+        }
+    }
+
+    //Without multiplexing a connection carries one request at a time, and the rest wait for one to free up
+    @Test
+    public void queuedTest() throws Exception {
+        try (var server = new FrameServer(true, true); var loop = new EventLoop("pool-test")) {
+            var pool = NodePool.open(server.address(), loop, settings(2, false));
+            pool.whenSettled().get(5, TimeUnit.SECONDS);
+
+            var responses = List.of(pool.send("GET a"), pool.send("GET b"), pool.send("GET c"));
+            var firstRequest = server.nextRequest();
+            var secondRequest = server.nextRequest();
+            assertNotEquals(firstRequest.connection(), secondRequest.connection());
+            Thread.sleep(100);
+            assertFalse(server.hasRequest());
+            assertEquals(pool.outstanding(), 3);
+
+            firstRequest.answer(firstRequest.command());
+            var thirdRequest = server.nextRequest();
+            assertEquals(thirdRequest.command(), "GET c");
+            assertEquals(thirdRequest.connection(), firstRequest.connection());
+
+            secondRequest.answer(secondRequest.command());
+            thirdRequest.answer(thirdRequest.command());
+            for (int i = 0; i < responses.size(); i++) {
+                assertEquals(await(responses.get(i)), "GET " + (char) ('a' + i));
+            }
+            assertEquals(pool.outstanding(), 0);
+            pool.close();
+        }
+    }
+
+    //Once every connection is gone, everything still queued fails in turn rather than one inside another's callback
+    @Test
+    public void queuedFailureTest() throws Exception {
+        try (var server = new FrameServer(true, true); var loop = new EventLoop("pool-test")) {
+            var pool = NodePool.open(server.address(), loop, settings(1, false));
+            pool.whenSettled().get(5, TimeUnit.SECONDS);
+
+            List<CompletableFuture<String>> responses = new ArrayList<>();
+            IntStream.range(0, 20_000).forEach(i -> responses.add(pool.send("GET k" + i)));
+            server.nextRequest();
+            server.disconnect();
+
+            CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new))
+                    .handle((ignored, e) -> null)
+                    .get(5, TimeUnit.SECONDS);
+            for (var response : responses) {
+                assertTrue(response.isCompletedExceptionally());
+            }
+            assertEquals(pool.outstanding(), 0);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package jasmine.jragon.cluster;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class PhiAccrualDetectorTest {
+    private static final long INTERVAL_MILLIS = 100;
+    private static final long MILLIS = 1_000_000;
+
+    private static PhiAccrualDetector steadyDetector(long start, int heartbeats) {
+        var detector = new PhiAccrualDetector(INTERVAL_MILLIS);
+        for (int i = 0; i < heartbeats; i++) {
+            detector.heartbeat(start + i * INTERVAL_MILLIS * MILLIS);
+        }
+        return detector;
+    }
+
+    @DataProvider
+    public Object[][] silenceProvider() {
+        return new Object[][]{
+                //Milliseconds since the last heartbeat, whether a threshold of 8 suspects the server
+                {0, false},
+                {INTERVAL_MILLIS, false},
+                {2 * INTERVAL_MILLIS, false},
+                {4 * INTERVAL_MILLIS, false},
+                {10 * INTERVAL_MILLIS, true},
+                {60 * INTERVAL_MILLIS, true},
+        };
+    }
+
+    @Test(dataProvider = "silenceProvider")
+    public void suspicionTest(long silenceMillis, boolean suspected) {
+        long start = 1_000 * MILLIS;
+        var detector = steadyDetector(start, 50);
+        long last = start + 49 * INTERVAL_MILLIS * MILLIS;
+
+        assertEquals(detector.phi(last + silenceMillis * MILLIS) >= 8.0, suspected);
+    }
+
+    @Test
+    public void phiGrowsWithSilenceTest() {
+        long start = 1_000 * MILLIS;
+        var detector = steadyDetector(start, 20);
+        long last = start + 19 * INTERVAL_MILLIS * MILLIS;
+
+        double previous = -1;
+        for (long silence = 0; silence <= 2_000; silence += 50) {
+            double phi = detector.phi(last + silence * MILLIS);
+            assertTrue(phi >= previous);
+            assertTrue(Double.isFinite(phi));
+            previous = phi;
+        }
+    }
+
+    @Test
+    public void resetTest() {
+        var detector = new PhiAccrualDetector(INTERVAL_MILLIS);
+        assertEquals(detector.phi(5_000 * MILLIS), 0.0);
+
+        detector.heartbeat(1_000 * MILLIS);
+        assertTrue(detector.phi(60_000 * MILLIS) >= 8.0);
+
+        detector.reset(INTERVAL_MILLIS);
+        assertEquals(detector.phi(60_000 * MILLIS), 0.0);
+    }
+}
@@ -0,0 +1,151 @@
+package jasmine.jragon.cluster;
+
+import jasmine.jragon.consensus.ConsensusSettings;
+import jasmine.jragon.consensus.HashRing;
+import jasmine.jragon.consensus.QuorumPolicy;
+import jasmine.jragon.tree.BTree;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.expectThrows;
+
+public class RebalancerTest {
+    //A long heartbeat interval, so no server is suspected while the test runs without heartbeats
+    private static final ConnectionSettings CONNECTIONS = new ConnectionSettings(2, true, 64, 0, 60_000, 8.0);
+    private static final int KEY_COUNT = 300;
+
+    private static ConsensusSettings settings(int replicationFactor) {
+        return ConsensusSettings.DEFAULTS
+                .withQuorum(new QuorumPolicy(replicationFactor, 1, 1, false))
+                .withRebalanceKeysPerSecond(0);
+    }
+
+    private static HashRing<NodePool> ring(List<NodePool> members) {
+        return new HashRing<>(members, NodePool::getAddress, HashRing.DEFAULT_VIRTUAL_NODES);
+    }
+
+    @DataProvider
+    public Object[][] membershipProvider() {
+        return new Object[][]{
+                //Whether the fourth server joins the other three or leaves them
+                {true},
+                {false},
+        };
+    }
+
+    //Every server a key gains under the new ring is sent it, by the leaving server when there is one, and only the
+    //joining server gains anything when one joins
+    @Test(dataProvider = "membershipProvider")
+    public void planTest(boolean joining) throws Exception {
+        var trees = List.of(new BTree(3), new BTree(3), new BTree(3), new BTree(3));
+        List<FrameServer> servers = new ArrayList<>();
+        for (var tree : trees) {
+            servers.add(FrameServer.serving(tree));
+        }
+
+        try (var loop = new EventLoop("rebalancer-test")) {
+            List<NodePool> pools = new ArrayList<>();
+            for (var server : servers) {
+                pools.add(NodePool.open(server.address(), loop, CONNECTIONS));
+            }
+            for (var pool : pools) {
+                pool.whenSettled().get(5, TimeUnit.SECONDS);
+            }
+
+            var changed = pools.get(3);
+            var previous = ring(joining ? pools.subList(0, 3) : pools);
+            var next = ring(joining ? pools : pools.subList(0, 3));
+            for (int i = 0; i < KEY_COUNT; i++) {
+                for (var replica : previous.replicasFor("key" + i, 2)) {
+                    trees.get(pools.indexOf(replica)).put("key" + i, "v" + i, 0, 100);
+                }
+            }
+
+            var rebalancer = new Rebalancer(previous, next, settings(2));
+            var plan = rebalancer.plan();
+            assertFalse(plan.isEmpty());
+            for (var transfer : plan.keySet()) {
+                assertEquals(joining ? transfer.getValue() : transfer.getKey(), changed);
+            }
+
+            int expected = 0;
+            for (int i = 0; i < KEY_COUNT; i++) {
+                var held = previous.replicasFor("key" + i, 2);
+                for (var replica : next.replicasFor("key" + i, 2)) {
+                    var tree = trees.get(pools.indexOf(replica));
+                    if (!held.contains(replica)) {
+                        expected++;
+                        assertFalse(tree.contains("key" + i));
+                    }
+                }
+            }
+
+            assertEquals(rebalancer.run().get(10, TimeUnit.SECONDS).intValue(), expected);
+            for (int i = 0; i < KEY_COUNT; i++) {
+                for (var replica : next.replicasFor("key" + i, 2)) {
+                    var tree = trees.get(pools.indexOf(replica));
+                    synchronized (tree) {
+                        assertEquals(tree.getVersioned("key" + i).orElseThrow().version(), 100);
+                    }
+                }
+            }
+            pools.forEach(NodePool::close);
+        } finally {
+            for (var server : servers) {
+                server.close();
+            }
+        }
+    }
+
+    //A piece only an unreachable server held has nowhere to be copied from, so the rebalance fails, for the membership
+    //change to roll back, rather than dropping its keys
+    @Test
+    public void unavailableSourceTest() throws Exception {
+        InetSocketAddress unreachable;
+        try (var socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            unreachable = new InetSocketAddress(socket.getInetAddress(), socket.getLocalPort());
+        }
+
+        var trees = List.of(new BTree(3), new BTree(3));
+        List<FrameServer> servers = new ArrayList<>();
+        for (var tree : trees) {
+            servers.add(FrameServer.serving(tree));
+        }
+
+        try (var loop = new EventLoop("rebalancer-test")) {
+            List<NodePool> pools = new ArrayList<>();
+            for (var server : servers) {
+                pools.add(NodePool.open(server.address(), loop, CONNECTIONS));
+            }
+            var leaving = NodePool.open(unreachable, loop, CONNECTIONS);
+            pools.add(leaving);
+            for (var pool : pools) {
+                pool.whenSettled().get(5, TimeUnit.SECONDS);
+            }
+            assertFalse(leaving.isAvailable());
+
+            var rebalancer = new Rebalancer(ring(pools), ring(pools.subList(0, 2)), settings(1));
+            assertThrows(IllegalStateException.class, rebalancer::plan);
+
+            var failure = expectThrows(ExecutionException.class, () -> rebalancer.run().get(5, TimeUnit.SECONDS));
+            assertTrue(failure.getCause() instanceof IllegalStateException, failure.getCause().toString());
+            pools.forEach(NodePool::close);
+        } finally {
+            for (var server : servers) {
+                server.close();
+            }
+        }
+    }
+}
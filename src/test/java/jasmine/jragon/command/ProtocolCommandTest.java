@@ -10,12 +10,42 @@ import java.util.Collections;
 import java.util.Set;
 
 import static jasmine.jragon.command.ProtocolCommand.ABORT_TRANSACTION;
+import static jasmine.jragon.command.ProtocolCommand.APPEND;
+import static jasmine.jragon.command.ProtocolCommand.APPEND_ENTRIES;
+import static jasmine.jragon.command.ProtocolCommand.BEGIN_SNAPSHOT;
 import static jasmine.jragon.command.ProtocolCommand.BEGIN_TRANSACTION;
 import static jasmine.jragon.command.ProtocolCommand.CHECK;
 import static jasmine.jragon.command.ProtocolCommand.COMMIT_TRANSACTION;
+import static jasmine.jragon.command.ProtocolCommand.COMPARE_AND_SET;
+import static jasmine.jragon.command.ProtocolCommand.COORDINATE;
+import static jasmine.jragon.command.ProtocolCommand.COUNT_RANGE;
+import static jasmine.jragon.command.ProtocolCommand.DECIDE_TRANSACTION;
+import static jasmine.jragon.command.ProtocolCommand.EXECUTE;
+import static jasmine.jragon.command.ProtocolCommand.INCREMENT_BY;
+import static jasmine.jragon.command.ProtocolCommand.JOIN;
+import static jasmine.jragon.command.ProtocolCommand.LEAVE;
+import static jasmine.jragon.command.ProtocolCommand.MEMBERS;
+import static jasmine.jragon.command.ProtocolCommand.MERKLE_BUCKET;
+import static jasmine.jragon.command.ProtocolCommand.MERKLE_DIGEST;
+import static jasmine.jragon.command.ProtocolCommand.MULTI_READ;
+import static jasmine.jragon.command.ProtocolCommand.MULTI_WRITE;
+import static jasmine.jragon.command.ProtocolCommand.PING;
+import static jasmine.jragon.command.ProtocolCommand.PREPARE_TRANSACTION;
+import static jasmine.jragon.command.ProtocolCommand.PUT_IF_ABSENT;
+import static jasmine.jragon.command.ProtocolCommand.RAFT;
+import static jasmine.jragon.command.ProtocolCommand.RANK;
 import static jasmine.jragon.command.ProtocolCommand.READ;
+import static jasmine.jragon.command.ProtocolCommand.RELEASE_SNAPSHOT;
+import static jasmine.jragon.command.ProtocolCommand.REPLICATE;
+import static jasmine.jragon.command.ProtocolCommand.REQUEST_VOTE;
+import static jasmine.jragon.command.ProtocolCommand.SCAN;
+import static jasmine.jragon.command.ProtocolCommand.SELECT;
 import static jasmine.jragon.command.ProtocolCommand.SHUTDOWN_SERVER;
+import static jasmine.jragon.command.ProtocolCommand.STATISTICS;
+import static jasmine.jragon.command.ProtocolCommand.TRANSACTION_OUTCOME;
 import static jasmine.jragon.command.ProtocolCommand.UNSUPPORTED;
+import static jasmine.jragon.command.ProtocolCommand.VERSIONED_MULTI_WRITE;
+import static jasmine.jragon.command.ProtocolCommand.VERSIONED_READ;
 import static jasmine.jragon.command.ProtocolCommand.WRITE;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
@@ -51,6 +81,36 @@ public class ProtocolCommandTest {
                 {"Transact", BEGIN_TRANSACTION},
                 {"COMMIT", COMMIT_TRANSACTION},
                 {"abort", ABORT_TRANSACTION},
+                {"count", COUNT_RANGE},
+                {"Rank", RANK},
+                {"SELECT", SELECT},
+                {"snapshot", BEGIN_SNAPSHOT},
+                {"release", RELEASE_SNAPSHOT},
+                {"stats", STATISTICS},
+                {"mget", MULTI_READ},
+                {"MPut", MULTI_WRITE},
+                {"ping", PING},
+                {"merkle", MERKLE_DIGEST},
+                {"Bucket", MERKLE_BUCKET},
+                {"getv", VERSIONED_READ},
+                {"MputV", VERSIONED_MULTI_WRITE},
+                {"replicate", REPLICATE},
+                {"raft", RAFT},
+                {"appendentries", APPEND_ENTRIES},
+                {"requestvote", REQUEST_VOTE},
+                {"coordinate", COORDINATE},
+                {"scan", SCAN},
+                {"Members", MEMBERS},
+                {"join", JOIN},
+                {"LEAVE", LEAVE},
+                {"prepare", PREPARE_TRANSACTION},
+                {"DECIDE", DECIDE_TRANSACTION},
+                {"Outcome", TRANSACTION_OUTCOME},
+                {"exec", EXECUTE},
+                {"cas", COMPARE_AND_SET},
+                {"IncrBy", INCREMENT_BY},
+                {"APPEND", APPEND},
+                {"putIfAbsent", PUT_IF_ABSENT},
         };
     }
 
@@ -71,6 +131,8 @@ public class ProtocolCommandTest {
                 {WRITE, 2, true},
                 {WRITE, 1, false},
                 {WRITE, 7, false},
+                {WRITE, 3, false},
+                {WRITE, 4, true},
                 {CHECK, -1, false},
                 {CHECK, 0, false},
                 {CHECK, 1, true},
@@ -93,6 +155,67 @@ public class ProtocolCommandTest {
                 {SHUTDOWN_SERVER, 0, true},
                 {SHUTDOWN_SERVER, 1, false},
                 {SHUTDOWN_SERVER, Integer.MAX_VALUE, false},
+                {PING, 0, true},
+                {VERSIONED_MULTI_WRITE, 2, false},
+                {VERSIONED_MULTI_WRITE, 3, true},
+                {VERSIONED_MULTI_WRITE, 4, false},
+                {VERSIONED_MULTI_WRITE, 5, true},
+                {REPLICATE, 3, false},
+                {REPLICATE, 4, true},
+                {REPLICATE, 7, true},
+                {RAFT, 2, false},
+                {RAFT, 3, true},
+                {APPEND_ENTRIES, 6, false},
+                {APPEND_ENTRIES, 7, true},
+                {APPEND_ENTRIES, 8, true},
+                {REQUEST_VOTE, 5, false},
+                {REQUEST_VOTE, 6, true},
+                {REQUEST_VOTE, 7, false},
+                {COORDINATE, 0, true},
+                {COORDINATE, 1, false},
+                {SCAN, 1, false},
+                {SCAN, 2, true},
+                {SCAN, 3, true},
+                {SCAN, 4, false},
+                {MEMBERS, 0, true},
+                {MEMBERS, 3, true},
+                {MEMBERS, 4, false},
+                {JOIN, 0, false},
+                {JOIN, 1, true},
+                {PREPARE_TRANSACTION, 1, false},
+                {PREPARE_TRANSACTION, 2, true},
+                {DECIDE_TRANSACTION, 2, true},
+                {DECIDE_TRANSACTION, 3, false},
+                {EXECUTE, 3, false},
+                {EXECUTE, 4, true},
+                {EXECUTE, 9, true},
+                {COMPARE_AND_SET, 2, false},
+                {COMPARE_AND_SET, 3, true},
+                {COMPARE_AND_SET, 4, false},
+                {COMPARE_AND_SET, 5, true},
+                {INCREMENT_BY, 2, true},
+                {INCREMENT_BY, 3, false},
+                {PUT_IF_ABSENT, 4, true},
+                {TRANSACTION_OUTCOME, 1, true},
+                {PING, 1, false},
+                {COUNT_RANGE, 0, true},
+                {COUNT_RANGE, 1, false},
+                {COUNT_RANGE, 2, true},
+                {COUNT_RANGE, 3, false},
+                {RANK, 0, false},
+                {RANK, 1, true},
+                {RANK, 2, false},
+                {SELECT, 0, false},
+                {SELECT, 1, true},
+                {SELECT, 2, false},
+                {MULTI_READ, 0, false},
+                {MULTI_READ, 1, true},
+                {MULTI_READ, 200, true},
+                {MULTI_WRITE, 0, false},
+                {MULTI_WRITE, 1, false},
+                {MULTI_WRITE, 2, true},
+                {MULTI_WRITE, 5, false},
+                {MULTI_WRITE, 400, true},
         };
     }
 
@@ -116,6 +239,9 @@ public class ProtocolCommandTest {
                 {COMMIT_TRANSACTION,  false},
                 {ABORT_TRANSACTION, false},
                 {SHUTDOWN_SERVER, false},
+                {COUNT_RANGE, false},
+                {RANK, false},
+                {SELECT, false},
         };
     }
 
@@ -139,6 +265,21 @@ public class ProtocolCommandTest {
                 {COMMIT_TRANSACTION, true},
                 {ABORT_TRANSACTION, true},
                 {SHUTDOWN_SERVER, false},
+                {COUNT_RANGE, false},
+                {RANK, false},
+                {SELECT, false},
+                {MULTI_READ, false},
+                {MULTI_WRITE, true},
+                {VERSIONED_READ, false},
+                {VERSIONED_MULTI_WRITE, true},
+                {REPLICATE, false},
+                {RAFT, false},
+                {APPEND_ENTRIES, false},
+                {REQUEST_VOTE, false},
+                {COORDINATE, false},
+                {EXECUTE, true},
+                {COMPARE_AND_SET, true},
+                {APPEND, true},
         };
     }
 
@@ -188,7 +329,7 @@ public class ProtocolCommandTest {
                 {new String[]{}, Collections.emptySet(), ServerResponse.INSUFFICIENT_ARGUMENTS.toString()},
                 {new String[]{"a", "b"}, Collections.emptySet(), ServerResponse.INSUFFICIENT_ARGUMENTS.toString()},
                 {new String[]{"a"}, Collections.emptySet(), "b"},
-                {new String[]{"a"}, Set.of("a", "b"), ServerResponse.KEY_LOCKED_ISSUE.toString()},
+                {new String[]{"a"}, Set.of("a", "b"), "b"},
                 {new String[]{"a"}, Set.of("b"), "b"},
                 {new String[]{"d"}, Set.of("b"), "null"},
         };
@@ -211,6 +352,13 @@ public class ProtocolCommandTest {
                 {new String[]{"a", "r"}, Set.of("a", "b"), ServerResponse.KEY_LOCKED_ISSUE.toString()},
                 {new String[]{"a", "r"}, Set.of("b"), "b"},
                 {new String[]{"d", "e"}, Set.of("b"), "null"},
+                {new String[]{"e", "f", "EX", "60"}, Collections.emptySet(), "null"},
+                {new String[]{"e", "g", "ex", "60"}, Collections.emptySet(), "f"},
+                {new String[]{"e", "f", "EX", "-1"}, Collections.emptySet(), ServerResponse.INVALID_WRITE_OPTION.toString()},
+                {new String[]{"e", "f", "EX", "soon"}, Collections.emptySet(), ServerResponse.INVALID_WRITE_OPTION.toString()},
+                {new String[]{"e", "f", "PX", "60"}, Collections.emptySet(), ServerResponse.INVALID_WRITE_OPTION.toString()},
+                {new String[]{"e", "f", "VER", "0"}, Collections.emptySet(), ServerResponse.INVALID_WRITE_OPTION.toString()},
+                {new String[]{"e", "f", "EX", "60", "VER"}, Collections.emptySet(), ServerResponse.INSUFFICIENT_ARGUMENTS.toString()},
         };
     }
 
@@ -228,7 +376,7 @@ public class ProtocolCommandTest {
                 {new String[]{"a", "b"}, Collections.emptySet(), ServerResponse.INSUFFICIENT_ARGUMENTS.toString()},
                 {new String[]{"a"}, Collections.emptySet(), "true"},
                 {new String[]{"a", "b", "c"}, Collections.emptySet(), ServerResponse.INSUFFICIENT_ARGUMENTS.toString()},
-                {new String[]{"a"}, Set.of("a", "b"), ServerResponse.KEY_LOCKED_ISSUE.toString()},
+                {new String[]{"a"}, Set.of("a", "b"), "true"},
                 {new String[]{"r"}, Set.of("b"), "false"},
         };
     }
@@ -240,6 +388,142 @@ public class ProtocolCommandTest {
         assertEquals(response, expected);
     }
 
+    @DataProvider
+    public Object[][] orderStatisticCommandTestProvider() {
+        return new Object[][] {
+                {COUNT_RANGE, new String[]{"a"}, ServerResponse.INSUFFICIENT_ARGUMENTS.toString()},
+                {COUNT_RANGE, new String[]{"a", "c"}, "3"},
+                {COUNT_RANGE, new String[]{"b", "bz"}, "1"},
+                {COUNT_RANGE, new String[]{"c", "a"}, "0"},
+                {RANK, new String[]{}, ServerResponse.INSUFFICIENT_ARGUMENTS.toString()},
+                {RANK, new String[]{"a"}, "0"},
+                {RANK, new String[]{"bb"}, "2"},
+                {SELECT, new String[]{"1"}, "b"},
+                {SELECT, new String[]{"-1"}, "null"},
+                {SELECT, new String[]{"100"}, "null"},
+                {SELECT, new String[]{"one"}, ServerResponse.INVALID_NUMBER.toString()},
+                {STATISTICS, new String[]{"a"}, ServerResponse.INSUFFICIENT_ARGUMENTS.toString()},
+                {MERKLE_DIGEST, new String[]{"0"}, ServerResponse.INSUFFICIENT_ARGUMENTS.toString()},
+                {MERKLE_DIGEST, new String[]{"1", "2"}, ServerResponse.INVALID_NUMBER.toString()},
+                {MERKLE_DIGEST, new String[]{"17", "0"}, ServerResponse.INVALID_NUMBER.toString()},
+                {MERKLE_DIGEST, new String[]{"4", "0", "x"}, ServerResponse.INVALID_NUMBER.toString()},
+                {MERKLE_BUCKET, new String[]{"65536"}, ServerResponse.INVALID_NUMBER.toString()},
+        };
+    }
+
+    @Test(dataProvider = "orderStatisticCommandTestProvider")
+    public void orderStatisticCommandTest(ProtocolCommand protocol, String[] arguments, String expected) {
+        assertEquals(protocol.handleRequest(arguments, Set.of("a"), bTree), expected);
+    }
+
+    @Test
+    public void multiKeyCommandTest() {
+        assertEquals(MULTI_WRITE.handleRequest(new String[]{"m1", "x", "m2", "y"}, Collections.emptySet(), bTree),
+                "null\nnull");
+        assertEquals(MULTI_WRITE.handleRequest(new String[]{"m1", "z", "m3", "w"}, Set.of("m3"), bTree),
+                ServerResponse.KEY_LOCKED_ISSUE.toString());
+        assertEquals(MULTI_WRITE.handleRequest(new String[]{"m1", "z"}, Set.of("m3"), bTree), "x");
+        assertEquals(MULTI_WRITE.handleRequest(new String[]{"m1"}, Collections.emptySet(), bTree),
+                ServerResponse.INSUFFICIENT_ARGUMENTS.toString());
+
+        assertEquals(MULTI_READ.handleRequest(new String[]{"m1", "missing", "m2"}, Set.of("m1"), bTree),
+                "z\nnull\ny");
+        assertEquals(MULTI_READ.handleRequest(new String[]{}, Collections.emptySet(), bTree),
+                ServerResponse.INSUFFICIENT_ARGUMENTS.toString());
+    }
+
+    @Test
+    public void versionedCommandTest() {
+        var tree = new BTree(5);
+        assertEquals(VERSIONED_MULTI_WRITE.handleRequest(new String[]{"20", "v1", "x", "v2", "y"}, Collections.emptySet(), tree),
+                "null\nnull");
+        assertEquals(WRITE.handleRequest(new String[]{"v1", "stale", "VER", "10"}, Collections.emptySet(), tree), "x");
+        assertEquals(WRITE.handleRequest(new String[]{"v2", "new", "EX", "60", "VER", "30"}, Collections.emptySet(), tree), "y");
+
+        assertEquals(VERSIONED_READ.handleRequest(new String[]{"v1", "v2", "missing"}, Set.of("v1"), tree),
+                "20 0 x\n30 60 new\n0 0 null");
+        assertEquals(VERSIONED_MULTI_WRITE.handleRequest(new String[]{"0", "v1", "z"}, Collections.emptySet(), tree),
+                ServerResponse.INVALID_NUMBER.toString());
+        assertEquals(VERSIONED_MULTI_WRITE.handleRequest(new String[]{"40", "v1", "z"}, Set.of("v1"), tree),
+                ServerResponse.KEY_LOCKED_ISSUE.toString());
+        assertEquals(VERSIONED_MULTI_WRITE.handleRequest(new String[]{"v1", "z"}, Collections.emptySet(), tree),
+                ServerResponse.INSUFFICIENT_ARGUMENTS.toString());
+    }
+
+    @DataProvider
+    public Object[][] atomicCommandTestProvider() {
+        return new Object[][] {
+                //Command, arguments, value stored beforehand, expected response, expected value afterwards
+                {COMPARE_AND_SET, new String[]{"k", "1", "2"}, "1", "true", "2"},
+                {COMPARE_AND_SET, new String[]{"k", "1", "2"}, "3", "false", "3"},
+                {COMPARE_AND_SET, new String[]{"k", "null", "2"}, null, "true", "2"},
+                {COMPARE_AND_SET, new String[]{"k", "null", "2"}, "3", "false", "3"},
+                {INCREMENT_BY, new String[]{"k", "5"}, "10", "15", "15"},
+                {INCREMENT_BY, new String[]{"k", "-5"}, null, "-5", "-5"},
+                {INCREMENT_BY, new String[]{"k", "1"}, "ten", ServerResponse.INVALID_NUMBER.toString(), "ten"},
+                {INCREMENT_BY, new String[]{"k", "1"}, String.valueOf(Long.MAX_VALUE), ServerResponse.INVALID_NUMBER.toString(), String.valueOf(Long.MAX_VALUE)},
+                {INCREMENT_BY, new String[]{"k", "one"}, "1", ServerResponse.INVALID_NUMBER.toString(), "1"},
+                {APPEND, new String[]{"k", "b"}, "a", "ab", "ab"},
+                {APPEND, new String[]{"k", "b"}, null, "b", "b"},
+                {APPEND, new String[]{"k", "b", "EX", "soon"}, "a", ServerResponse.INVALID_WRITE_OPTION.toString(), "a"},
+                {PUT_IF_ABSENT, new String[]{"k", "b"}, null, "null", "b"},
+                {PUT_IF_ABSENT, new String[]{"k", "b"}, "a", "a", "a"},
+        };
+    }
+
+    @Test(dataProvider = "atomicCommandTestProvider")
+    public void atomicCommandTest(ProtocolCommand protocol, String[] arguments, String stored,
+                                  String expectedResponse, String expectedValue) {
+        var tree = new BTree(5);
+        if (stored != null) {
+            tree.put("k", stored);
+        }
+
+        assertEquals(protocol.handleRequest(arguments, Collections.emptySet(), tree), expectedResponse);
+        assertEquals(tree.get("k").orElse(null), expectedValue);
+        assertEquals(protocol.handleRequest(arguments, Set.of("k"), tree), ServerResponse.KEY_LOCKED_ISSUE.toString());
+    }
+
+    //An atomic write keeps the version it was sent with, and its options apply to what it writes
+    @Test
+    public void atomicCommandOptionsTest() {
+        var tree = new BTree(5);
+        assertEquals(INCREMENT_BY.handleRequest(new String[]{"k", "2", "EX", "60", "VER", "40"}, Collections.emptySet(), tree), "2");
+        assertEquals(VERSIONED_READ.handleRequest(new String[]{"k"}, Collections.emptySet(), tree), "40 60 2");
+        assertEquals(COMPARE_AND_SET.handleRequest(new String[]{"k", "2", "3"}, Collections.emptySet(), tree), "true");
+        assertTrue(tree.getVersioned("k").orElseThrow().version() > 40);
+        assertEquals(tree.getVersioned("k").orElseThrow().ttlSeconds(), 0);
+        assertEquals(COMPARE_AND_SET.handleRequest(new String[]{"k", "3"}, Set.of("k"), tree),
+                ServerResponse.INSUFFICIENT_ARGUMENTS.toString());
+        assertEquals(WRITE.handleAtomicRequest(new String[]{"k", "4"}, Collections.emptySet(), tree, options -> 0),
+                ServerResponse.UNSUPPORTED_COMMAND.toString());
+        assertEquals(tree.get("k").orElse(null), "3");
+    }
+
+    @DataProvider
+    public Object[][] scanCommandTestProvider() {
+        return new Object[][] {
+                {new String[]{"0-4294967295", "2"}, "2 b\na 3 0 b\nb 5 0 c"},
+                {new String[]{"0-4294967295", "2", "b"}, "1 c\nc 7 60 d"},
+                {new String[]{"0-4294967295", "2", "c"}, "0"},
+                {new String[]{"0-0,1-1", "5"}, "3 c"},
+                {new String[]{"0-4294967295", "0"}, ServerResponse.INVALID_NUMBER.toString()},
+                {new String[]{"first-last", "2"}, ServerResponse.INVALID_NUMBER.toString()},
+                {new String[]{"0-4294967295"}, ServerResponse.INSUFFICIENT_ARGUMENTS.toString()},
+        };
+    }
+
+    //Pages of keys in key order; ranges of ring positions filter which of the keys looked at are returned
+    @Test(dataProvider = "scanCommandTestProvider")
+    public void scanCommandTest(String[] arguments, String expected) {
+        var tree = new BTree(5);
+        WRITE.handleRequest(new String[]{"a", "b", "VER", "3"}, Collections.emptySet(), tree);
+        WRITE.handleRequest(new String[]{"b", "c", "VER", "5"}, Collections.emptySet(), tree);
+        WRITE.handleRequest(new String[]{"c", "d", "EX", "60", "VER", "7"}, Collections.emptySet(), tree);
+
+        assertEquals(SCAN.handleRequest(arguments, Collections.emptySet(), tree), expected);
+    }
+
     @DataProvider
     public Object[][] otherCommandTestProvider() {
         return new Object[][] {
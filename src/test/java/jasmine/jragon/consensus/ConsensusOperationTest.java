@@ -0,0 +1,666 @@
+package jasmine.jragon.consensus;
+
+import jasmine.jragon.client.TreeClient;
+import jasmine.jragon.client.handoff.HintStore;
+import jasmine.jragon.client.membership.MembershipStore;
+import jasmine.jragon.client.transaction.TransactionLog;
+import jasmine.jragon.clock.HybridClock;
+import jasmine.jragon.command.ProtocolCommand;
+import jasmine.jragon.tree.BTree;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static jasmine.jragon.response.ServerResponse.ACKNOWLEDGED;
+import static jasmine.jragon.response.ServerResponse.ATOMIC_WRITE_REBALANCING;
+import static jasmine.jragon.response.ServerResponse.INVALID_TRANSACTION_COMMAND;
+import static jasmine.jragon.response.ServerResponse.REBALANCE_IN_PROGRESS;
+import static jasmine.jragon.response.ServerResponse.SERVER_IO_ERROR;
+import static jasmine.jragon.response.ServerResponse.SUCCESS;
+import static jasmine.jragon.response.ServerResponse.TRANSACTION_ABORTED;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ConsensusOperationTest {
+    private static final String KEY = "hedged";
+    private static final String READ = ProtocolCommand.READ.getCommandName() + " " + KEY;
+
+    //Long timeouts and no background work, so replicas only see what a test sends them
+    private static ConsensusSettings settingsWith(QuorumPolicy quorum) {
+        return ConsensusSettings.DEFAULTS
+                .withReplicaTimeoutMillis(60_000)
+                .withOperationTimeoutMillis(60_000)
+                .withQuorum(quorum)
+                .withHedgeReads(false)
+                .withLatencyAwareReads(false)
+                .withAntiEntropyIntervalMillis(0)
+                .withRebalanceKeysPerSecond(0);
+    }
+
+    private static final class FakeReplica implements Replica {
+        private final String address;
+        private final AtomicBoolean stalled = new AtomicBoolean();
+        private final AtomicBoolean available = new AtomicBoolean(true);
+        private final AtomicInteger requests = new AtomicInteger();
+        private final List<String> received = new CopyOnWriteArrayList<>();
+        private volatile String versioned = "1 0 value";
+        private volatile String leader;
+
+        private FakeReplica(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public String getAddress() {
+            return address;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return available.get();
+        }
+
+        @Override
+        public CompletableFuture<String> send(String command) {
+            requests.incrementAndGet();
+            received.add(command);
+            if (command.startsWith(ProtocolCommand.STORE_HINT.getCommandName() + " ")) {
+                return CompletableFuture.completedFuture(ACKNOWLEDGED.toString());
+            } else if (command.startsWith(ProtocolCommand.RAFT.getCommandName() + " ") && !address.equals(leader)) {
+                return CompletableFuture.completedFuture("Not the leader of this Raft group " + leader);
+            } else if (command.startsWith(ProtocolCommand.VERSIONED_READ.getCommandName() + " ") && !stalled.get()) {
+                return CompletableFuture.completedFuture(versioned);
+            }
+            return stalled.get() ? new CompletableFuture<>() : CompletableFuture.completedFuture("value");
+        }
+    }
+
+    @DataProvider
+    public Object[][] hedgeProvider() {
+        return new Object[][]{
+                //Hedging enabled, hedges expected, requests expected for the slow read
+                {true, 1, 3},
+                {false, 0, 2},
+        };
+    }
+
+    @Test(dataProvider = "hedgeProvider")
+    public void hedgedReadTest(boolean hedgeReads, int expectedHedges, int expectedRequests) {
+        var replicas = List.of(new FakeReplica("a:1"), new FakeReplica("b:2"), new FakeReplica("c:3"));
+        var ring = new HashRing<>(replicas, FakeReplica::getAddress, HashRing.DEFAULT_VIRTUAL_NODES);
+        var settings = settingsWith(new QuorumPolicy(3, 2, 2, true))
+                .withReplicaTimeoutMillis(200)
+                .withOperationTimeoutMillis(1_000)
+                .withHedgeReads(hedgeReads);
+        var context = new ConsensusContext(ring, settings, new RepairLog(16), new ReplicaMetrics(), new HybridClock());
+        var placement = ring.replicasFor(KEY, 3);
+
+        //Enough fast replies for every replica to have a latency percentile
+        for (int i = 0; i < 32; i++) {
+            assertEquals(read(context), "value");
+            context.metrics().timedSend(placement.get(2), READ).join();
+        }
+        replicas.forEach(replica -> replica.requests.set(0));
+
+        placement.get(0).stalled.set(true);
+        var response = read(context);
+
+        assertEquals(context.metrics().hedgeCount(), expectedHedges);
+        assertEquals(replicas.stream().mapToInt(replica -> replica.requests.get()).sum(), expectedRequests);
+        if (hedgeReads) {
+            assertEquals(response, "value");
+            assertTrue(context.metrics().hedgeRate() > 0.0);
+        }
+    }
+
+    @DataProvider
+    public Object[][] suspectedReplicaProvider() {
+        return new Object[][]{
+                //Command, quorum policy, response
+                {ProtocolCommand.READ, new QuorumPolicy(3, 2, 2, true), "value"},
+                {ProtocolCommand.WRITE, new QuorumPolicy(3, 2, 2, true), "value"},
+                //Two acknowledgements are short of W, so the write fails rather than settling on them
+                {ProtocolCommand.WRITE, new QuorumPolicy(3, 3, 3, true), SERVER_IO_ERROR.toString()},
+        };
+    }
+
+    //A suspected replica is never sent to, and its missing vote does not hold the operation until a timeout
+    @Test(dataProvider = "suspectedReplicaProvider")
+    public void suspectedReplicaTest(ProtocolCommand protocol, QuorumPolicy quorum, String expectedResponse) {
+        var replicas = List.of(new FakeReplica("a:1"), new FakeReplica("b:2"), new FakeReplica("c:3"));
+        var ring = new HashRing<>(replicas, FakeReplica::getAddress, HashRing.DEFAULT_VIRTUAL_NODES);
+        var settings = settingsWith(quorum);
+        var context = new ConsensusContext(ring, settings, new RepairLog(16), new ReplicaMetrics(), new HybridClock());
+
+        var suspected = ring.replicasFor(KEY, 1).get(0);
+        suspected.stalled.set(true);
+        suspected.available.set(false);
+
+        var keys = new String[]{KEY};
+        var command = protocol == ProtocolCommand.READ ? READ : "PUT " + KEY + " value";
+        var response = new ConsensusOperation(protocol, keys, context, QuorumOverride.NONE, UnaryOperator.identity())
+                .sendCommandToServers(protocol, command, keys)
+                .orTimeout(5, TimeUnit.SECONDS)
+                .join();
+
+        assertEquals(response, expectedResponse);
+        assertEquals(suspected.requests.get(), 0);
+    }
+
+    @DataProvider
+    public Object[][] downReplicaProvider() {
+        return new Object[][]{
+                //Quorum policy, replicas down from the front of the key's placement, response
+                {new QuorumPolicy(3, 1, 1, false), 1, "value"},
+                {new QuorumPolicy(3, 1, 1, false), 2, "value"},
+                {new QuorumPolicy(5, 2, 2, false), 2, "value"},
+                {new QuorumPolicy(5, 2, 2, false), 3, "value"},
+                {new QuorumPolicy(3, 2, 2, true), 2, SERVER_IO_ERROR.toString()},
+                {new QuorumPolicy(5, 2, 2, false), 4, SERVER_IO_ERROR.toString()},
+        };
+    }
+
+    //Errors from down replicas never outvote the live ones' acknowledgements, and only settle a write once too few
+    //replicas are left to reach W
+    @Test(dataProvider = "downReplicaProvider")
+    public void downReplicaWriteTest(QuorumPolicy quorum, int down, String expectedResponse) {
+        List<FakeReplica> replicas = new ArrayList<>();
+        for (int i = 0; i <= quorum.replicationFactor(); i++) {
+            replicas.add(new FakeReplica((char) ('a' + i) + ":" + i));
+        }
+        var ring = new HashRing<>(replicas, FakeReplica::getAddress, HashRing.DEFAULT_VIRTUAL_NODES);
+        var context = new ConsensusContext(ring, settingsWith(quorum), new RepairLog(16), new ReplicaMetrics(), new HybridClock());
+
+        var placement = ring.replicasFor(KEY, quorum.replicationFactor());
+        for (var replica : placement.subList(0, down)) {
+            replica.available.set(false);
+        }
+
+        var keys = new String[]{KEY};
+        var response = new ConsensusOperation(ProtocolCommand.WRITE, keys, context, QuorumOverride.NONE, UnaryOperator.identity())
+                .sendCommandToServers(ProtocolCommand.WRITE, "PUT " + KEY + " value", keys)
+                .orTimeout(5, TimeUnit.SECONDS)
+                .join();
+
+        assertEquals(response, expectedResponse);
+    }
+
+    @DataProvider
+    public Object[][] hintProvider() {
+        return new Object[][]{
+                //Command, the versioned command the replicas receive
+                {ProtocolCommand.WRITE, "PUT " + KEY + " value", "PUT " + KEY + " value VER 65536"},
+                {ProtocolCommand.WRITE, "PUT " + KEY + " value VER 7", "PUT " + KEY + " value VER 7"},
+                {ProtocolCommand.MULTI_WRITE, "MPUT " + KEY + " value", "MPUTV 65536 " + KEY + " value"},
+        };
+    }
+
+    @Test(dataProvider = "hintProvider")
+    public void hintedWriteTest(ProtocolCommand protocol, String command, String versionedCommand) {
+        var replicas = List.of(new FakeReplica("a:1"), new FakeReplica("b:2"), new FakeReplica("c:3"), new FakeReplica("d:4"));
+        var ring = new HashRing<>(replicas, FakeReplica::getAddress, HashRing.DEFAULT_VIRTUAL_NODES);
+        var settings = settingsWith(new QuorumPolicy(3, 2, 2, true));
+        var context = new ConsensusContext(ring, settings, new RepairLog(16), new ReplicaMetrics(), new HybridClock(() -> 1));
+
+        var preference = ring.replicasFor(KEY, replicas.size());
+        var owner = preference.get(0);
+        owner.available.set(false);
+
+        var keys = new String[]{KEY};
+        var response = new ConsensusOperation(protocol, keys, context, QuorumOverride.NONE, UnaryOperator.identity())
+                .sendCommandToServers(protocol, command, keys)
+                .orTimeout(5, TimeUnit.SECONDS)
+                .join();
+
+        assertEquals(response, "value");
+        assertEquals(owner.requests.get(), 0);
+        //The first server past the key's three replicas holds the hint; the replicas themselves only see the write
+        assertEquals(preference.get(3).received, List.of("HINT " + owner.getAddress() + " " + versionedCommand));
+        assertEquals(preference.get(1).received, List.of(versionedCommand));
+        assertEquals(context.metrics().hintCount(), 1);
+    }
+
+    @DataProvider
+    public Object[][] serverReplicationProvider() {
+        return new Object[][]{
+                //Command, whether the key's first replica is down, the versioned write the primary replicates
+                {ProtocolCommand.WRITE, "PUT " + KEY + " value", false, "PUT " + KEY + " value VER 65536"},
+                {ProtocolCommand.MULTI_WRITE, "MPUT " + KEY + " value", false, "MPUTV 65536 " + KEY + " value"},
+                {ProtocolCommand.WRITE, "PUT " + KEY + " value", true, "PUT " + KEY + " value VER 65536"},
+        };
+    }
+
+    //With server replication the client sends a write once, to the first live replica, naming the peers to forward to
+    @Test(dataProvider = "serverReplicationProvider")
+    public void serverReplicationTest(ProtocolCommand protocol, String command, boolean ownerDown, String versionedCommand) {
+        var replicas = List.of(new FakeReplica("a:1"), new FakeReplica("b:2"), new FakeReplica("c:3"), new FakeReplica("d:4"));
+        var ring = new HashRing<>(replicas, FakeReplica::getAddress, HashRing.DEFAULT_VIRTUAL_NODES);
+        var settings = settingsWith(new QuorumPolicy(3, 2, 2, true)).withServerReplication(true);
+        var context = new ConsensusContext(ring, settings, new RepairLog(16), new ReplicaMetrics(), new HybridClock(() -> 1));
+
+        var preference = ring.replicasFor(KEY, replicas.size());
+        preference.get(0).available.set(!ownerDown);
+        var live = ownerDown ? preference.subList(1, 3) : preference.subList(0, 3);
+
+        var keys = new String[]{KEY};
+        var response = new ConsensusOperation(protocol, keys, context, QuorumOverride.NONE, UnaryOperator.identity())
+                .sendCommandToServers(protocol, command, keys)
+                .orTimeout(5, TimeUnit.SECONDS)
+                .join();
+
+        var peers = live.subList(1, live.size())
+                .stream()
+                .map(Replica::getAddress)
+                .collect(Collectors.joining(","));
+        assertEquals(response, "value");
+        assertEquals(live.get(0).received, List.of("REPLICATE 2 " + peers + " " + versionedCommand));
+        live.subList(1, live.size()).forEach(peer -> assertEquals(peer.requests.get(), 0));
+        assertEquals(preference.get(3).received, ownerDown ?
+                List.of("HINT " + preference.get(0).getAddress() + " " + versionedCommand) :
+                List.of());
+    }
+
+    //With fewer than W replicas live the write is refused before anything is stored, as the quorum path would fail it
+    @Test
+    public void serverReplicationBelowWriteQuorumTest() {
+        var replicas = List.of(new FakeReplica("a:1"), new FakeReplica("b:2"), new FakeReplica("c:3"));
+        var ring = new HashRing<>(replicas, FakeReplica::getAddress, HashRing.DEFAULT_VIRTUAL_NODES);
+        var settings = settingsWith(new QuorumPolicy(3, 2, 2, true)).withServerReplication(true);
+        var context = new ConsensusContext(ring, settings, new RepairLog(16), new ReplicaMetrics(), new HybridClock(() -> 1));
+
+        var preference = ring.replicasFor(KEY, replicas.size());
+        preference.get(0).available.set(false);
+        preference.get(2).available.set(false);
+
+        var keys = new String[]{KEY};
+        var response = new ConsensusOperation(ProtocolCommand.WRITE, keys, context, QuorumOverride.NONE, UnaryOperator.identity())
+                .sendCommandToServers(ProtocolCommand.WRITE, "PUT " + KEY + " value", keys)
+                .orTimeout(5, TimeUnit.SECONDS)
+                .join();
+
+        assertEquals(response, SERVER_IO_ERROR.toString());
+        replicas.forEach(replica -> assertEquals(replica.requests.get(), 0));
+    }
+
+    @DataProvider
+    public Object[][] atomicWriteProvider() {
+        return new Object[][]{
+                //Whether server replication is on, whether the key's primary is down
+                {false, false},
+                {true, false},
+                {false, true},
+                {true, true},
+        };
+    }
+
+    //Only the key's primary may decide an atomic write, so it takes the primary's path whatever the replication
+    //setting. It goes as sent, for the primary to version. With the primary down it fails rather than letting the next
+    //replica decide from what may be an older value, and a replica that is down is not hinted
+    @Test(dataProvider = "atomicWriteProvider")
+    public void atomicWriteTest(boolean serverReplication, boolean primaryDown) {
+        var replicas = List.of(new FakeReplica("a:1"), new FakeReplica("b:2"), new FakeReplica("c:3"), new FakeReplica("d:4"));
+        var ring = new HashRing<>(replicas, FakeReplica::getAddress, HashRing.DEFAULT_VIRTUAL_NODES);
+        var settings = settingsWith(new QuorumPolicy(3, 2, 2, true)).withServerReplication(serverReplication);
+        var context = new ConsensusContext(ring, settings, new RepairLog(16), new ReplicaMetrics(), new HybridClock(() -> 1));
+
+        var preference = ring.replicasFor(KEY, replicas.size());
+        preference.get(0).available.set(!primaryDown);
+
+        var keys = new String[]{KEY};
+        var command = "INCRBY " + KEY + " 1";
+        var response = new ConsensusOperation(ProtocolCommand.INCREMENT_BY, keys, context, QuorumOverride.NONE, UnaryOperator.identity())
+                .sendCommandToServers(ProtocolCommand.INCREMENT_BY, command, keys)
+                .orTimeout(5, TimeUnit.SECONDS)
+                .join();
+
+        if (primaryDown) {
+            assertEquals(response, SERVER_IO_ERROR.toString());
+            replicas.forEach(replica -> assertEquals(replica.requests.get(), 0));
+        } else {
+            var peers = preference.subList(1, 3)
+                    .stream()
+                    .map(Replica::getAddress)
+                    .collect(Collectors.joining(","));
+            assertEquals(response, "value");
+            assertEquals(preference.get(0).received, List.of("REPLICATE 2 " + peers + " " + command));
+            preference.subList(1, preference.size()).forEach(replica -> assertEquals(replica.requests.get(), 0));
+        }
+
+        var transaction = new ConsensusOperation(ProtocolCommand.BEGIN_TRANSACTION, keys, context, QuorumOverride.NONE, UnaryOperator.identity());
+        assertEquals(transaction.sendCommandToServers(ProtocolCommand.INCREMENT_BY, command, keys).join(),
+                INVALID_TRANSACTION_COMMAND.toString());
+    }
+
+    //Raft requests go to the group leader last seen, and a member that is not the leader names the one it knows
+    @Test
+    public void raftRedirectTest() {
+        var replicas = List.of(new FakeReplica("a:1"), new FakeReplica("b:2"), new FakeReplica("c:3"));
+        var ring = new HashRing<>(replicas, FakeReplica::getAddress, HashRing.DEFAULT_VIRTUAL_NODES);
+        var settings = settingsWith(new QuorumPolicy(3, 2, 2, true)).withRaft(true);
+        var metrics = new ReplicaMetrics();
+        var context = new ConsensusContext(ring, settings, new RepairLog(16), metrics, new HybridClock());
+
+        var placement = ring.replicasFor(KEY, replicas.size());
+        var leader = placement.get(2);
+        replicas.forEach(replica -> replica.leader = leader.getAddress());
+        var group = replicas.stream()
+                .map(Replica::getAddress)
+                .sorted()
+                .collect(Collectors.joining(","));
+
+        var keys = new String[]{KEY};
+        for (int i = 0; i < 2; i++) {
+            var response = new ConsensusOperation(ProtocolCommand.READ, keys, context, QuorumOverride.NONE, UnaryOperator.identity())
+                    .sendCommandToServers(ProtocolCommand.READ, "GET " + KEY, keys)
+                    .orTimeout(5, TimeUnit.SECONDS)
+                    .join();
+            assertEquals(response, "value");
+        }
+
+        assertEquals(placement.get(0).received, List.of("RAFT " + group + " " + placement.get(0).getAddress() + " GET " + KEY));
+        assertEquals(placement.get(1).requests.get(), 0);
+        assertEquals(leader.received, Collections.nCopies(2, "RAFT " + group + " " + leader.getAddress() + " GET " + KEY));
+        assertEquals(metrics.leaderOf(group), Optional.of(leader.getAddress()));
+        assertEquals(metrics.redirectCount(), 1);
+    }
+
+    @DataProvider
+    public Object[][] rebalancingProvider() {
+        return new Object[][]{
+                //Command, expected response, whether the joining server receives it, servers asked
+                {"PUT " + KEY + " value", "value", true, 4},
+                {"GET " + KEY, "value", false, 2},
+                {"TRANSACT " + KEY, REBALANCE_IN_PROGRESS.toString(), false, 0},
+                {"CAS " + KEY + " old new", ATOMIC_WRITE_REBALANCING.toString(), false, 0},
+        };
+    }
+
+    //While keys move, writes reach the replicas of both placements and reads stay with the previous one
+    @Test(dataProvider = "rebalancingProvider")
+    public void rebalancingTest(String command, String expectedResponse, boolean joinerReceives, int expectedAsked) {
+        var previous = List.of(new FakeReplica("a:1"), new FakeReplica("b:2"), new FakeReplica("c:3"));
+        var joiner = new FakeReplica("d:4");
+        var members = List.of(previous.get(0), previous.get(1), previous.get(2), joiner);
+        var ring = new HashRing<>(members, FakeReplica::getAddress, HashRing.DEFAULT_VIRTUAL_NODES);
+        var previousRing = new HashRing<>(previous, FakeReplica::getAddress, HashRing.DEFAULT_VIRTUAL_NODES);
+        var settings = settingsWith(new QuorumPolicy(3, 2, 2, true));
+        var context = new ConsensusContext(ring, settings, new RepairLog(16), new ReplicaMetrics(), new HybridClock(() -> 1), previousRing);
+
+        //A key the joining server now replicates in place of one of the previous replicas
+        var key = IntStream.range(0, 1_000)
+                .mapToObj(i -> KEY + i)
+                .filter(candidate -> ring.replicasFor(candidate, 3).contains(joiner))
+                .findFirst()
+                .orElseThrow();
+
+        var components = command.replace(KEY, key).split(" ");
+        var protocol = ProtocolCommand.lookup(components[0]);
+        var keys = new String[]{key};
+        var operation = new ConsensusOperation(protocol, keys, context, QuorumOverride.NONE, UnaryOperator.identity());
+        var response = operation.sendCommandToServers(protocol, String.join(" ", components), keys)
+                .orTimeout(5, TimeUnit.SECONDS)
+                .join();
+
+        assertEquals(response, expectedResponse);
+        assertTrue(operation.isDone());
+        assertEquals(joiner.requests.get() > 0, joinerReceives);
+        assertEquals(members.stream().filter(replica -> replica.requests.get() > 0).count(), expectedAsked);
+    }
+
+    //A server reduced to the one connection a transaction talks to
+    private static final class Participant implements Replica {
+        private final String address;
+        private final boolean refusesPrepare;
+        private final BTree btree = new BTree(5);
+        private final Set<String> locks = new HashSet<>();
+        private final List<String> received = new CopyOnWriteArrayList<>();
+        private final TreeClient connection;
+
+        private Participant(String address, boolean refusesPrepare) {
+            this.address = address;
+            this.refusesPrepare = refusesPrepare;
+            this.connection = TreeClient.from(0, locks, btree, null, HintStore.inMemory(), MembershipStore.inMemory(),
+                    null, null, null, TransactionLog.inMemory(locks));
+        }
+
+        @Override
+        public String getAddress() {
+            return address;
+        }
+
+        @Override
+        public CompletableFuture<String> send(String command) {
+            received.add(command);
+            var prepare = ProtocolCommand.PREPARE_TRANSACTION.getCommandName() + " ";
+            if (refusesPrepare && (command.startsWith(prepare) || command.contains(ProtocolCommand.COMMAND_SEPARATOR + " " + prepare))) {
+                return CompletableFuture.completedFuture(SERVER_IO_ERROR.toString());
+            }
+            return CompletableFuture.completedFuture(connection.acceptCommand(command, new AtomicBoolean()));
+        }
+    }
+
+    @DataProvider
+    public Object[][] twoPhaseCommitProvider() {
+        return new Object[][]{
+                //Whether a participant fails to prepare, expected response, expected value of the written key
+                {false, SUCCESS + System.lineSeparator() + "null\nwhy\n", "1"},
+                {true, TRANSACTION_ABORTED.toString(), null},
+        };
+    }
+
+    //Commit is one PREPARE and one DECIDE per participant, and every participant ends the same way
+    @Test(dataProvider = "twoPhaseCommitProvider")
+    public void twoPhaseCommitTest(boolean refusal, String expectedResponse, String expectedValue) {
+        var settings = settingsWith(new QuorumPolicy(2, 1, 2, true));
+        var addresses = List.of("a:1", "b:2", "c:3");
+        var ring = new HashRing<>(addresses, UnaryOperator.identity(), HashRing.DEFAULT_VIRTUAL_NODES);
+
+        //Two keys on different replicas, so no one server holds the whole transaction
+        var written = "x";
+        var read = IntStream.range(0, 1_000)
+                .mapToObj(i -> "y" + i)
+                .filter(candidate -> !ring.replicasFor(candidate, 2).equals(ring.replicasFor(written, 2)))
+                .findFirst()
+                .orElseThrow();
+        var refusing = ring.replicasFor(written, 2).get(0);
+        var participants = addresses.stream()
+                .map(address -> new Participant(address, refusal && address.equals(refusing)))
+                .toList();
+        participants.forEach(participant -> participant.btree.put(read, "why"));
+
+        var context = new ConsensusContext(new HashRing<>(participants, Participant::getAddress, HashRing.DEFAULT_VIRTUAL_NODES),
+                settings, new RepairLog(16), new ReplicaMetrics(), new HybridClock(() -> 1));
+        var keys = new String[]{written, read};
+        var operation = new ConsensusOperation(ProtocolCommand.BEGIN_TRANSACTION, keys, context, QuorumOverride.NONE,
+                UnaryOperator.identity());
+        operation.sendCommandToServers(ProtocolCommand.BEGIN_TRANSACTION, "TRANSACT " + written + " " + read, keys).join();
+        operation.sendCommandToServers(ProtocolCommand.WRITE, "PUT " + written + " 1", new String[]{written}).join();
+        operation.sendCommandToServers(ProtocolCommand.READ, "GET " + read, new String[]{read}).join();
+
+        var response = operation.sendCommandToServers(ProtocolCommand.COMMIT_TRANSACTION, "COMMIT", new String[0])
+                .orTimeout(5, TimeUnit.SECONDS)
+                .join();
+
+        assertEquals(response, expectedResponse);
+        assertTrue(operation.isDone());
+        for (var participant : participants) {
+            var holds = ring.replicasFor(written, 2).contains(participant.address);
+            assertEquals(participant.btree.get(written).orElse(null), holds ? expectedValue : null);
+            assertTrue(participant.locks.isEmpty());
+            assertTrue(participant.connection.isDone());
+            assertEquals(participant.received.stream().filter(command -> command.startsWith("PREPARE ")).count(), 1);
+            assertEquals(participant.received.stream().filter(command -> command.startsWith("DECIDE ")).count(), 1);
+        }
+    }
+
+    @DataProvider
+    public Object[][] executeProvider() {
+        return new Object[][]{
+                //Replication factor, whether a participant fails to prepare, expected response, expected value of the
+                //written key, messages each server holding a command receives
+                {3, false, SUCCESS + System.lineSeparator() + "null\nwhy\n", "1", 1},
+                {2, false, SUCCESS + System.lineSeparator() + "null\nwhy\n", "1", 2},
+                {2, true, TRANSACTION_ABORTED.toString(), null, 2},
+        };
+    }
+
+    //Keys sharing one placement finish in a single round trip. Spread over several, each participant prepares its
+    //part within the same message and only the decision follows
+    @Test(dataProvider = "executeProvider")
+    public void executeTest(int replication, boolean refusal, String expectedResponse, String expectedValue,
+                            int expectedMessages) {
+        var settings = settingsWith(new QuorumPolicy(replication, 1, replication, true));
+        var addresses = List.of("a:1", "b:2", "c:3");
+        var ring = new HashRing<>(addresses, UnaryOperator.identity(), HashRing.DEFAULT_VIRTUAL_NODES);
+
+        var written = "x";
+        var read = IntStream.range(0, 1_000)
+                .mapToObj(i -> "y" + i)
+                .filter(candidate -> !ring.replicasFor(candidate, 2).equals(ring.replicasFor(written, 2)))
+                .findFirst()
+                .orElseThrow();
+        var refusing = ring.replicasFor(written, replication).get(0);
+        var participants = addresses.stream()
+                .map(address -> new Participant(address, refusal && address.equals(refusing)))
+                .toList();
+        participants.forEach(participant -> participant.btree.put(read, "why"));
+
+        var context = new ConsensusContext(new HashRing<>(participants, Participant::getAddress, HashRing.DEFAULT_VIRTUAL_NODES),
+                settings, new RepairLog(16), new ReplicaMetrics(), new HybridClock(() -> 1));
+        var keys = new String[]{written, read};
+        var command = "EXEC " + written + " " + read + " | PUT " + written + " 1 | GET " + read;
+        var operation = new ConsensusOperation(ProtocolCommand.EXECUTE, keys, context, QuorumOverride.NONE,
+                UnaryOperator.identity());
+
+        var response = operation.sendCommandToServers(ProtocolCommand.EXECUTE, command, keys)
+                .orTimeout(5, TimeUnit.SECONDS)
+                .join();
+
+        assertEquals(response, expectedResponse);
+        for (var participant : participants) {
+            var holdsWrite = ring.replicasFor(written, replication).contains(participant.address);
+            var holdsRead = ring.replicasFor(read, replication).contains(participant.address);
+            assertEquals(participant.btree.get(written).orElse(null), holdsWrite ? expectedValue : null);
+            assertTrue(participant.locks.isEmpty());
+            assertEquals(participant.received.size(), holdsWrite || holdsRead ? expectedMessages : 0);
+        }
+    }
+
+    @DataProvider
+    public Object[][] readRepairProvider() {
+        return new Object[][]{
+                //Replies of the first and second replica read, expected value, repair sent to the first, to the second
+                {"5 0 new", "3 0 old", "new", null, "PUT " + KEY + " new VER 5"},
+                {"3 0 old", "5 10 new", "new", "PUT " + KEY + " new EX 10 VER 5", null},
+                {"5 0 same", "5 0 same", "same", null, null},
+                {"5 0 a", "5 0 b", "b", "PUT " + KEY + " b VER 5", null},
+                {"0 0 null", "4 0 value", "value", "PUT " + KEY + " value VER 4", null},
+                {"0 0 legacy", "0 0 null", "legacy", null, null},
+        };
+    }
+
+    //A read returns the newest version among its quorum and writes it back to replicas that answered with older ones
+    @Test(dataProvider = "readRepairProvider")
+    public void readRepairTest(String firstReply, String secondReply, String expectedValue,
+                               String expectedFirstRepair, String expectedSecondRepair) {
+        var replicas = List.of(new FakeReplica("a:1"), new FakeReplica("b:2"), new FakeReplica("c:3"));
+        var ring = new HashRing<>(replicas, FakeReplica::getAddress, HashRing.DEFAULT_VIRTUAL_NODES);
+        var settings = settingsWith(new QuorumPolicy(3, 2, 2, true));
+        var context = new ConsensusContext(ring, settings, new RepairLog(16), new ReplicaMetrics(), new HybridClock());
+
+        var placement = ring.replicasFor(KEY, 3);
+        placement.get(0).versioned = firstReply;
+        placement.get(1).versioned = secondReply;
+
+        assertEquals(read(context), expectedValue);
+        assertEquals(placement.get(0).received, expectedFirstRepair == null ?
+                List.of("GETV " + KEY) :
+                List.of("GETV " + KEY, expectedFirstRepair));
+        assertEquals(placement.get(1).received, expectedSecondRepair == null ?
+                List.of("GETV " + KEY) :
+                List.of("GETV " + KEY, expectedSecondRepair));
+        assertEquals(placement.get(2).requests.get(), 0);
+        assertEquals(context.metrics().readRepairCount(), expectedFirstRepair == null && expectedSecondRepair == null ? 0 : 1);
+    }
+
+    @DataProvider
+    public Object[][] rankingProvider() {
+        return new Object[][]{
+                //Average latency of a, b and c in microseconds, expected read order
+                {new long[]{1_000, 1_000, 1_000}, "a:1 b:2 c:3"},
+                {new long[]{1_000, 1_050, 900}, "a:1 b:2 c:3"},
+                {new long[]{20_000, 1_000, 2_000}, "b:2 c:3 a:1"},
+                {new long[]{1_000, 9_000, 3_000}, "a:1 c:3 b:2"},
+                {new long[]{0, 0, 0}, "a:1 b:2 c:3"},
+        };
+    }
+
+    @Test(dataProvider = "rankingProvider")
+    public void rankForReadsTest(long[] latencies, String expectedOrder) {
+        var replicas = List.of(new FakeReplica("a:1"), new FakeReplica("b:2"), new FakeReplica("c:3"));
+        var metrics = new ReplicaMetrics();
+        for (int i = 0; i < replicas.size(); i++) {
+            if (latencies[i] > 0) {
+                metrics.recordLatency(replicas.get(i).getAddress(), latencies[i]);
+            }
+        }
+
+        var ranked = metrics.rankForReads(replicas)
+                .stream()
+                .map(Replica::getAddress)
+                .toList();
+        assertEquals(String.join(" ", ranked), expectedOrder);
+    }
+
+    @Test
+    public void outstandingRequestRankingTest() {
+        var replicas = List.of(new FakeReplica("a:1"), new FakeReplica("b:2"));
+        var metrics = new ReplicaMetrics();
+        replicas.forEach(replica -> metrics.recordLatency(replica.getAddress(), 1_000));
+
+        //Equal latency, but requests piling up on a should send reads to b first
+        replicas.get(0).stalled.set(true);
+        for (int i = 0; i < 4; i++) {
+            metrics.timedSend(replicas.get(0), READ);
+        }
+
+        assertEquals(metrics.rankForReads(replicas).get(0).getAddress(), "b:2");
+        assertTrue(metrics.score("a:1") > metrics.score("b:2"));
+    }
+
+    @Test
+    public void latencyPercentileTest() {
+        var tracker = new LatencyTracker();
+        assertEquals(tracker.percentileMicros(0.95), 0);
+
+        for (int micros = 1; micros <= 100; micros++) {
+            tracker.record(micros);
+        }
+
+        assertEquals(tracker.sampleCount(), 100);
+        assertEquals(tracker.percentileMicros(0.95), 95);
+        assertEquals(tracker.percentileMicros(0.5), 50);
+        assertEquals(tracker.percentileMicros(1.0), 100);
+    }
+
+    private static String read(ConsensusContext context) {
+        var keys = new String[]{KEY};
+        return new ConsensusOperation(ProtocolCommand.READ, keys, context, QuorumOverride.NONE, UnaryOperator.identity())
+                .sendCommandToServers(ProtocolCommand.READ, READ, keys)
+                .join();
+    }
+}
@@ -0,0 +1,109 @@
+package jasmine.jragon.consensus;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class HashRingTest {
+    private static final int KEY_COUNT = 10_000;
+
+    private static HashRing<String> ringOf(int serverCount) {
+        var servers = IntStream.range(0, serverCount)
+                .mapToObj(i -> "127.0.0.1:" + (8000 + i))
+                .toList();
+        return new HashRing<>(servers, Function.identity(), HashRing.DEFAULT_VIRTUAL_NODES);
+    }
+
+    @DataProvider
+    public Object[][] replicaProvider() {
+        return new Object[][]{
+                {1, 1, 1},
+                {3, 2, 2},
+                {5, 3, 3},
+                {4, 9, 4},
+        };
+    }
+
+    @Test(dataProvider = "replicaProvider")
+    public void replicasForTest(int serverCount, int requested, int expected) {
+        var ring = ringOf(serverCount);
+
+        for (int i = 0; i < 100; i++) {
+            var replicas = ring.replicasFor("key" + i, requested);
+
+            assertEquals(replicas.size(), expected);
+            assertEquals(new HashSet<>(replicas).size(), expected);
+            assertEquals(ring.replicasFor("key" + i, requested), replicas);
+        }
+    }
+
+    @Test
+    public void emptyRingTest() {
+        var ring = new HashRing<String>(List.of(), Function.identity(), 8);
+
+        assertTrue(ring.replicasFor("key", 3).isEmpty());
+        assertEquals(ring.imbalance(), 1.0);
+    }
+
+    @Test
+    public void balanceTest() {
+        var ring = ringOf(5);
+
+        double total = ring.ownershipShares()
+                .values()
+                .stream()
+                .mapToDouble(Double::doubleValue)
+                .sum();
+
+        assertEquals(total, 1.0, 1e-9);
+        assertTrue(ring.imbalance() < 1.3, "Imbalance " + ring.imbalance());
+    }
+
+    @Test
+    public void minimalMovementTest() {
+        var before = ringOf(4);
+        var after = ringOf(5);
+
+        long moved = IntStream.range(0, KEY_COUNT)
+                .mapToObj(i -> "key" + i)
+                .filter(key -> !before.replicasFor(key, 1).equals(after.replicasFor(key, 1)))
+                .count();
+
+        //Roughly a fifth of the keys should move to the new server, and nothing else
+        assertTrue(moved < KEY_COUNT * 0.3, "Moved " + moved);
+        IntStream.range(0, KEY_COUNT)
+                .mapToObj(i -> "key" + i)
+                .filter(key -> !before.replicasFor(key, 1).equals(after.replicasFor(key, 1)))
+                .forEach(key -> assertEquals(after.replicasFor(key, 1).get(0), "127.0.0.1:8004"));
+    }
+
+    @Test
+    public void segmentsTest() {
+        var ring = ringOf(5);
+        var segments = ring.segments(3);
+
+        assertEquals(segments.get(0).first(), 0);
+        assertEquals(segments.get(segments.size() - 1).last(), HashRing.MAX_POSITION);
+        for (int i = 1; i < segments.size(); i++) {
+            assertEquals(segments.get(i).first(), segments.get(i - 1).last() + 1);
+        }
+
+        for (int i = 0; i < KEY_COUNT; i++) {
+            var key = "key" + i;
+            long position = HashRing.position(key);
+            var segment = segments.stream()
+                    .filter(s -> s.first() <= position && position <= s.last())
+                    .findFirst()
+                    .orElseThrow();
+
+            assertEquals(segment.replicas(), ring.replicasFor(key, 3));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package jasmine.jragon.consensus;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+
+public class MajorityVoteTest {
+    @DataProvider
+    public Object[][] voteProvider() {
+        return new Object[][]{
+                //Replica count, replies in arrival order, replies needed before settling, outcome
+                {3, new String[]{"a", "a", "b"}, 2, "a"},
+                {3, new String[]{"a", "b", "a"}, 3, "a"},
+                {5, new String[]{"a", "a", "a", "b", "b"}, 3, "a"},
+                {3, new String[]{"a", "b", "c"}, 3, null},
+                {1, new String[]{"a"}, 1, "a"},
+        };
+    }
+
+    @Test(dataProvider = "voteProvider")
+    public void voteTest(int replicaCount, String[] replies, int settlesAfter, String expected) {
+        var vote = new MajorityVote(replicaCount);
+
+        for (int i = 0; i < replies.length; i++) {
+            assertEquals(vote.outcome().isDone(), i >= settlesAfter);
+            vote.record(replies[i]);
+        }
+
+        assertTrue(vote.outcome().isDone());
+        if (expected != null) {
+            assertEquals(vote.outcome().join(), expected);
+        }
+    }
+
+    @DataProvider
+    public Object[][] errorProvider() {
+        return new Object[][]{
+                //Replica count, replies needed, replies in arrival order, replies before settling, outcome
+                {3, 1, new String[]{"Server Error", "a", "a"}, 2, "a"},
+                {5, 2, new String[]{"Server Error", "Server Error", "a", "a", "a"}, 4, "a"},
+                {5, 2, new String[]{"Timeout", "a", "Server Error", "Server Error", "a"}, 5, "a"},
+                {3, 2, new String[]{"a", "Server Error", "Server Error"}, 3, "Server Error"},
+                {3, 3, new String[]{"Timeout", "a", "a"}, 1, "Timeout"},
+        };
+    }
+
+    //Errors and timeouts never make up the required votes, and settle the vote once the rest cannot
+    @Test(dataProvider = "errorProvider")
+    public void errorTest(int replicaCount, int required, String[] replies, int settlesAfter, String expected) {
+        var vote = new MajorityVote(replicaCount, required);
+
+        for (int i = 0; i < replies.length; i++) {
+            assertEquals(vote.outcome().isDone(), i >= settlesAfter);
+            vote.record(replies[i]);
+        }
+
+        assertEquals(vote.outcome().join(), expected);
+    }
+
+    @Test
+    public void pendingStragglerTest() {
+        var vote = new MajorityVote(5);
+
+        vote.record("a");
+        vote.record("b");
+        assertFalse(vote.outcome().isDone());
+
+        vote.record("a");
+        vote.record("a");
+        assertEquals(vote.outcome().join(), "a");
+        assertEquals(vote.tally(), Map.of("a", 3, "b", 1));
+    }
+
+    @Test
+    public void settingsTest() {
+        var settings = ConsensusSettings.fromYml(Map.of("replica-timeout-ms", 250));
+
+        assertEquals(settings.replicaTimeoutMillis(), 250);
+        assertEquals(settings.operationTimeoutMillis(), ConsensusSettings.DEFAULTS.operationTimeoutMillis());
+        assertFalse(settings.serverReplication());
+        assertTrue(ConsensusSettings.fromYml(Map.of("server-replication", true)).serverReplication());
+        assertFalse(settings.raft());
+        assertTrue(ConsensusSettings.fromYml(Map.of("raft", true)).raft());
+        assertThrows(IllegalArgumentException.class, () -> ConsensusSettings.fromYml(Map.of("replica-timeout-ms", "soon")));
+        assertThrows(IllegalArgumentException.class, () -> ConsensusSettings.DEFAULTS.withReplicaTimeoutMillis(0));
+    }
+}
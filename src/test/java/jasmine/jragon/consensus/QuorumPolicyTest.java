@@ -0,0 +1,93 @@
+package jasmine.jragon.consensus;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertThrows;
+
+public class QuorumPolicyTest {
+    @DataProvider
+    public Object[][] invalidPolicyProvider() {
+        return new Object[][]{
+                {0, 1, 1, false},
+                {3, 0, 1, false},
+                {3, 1, 4, false},
+                {3, 1, 2, true},
+                {5, 2, 3, true},
+        };
+    }
+
+    @Test(dataProvider = "invalidPolicyProvider")
+    public void invalidPolicyTest(int n, int r, int w, boolean strong) {
+        assertThrows(IllegalArgumentException.class, () -> new QuorumPolicy(n, r, w, strong));
+    }
+
+    @DataProvider
+    public Object[][] majorityProvider() {
+        return new Object[][]{
+                {1, new QuorumPolicy(1, 1, 1, true)},
+                {3, new QuorumPolicy(2, 2, 2, true)},
+                {5, new QuorumPolicy(3, 2, 2, true)},
+                {6, new QuorumPolicy(4, 3, 3, true)},
+        };
+    }
+
+    @Test(dataProvider = "majorityProvider")
+    public void majorityTest(int serverCount, QuorumPolicy expected) {
+        assertEquals(QuorumPolicy.majorityOf(serverCount), expected);
+    }
+
+    @DataProvider
+    public Object[][] overrideProvider() {
+        return new Object[][]{
+                {new String[]{}, new QuorumPolicy(3, 2, 2, false)},
+                {new String[]{"R=1"}, new QuorumPolicy(3, 1, 2, false)},
+                {new String[]{"w=3", "r=1"}, new QuorumPolicy(3, 1, 3, false)},
+                {new String[]{"N=5", "R=1", "W=1"}, new QuorumPolicy(5, 1, 1, false)},
+        };
+    }
+
+    @Test(dataProvider = "overrideProvider")
+    public void overrideTest(String[] tokens, QuorumPolicy expected) {
+        var policy = new QuorumPolicy(3, 2, 2, false);
+
+        assertEquals(policy.withOverride(QuorumOverride.parse(tokens)), expected);
+    }
+
+    @Test
+    public void strongOverrideTest() {
+        var policy = new QuorumPolicy(3, 2, 2, true);
+
+        assertThrows(IllegalArgumentException.class, () -> policy.withOverride(QuorumOverride.parse(new String[]{"R=1"})));
+        assertEquals(policy.withOverride(QuorumOverride.parse(new String[]{"R=1", "W=3"})),
+                new QuorumPolicy(3, 1, 3, true));
+    }
+
+    @Test
+    public void leadingTokenTest() {
+        assertEquals(QuorumOverride.countLeadingTokens(new String[]{"R=1", "W=2", "GET", "W=3"}), 2);
+        assertEquals(QuorumOverride.countLeadingTokens(new String[]{"GET", "R=1"}), 0);
+        assertThrows(IllegalArgumentException.class, () -> QuorumOverride.parse(new String[]{"R=0"}));
+    }
+
+    @Test
+    public void namespaceTest() {
+        var settings = ConsensusSettings.fromYml(Map.of(
+                "quorum", Map.of("n", 3, "r", 2, "w", 2, "strong", true),
+                "namespaces", Map.of(
+                        "session", Map.of("n", 3, "r", 1, "w", 1),
+                        "ledger", Map.of("n", 5, "w", 5, "r", 1, "strong", true)
+                )
+        ));
+
+        assertEquals(settings.policyFor("session:42", 5), new QuorumPolicy(3, 1, 1, false));
+        assertEquals(settings.policyFor("ledger:7", 5), new QuorumPolicy(5, 1, 5, true));
+        assertEquals(settings.policyFor("plain", 5), new QuorumPolicy(3, 2, 2, true));
+        assertEquals(ConsensusSettings.DEFAULTS.policyFor("session:42", 5), QuorumPolicy.majorityOf(5));
+        assertThrows(IllegalArgumentException.class, () -> ConsensusSettings.fromYml(Map.of(
+                "namespaces", Map.of("weak", Map.of("n", 3, "r", 1, "w", 1, "strong", true)))));
+    }
+}
@@ -0,0 +1,73 @@
+package jasmine.jragon.network;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+
+public class FrameDecoderTest {
+    private static List<Frame> decodeInChunks(FrameDecoder decoder, byte[] bytes, int chunkSize) throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            int length = Math.min(chunkSize, bytes.length - i);
+            frames.addAll(decoder.decode(ByteBuffer.wrap(bytes, i, length)));
+        }
+        return frames;
+    }
+
+    @Test
+    public void untaggedRequestTest() throws IOException {
+        var frames = FrameDecoder.forRequests()
+                .decode(ByteBuffer.wrap("GET key \n".getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(frames, List.of(new Frame(Frame.UNTAGGED, "GET key")));
+        assertTrue(!frames.get(0).isTagged());
+    }
+
+    @Test
+    public void pipelinedRequestTest() throws IOException {
+        var stream = new StringBuilder();
+        for (int i = 1; i <= 50; i++) {
+            stream.append(new String(Frame.encodeRequest(i, "PUT key" + i + " value" + i), StandardCharsets.UTF_8));
+        }
+        var bytes = stream.toString().getBytes(StandardCharsets.UTF_8);
+
+        for (int chunkSize : new int[]{1, 7, 64, bytes.length}) {
+            var frames = decodeInChunks(FrameDecoder.forRequests(), bytes, chunkSize);
+
+            assertEquals(frames.size(), 50);
+            assertEquals(frames.get(0), new Frame(1, "PUT key1 value1"));
+            assertEquals(frames.get(49), new Frame(50, "PUT key50 value50"));
+        }
+    }
+
+    @Test
+    public void responseTest() throws IOException {
+        var first = Frame.encodeResponse(7, "multi\nline \u00e9");
+        var second = Frame.encodeResponse(3, "");
+        var bytes = new byte[first.length + second.length];
+        System.arraycopy(first, 0, bytes, 0, first.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+
+        for (int chunkSize : new int[]{1, 5, bytes.length}) {
+            var frames = decodeInChunks(FrameDecoder.forResponses(), bytes, chunkSize);
+
+            assertEquals(frames, List.of(new Frame(7, "multi\nline \u00e9"), new Frame(3, "")));
+        }
+    }
+
+    @Test
+    public void malformedFrameTest() {
+        assertThrows(IOException.class, () -> FrameDecoder.forRequests()
+                .decode(ByteBuffer.wrap("#abc GET key\n".getBytes(StandardCharsets.UTF_8))));
+        assertThrows(IOException.class, () -> FrameDecoder.forResponses()
+                .decode(ByteBuffer.wrap("#1 -4\n".getBytes(StandardCharsets.UTF_8))));
+    }
+}
@@ -0,0 +1,300 @@
+package jasmine.jragon.raft;
+
+import jasmine.jragon.command.ProtocolCommand;
+import jasmine.jragon.tree.BTree;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class RaftServerTest {
+    private static final List<String> MEMBERS = List.of("a:1", "b:2", "c:3");
+    private static final String GROUP = String.join(",", MEMBERS);
+    private static final String NOT_LEADER = "Not the leader of this Raft group";
+
+    //Every member shares one clock and is ticked in turn; messages are delivered at once unless either end is cut off
+    private final AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+    private final Map<String, RaftServer> servers = new LinkedHashMap<>();
+    private final Map<String, BTree> trees = new LinkedHashMap<>();
+    private final Set<String> partitioned = new HashSet<>();
+    private final AtomicInteger batches = new AtomicInteger();
+    private File directory;
+
+    @BeforeMethod
+    public void beforeMethod() throws IOException {
+        directory = Files.createTempDirectory("raft").toFile();
+        directory.deleteOnExit();
+        partitioned.clear();
+        batches.set(0);
+        for (var member : MEMBERS) {
+            open(member);
+        }
+    }
+
+    @AfterMethod
+    public void afterMethod() {
+        servers.values().forEach(RaftServer::close);
+        servers.clear();
+        trees.clear();
+    }
+
+    private void open(String member) throws IOException {
+        var logFile = new File(directory, member.replace(':', '-'));
+        logFile.deleteOnExit();
+        var tree = new BTree(5);
+        trees.put(member, tree);
+        servers.put(member, RaftServer.open(logFile, tree, (address, command) -> deliver(member, address, command),
+                clock::get, new Random(member.hashCode()), () -> {}));
+    }
+
+    private CompletableFuture<String> deliver(String from, String to, String command) {
+        if (partitioned.contains(from) || partitioned.contains(to) || !servers.containsKey(to)) {
+            return CompletableFuture.failedFuture(new IOException(to + " is unreachable"));
+        }
+
+        var split = command.split(" ", 2);
+        var protocol = ProtocolCommand.lookup(split[0]);
+        if (protocol == ProtocolCommand.APPEND_ENTRIES && split[1].split(" ").length > 7) {
+            batches.incrementAndGet();
+        }
+        return servers.get(to).handle(protocol, split[1]);
+    }
+
+    private CompletableFuture<String> submit(String member, String command) {
+        return servers.get(member).handle(ProtocolCommand.RAFT, GROUP + " " + member + " " + command);
+    }
+
+    private void runUntil(BooleanSupplier condition) {
+        for (int i = 0; i < 1_000 && !condition.getAsBoolean(); i++) {
+            runFor(RaftServer.TICK_MILLIS);
+        }
+        assertTrue(condition.getAsBoolean(), "Condition never held");
+    }
+
+    private void runFor(long millis) {
+        for (long elapsed = 0; elapsed < millis; elapsed += RaftServer.TICK_MILLIS) {
+            clock.addAndGet(RaftServer.TICK_MILLIS);
+            servers.values().forEach(RaftServer::tick);
+        }
+    }
+
+    private List<String> leaders() {
+        List<String> leaders = new ArrayList<>();
+        servers.forEach((member, server) -> {
+            if (server.leaderCount() > 0) {
+                leaders.add(member);
+            }
+        });
+        return leaders;
+    }
+
+    private String electLeader() {
+        //Members only learn of a group from a message naming it, which is all the first request does
+        assertEquals(submit(MEMBERS.get(0), "GET x").join(), NOT_LEADER);
+        runUntil(() -> leaders().size() == 1);
+        return leaders().get(0);
+    }
+
+    private String commit(String leader, String command) {
+        var reply = submit(leader, command);
+        assertFalse(reply.isDone());
+        runUntil(reply::isDone);
+        return reply.join();
+    }
+
+    @Test
+    public void replicationTest() {
+        var leader = electLeader();
+        for (var member : MEMBERS) {
+            if (!member.equals(leader)) {
+                assertEquals(submit(member, "PUT x 1").join(), NOT_LEADER + " " + leader);
+            }
+        }
+
+        assertEquals(commit(leader, "PUT x 1"), "null");
+        assertEquals(commit(leader, "MPUT x 2 y 3"), "1\nnull");
+        assertEquals(submit(leader, "MGET x y").join(), "2\n3");
+        assertEquals(submit(leader, "RANK x").join(), "Only key reads and writes can go through a Raft group");
+        assertEquals(submit(leader, "PUT x 3 TTL 5").join(), "Unrecognized or malformed write option");
+
+        //Followers apply what the leader committed once the next heartbeat tells them
+        runFor(2 * RaftNode.HEARTBEAT_MILLIS);
+        trees.values().forEach(tree -> {
+            assertEquals(tree.get("x").orElse(null), "2");
+            assertEquals(tree.get("y").orElse(null), "3");
+        });
+    }
+
+    //Every member decides an atomic write from its own tree, which the log keeps equal, so they all decide alike
+    @Test
+    public void atomicWriteTest() {
+        var leader = electLeader();
+        assertEquals(commit(leader, "INCRBY n 5 EX 60"), "5");
+        assertEquals(commit(leader, "CAS n 4 0"), "false");
+        assertEquals(commit(leader, "CAS n 5 lock"), "true");
+        assertEquals(commit(leader, "APPEND n ed"), "locked");
+        assertEquals(commit(leader, "PUTIFABSENT n free"), "locked");
+        assertEquals(submit(leader, "INCRBY n 1 VER").join(), "Incorrect Number of Arguments on Command");
+
+        runFor(2 * RaftNode.HEARTBEAT_MILLIS);
+        var leaderValue = trees.get(leader).getVersioned("n").orElseThrow();
+        trees.values().forEach(tree -> assertEquals(tree.getVersioned("n").orElseThrow(), leaderValue));
+    }
+
+    @Test
+    public void batchingTest() {
+        var leader = electLeader();
+        runFor(RaftNode.HEARTBEAT_MILLIS);
+        batches.set(0);
+
+        List<CompletableFuture<String>> replies = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            replies.add(submit(leader, "PUT k" + i + " " + i));
+        }
+        runUntil(() -> replies.stream().allMatch(CompletableFuture::isDone));
+
+        //100 entries cross to each follower in two batches
+        assertEquals(batches.get(), 4);
+        runFor(2 * RaftNode.HEARTBEAT_MILLIS);
+        trees.values().forEach(tree -> assertEquals(tree.get("k99").orElse(null), "99"));
+    }
+
+    @Test
+    public void failoverTest() {
+        var oldLeader = electLeader();
+        assertEquals(commit(oldLeader, "PUT x 1"), "null");
+
+        partitioned.add(oldLeader);
+        //The lease still holds, so the cut-off leader can answer reads for a while
+        assertEquals(submit(oldLeader, "GET x").join(), "1");
+        var lostWrite = submit(oldLeader, "PUT x lost");
+        runFor(RaftNode.LEASE_MILLIS);
+        var lateRead = submit(oldLeader, "GET x");
+        assertFalse(lateRead.isDone());
+
+        runUntil(() -> leaders().stream().anyMatch(member -> !member.equals(oldLeader)));
+        var newLeader = leaders().stream().filter(member -> !member.equals(oldLeader)).findFirst().orElseThrow();
+        assertEquals(commit(newLeader, "PUT x 2"), "1");
+
+        //Without a majority answering, the old leader gives up and its waiting requests go elsewhere
+        runUntil(() -> leaders().size() == 1);
+        assertTrue(lostWrite.join().startsWith(NOT_LEADER));
+        assertTrue(lateRead.join().startsWith(NOT_LEADER));
+
+        partitioned.clear();
+        runUntil(() -> "2".equals(trees.get(oldLeader).get("x").orElse(null)));
+        assertEquals(submit(oldLeader, "GET x").join(), NOT_LEADER + " " + newLeader);
+        assertEquals(leaders(), List.of(newLeader));
+    }
+
+    @Test
+    public void replayTest() throws IOException {
+        var leader = electLeader();
+        assertEquals(commit(leader, "PUT x 1 EX 3600"), "null");
+        assertEquals(commit(leader, "MPUT y 2 z 3"), "null\nnull");
+        runFor(2 * RaftNode.HEARTBEAT_MILLIS);
+
+        afterMethod();
+        for (var member : MEMBERS) {
+            open(member);
+        }
+
+        for (var member : MEMBERS) {
+            var tree = trees.get(member);
+            assertEquals(tree.get("x").orElse(null), "1", member);
+            assertEquals(tree.get("y").orElse(null), "2", member);
+            assertEquals(tree.get("z").orElse(null), "3", member);
+            assertEquals(servers.get(member).groupCount(), 1);
+            assertEquals(servers.get(member).leaderCount(), 0);
+        }
+
+        //The term and votes survive too, so the next leader is elected in a later term
+        long term = servers.get(leader).group(GROUP).orElseThrow().term();
+        var newLeader = electLeader();
+        assertTrue(servers.get(newLeader).group(GROUP).orElseThrow().term() > term);
+        assertEquals(commit(newLeader, "PUT x 4"), "1");
+    }
+
+    //A follower whose log cannot reach the disk acknowledges nothing, then everything once a later tick's flush
+    //writes the rest of what it had started and syncs it
+    @Test
+    public void failedFlushTest() throws IOException {
+        var logFile = new File(directory, "failing");
+        logFile.deleteOnExit();
+        var channel = new FailingChannel(FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+        var follower = new RaftServer(new BTree(5), new RaftStorage(channel),
+                (address, command) -> CompletableFuture.failedFuture(new IOException(address + " is unreachable")),
+                clock::get, new Random(1), () -> {});
+
+        channel.failing = true;
+        var vote = follower.handle(ProtocolCommand.REQUEST_VOTE, GROUP + " b:2 1 c:3 0 0");
+        var append = follower.handle(ProtocolCommand.APPEND_ENTRIES, GROUP + " b:2 2 a:1 0 0 0 2:7:PUT x 1");
+        follower.tick();
+        follower.tick();
+        assertFalse(append.isDone());
+        assertFalse(vote.isDone());
+
+        channel.failing = false;
+        follower.tick();
+        assertEquals(vote.join(), "1 true");
+        assertEquals(append.join(), "2 true 1");
+        follower.close();
+
+        var replayed = RaftServer.open(logFile, new BTree(5), (address, command) -> new CompletableFuture<>(),
+                clock::get, new Random(1), () -> {});
+        var node = replayed.group(GROUP).orElseThrow();
+        assertEquals(node.term(), 2);
+        assertEquals(node.log().lastIndex(), 1);
+        replayed.close();
+    }
+
+    @DataProvider
+    public Object[][] invalidRequestProvider() {
+        return new Object[][]{
+                {ProtocolCommand.RAFT, "a:1,b:2 c:3 GET x", "Raft group does not list this server as a member"},
+                {ProtocolCommand.RAFT, "a:1,a:1 a:1 GET x", "Raft group does not list this server as a member"},
+                {ProtocolCommand.RAFT, GROUP + " a:1 GET", "Incorrect Number of Arguments on Command"},
+                {ProtocolCommand.RAFT, GROUP, "Incorrect Number of Arguments on Command"},
+                {ProtocolCommand.APPEND_ENTRIES, GROUP + " a:1 one b:2 0 0 0", "Argument must be a whole number"},
+                {ProtocolCommand.APPEND_ENTRIES, GROUP + " a:1 1 b:2 0 0 0 1:9:PUT", "Argument must be a whole number"},
+                {ProtocolCommand.REQUEST_VOTE, GROUP + " a:1 1 b:2 zero 0", "Argument must be a whole number"},
+                {ProtocolCommand.REQUEST_VOTE, GROUP + " a:1 1 b:2 0", "Incorrect Number of Arguments on Command"},
+        };
+    }
+
+    @Test(dataProvider = "invalidRequestProvider")
+    public void invalidRequestTest(ProtocolCommand protocol, String arguments, String expected) {
+        assertEquals(servers.get("a:1").handle(protocol, arguments).join(), expected);
+    }
+
+    @Test
+    public void entryEncodingTest() {
+        var entries = List.of(new RaftEntry(1, "PUT x a b"), new RaftEntry(12, "PING"));
+        var encoded = RaftEntry.encode(entries);
+        assertEquals(encoded, "1:9:PUT x a b 12:4:PING");
+        assertEquals(RaftEntry.decode(encoded), entries);
+        assertEquals(RaftEntry.decode(""), List.of());
+    }
+}
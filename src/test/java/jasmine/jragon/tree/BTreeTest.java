@@ -0,0 +1,505 @@
+package jasmine.jragon.tree;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class BTreeTest {
+    private static final int KEY_COUNT = 2_000;
+
+    private BTree bTree;
+    private TreeSet<String> expectedKeys;
+
+    @BeforeMethod
+    public void beforeMethod() {
+        bTree = new BTree(3);
+        expectedKeys = new TreeSet<>();
+
+        var random = new Random(6712);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys.add("key" + random.nextInt(KEY_COUNT));
+        }
+        Collections.shuffle(keys, random);
+
+        for (var key : keys) {
+            bTree.put(key, key.toUpperCase());
+            expectedKeys.add(key);
+        }
+    }
+
+    @Test
+    public void keyCountTest() {
+        assertEquals(bTree.keyCount(), expectedKeys.size());
+        assertTrue(bTree.nodeCount() > 1);
+
+        for (var key : expectedKeys) {
+            bTree.put(key, "overwritten");
+        }
+
+        assertEquals(bTree.keyCount(), expectedKeys.size());
+    }
+
+    @Test
+    public void emptyTreeTest() {
+        var empty = new BTree(2);
+
+        assertEquals(empty.keyCount(), 0);
+        assertEquals(empty.nodeCount(), 0);
+        assertEquals(empty.rank("a"), 0);
+        assertEquals(empty.countRange("a", "z"), 0);
+        assertFalse(empty.select(0).isPresent());
+    }
+
+    @Test
+    public void rankAndSelectTest() {
+        long rank = 0;
+        for (var key : expectedKeys) {
+            assertEquals(bTree.rank(key), rank);
+            assertEquals(bTree.select(rank).orElseThrow(), key);
+            rank++;
+        }
+
+        assertEquals(bTree.rank("zzz"), expectedKeys.size());
+        assertFalse(bTree.select(rank).isPresent());
+    }
+
+    @Test
+    public void countRangeTest() {
+        var ranges = new String[][]{
+                {"key1", "key2"},
+                {"key100", "key199"},
+                {"a", "z"},
+                {"key5", "key5"},
+                {"key9", "key1"},
+        };
+
+        for (var range : ranges) {
+            long expected = range[0].compareTo(range[1]) > 0 ?
+                    0 :
+                    expectedKeys.subSet(range[0], true, range[1], true).size();
+
+            assertEquals(bTree.countRange(range[0], range[1]), expected, String.join("..", range));
+        }
+    }
+
+    @Test
+    public void keysAfterTest() {
+        List<String> scanned = new ArrayList<>();
+        String after = null;
+        for (var page = bTree.keysAfter(null, 64); !page.isEmpty(); page = bTree.keysAfter(after, 64)) {
+            assertTrue(page.size() <= 64);
+            scanned.addAll(page);
+            after = page.get(page.size() - 1);
+        }
+
+        assertEquals(scanned, new ArrayList<>(expectedKeys));
+        assertEquals(bTree.keysAfter("key1", 2), new ArrayList<>(expectedKeys.tailSet("key1", false)).subList(0, 2));
+        assertTrue(bTree.keysAfter(expectedKeys.last(), 10).isEmpty());
+    }
+
+    @Test
+    public void snapshotIsolationTest() {
+        var tree = new BTree(2);
+        tree.put("a", "1");
+        tree.put("b", "1");
+
+        long snapshot = tree.openSnapshot();
+
+        tree.put("a", "2");
+        tree.atomically(() -> {
+            tree.put("b", "2");
+            return tree.put("c", "2");
+        });
+
+        assertEquals(tree.get("a", snapshot).orElseThrow(), "1");
+        assertEquals(tree.get("b", snapshot).orElseThrow(), "1");
+        assertFalse(tree.contains("c", snapshot));
+
+        assertEquals(tree.get("a").orElseThrow(), "2");
+        assertEquals(tree.get("b").orElseThrow(), "2");
+        assertTrue(tree.contains("c"));
+
+        assertTrue(tree.releaseSnapshot(snapshot));
+        assertFalse(tree.releaseSnapshot(snapshot));
+        assertEquals(tree.openSnapshotCount(), 0);
+
+        long latest = tree.openSnapshot();
+        assertEquals(tree.get("b", latest).orElseThrow(), "2");
+        assertTrue(tree.contains("c", latest));
+    }
+
+    @Test
+    public void prefixCompressionTest() {
+        var tree = new BTree(4);
+        var expected = new TreeSet<String>();
+        for (int i = 0; i < 500; i++) {
+            var key = "customer/orders/2025/" + String.format("%05d", i * 7 % 500);
+            tree.put(key, String.valueOf(i));
+            expected.add(key);
+        }
+
+        long rank = 0;
+        for (var key : expected) {
+            assertTrue(tree.contains(key));
+            assertEquals(tree.select(rank++).orElseThrow(), key);
+        }
+        assertFalse(tree.contains("customer/orders/2025/"));
+        assertFalse(tree.contains("customer/orders/2024/00001"));
+
+        var statistics = tree.statistics();
+        assertEquals(statistics.keyCount(), 500);
+        assertEquals(statistics.rawKeyChars(), 500L * "customer/orders/2025/00000".length());
+        assertTrue(statistics.keyCompressionRatio() > 2.0, statistics.toString());
+    }
+
+    @Test
+    public void valueCompressionTest() {
+        var tree = new BTree(2);
+        var longValue = "abcdefgh".repeat(64);
+
+        tree.put("short", "value");
+        tree.put("long", longValue);
+
+        assertEquals(tree.get("long").orElseThrow(), longValue);
+        assertEquals(tree.get("short").orElseThrow(), "value");
+        assertTrue(tree.statistics().valueCompressionRatio() > 2.0);
+
+        tree.setCompressionThreshold(0);
+        tree.put("long", longValue);
+
+        assertEquals(tree.get("long").orElseThrow(), longValue);
+        assertEquals(tree.statistics().valueCompressionRatio(), 1.0);
+    }
+
+    @Test
+    public void removeTest() {
+        var random = new Random(3);
+        var remaining = new TreeSet<>(expectedKeys);
+
+        for (var key : expectedKeys) {
+            if (random.nextBoolean()) {
+                assertEquals(bTree.remove(key).orElseThrow(), key.toUpperCase());
+                remaining.remove(key);
+            }
+        }
+
+        assertFalse(bTree.remove("missing").isPresent());
+        assertEquals(bTree.keyCount(), remaining.size());
+
+        long rank = 0;
+        for (var key : remaining) {
+            assertEquals(bTree.select(rank++).orElseThrow(), key);
+        }
+        for (var key : expectedKeys) {
+            assertEquals(bTree.contains(key), remaining.contains(key), key);
+        }
+
+        for (var key : remaining) {
+            bTree.remove(key);
+        }
+        assertEquals(bTree.keyCount(), 0);
+        assertEquals(bTree.nodeCount(), 0);
+    }
+
+    @Test
+    public void removeUnderSnapshotTest() {
+        var tree = new BTree(2);
+        tree.put("a", "1");
+        tree.put("b", "1");
+
+        long snapshot = tree.openSnapshot();
+        tree.remove("a");
+
+        assertFalse(tree.contains("a"));
+        assertEquals(tree.get("a", snapshot).orElseThrow(), "1");
+
+        tree.releaseSnapshot(snapshot);
+        tree.put("c", "1");
+
+        assertEquals(tree.keyCount(), 2);
+        assertFalse(tree.get("a", tree.openSnapshot()).isPresent());
+    }
+
+    //Tombstones go in through a full root like any write, at the degree the server uses. Some of the trees built
+    //from a prefix of the keys have a full root over a full child
+    @Test
+    public void removeUnderSnapshotFullRootTest() {
+        var keys = new ArrayList<>(expectedKeys);
+        Collections.shuffle(keys, new Random(6712));
+
+        for (int size = 1; size <= 300; size++) {
+            var tree = new BTree(5);
+            keys.subList(0, size).forEach(key -> tree.put(key, "1"));
+
+            long snapshot = tree.openSnapshot();
+            keys.subList(0, size).forEach(tree::remove);
+
+            assertEquals(tree.keyCount(), 0);
+            for (var key : keys.subList(0, size)) {
+                assertFalse(tree.contains(key));
+                assertEquals(tree.get(key, snapshot).orElseThrow(), "1");
+            }
+
+            tree.releaseSnapshot(snapshot);
+            assertEquals(tree.keyCount(), 0);
+        }
+    }
+
+    //A removal kept as a tombstone for an open snapshot is already gone from counts and ranks
+    @Test
+    public void orderStatisticsUnderSnapshotTest() {
+        var tree = new BTree(2);
+        for (var key : List.of("a", "b", "c", "d", "e", "f", "g")) {
+            tree.put(key, "1");
+        }
+
+        long snapshot = tree.openSnapshot();
+        tree.remove("a");
+        tree.remove("d");
+
+        assertEquals(tree.keyCount(), 5);
+        assertEquals(tree.statistics().keyCount(), 5);
+        assertEquals(tree.countRange("a", "z"), 5);
+        assertEquals(tree.countRange("a", "d"), 2);
+        assertEquals(tree.rank("b"), 0);
+        assertEquals(tree.rank("e"), 2);
+        assertEquals(tree.select(0).orElseThrow(), "b");
+        assertEquals(tree.select(2).orElseThrow(), "e");
+        assertFalse(tree.select(5).isPresent());
+        assertEquals(tree.keysAfter(null, 10), List.of("b", "c", "e", "f", "g"));
+        assertEquals(tree.get("d", snapshot).orElseThrow(), "1");
+
+        tree.put("d", "2");
+        assertEquals(tree.keyCount(), 6);
+        assertEquals(tree.rank("e"), 3);
+
+        tree.releaseSnapshot(snapshot);
+        assertEquals(tree.keyCount(), 6);
+        assertEquals(tree.select(0).orElseThrow(), "b");
+    }
+
+    //Keys past their deadline are left out of counts and ranks the moment get stops returning them, sweep or not
+    @Test
+    public void orderStatisticsAfterExpiryTest() {
+        var now = new AtomicLong(1_000_000);
+        var tree = new BTree(2);
+        tree.setClock(now::get);
+
+        tree.put("a", "1");
+        tree.put("b", "1");
+        tree.put("c", "1", tree.deadlineAfter(500));
+        tree.put("d", "1", tree.deadlineAfter(1_050));
+        long snapshot = tree.openSnapshot();
+        tree.remove("a");
+        now.addAndGet(1_000);
+
+        assertFalse(tree.contains("c"));
+        assertEquals(tree.keyCount(), 2);
+        assertEquals(tree.countRange("a", "z"), 2);
+        assertEquals(tree.countRange("a", "c"), 1);
+        assertEquals(tree.rank("b"), 0);
+        assertEquals(tree.rank("d"), 1);
+        assertEquals(tree.select(0).orElseThrow(), "b");
+        assertEquals(tree.keysAfter(null, 10), List.of("b", "d"));
+
+        //In d's last tick of the expiration wheel, before and then past its deadline
+        now.addAndGet(10);
+        assertEquals(tree.keyCount(), 2);
+        assertEquals(tree.statistics().pendingExpirations(), 1);
+        now.addAndGet(50);
+        assertFalse(tree.contains("d"));
+        assertEquals(tree.keyCount(), 1);
+        assertEquals(tree.countRange("a", "z"), 1);
+        assertEquals(tree.rank("e"), 1);
+        assertFalse(tree.select(1).isPresent());
+        assertEquals(tree.statistics().pendingExpirations(), 0);
+        tree.releaseSnapshot(snapshot);
+    }
+
+    //A wave of keys expiring together is removed a slice per count rather than all inside one call
+    @Test
+    public void orderStatisticsExpiryWaveTest() {
+        var now = new AtomicLong(1_000_000);
+        var tree = new BTree(3);
+        tree.setClock(now::get);
+
+        tree.put("kept", "1");
+        for (int i = 0; i < 1_000; i++) {
+            tree.put("key" + i, "1", tree.deadlineAfter(500));
+        }
+        now.addAndGet(1_000);
+
+        long previous = 1_001;
+        int calls = 0;
+        for (long count = tree.keyCount(); count > 1; count = tree.keyCount()) {
+            assertTrue(count < previous && previous - count <= 64, previous + " then " + count);
+            previous = count;
+            calls++;
+        }
+        assertTrue(calls > 1, calls + " calls");
+        assertEquals(tree.keysAfter(null, 10), List.of("kept"));
+        assertEquals(tree.statistics().pendingExpirations(), 0);
+    }
+
+    @Test
+    public void expirationTest() {
+        var now = new AtomicLong(1_000_000);
+        var tree = new BTree(2);
+        tree.setClock(now::get);
+
+        for (int i = 0; i < 200; i++) {
+            tree.put("ttl" + i, "v", tree.deadlineAfter(1_000 + i * 10L));
+        }
+        tree.put("forever", "v");
+        tree.put("ttl0", "renewed", tree.deadlineAfter(60_000));
+
+        now.addAndGet(1_500);
+
+        assertFalse(tree.contains("ttl1"));
+        assertFalse(tree.get("ttl10").isPresent());
+        assertTrue(tree.contains("ttl199"));
+
+        int expired = 0;
+        for (int slice = tree.expireSlice(10); slice > 0; slice = tree.expireSlice(10)) {
+            assertTrue(slice <= 10);
+            expired += slice;
+        }
+
+        assertEquals(expired, 50);
+        assertEquals(tree.keyCount(), 151);
+        assertEquals(tree.get("ttl0").orElseThrow(), "renewed");
+
+        now.addAndGet(60_000);
+        while (tree.expireSlice(64) > 0) {
+            now.incrementAndGet();
+        }
+
+        assertEquals(tree.keyCount(), 1);
+        assertTrue(tree.contains("forever"));
+        assertEquals(tree.statistics().pendingExpirations(), 0);
+    }
+
+    @Test
+    public void keyFilterTest() {
+        for (int i = 0; i < KEY_COUNT; i++) {
+            assertFalse(bTree.contains("missing" + i));
+        }
+
+        var statistics = bTree.statistics();
+        assertTrue(statistics.expectedFilterFalsePositiveRate() < 0.05);
+        assertTrue(statistics.observedFilterFalsePositiveRate() < 0.05);
+
+        var tree = new BTree(3);
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < KEY_COUNT; i++) {
+                tree.put("k" + round + "-" + i, "v");
+            }
+            for (int i = 0; i < KEY_COUNT; i++) {
+                tree.remove("k" + round + "-" + i);
+            }
+        }
+        tree.put("survivor", "v");
+
+        assertTrue(tree.contains("survivor"));
+        assertFalse(tree.contains("k0-0"));
+        assertTrue(tree.statistics().expectedFilterFalsePositiveRate() < 0.05);
+    }
+
+    //A full filter is rebuilt a slice at a time behind writes and expiry sweeps, and lookups stay right meanwhile
+    @Test
+    public void keyFilterRebuildTest() {
+        var tree = new BTree(3);
+        for (int i = 0; i < 1_050; i++) {
+            tree.put("k" + i, "v");
+        }
+        long snapshot = tree.openSnapshot();
+        tree.remove("k0");
+
+        assertTrue(tree.statistics().expectedFilterFalsePositiveRate() > 0.005);
+        for (int i = 0; i < 1_050; i++) {
+            assertEquals(tree.contains("k" + i), i != 0);
+        }
+
+        for (int slice = 0; slice < 20; slice++) {
+            tree.expireSlice(64);
+        }
+
+        assertTrue(tree.statistics().expectedFilterFalsePositiveRate() < 0.005);
+        for (int i = 0; i < 1_050; i++) {
+            assertEquals(tree.contains("k" + i), i != 0);
+        }
+        assertEquals(tree.get("k0", snapshot).orElseThrow(), "v");
+    }
+
+    @Test
+    public void merkleDigestTest() {
+        //Digests cover versions, so replicas only match when they hold the same writes
+        var primary = new BTree(3);
+        var replica = new BTree(3);
+        for (var key : expectedKeys) {
+            primary.put(key, key.toUpperCase(), 0, 1);
+        }
+        for (var key : expectedKeys.descendingSet()) {
+            replica.put(key, key.toUpperCase(), 0, 1);
+        }
+        assertEquals(replica.merkleDigest(0, 0), primary.merkleDigest(0, 0));
+
+        var key = expectedKeys.first();
+        int bucket = MerkleIndex.bucketOf(key);
+        replica.put(key, "diverged", 0, 2);
+
+        assertNotEquals(replica.merkleDigest(0, 0), primary.merkleDigest(0, 0));
+        assertNotEquals(replica.merkleDigest(BTree.MERKLE_DEPTH, bucket), primary.merkleDigest(BTree.MERKLE_DEPTH, bucket));
+        assertEquals(replica.merkleDigest(BTree.MERKLE_DEPTH, bucket + 1), primary.merkleDigest(BTree.MERKLE_DEPTH, bucket + 1));
+        assertNotEquals(replica.merkleBucket(bucket).get(key), primary.merkleBucket(bucket).get(key));
+
+        //Removing and restoring a key, or adding one that expires, leaves the digests in step again
+        replica.remove(key);
+        replica.put(key, key.toUpperCase(), 0, 1);
+        replica.put("ttl", "v", replica.deadlineAfter(60_000));
+        assertEquals(replica.merkleDigest(0, 0), primary.merkleDigest(0, 0));
+        assertEquals(new BTree(2).merkleDigest(4, 3), 0);
+    }
+
+    @Test
+    public void versionedWriteTest() {
+        var now = new AtomicLong(1_000_000);
+        var tree = new BTree(2);
+        tree.setClock(now::get);
+
+        //Older versions are dropped, and equal ones keep the larger value, whatever order they arrive in
+        assertNull(tree.put("k", "new", 0, 20));
+        assertEquals(tree.put("k", "old", 0, 10), "new");
+        assertEquals(tree.put("k", "a", 0, 20), "new");
+        assertEquals(tree.put("k", "z", 0, 20), "new");
+        assertEquals(tree.getVersioned("k").orElseThrow(), new VersionedValue("z", 20, 0));
+
+        //Local writes are versioned past everything the tree has seen, even versions ahead of its own clock
+        long ahead = (now.get() + 5_000) << 16;
+        tree.put("k", "remote", 0, ahead);
+        tree.put("k", "local");
+        assertEquals(tree.get("k").orElseThrow(), "local");
+        assertTrue(tree.getVersioned("k").orElseThrow().version() > ahead);
+
+        //A TTL is reported in whole seconds left, and once it lapses any version may write the key again
+        tree.put("ttl", "v", tree.deadlineAfter(1_500), 5);
+        assertEquals(tree.getVersioned("ttl").orElseThrow().ttlSeconds(), 2);
+        now.addAndGet(2_000);
+        assertTrue(tree.getVersioned("ttl").isEmpty());
+        assertNull(tree.put("ttl", "again", 0, 1));
+        assertEquals(tree.get("ttl").orElseThrow(), "again");
+    }
+}